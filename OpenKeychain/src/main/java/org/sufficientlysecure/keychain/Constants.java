@@ -113,6 +113,7 @@ public final class Constants {
         public static final String PASSPHRASE_CACHE_TTLS = "passphraseCacheTtls";
         public static final String PASSPHRASE_CACHE_DEFAULT = "passphraseCacheDefault";
         public static final String PASSPHRASE_CACHE_SUBS = "passphraseCacheSubs";
+        public static final String PASSPHRASE_CACHE_UNLOCKED_KEYS = "passphraseCacheUnlockedKeys";
         public static final String LANGUAGE = "language";
         public static final String KEY_SERVERS = "keyServers";
         public static final String PREF_VERSION = "keyServersDefaultVersion";
@@ -136,12 +137,15 @@ public final class Constants {
         public static final String SYNC_CONTACTS = "syncContacts";
         public static final String SYNC_KEYSERVER = "syncKeyserver";
         public static final String ENABLE_WIFI_SYNC_ONLY = "enableWifiSyncOnly";
+        public static final String KEYSERVER_SYNC_RESUME_LAST_UPDATED = "keyserverSyncResumeLastUpdated";
+        public static final String KEYSERVER_SYNC_RESUME_MASTER_KEY_ID = "keyserverSyncResumeMasterKeyId";
         // other settings
         public static final String EXPERIMENTAL_ENABLE_WORD_CONFIRM = "experimentalEnableWordConfirm";
         public static final String EXPERIMENTAL_ENABLE_LINKED_IDENTITIES = "experimentalEnableLinkedIdentities";
         public static final String EXPERIMENTAL_ENABLE_KEYBASE = "experimentalEnableKeybase";
         public static final String EXPERIMENTAL_SMARTPGP_VERIFY_AUTHORITY = "smartpgp_authorities_pref";
         public static final String EXPERIMENTAL_SMARTPGP_AUTHORITIES = "smartpgp_authorities";
+        public static final String EXPERIMENTAL_MAX_THIRD_PARTY_CERTS = "experimentalMaxThirdPartyCerts";
 
         public static final class Theme {
             public static final String LIGHT = "light";
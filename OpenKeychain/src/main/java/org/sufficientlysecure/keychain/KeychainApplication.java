@@ -20,8 +20,10 @@ package org.sufficientlysecure.keychain;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.app.Application;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.Bitmap;
 import android.graphics.PorterDuff;
 import android.graphics.drawable.Drawable;
@@ -31,6 +33,8 @@ import android.support.annotation.Nullable;
 import android.widget.Toast;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.pgp.SessionKeyCache;
+import org.sufficientlysecure.keychain.pgp.UnlockedKeyCache;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase;
 import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
@@ -120,6 +124,8 @@ public class KeychainApplication extends Application {
 
         TemporaryFileProvider.cleanUp(this);
 
+        registerScreenOffReceiver();
+
         if (!checkConsolidateRecovery()) {
             // force DB upgrade, https://github.com/open-keychain/open-keychain/issues/1334
             new KeychainDatabase(this).getReadableDatabase().close();
@@ -153,6 +159,20 @@ public class KeychainApplication extends Application {
         }
     }
 
+    /**
+     * Caches of key material live in every process that decrypts, so they are cleared here once
+     * per process rather than by PassphraseCacheService.
+     */
+    private void registerScreenOffReceiver() {
+        registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                SessionKeyCache.getInstance(context).removeScreenLockSessionKeys();
+                UnlockedKeyCache.getInstance(context).removeScreenLockKeys();
+            }
+        }, new IntentFilter(Intent.ACTION_SCREEN_OFF));
+    }
+
     public static HashMap<String,Bitmap> qrCodeCache = new HashMap<>();
 
     @Override
@@ -18,6 +18,7 @@
 package org.sufficientlysecure.keychain.keyimport;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.util.Log;
@@ -27,6 +28,12 @@ import org.sufficientlysecure.keychain.util.Preferences;
 import java.net.Proxy;
 import java.util.ArrayList;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Search two or more types of server for online keys.
@@ -35,9 +42,24 @@ public class CloudSearch {
 
     private final static long SECONDS = 1000;
 
+    public interface OnSearchResultsListener {
+        /**
+         * Called on the searching thread each time one of the servers has answered, with all
+         * results received so far, dupes merged.
+         */
+        void onSearchResults(ArrayList<ImportKeysListEntry> results);
+    }
+
     public static ArrayList<ImportKeysListEntry> search(
             @NonNull final String query, Preferences.CloudSearchPrefs cloudPrefs, @NonNull final ParcelableProxy proxy)
             throws Keyserver.CloudSearchFailureException {
+        return search(query, cloudPrefs, proxy, null);
+    }
+
+    public static ArrayList<ImportKeysListEntry> search(
+            @NonNull final String query, Preferences.CloudSearchPrefs cloudPrefs, @NonNull final ParcelableProxy proxy,
+            @Nullable OnSearchResultsListener listener)
+            throws Keyserver.CloudSearchFailureException {
 
         final ArrayList<Keyserver> servers = new ArrayList<>();
         // it's a Vector for sync, multiple threads might report problems
@@ -57,56 +79,78 @@ public class CloudSearch {
         final ImportKeysList results = new ImportKeysList(numberOfServers);
 
         if (numberOfServers > 0) {
-            ArrayList<Thread> searchThreads = new ArrayList<>();
+            ExecutorService executor = Executors.newFixedThreadPool(numberOfServers);
+            ExecutorCompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
             for (final Keyserver keyserver : servers) {
-                Runnable r = new Runnable() {
+                completionService.submit(new Callable<Void>() {
                     @Override
-                    public void run() {
+                    public Void call() {
                         try {
-                            results.addAll(keyserver.search(query, proxy));
+                            if (keyserver instanceof ParcelableHkpKeyserver) {
+                                // entries are merged in as soon as they are parsed from the response
+                                ((ParcelableHkpKeyserver) keyserver).search(query, proxy,
+                                        new ParcelableHkpKeyserver.SearchResultListener() {
+                                            @Override
+                                            public void onSearchResult(ImportKeysListEntry entry) {
+                                                results.add(entry);
+                                            }
+                                        });
+                            } else {
+                                results.addAll(keyserver.search(query, proxy));
+                            }
                         } catch (Keyserver.CloudSearchFailureException e) {
                             problems.add(e);
                         }
-                        results.finishedAdding(); // notifies if all searchers done
+                        results.finishedAdding();
+                        return null;
                     }
-                };
-                Thread searchThread = new Thread(r);
-                searchThreads.add(searchThread);
-                searchThread.start();
+                });
             }
 
             // wait for either all the searches to come back, or 10 seconds. If using proxy, wait 30 seconds.
-            synchronized (results) {
-                try {
-                    results.wait((proxy.getProxy() == Proxy.NO_PROXY ? 30 : 10) * SECONDS);
-                    for (Thread thread : searchThreads) {
-                        // kill threads that haven't returned yet
-                        thread.interrupt();
+            long timeout = (proxy.getProxy() == Proxy.NO_PROXY ? 10 : 30) * SECONDS;
+            long deadline = System.currentTimeMillis() + timeout;
+            try {
+                for (int i = 0; i < numberOfServers; i++) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    Future<Void> done = remaining > 0
+                            ? completionService.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                    if (done == null) {
+                        break;
+                    }
+                    if (listener != null) {
+                        listener.onSearchResults(results.snapshot());
                     }
-                } catch (InterruptedException ignored) {
                 }
+            } catch (InterruptedException ignored) {
+            } finally {
+                // kill searches that haven't returned yet
+                executor.shutdownNow();
             }
 
             if (results.outstandingSuppliers() > 0) {
                 String message = "Launched " + servers.size() + " cloud searchers, but " +
-                        results.outstandingSuppliers() + "failed to complete.";
+                        results.outstandingSuppliers() + " failed to complete.";
                 problems.add(new Keyserver.QueryFailedException(message));
             }
         } else {
             problems.add(new Keyserver.QueryNoEnabledSourceException());
         }
 
+        // searches which did not complete in time may still add to the list
+        ArrayList<ImportKeysListEntry> finalResults = results.snapshot();
+
         if (!problems.isEmpty()) {
             for (Keyserver.CloudSearchFailureException e : problems) {
                 Log.d(Constants.TAG, "Cloud search exception: " + e.getLocalizedMessage());
             }
 
             // only throw exception if we didn’t get any results
-            if (results.isEmpty()) {
+            if (finalResults.isEmpty()) {
                 throw problems.get(0);
             }
         }
 
-        return results;
+        return finalResults;
     }
 }
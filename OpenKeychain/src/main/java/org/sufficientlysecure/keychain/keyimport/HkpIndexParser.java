@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.keyimport.ParcelableHkpKeyserver.SearchResultListener;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Parses a machine readable index, as returned by a keyserver for an "mr" index lookup, one
+ * line at a time. Each entry is passed to the listener as soon as its last user id was read,
+ * so neither the response nor all entries have to be kept in memory.
+ * <p/>
+ * Each entry is a pub line, followed by one or more uid lines, possibly separated by empty
+ * lines. Other lines are ignored.
+ *
+ * @see <a href="http://tools.ietf.org/html/draft-shaw-openpgp-hkp-00#section-5.2">
+ * 5.2. Machine Readable Indexes</a>
+ */
+class HkpIndexParser {
+
+    /**
+     * pub:%keyid%:%algo%:%keylen%:%creationdate%:%expirationdate%:%flags%
+     * <ul>
+     * <li>%<b>keyid</b>% = this is either the fingerprint or the key ID of the key.
+     * Either the 16-digit or 8-digit key IDs are acceptable, but obviously the fingerprint is best.
+     * </li>
+     * <li>%<b>algo</b>% = the algorithm number, (i.e. 1==RSA, 17==DSA, etc).
+     * See <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a></li>
+     * <li>%<b>keylen</b>% = the key length (i.e. 1024, 2048, 4096, etc.)</li>
+     * <li>%<b>creationdate</b>% = creation date of the key in standard
+     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
+     * seconds since 1/1/1970 UTC time)</li>
+     * <li>%<b>expirationdate</b>% = expiration date of the key in standard
+     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
+     * seconds since 1/1/1970 UTC time)</li>
+     * <li>%<b>flags</b>% = letter codes to indicate details of the key, if any. Flags may be in any
+     * order. The meaning of "disabled" is implementation-specific. Note that individual flags may
+     * be unimplemented, so the absence of a given flag does not necessarily mean the absence of the
+     * detail.
+     * <ul>
+     * <li>r == revoked</li>
+     * <li>d == disabled</li>
+     * <li>e == expired</li>
+     * </ul>
+     * </li>
+     * </ul>
+     */
+    private static final Pattern PUB_LINE = Pattern
+            .compile("pub:([0-9a-fA-F]+):([0-9]+):([0-9]+):([0-9]+):([0-9]*):([rde]*)",
+                    Pattern.CASE_INSENSITIVE);
+
+    private final String mQuery;
+    private final ParcelableHkpKeyserver mKeyserver;
+    private final SearchResultListener mListener;
+
+    // entry whose uid lines are being read, and its user ids
+    private ImportKeysListEntry mEntry;
+    private ArrayList<String> mUserIds;
+
+    HkpIndexParser(String query, ParcelableHkpKeyserver keyserver, SearchResultListener listener) {
+        mQuery = query;
+        mKeyserver = keyserver;
+        mListener = listener;
+    }
+
+    void parse(BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            parseLine(line);
+        }
+        finishEntry();
+    }
+
+    void parseLine(String line) {
+        line = line.trim();
+        if (line.isEmpty()) {
+            return;
+        }
+
+        Matcher uidMatcher = ParcelableHkpKeyserver.UID_LINE.matcher(line);
+        if (uidMatcher.matches()) {
+            if (mEntry != null) {
+                addUserId(uidMatcher.group(1));
+            }
+            // uid lines of a skipped key, or without a key, are ignored
+            return;
+        }
+
+        // any other line ends the uid lines of the current entry
+        finishEntry();
+
+        Matcher pubMatcher = PUB_LINE.matcher(line);
+        if (pubMatcher.matches()) {
+            mEntry = parsePubLine(pubMatcher);
+            mUserIds = new ArrayList<>();
+        }
+    }
+
+    private void finishEntry() {
+        if (mEntry == null) {
+            return;
+        }
+
+        // keys without any (valid) user id are skipped
+        if (!mUserIds.isEmpty()) {
+            mEntry.setUserIds(mUserIds);
+            mEntry.setPrimaryUserId(mUserIds.get(0));
+            mEntry.setKeyserver(mKeyserver);
+            mListener.onSearchResult(mEntry);
+        }
+
+        mEntry = null;
+        mUserIds = null;
+    }
+
+    private ImportKeysListEntry parsePubLine(Matcher matcher) {
+        final ImportKeysListEntry entry = new ImportKeysListEntry();
+        entry.setQuery(mQuery);
+
+        // group 1 contains the full fingerprint (v4) or the long key id if available
+        // see https://bitbucket.org/skskeyserver/sks-keyserver/pull-request/12/fixes-for-machine-readable-indexes/diff
+        String fingerprintOrKeyId = matcher.group(1).toLowerCase(Locale.ENGLISH);
+        if (fingerprintOrKeyId.length() == 40) {
+            entry.setFingerprintHex(fingerprintOrKeyId);
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(fingerprintOrKeyId.length()
+                    - 16, fingerprintOrKeyId.length()));
+        } else if (fingerprintOrKeyId.length() == 16) {
+            // set key id only
+            entry.setKeyIdHex("0x" + fingerprintOrKeyId);
+        } else {
+            Log.e(Constants.TAG, "Wrong length for fingerprint/long key id.");
+            // skip this key
+            return null;
+        }
+
+        try {
+            int bitSize = Integer.parseInt(matcher.group(3));
+            entry.setBitStrength(bitSize);
+            int algorithmId = Integer.decode(matcher.group(2));
+            entry.setAlgorithm(KeyFormattingUtils.getAlgorithmInfo(algorithmId, bitSize, null));
+
+            long creationDate = Long.parseLong(matcher.group(4));
+            GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+            calendar.setTimeInMillis(creationDate * 1000);
+            entry.setDate(calendar.getTime());
+        } catch (NumberFormatException e) {
+            Log.e(Constants.TAG, "Conversation for bit size, algorithm, or creation date failed.", e);
+            // skip this key
+            return null;
+        }
+
+        entry.setRevoked(matcher.group(6).contains("r"));
+        boolean expired = matcher.group(6).contains("e");
+
+        // It may be expired even without flag, thus check expiration date
+        String expiration;
+        if (!expired && !(expiration = matcher.group(5)).isEmpty()) {
+            try {
+                long expirationDate = Long.parseLong(expiration);
+                TimeZone timeZoneUTC = TimeZone.getTimeZone("UTC");
+                GregorianCalendar calendar = new GregorianCalendar(timeZoneUTC);
+                calendar.setTimeInMillis(expirationDate * 1000);
+                expired = new GregorianCalendar(timeZoneUTC).compareTo(calendar) >= 0;
+            } catch (NumberFormatException e) {
+                Log.e(Constants.TAG, "Check for expiry failed.", e);
+                // skip this key
+                return null;
+            }
+        }
+        entry.setExpired(expired);
+
+        return entry;
+    }
+
+    private void addUserId(String userId) {
+        String tmp = userId.trim();
+        if (tmp.contains("%")) {
+            if (tmp.contains("%%")) {
+                // The server encodes a percent sign as %%, so it is swapped out with its
+                // urlencoded counterpart to prevent errors
+                tmp = tmp.replace("%%", "%25");
+            }
+            try {
+                // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
+                tmp = URLDecoder.decode(tmp, "UTF8");
+            } catch (UnsupportedEncodingException ignored) {
+                // will never happen, because "UTF8" is supported
+            } catch (IllegalArgumentException e) {
+                Log.e(Constants.TAG, "User ID encoding broken", e);
+                // skip this user id
+                return;
+            }
+        }
+        mUserIds.add(tmp);
+    }
+
+}
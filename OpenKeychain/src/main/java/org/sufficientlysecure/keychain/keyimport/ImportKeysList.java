@@ -19,13 +19,19 @@ package org.sufficientlysecure.keychain.keyimport;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 
 /**
  * Just an ArrayList, only with a synchronized dupe-merging add/addAll, and a sign-off method
+ * <p/>
+ * Entries are indexed by fingerprint, so finding the entry to merge a dupe into does not
+ * depend on the number of results. Entries without a fingerprint are never merged, see
+ * {@link ImportKeysListEntry#hasSameKeyAs(ImportKeysListEntry)}.
  */
 public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
 
     private int mSupplierCount;
+    private final HashMap<String, ImportKeysListEntry> mEntriesByFingerprint = new HashMap<>();
 
     public ImportKeysList(int supplierCount) {
         mSupplierCount = supplierCount;
@@ -49,14 +55,59 @@ public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
     // NOTE: side-effects
     // NOTE: synchronized
     private synchronized boolean addOrMerge(ImportKeysListEntry toAdd) {
-        for (ImportKeysListEntry existing : this) {
-            if (toAdd.hasSameKeyAs(existing)) {
+        String fingerprint = toAdd.getFingerprintHex();
+        if (fingerprint != null) {
+            ImportKeysListEntry existing = mEntriesByFingerprint.get(fingerprint);
+            if (existing != null) {
                 return mergeDupes(toAdd, existing);
             }
+            mEntriesByFingerprint.put(fingerprint, toAdd);
         }
         return super.add(toAdd);
     }
 
+    @Override
+    public synchronized boolean remove(Object toRemove) {
+        if (!super.remove(toRemove)) {
+            return false;
+        }
+        removeFromIndex((ImportKeysListEntry) toRemove);
+        return true;
+    }
+
+    @Override
+    public synchronized ImportKeysListEntry remove(int index) {
+        ImportKeysListEntry removed = super.remove(index);
+        removeFromIndex(removed);
+        return removed;
+    }
+
+    @Override
+    public synchronized void clear() {
+        super.clear();
+        mEntriesByFingerprint.clear();
+    }
+
+    private void removeFromIndex(ImportKeysListEntry removed) {
+        String fingerprint = removed.getFingerprintHex();
+        if (fingerprint != null && mEntriesByFingerprint.get(fingerprint) == removed) {
+            mEntriesByFingerprint.remove(fingerprint);
+        }
+    }
+
+    /**
+     * Returns copies of the entries added so far. Suppliers still adding to this list merge
+     * dupes into its entries, so the copies are what is safe to use, and modify, meanwhile.
+     */
+    // NOTE: synchronized
+    public synchronized ArrayList<ImportKeysListEntry> snapshot() {
+        ArrayList<ImportKeysListEntry> snapshot = new ArrayList<>(size());
+        for (ImportKeysListEntry entry : this) {
+            snapshot.add(new ImportKeysListEntry(entry));
+        }
+        return snapshot;
+    }
+
     // being a little anal about the ArrayList#addAll contract here
     private boolean mergeDupes(ImportKeysListEntry incoming, ImportKeysListEntry existing) {
         boolean modified = false;
@@ -105,7 +156,8 @@ public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
         }
     }
 
-    public int outstandingSuppliers() {
+    // NOTE: synchronized
+    public synchronized int outstandingSuppliers() {
         return mSupplierCount;
     }
 }
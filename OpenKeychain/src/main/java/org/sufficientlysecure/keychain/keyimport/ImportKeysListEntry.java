@@ -310,6 +310,32 @@ public class ImportKeysListEntry implements Serializable, Parcelable {
         }
     }
 
+    /**
+     * Copy constructor, the copy can be modified independently of the original
+     */
+    public ImportKeysListEntry(ImportKeysListEntry other) {
+        mParcelableKeyRing = other.mParcelableKeyRing;
+        mKeyIdHex = other.mKeyIdHex;
+        mSecretKey = other.mSecretKey;
+        mRevoked = other.mRevoked;
+        mExpired = other.mExpired;
+        mSecure = other.mSecure;
+        mUpdated = other.mUpdated;
+        mDate = other.mDate != null ? new Date(other.mDate.getTime()) : null;
+        mFingerprintHex = other.mFingerprintHex;
+        mBitStrength = other.mBitStrength;
+        mCurveOid = other.mCurveOid;
+        mAlgorithm = other.mAlgorithm;
+        mPrimaryUserId = other.mPrimaryUserId;
+        mKeyserver = other.mKeyserver;
+        mKeybaseName = other.mKeybaseName;
+        mFbUsername = other.mFbUsername;
+        mQuery = other.mQuery;
+        mHashCode = other.mHashCode;
+
+        setUserIds(new ArrayList<>(other.mUserIds));
+    }
+
     private void updateMergedUserIds() {
         mMergedUserIds = new HashMap<>();
         for (String userId : mUserIds) {
@@ -18,20 +18,19 @@
 package org.sufficientlysecure.keychain.keyimport;
 
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.Proxy;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URLDecoder;
 import java.nio.charset.Charset;
 import java.nio.charset.UnsupportedCharsetException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.GregorianCalendar;
 import java.util.Locale;
-import java.util.TimeZone;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -45,6 +44,7 @@ import de.measite.minidns.Record;
 import de.measite.minidns.record.SRV;
 import okhttp3.FormBody;
 import okhttp3.HttpUrl;
+import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
@@ -52,7 +52,6 @@ import okhttp3.Response;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.PgpHelper;
-import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.network.OkHttpClientFactory;
 import org.sufficientlysecure.keychain.util.ParcelableProxy;
@@ -60,43 +59,6 @@ import org.sufficientlysecure.keychain.network.TlsCertificatePinning;
 
 public class ParcelableHkpKeyserver extends Keyserver implements Parcelable {
 
-    /**
-     * pub:%keyid%:%algo%:%keylen%:%creationdate%:%expirationdate%:%flags%
-     * <ul>
-     * <li>%<b>keyid</b>% = this is either the fingerprint or the key ID of the key.
-     * Either the 16-digit or 8-digit key IDs are acceptable, but obviously the fingerprint is best.
-     * </li>
-     * <li>%<b>algo</b>% = the algorithm number, (i.e. 1==RSA, 17==DSA, etc).
-     * See <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a></li>
-     * <li>%<b>keylen</b>% = the key length (i.e. 1024, 2048, 4096, etc.)</li>
-     * <li>%<b>creationdate</b>% = creation date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
-     * seconds since 1/1/1970 UTC time)</li>
-     * <li>%<b>expirationdate</b>% = expiration date of the key in standard
-     * <a href="http://tools.ietf.org/html/rfc2440#section-9.1">RFC-2440</a> form (i.e. number of
-     * seconds since 1/1/1970 UTC time)</li>
-     * <li>%<b>flags</b>% = letter codes to indicate details of the key, if any. Flags may be in any
-     * order. The meaning of "disabled" is implementation-specific. Note that individual flags may
-     * be unimplemented, so the absence of a given flag does not necessarily mean the absence of the
-     * detail.
-     * <ul>
-     * <li>r == revoked</li>
-     * <li>d == disabled</li>
-     * <li>e == expired</li>
-     * </ul>
-     * </li>
-     * </ul>
-     *
-     * @see <a href="http://tools.ietf.org/html/draft-shaw-openpgp-hkp-00#section-5.2">
-     * 5.2. Machine Readable Indexes</a>
-     * in Internet-Draft OpenPGP HTTP Keyserver Protocol Document
-     */
-    public static final Pattern PUB_KEY_LINE = Pattern
-            .compile("pub:([0-9a-fA-F]+):([0-9]+):([0-9]+):([0-9]+):([0-9]*):([rde]*)[ \n\r]*" // pub line
-                            + "((uid:([^:]*):([0-9]+):([0-9]*):([rde]*)[ \n\r]*)+)", // one or more uid lines
-                    Pattern.CASE_INSENSITIVE
-            );
-
     /**
      * uid:%escaped uid string%:%creationdate%:%expirationdate%:%flags%
      * <ul>
@@ -201,16 +163,7 @@ public class ParcelableHkpKeyserver extends Keyserver implements Parcelable {
 
     private String query(HttpUrl url, @NonNull ParcelableProxy proxy) throws Keyserver.QueryFailedException, HttpError {
         try {
-            OkHttpClient client =
-                    OkHttpClientFactory.getClientPinnedIfAvailable(url.url(), proxy.getProxy());
-
-            Request request = new Request.Builder()
-                    .url(url)
-                    .build();
-
-            Response response = client
-                    .newCall(request)
-                    .execute();
+            Response response = execute(url, proxy);
 
             // contains body both in case of success or failure
             String responseBody = getResponseBodyAsUtf8(response);
@@ -230,6 +183,49 @@ public class ParcelableHkpKeyserver extends Keyserver implements Parcelable {
         }
     }
 
+    /**
+     * Like query, but hands each line of a successful response to the parser while it is being
+     * received, instead of reading all of it into memory first.
+     */
+    private void queryIndex(HttpUrl url, @NonNull ParcelableProxy proxy, HkpIndexParser parser)
+            throws Keyserver.QueryFailedException, HttpError {
+        try {
+            Response response = execute(url, proxy);
+            if (!response.isSuccessful()) {
+                // error responses are short, and checked for their content
+                throw new HttpError(response.code(), getResponseBodyAsUtf8(response));
+            }
+
+            BufferedReader reader = new BufferedReader(getResponseBodyReader(response));
+            try {
+                parser.parse(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "IOException at HkpKeyserver", e);
+            throw new Keyserver.QueryFailedException("Keyserver '" + mUrl + "' is unavailable. Check your Internet connection!" +
+                    (proxy.getProxy() == Proxy.NO_PROXY ? "" : " Using proxy " + proxy.getProxy()));
+        } catch (TlsCertificatePinning.TlsCertificatePinningException e) {
+            Log.e(Constants.TAG, "Exception in pinning certs", e);
+            throw new Keyserver.QueryFailedException("Exception in pinning certs");
+        }
+    }
+
+    private Response execute(HttpUrl url, @NonNull ParcelableProxy proxy)
+            throws IOException, TlsCertificatePinning.TlsCertificatePinningException {
+        OkHttpClient client =
+                OkHttpClientFactory.getClientPinnedIfAvailable(url.url(), proxy.getProxy());
+
+        Request request = new Request.Builder()
+                .url(url)
+                .build();
+
+        return client
+                .newCall(request)
+                .execute();
+    }
+
     private String getResponseBodyAsUtf8(Response response) throws IOException {
         String responseBody;
         byte[] responseBytes = response.body().bytes();
@@ -242,19 +238,45 @@ public class ParcelableHkpKeyserver extends Keyserver implements Parcelable {
         return responseBody;
     }
 
-    /**
-     * Results are sorted by creation date of key!
-     */
+    private Reader getResponseBodyReader(Response response) {
+        Charset charset;
+        try {
+            MediaType contentType = response.body().contentType();
+            charset = contentType != null ? contentType.charset(UTF_8) : UTF_8;
+        } catch (UnsupportedCharsetException e) {
+            charset = UTF_8;
+        }
+
+        return new InputStreamReader(response.body().byteStream(), charset);
+    }
+
+    public interface SearchResultListener {
+        void onSearchResult(ImportKeysListEntry entry);
+    }
+
     @Override
     public ArrayList<ImportKeysListEntry> search(String query, ParcelableProxy proxy)
             throws Keyserver.QueryFailedException, Keyserver.QueryNeedsRepairException {
-        ArrayList<ImportKeysListEntry> results = new ArrayList<>();
+        final ArrayList<ImportKeysListEntry> results = new ArrayList<>();
+        search(query, proxy, new SearchResultListener() {
+            @Override
+            public void onSearchResult(ImportKeysListEntry entry) {
+                results.add(entry);
+            }
+        });
+        return results;
+    }
 
+    /**
+     * Searches the keyserver, and passes each result to the listener as soon as it was received.
+     * Results are in the order returned by the keyserver.
+     */
+    public void search(String query, ParcelableProxy proxy, SearchResultListener listener)
+            throws Keyserver.QueryFailedException, Keyserver.QueryNeedsRepairException {
         if (query.length() < 3) {
             throw new Keyserver.QueryTooShortException();
         }
 
-        String data;
         try {
             HttpUrl url = getHttpUrl(proxy).newBuilder()
                     .addPathSegment("lookup")
@@ -265,7 +287,7 @@ public class ParcelableHkpKeyserver extends Keyserver implements Parcelable {
 
             Log.d(Constants.TAG, "Keyserver search: " + url + " using Proxy: " + proxy.getProxy());
 
-            data = query(url, proxy);
+            queryIndex(url, proxy, new HkpIndexParser(query, this, listener));
         } catch (URISyntaxException e) {
             Log.e(Constants.TAG, "Unsupported keyserver URI", e);
             throw new Keyserver.QueryFailedException("Unsupported keyserver URI");
@@ -275,7 +297,7 @@ public class ParcelableHkpKeyserver extends Keyserver implements Parcelable {
 
                 if (e.getData().toLowerCase(Locale.ENGLISH).contains("no keys found")) {
                     // NOTE: This is also a 404 error for some keyservers!
-                    return results;
+                    return;
                 } else if (e.getData().toLowerCase(Locale.ENGLISH).contains("too many")) {
                     throw new Keyserver.TooManyResponsesException();
                 } else if (e.getData().toLowerCase(Locale.ENGLISH).contains("insufficient")) {
@@ -291,95 +313,6 @@ public class ParcelableHkpKeyserver extends Keyserver implements Parcelable {
 
             throw new Keyserver.QueryFailedException("Querying server(s) for '" + mUrl + "' failed.");
         }
-
-        final Matcher matcher = PUB_KEY_LINE.matcher(data);
-        while (matcher.find()) {
-            final ImportKeysListEntry entry = new ImportKeysListEntry();
-            entry.setQuery(query);
-
-            // group 1 contains the full fingerprint (v4) or the long key id if available
-            // see https://bitbucket.org/skskeyserver/sks-keyserver/pull-request/12/fixes-for-machine-readable-indexes/diff
-            String fingerprintOrKeyId = matcher.group(1).toLowerCase(Locale.ENGLISH);
-            if (fingerprintOrKeyId.length() == 40) {
-                entry.setFingerprintHex(fingerprintOrKeyId);
-                entry.setKeyIdHex("0x" + fingerprintOrKeyId.substring(fingerprintOrKeyId.length()
-                        - 16, fingerprintOrKeyId.length()));
-            } else if (fingerprintOrKeyId.length() == 16) {
-                // set key id only
-                entry.setKeyIdHex("0x" + fingerprintOrKeyId);
-            } else {
-                Log.e(Constants.TAG, "Wrong length for fingerprint/long key id.");
-                // skip this key
-                continue;
-            }
-
-            try {
-                int bitSize = Integer.parseInt(matcher.group(3));
-                entry.setBitStrength(bitSize);
-                int algorithmId = Integer.decode(matcher.group(2));
-                entry.setAlgorithm(KeyFormattingUtils.getAlgorithmInfo(algorithmId, bitSize, null));
-
-                long creationDate = Long.parseLong(matcher.group(4));
-                GregorianCalendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
-                calendar.setTimeInMillis(creationDate * 1000);
-                entry.setDate(calendar.getTime());
-            } catch (NumberFormatException e) {
-                Log.e(Constants.TAG, "Conversation for bit size, algorithm, or creation date failed.", e);
-                // skip this key
-                continue;
-            }
-
-            try {
-                entry.setRevoked(matcher.group(6).contains("r"));
-                boolean expired = matcher.group(6).contains("e");
-
-                // It may be expired even without flag, thus check expiration date
-                String expiration;
-                if (!expired && !(expiration = matcher.group(5)).isEmpty()) {
-                    long expirationDate = Long.parseLong(expiration);
-                    TimeZone timeZoneUTC = TimeZone.getTimeZone("UTC");
-                    GregorianCalendar calendar = new GregorianCalendar(timeZoneUTC);
-                    calendar.setTimeInMillis(expirationDate * 1000);
-                    expired = new GregorianCalendar(timeZoneUTC).compareTo(calendar) >= 0;
-                }
-                entry.setExpired(expired);
-            } catch (NullPointerException e) {
-                Log.e(Constants.TAG, "Check for revocation or expiry failed.", e);
-                // skip this key
-                continue;
-            }
-
-            ArrayList<String> userIds = new ArrayList<>();
-            final String uidLines = matcher.group(7);
-            final Matcher uidMatcher = UID_LINE.matcher(uidLines);
-            while (uidMatcher.find()) {
-                String tmp = uidMatcher.group(1).trim();
-                if (tmp.contains("%")) {
-                    if (tmp.contains("%%")) {
-                        // The server encodes a percent sign as %%, so it is swapped out with its
-                        // urlencoded counterpart to prevent errors
-                        tmp = tmp.replace("%%", "%25");
-                    }
-                    try {
-                        // converts Strings like "Universit%C3%A4t" to a proper encoding form "Universität".
-                        tmp = URLDecoder.decode(tmp, "UTF8");
-                    } catch (UnsupportedEncodingException ignored) {
-                        // will never happen, because "UTF8" is supported
-                    } catch (IllegalArgumentException e) {
-                        Log.e(Constants.TAG, "User ID encoding broken", e);
-                        // skip this user id
-                        continue;
-                    }
-                }
-                userIds.add(tmp);
-            }
-            entry.setUserIds(userIds);
-            entry.setPrimaryUserId(userIds.get(0));
-            entry.setKeyserver(this);
-
-            results.add(entry);
-        }
-        return results;
     }
 
     @Override
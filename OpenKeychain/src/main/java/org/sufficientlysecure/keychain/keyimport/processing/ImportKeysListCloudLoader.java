@@ -18,6 +18,8 @@
 package org.sufficientlysecure.keychain.keyimport.processing;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.support.v4.content.AsyncTaskLoader;
 
@@ -41,6 +43,7 @@ public class ImportKeysListCloudLoader
         extends AsyncTaskLoader<AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>>> {
 
     private Context mContext;
+    private Handler mHandler = new Handler(Looper.getMainLooper());
     private CloudLoaderState mState;
     private ParcelableProxy mParcelableProxy;
 
@@ -81,13 +84,37 @@ public class ImportKeysListCloudLoader
             queryServer(false);
         }
 
+        setParcelableKeyRings(mEntryList);
+
+        return mEntryListWrapper;
+    }
+
+    private static void setParcelableKeyRings(ArrayList<ImportKeysListEntry> entries) {
         // Now we have all the data needed to build the parcelable key ring for this key
-        for (ImportKeysListEntry e : mEntryList) {
+        for (ImportKeysListEntry e : entries) {
             e.setParcelableKeyRing(new ParcelableKeyRing(e.getFingerprintHex(), e.getKeyIdHex(),
                     e.getKeybaseName(), e.getFbUsername()));
         }
+    }
 
-        return mEntryListWrapper;
+    /**
+     * Delivers the results received so far, while other servers are still being searched.
+     * The final result is delivered after these, as usual.
+     */
+    private void deliverPartialResult(ArrayList<ImportKeysListEntry> entries) {
+        setParcelableKeyRings(entries);
+        GetKeyResult getKeyResult = new GetKeyResult(GetKeyResult.RESULT_OK, null);
+        final AsyncTaskResultWrapper<ArrayList<ImportKeysListEntry>> partialResult =
+                new AsyncTaskResultWrapper<>(entries, getKeyResult);
+
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isStarted()) {
+                    deliverResult(partialResult);
+                }
+            }
+        });
     }
 
     @Override
@@ -137,10 +164,22 @@ public class ImportKeysListCloudLoader
         }
 
         try {
+            // with an enforced fingerprint check, only the final result can be checked
+            CloudSearch.OnSearchResultsListener listener = enforceFingerprint ? null :
+                    new CloudSearch.OnSearchResultsListener() {
+                        @Override
+                        public void onSearchResults(ArrayList<ImportKeysListEntry> results) {
+                            if (!results.isEmpty()) {
+                                deliverPartialResult(results);
+                            }
+                        }
+                    };
+
             ArrayList<ImportKeysListEntry> searchResult = CloudSearch.search(
                     mState.mServerQuery,
                     mState.mCloudPrefs,
-                    proxy
+                    proxy,
+                    listener
             );
 
             mEntryList.clear();
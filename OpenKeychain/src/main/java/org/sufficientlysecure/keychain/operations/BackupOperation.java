@@ -20,19 +20,28 @@ package org.sufficientlysecure.keychain.operations;
 
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
@@ -44,8 +53,7 @@ import org.sufficientlysecure.keychain.operations.results.ExportResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
-import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
-import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
@@ -56,11 +64,9 @@ import org.sufficientlysecure.keychain.provider.KeyRepository;
 import org.sufficientlysecure.keychain.provider.KeyRepository.NotFoundException;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
-import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
 import org.sufficientlysecure.keychain.service.BackupKeyringParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
-import org.sufficientlysecure.keychain.util.CountingOutputStream;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 
@@ -84,6 +90,10 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
     private static final int INDEX_MASTER_KEY_ID = 0;
     private static final int INDEX_HAS_ANY_SECRET = 1;
 
+    // number of keys which are loaded and armored ahead of the one being written
+    private static final int PREFETCH_KEYS = 4 * SubTaskExecutor.MAX_THREADS;
+    private static final int PIPE_SIZE = 64 * 1024;
+
     public BackupOperation(Context context, KeyRepository keyRepository, Progressable
             progressable) {
         super(context, keyRepository, progressable);
@@ -110,65 +120,138 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
             log.add(LogType.MSG_BACKUP_ALL, 0);
         }
 
+        if (backupInput.mIsEncrypted) {
+            if (cryptoInput == null) {
+                throw new IllegalStateException("Encrypted backup must supply cryptoInput parameter");
+            }
+            return executeEncrypted(log, backupInput, cryptoInput, outputStream);
+        }
+
+        if (backupInput.mOutputUri == null || outputStream != null) {
+            throw new IllegalArgumentException("Unencrypted export to output stream is not supported!");
+        }
+
+        OutputStream plainOut;
         try {
-            Uri plainUri = null;
-            OutputStream plainOut;
-            if (backupInput.mIsEncrypted) {
-                if (cryptoInput == null) {
-                    throw new IllegalStateException("Encrypted backup must supply cryptoInput parameter");
-                }
+            plainOut = mContext.getContentResolver().openOutputStream(backupInput.mOutputUri);
+        } catch (FileNotFoundException e) {
+            log.add(LogType.MSG_BACKUP_ERROR_URI_OPEN, 1);
+            return new ExportResult(ExportResult.RESULT_ERROR, log);
+        }
 
-                plainUri = TemporaryFileProvider.createFile(mContext);
-                plainOut = mContext.getContentResolver().openOutputStream(plainUri);
-            } else {
-                if (backupInput.mOutputUri == null || outputStream != null) {
-                    throw new IllegalArgumentException("Unencrypted export to output stream is not supported!");
-                } else {
-                    plainOut = mContext.getContentResolver().openOutputStream(backupInput.mOutputUri);
-                }
-            }
+        boolean backupSuccess = exportKeysToStream(
+                log, backupInput.mMasterKeyIds, backupInput.mExportSecret, new BufferedOutputStream(plainOut));
 
-            CountingOutputStream outStream = new CountingOutputStream(new BufferedOutputStream(plainOut));
-            boolean backupSuccess = exportKeysToStream(
-                    log, backupInput.mMasterKeyIds, backupInput.mExportSecret, outStream);
+        if (!backupSuccess) {
+            // if there was an error, it will be in the log so we just have to return
+            return new ExportResult(ExportResult.RESULT_ERROR, log);
+        }
 
-            if (!backupSuccess) {
-                // if there was an error, it will be in the log so we just have to return
-                return new ExportResult(ExportResult.RESULT_ERROR, log);
-            }
+        // log.add(LogType.MSG_EXPORT_NO_ENCRYPT, 1);
+        log.add(LogType.MSG_BACKUP_SUCCESS, 1);
+        return new ExportResult(ExportResult.RESULT_OK, log);
 
-            if (!backupInput.mIsEncrypted) {
-                // log.add(LogType.MSG_EXPORT_NO_ENCRYPT, 1);
-                log.add(LogType.MSG_BACKUP_SUCCESS, 1);
-                return new ExportResult(ExportResult.RESULT_OK, log);
+    }
+
+    /**
+     * Exports keys and encrypts them in a single pass. The exported plaintext is handed to the
+     * encryption through a pipe, so it is never written to a temporary file, and never held in
+     * memory as a whole.
+     * <p/>
+     * The export stays on the calling thread, since progress can only be reported from there.
+     * The pipe is bounded, so the export can't run ahead of the encryption, and its progress
+     * is that of the whole backup.
+     */
+    @NonNull
+    private ExportResult executeEncrypted(OperationLog log, final BackupKeyringParcel backupInput,
+            final CryptoInputParcel cryptoInput, final OutputStream outputStream) {
+
+        PipedOutputStream plainOut = new PipedOutputStream();
+        final PipedInputStream plainIn;
+        try {
+            plainIn = new PipedInputStream(plainOut, PIPE_SIZE);
+        } catch (IOException e) {
+            // only thrown if the output stream is already connected
+            throw new AssertionError(e);
+        }
+
+        // the encryption reads from the pipe on its own thread, and logs to its own result
+        ExecutorService encryptExecutor = Executors.newSingleThreadExecutor();
+        Future<PgpSignEncryptResult> encryptFuture = encryptExecutor.submit(new Callable<PgpSignEncryptResult>() {
+            @Override
+            public PgpSignEncryptResult call() throws FileNotFoundException {
+                try {
+                    return encryptBackupData(backupInput, cryptoInput, outputStream, plainIn);
+                } finally {
+                    // if the encryption stopped early, this unblocks the export
+                    try {
+                        plainIn.close();
+                    } catch (IOException e) {
+                        Log.e(Constants.TAG, "error closing stream", e);
+                    }
+                }
             }
+        });
+        encryptExecutor.shutdown();
 
-            long exportedDataSize = outStream.getCount();
-            PgpSignEncryptResult encryptResult =
-                    encryptBackupData(backupInput, cryptoInput, outputStream, plainUri, exportedDataSize);
+        boolean backupSuccess;
+        boolean exportIoError = false;
+        try {
+            // closes the pipe when done, which ends the input of the encryption
+            backupSuccess = writeKeysToStream(log, backupInput.mMasterKeyIds, backupInput.mExportSecret,
+                    new BufferedOutputStream(plainOut, PIPE_SIZE));
+        } catch (IOException e) {
+            backupSuccess = false;
+            exportIoError = true;
+        }
 
-            if (!encryptResult.success()) {
-                log.addByMerge(encryptResult, 1);
-                // log.add(LogType.MSG_EXPORT_ERROR_ENCRYPT, 1);
-                return new ExportResult(ExportResult.RESULT_ERROR, log);
+        PgpSignEncryptResult encryptResult;
+        try {
+            encryptResult = encryptFuture.get();
+        } catch (InterruptedException e) {
+            encryptFuture.cancel(true);
+            Thread.currentThread().interrupt();
+            log.add(LogType.MSG_OPERATION_CANCELLED, 1);
+            return new ExportResult(ExportResult.RESULT_CANCELLED, log);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FileNotFoundException) {
+                log.add(LogType.MSG_BACKUP_ERROR_URI_OPEN, 1);
+            } else {
+                Log.e(Constants.TAG, "error encrypting backup", e.getCause());
+                log.add(LogType.MSG_INTERNAL_ERROR, 1);
             }
+            return new ExportResult(ExportResult.RESULT_ERROR, log);
+        }
 
-            log.add(encryptResult, 1);
-            log.add(LogType.MSG_BACKUP_SUCCESS, 1);
-            return new ExportResult(ExportResult.RESULT_OK, log);
+        if (!encryptResult.success()) {
+            // the export then failed because the pipe was closed, that's no error of its own
+            log.addByMerge(encryptResult, 1);
+            // log.add(LogType.MSG_EXPORT_ERROR_ENCRYPT, 1);
+            return new ExportResult(ExportResult.RESULT_ERROR, log);
+        }
 
-        } catch (FileNotFoundException e) {
-            log.add(LogType.MSG_BACKUP_ERROR_URI_OPEN, 1);
+        if (exportIoError) {
+            log.add(LogType.MSG_BACKUP_ERROR_IO, 1);
             return new ExportResult(ExportResult.RESULT_ERROR, log);
         }
 
+        if (!backupSuccess) {
+            // if there was an error, it will be in the log so we just have to return
+            return new ExportResult(ExportResult.RESULT_ERROR, log);
+        }
+
+        log.add(encryptResult, 1);
+        log.add(LogType.MSG_BACKUP_SUCCESS, 1);
+        return new ExportResult(ExportResult.RESULT_OK, log);
     }
 
     @NonNull
     private PgpSignEncryptResult encryptBackupData(@NonNull BackupKeyringParcel backupInput,
-            @NonNull CryptoInputParcel cryptoInput, @Nullable OutputStream outputStream, Uri plainUri, long exportedDataSize)
+            @NonNull CryptoInputParcel cryptoInput, @Nullable OutputStream outputStream, InputStream plainIn)
             throws FileNotFoundException {
-        PgpSignEncryptOperation signEncryptOperation = new PgpSignEncryptOperation(mContext, mKeyRepository, mProgressable, mCancelled);
+        // this runs off the operation's thread, where progress can't be reported. the export
+        // reports it instead, see executeEncrypted
+        PgpSignEncryptOperation signEncryptOperation = new PgpSignEncryptOperation(mContext, mKeyRepository, null, mCancelled);
 
         PgpSignEncryptData data = new PgpSignEncryptData();
         data.setSymmetricPassphrase(cryptoInput.getPassphrase());
@@ -176,8 +259,6 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
         data.setAddBackupHeader(true);
         PgpSignEncryptInputParcel inputParcel = new PgpSignEncryptInputParcel(data);
 
-        InputStream inStream = mContext.getContentResolver().openInputStream(plainUri);
-
         String filename;
         if (backupInput.mMasterKeyIds != null && backupInput.mMasterKeyIds.length == 1) {
             filename = Constants.FILE_BACKUP_PREFIX + KeyFormattingUtils.convertKeyIdToHex(backupInput.mMasterKeyIds[0]);
@@ -187,7 +268,7 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
         }
         filename += backupInput.mExportSecret ? Constants.FILE_EXTENSION_BACKUP_SECRET : Constants.FILE_EXTENSION_BACKUP_PUBLIC;
 
-        InputData inputData = new InputData(inStream, exportedDataSize, filename);
+        InputData inputData = new InputData(plainIn, 0, filename);
 
         OutputStream outStream;
         if (backupInput.mOutputUri == null) {
@@ -205,9 +286,26 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
         return signEncryptOperation.execute(inputParcel, new CryptoInputParcel(), inputData, outStream);
     }
 
+    /**
+     * Writes the armored keys to outStream, in order of their master key ids, and closes it.
+     * <p/>
+     * Keys are loaded, canonicalized and armored on the shared sub-task pool, up to PREFETCH_KEYS
+     * ahead of the key which is currently written, so at most that many keys are held in memory.
+     */
     boolean exportKeysToStream(OperationLog log, long[] masterKeyIds, boolean exportSecret, OutputStream outStream) {
-        // noinspection unused TODO use these in a log entry
+        try {
+            return writeKeysToStream(log, masterKeyIds, exportSecret, outStream);
+        } catch (IOException e) {
+            log.add(LogType.MSG_BACKUP_ERROR_IO, 1);
+            return false; // new ExportResult(ExportResult.RESULT_ERROR, log);
+        }
+    }
+
+    /** Works like exportKeysToStream, but errors writing to outStream are thrown rather than logged. */
+    private boolean writeKeysToStream(OperationLog log, long[] masterKeyIds, boolean exportSecret,
+            OutputStream outStream) throws IOException {
         int okSecret = 0, okPublic = 0;
+        long startTime = SystemClock.elapsedRealtime();
 
         int progress = 0;
 
@@ -215,9 +313,17 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
 
         if (cursor == null || !cursor.moveToFirst()) {
             log.add(LogType.MSG_BACKUP_ERROR_DB, 1);
+            closeStream(outStream);
+            if (cursor != null) {
+                cursor.close();
+            }
             return false; // new ExportResult(ExportResult.RESULT_ERROR, log);
         }
 
+        ExecutorService executor = SubTaskExecutor.getExecutor();
+        // keys in the order they are written, each loaded and armored ahead of time
+        ArrayDeque<Future<ArmoredKeyRing>> prefetched = new ArrayDeque<>();
+
         try {
 
             int numKeys = cursor.getCount();
@@ -225,83 +331,111 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
             updateProgress(mContext.getResources().getQuantityString(R.plurals.progress_exporting_key, numKeys),
                     0, numKeys);
 
-            // For each public masterKey id
-            while (!cursor.isAfterLast()) {
-
-                long masterKeyId = cursor.getLong(INDEX_MASTER_KEY_ID);
-                log.add(LogType.MSG_BACKUP_PUBLIC, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
-
-                if (writePublicKeyToStream(masterKeyId, log, outStream)) {
-                    okPublic += 1;
+            while (!cursor.isAfterLast() || !prefetched.isEmpty()) {
 
-                    boolean hasSecret = cursor.getInt(INDEX_HAS_ANY_SECRET) > 0;
-                    if (exportSecret && hasSecret) {
-                        log.add(LogType.MSG_BACKUP_SECRET, 2, KeyFormattingUtils.beautifyKeyId(masterKeyId));
-                        if (writeSecretKeyToStream(masterKeyId, log, outStream)) {
-                            okSecret += 1;
+                // keep the prefetch queue filled
+                while (!cursor.isAfterLast() && prefetched.size() < PREFETCH_KEYS) {
+                    final long masterKeyId = cursor.getLong(INDEX_MASTER_KEY_ID);
+                    final boolean exportSecretKey = exportSecret && cursor.getInt(INDEX_HAS_ANY_SECRET) > 0;
+                    prefetched.add(executor.submit(new Callable<ArmoredKeyRing>() {
+                        @Override
+                        public ArmoredKeyRing call() throws IOException {
+                            return armorKeyRing(masterKeyId, exportSecretKey);
                         }
+                    }));
+                    cursor.moveToNext();
+                }
+
+                ArmoredKeyRing keyRing;
+                try {
+                    keyRing = SubTaskExecutor.await(prefetched.remove());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 1);
+                    return false;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
                     }
+                    Log.e(Constants.TAG, "error armoring key", e.getCause());
+                    log.add(LogType.MSG_INTERNAL_ERROR, 1);
+                    return false;
+                }
+
+                log.addAll(keyRing.mLog.toList());
+                if (keyRing.mPublicData != null) {
+                    outStream.write(keyRing.mPublicData);
+                    okPublic += 1;
+                }
+                if (keyRing.mSecretData != null) {
+                    outStream.write(keyRing.mSecretData);
+                    okSecret += 1;
                 }
 
                 updateProgress(progress++, numKeys);
-                cursor.moveToNext();
             }
 
             updateProgress(R.string.progress_done, numKeys, numKeys);
 
-        } catch (IOException e) {
-            log.add(LogType.MSG_BACKUP_ERROR_IO, 1);
-            return false; // new ExportResult(ExportResult.RESULT_ERROR, log);
         } finally {
+            SubTaskExecutor.cancelAll(prefetched);
             // Make sure the stream is closed
-            if (outStream != null) try {
-                outStream.close();
-            } catch (Exception e) {
-                Log.e(Constants.TAG, "error closing stream", e);
-            }
+            closeStream(outStream);
             cursor.close();
         }
 
+        log.add(LogType.MSG_BACKUP_STATS, 1, okPublic, okSecret, SystemClock.elapsedRealtime() - startTime);
         return true;
     }
 
-    private boolean writePublicKeyToStream(long masterKeyId, OperationLog log, OutputStream outStream) throws IOException {
-        ArmoredOutputStream arOutStream = null;
+    /**
+     * Loads and armors the public and, if requested, secret keyring of a key. This is called
+     * on the prefetch pool, so it logs to a log of its own.
+     */
+    private ArmoredKeyRing armorKeyRing(long masterKeyId, boolean exportSecret) throws IOException {
+        ArmoredKeyRing keyRing = new ArmoredKeyRing();
 
-        try {
-            arOutStream = new ArmoredOutputStream(outStream);
-            byte[] data = mKeyRepository.loadPublicKeyRingData(masterKeyId);
-            UncachedKeyRing uncachedKeyRing = UncachedKeyRing.decodeFromData(data);
-            CanonicalizedPublicKeyRing ring = (CanonicalizedPublicKeyRing) uncachedKeyRing.canonicalize(log, 2, true);
-            ring.encode(arOutStream);
-        } catch (PgpGeneralException | NotFoundException e) {
-            log.add(LogType.MSG_UPLOAD_ERROR_IO, 2);
-        } finally {
-            if (arOutStream != null) {
-                arOutStream.close();
-            }
+        keyRing.mLog.add(LogType.MSG_BACKUP_PUBLIC, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
+        keyRing.mPublicData = armorKeyRingData(masterKeyId, false, keyRing.mLog);
+
+        if (exportSecret) {
+            keyRing.mLog.add(LogType.MSG_BACKUP_SECRET, 2, KeyFormattingUtils.beautifyKeyId(masterKeyId));
+            keyRing.mSecretData = armorKeyRingData(masterKeyId, true, keyRing.mLog);
         }
-        return true;
-    }
 
-    private boolean writeSecretKeyToStream(long masterKeyId, OperationLog log, OutputStream outStream)
-            throws IOException {
-        ArmoredOutputStream arOutStream = null;
+        return keyRing;
+    }
 
+    private byte[] armorKeyRingData(long masterKeyId, boolean secret, OperationLog log) throws IOException {
         try {
-            arOutStream = new ArmoredOutputStream(outStream);
-            byte[] data = mKeyRepository.loadSecretKeyRingData(masterKeyId);
+            byte[] data = secret
+                    ? mKeyRepository.loadSecretKeyRingData(masterKeyId)
+                    : mKeyRepository.loadPublicKeyRingData(masterKeyId);
             UncachedKeyRing uncachedKeyRing = UncachedKeyRing.decodeFromData(data);
-            CanonicalizedSecretKeyRing ring = (CanonicalizedSecretKeyRing) uncachedKeyRing.canonicalize(log, 2, true);
+            CanonicalizedKeyRing ring = uncachedKeyRing.canonicalize(log, 2, true);
+            if (ring == null) {
+                log.add(LogType.MSG_UPLOAD_ERROR_IO, 2);
+                return null;
+            }
+
+            // armor adds about a third, plus headers and checksum
+            ByteArrayOutputStream armoredData = new ByteArrayOutputStream(data.length * 4 / 3 + 256);
+            ArmoredOutputStream arOutStream = new ArmoredOutputStream(armoredData);
             ring.encode(arOutStream);
+            arOutStream.close();
+            return armoredData.toByteArray();
         } catch (PgpGeneralException | NotFoundException e) {
             log.add(LogType.MSG_UPLOAD_ERROR_IO, 2);
-        } finally {
-            if (arOutStream != null) {
-                arOutStream.close();
-            }
+            return null;
+        }
+    }
+
+    private static void closeStream(OutputStream outStream) {
+        if (outStream != null) try {
+            outStream.close();
+        } catch (Exception e) {
+            Log.e(Constants.TAG, "error closing stream", e);
         }
-        return true;
     }
 
     private Cursor queryForKeys(long[] masterKeyIds) {
@@ -329,4 +463,12 @@ public class BackupOperation extends BaseOperation<BackupKeyringParcel> {
         );
     }
 
-}
\ No newline at end of file
+    /** The armored encodings of a key, ready to be written, along with the log of armoring it. */
+    private static class ArmoredKeyRing {
+        final OperationLog mLog = new OperationLog();
+        // null if not exported, or if there was an error
+        byte[] mPublicData;
+        byte[] mSecretData;
+    }
+
+}
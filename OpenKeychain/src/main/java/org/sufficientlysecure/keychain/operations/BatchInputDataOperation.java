@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.operations.results.BatchInputDataResult;
+import org.sufficientlysecure.keychain.operations.results.InputDataResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.provider.KeyRepository;
+import org.sufficientlysecure.keychain.service.BatchInputDataParcel;
+import org.sufficientlysecure.keychain.service.InputDataParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+
+
+/**
+ * Processes a number of inputs like InputDataOperation, but in parallel on the shared sub-task
+ * pool.
+ * <p/>
+ * The first input is processed on its own, so if it needs a passphrase or security token, that
+ * is returned as pending result of the whole batch before any other work is done. All other
+ * inputs are then processed in parallel. They are given the passphrase entered for the first
+ * input, or else find it in the passphrase cache, along with keys and session keys in their
+ * respective caches. An input for which the entered passphrase is wrong, because it is
+ * encrypted to another key, is tried once more without it. Inputs which still require further
+ * input are reported with their pending result, and can be processed again on their own.
+ * <p/>
+ * If a listener is set, results are handed to it on the calling thread as they finish, and not
+ * included in the final result. This keeps the final result small when it is sent to the ui.
+ */
+public class BatchInputDataOperation extends BaseOperation<BatchInputDataParcel> {
+
+    public interface OnInputDataResultListener {
+        void onInputDataResult(Uri inputUri, InputDataResult result);
+    }
+
+    private OnInputDataResultListener mListener;
+
+    public BatchInputDataOperation(Context context, KeyRepository keyRepository,
+                                   Progressable progressable, AtomicBoolean cancelled) {
+        super(context, keyRepository, progressable, cancelled);
+    }
+
+    public void setResultListener(OnInputDataResultListener listener) {
+        mListener = listener;
+    }
+
+    @NonNull
+    @Override
+    public BatchInputDataResult execute(BatchInputDataParcel input, final CryptoInputParcel cryptoInput) {
+
+        OperationLog log = new OperationLog();
+
+        ArrayList<InputDataParcel> inputs = input.getInputs();
+        int total = inputs.size();
+        log.add(LogType.MSG_BATCH_DATA, 0, total);
+
+        ArrayList<Uri> inputUris = new ArrayList<>();
+        ArrayList<InputDataResult> results = new ArrayList<>();
+
+        if (total == 0) {
+            log.add(LogType.MSG_BATCH_DATA_OK, 1, 0);
+            return new BatchInputDataResult(BatchInputDataResult.RESULT_OK, log, inputUris, results);
+        }
+
+        if (checkCancelled()) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 1);
+            return new BatchInputDataResult(BatchInputDataResult.RESULT_CANCELLED, log, inputUris, results);
+        }
+
+        InputDataOperation firstOp = new InputDataOperation(mContext, mKeyRepository, new ProgressScaler());
+        InputDataResult firstResult = firstOp.execute(inputs.get(0), cryptoInput);
+        if (firstResult.isPending()) {
+            return new BatchInputDataResult(log, firstResult);
+        }
+        addResult(log, inputUris, results, inputs.get(0).getInputUri(), firstResult, 0);
+
+        int done = 1;
+        updateProgress(done, total);
+
+        ExecutorCompletionService<IndexedResult> completionService =
+                new ExecutorCompletionService<>(SubTaskExecutor.getExecutor());
+        ArrayList<Future<IndexedResult>> futures = new ArrayList<>();
+
+        try {
+            for (int i = 1; i < total; i++) {
+                final int index = i;
+                final InputDataParcel inputParcel = inputs.get(i);
+                futures.add(completionService.submit(new Callable<IndexedResult>() {
+                    @Override
+                    public IndexedResult call() {
+                        if (checkCancelled()) {
+                            return null;
+                        }
+
+                        return new IndexedResult(index, processInput(inputParcel, cryptoInput));
+                    }
+                }));
+            }
+
+            boolean cancelled = false;
+            for (int i = 1; i < total; i++) {
+                IndexedResult indexedResult;
+                Future<IndexedResult> future = null;
+                try {
+                    future = completionService.take();
+                    indexedResult = future.get();
+                } catch (InterruptedException e) {
+                    Log.e(Constants.TAG, "Interrupted while waiting for input data results", e);
+                    cancelled = true;
+                    break;
+                } catch (ExecutionException e) {
+                    // InputDataOperation should not throw any exceptions, fail this input like
+                    // it would for any other error
+                    Log.e(Constants.TAG, "Error processing input data", e.getCause());
+                    OperationLog inputLog = new OperationLog();
+                    inputLog.add(LogType.MSG_INTERNAL_ERROR, 0);
+                    indexedResult = new IndexedResult(futures.indexOf(future) + 1,
+                            new InputDataResult(InputDataResult.RESULT_ERROR, inputLog));
+                }
+
+                if (indexedResult == null) {
+                    cancelled = true;
+                    continue;
+                }
+
+                addResult(log, inputUris, results, inputs.get(indexedResult.mIndex).getInputUri(),
+                        indexedResult.mResult, indexedResult.mIndex);
+                updateProgress(++done, total);
+            }
+
+            if (cancelled || checkCancelled()) {
+                log.add(LogType.MSG_OPERATION_CANCELLED, 1);
+                return new BatchInputDataResult(BatchInputDataResult.RESULT_CANCELLED, log, inputUris, results);
+            }
+        } finally {
+            SubTaskExecutor.cancelAll(futures);
+        }
+
+        log.add(LogType.MSG_BATCH_DATA_OK, 1, done);
+        return new BatchInputDataResult(BatchInputDataResult.RESULT_OK, log, inputUris, results);
+    }
+
+    /** Processes one input of the batch, on a thread of the sub-task pool. */
+    private InputDataResult processInput(InputDataParcel inputParcel, CryptoInputParcel cryptoInput) {
+        // InputDataOperation keeps state, and the crypto input is modified
+        InputDataOperation op = new InputDataOperation(mContext, mKeyRepository, new ProgressScaler());
+        InputDataResult result = op.execute(inputParcel, cryptoInput.copy());
+
+        // the passphrase was entered for the first input, and may be for another key than this one
+        if (cryptoInput.hasPassphrase() && !result.success()
+                && result.getLog().containsType(LogType.MSG_DC_ERROR_BAD_PASSPHRASE)) {
+            op = new InputDataOperation(mContext, mKeyRepository, new ProgressScaler());
+            result = op.execute(inputParcel, cryptoInput.copyWithoutPassphrase());
+        }
+        return result;
+    }
+
+    private void addResult(OperationLog log, ArrayList<Uri> inputUris, ArrayList<InputDataResult> results,
+            Uri inputUri, InputDataResult result, int index) {
+        if (result.isPending()) {
+            log.add(LogType.MSG_BATCH_DATA_FILE_PENDING, 1, index + 1);
+        } else if (!result.success()) {
+            log.add(LogType.MSG_BATCH_DATA_FILE_ERROR, 1, index + 1);
+        }
+
+        if (mListener != null) {
+            mListener.onInputDataResult(inputUri, result);
+        } else {
+            inputUris.add(inputUri);
+            results.add(result);
+        }
+    }
+
+    private static class IndexedResult {
+        final int mIndex;
+        final InputDataResult mResult;
+
+        IndexedResult(int index, InputDataResult result) {
+            mIndex = index;
+            mResult = result;
+        }
+    }
+
+}
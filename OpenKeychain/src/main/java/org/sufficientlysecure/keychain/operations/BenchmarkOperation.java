@@ -20,6 +20,8 @@
 package org.sufficientlysecure.keychain.operations;
 
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Random;
 
 import android.content.Context;
@@ -28,31 +30,53 @@ import android.support.annotation.NonNull;
 import org.bouncycastle.bcpg.HashAlgorithmTags;
 import org.bouncycastle.bcpg.S2K;
 import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPSignature;
 import org.bouncycastle.openpgp.operator.PBEDataDecryptorFactory;
 import org.bouncycastle.openpgp.operator.PGPDigestCalculatorProvider;
 import org.bouncycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
 import org.bouncycastle.openpgp.operator.jcajce.JcePBEDataDecryptorFactoryBuilder;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.operations.results.BenchmarkResult;
+import org.sufficientlysecure.keychain.operations.results.BenchmarkResult.Measurement;
+import org.sufficientlysecure.keychain.operations.results.BenchmarkResult.Measurement.OperationType;
 import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.operations.results.SignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
-import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpPublicKeyBenchmark;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
 import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.SignEncryptParcel;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
 import org.sufficientlysecure.keychain.service.BenchmarkInputParcel;
+import org.sufficientlysecure.keychain.service.BenchmarkInputParcel.PublicKeyAlgorithm;
+import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 
+/**
+ * Measures the performance of the cryptographic operations on this device.
+ * <p/>
+ * Which operations are measured is configured by the BenchmarkInputParcel, see there. All
+ * timings are returned as Measurements in the BenchmarkResult. Keys for the public key
+ * operations are generated on the fly and never saved to the database.
+ */
 public class BenchmarkOperation extends BaseOperation<BenchmarkInputParcel> {
 
     public BenchmarkOperation(Context context, KeyWritableRepository databaseInteractor, Progressable
@@ -62,97 +86,260 @@ public class BenchmarkOperation extends BaseOperation<BenchmarkInputParcel> {
 
     @NonNull
     @Override
-    public BenchmarkResult execute(BenchmarkInputParcel consolidateInputParcel,
-                                     CryptoInputParcel cryptoInputParcel) {
+    public BenchmarkResult execute(BenchmarkInputParcel input, CryptoInputParcel cryptoInputParcel) {
         OperationLog log = new OperationLog();
         log.add(LogType.MSG_BENCH, 0);
 
-        // random data
-        byte[] buf = new byte[1024*1024*10];
-        new Random().nextBytes(buf);
+        if (input.mNumRepeats < 1) {
+            log.add(LogType.MSG_BENCH_ERROR_NUM_REPEATS, 1);
+            return new BenchmarkResult(BenchmarkResult.RESULT_ERROR, log);
+        }
 
-        Passphrase passphrase = new Passphrase("a");
+        ArrayList<Measurement> measurements = new ArrayList<>();
+        Random random = new Random();
 
-        int numRepeats = 5;
-        long totalTime = 0;
+        int numSteps = input.mPayloadSizes.length * input.mSymmetricAlgorithms.length
+                * input.mCompressionAlgorithms.length * input.mArmorSettings.length
+                + input.mPublicKeyAlgorithms.length;
+        int step = 0;
+
+        for (int payloadSize : input.mPayloadSizes) {
+            // random data
+            byte[] buf = new byte[payloadSize];
+            random.nextBytes(buf);
+
+            for (int symmetricAlgorithm : input.mSymmetricAlgorithms) {
+                for (int compressionAlgorithm : input.mCompressionAlgorithms) {
+                    for (boolean armor : input.mArmorSettings) {
+                        if (checkCancelled()) {
+                            log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                            return new BenchmarkResult(BenchmarkResult.RESULT_CANCELLED, log);
+                        }
+
+                        ProgressScaler progress = new ProgressScaler(mProgressable,
+                                step * 100 / numSteps, (step + 1) * 100 / numSteps, 100);
+                        if (!benchmarkSymmetric(log, measurements, progress, input.mNumRepeats, buf,
+                                symmetricAlgorithm, compressionAlgorithm, armor)) {
+                            return new BenchmarkResult(BenchmarkResult.RESULT_ERROR, log);
+                        }
+                        step += 1;
+                    }
+                }
+            }
+        }
+
+        byte[] publicKeyData = new byte[BenchmarkInputParcel.PUBLIC_KEY_PAYLOAD_SIZE];
+        random.nextBytes(publicKeyData);
+
+        for (PublicKeyAlgorithm algorithm : input.mPublicKeyAlgorithms) {
+            if (checkCancelled()) {
+                log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                return new BenchmarkResult(BenchmarkResult.RESULT_CANCELLED, log);
+            }
+
+            if (mProgressable != null) {
+                mProgressable.setProgress(step * 100 / numSteps, 100);
+            }
+            if (!benchmarkPublicKey(log, measurements, input.mNumRepeats, publicKeyData, algorithm)) {
+                return new BenchmarkResult(BenchmarkResult.RESULT_ERROR, log);
+            }
+            step += 1;
+        }
+
+        int iterationsFor100ms = 0;
+        if (input.mBenchmarkS2k) {
+            try {
+                iterationsFor100ms = benchmarkS2k(log);
+            } catch (PGPException e) {
+                Log.e(Constants.TAG, "internal error during benchmark", e);
+                log.add(LogType.MSG_INTERNAL_ERROR, 0);
+                return new BenchmarkResult(BenchmarkResult.RESULT_ERROR, log);
+            }
+            log.add(LogType.MSG_BENCH_S2K_100MS_ITS, 1, Integer.toString(iterationsFor100ms));
+        }
 
-        // encrypt
-        SignEncryptResult encryptResult;
-        int i = 0;
-        do {
-            SignEncryptOperation op =
-                    new SignEncryptOperation(mContext, mKeyRepository,
-                            new ProgressScaler(mProgressable, i*(50/numRepeats), (i+1)*(50/numRepeats), 100), mCancelled);
+        log.add(LogType.MSG_BENCH_SUCCESS, 0);
+        return new BenchmarkResult(BenchmarkResult.RESULT_OK, log, measurements, iterationsFor100ms);
+    }
+
+    private boolean benchmarkSymmetric(OperationLog log, ArrayList<Measurement> measurements,
+            Progressable progress, int numRepeats, byte[] buf, int symmetricAlgorithm,
+            int compressionAlgorithm, boolean armor) {
+        Passphrase passphrase = new Passphrase("a");
+
+        long[] encryptTimes = new long[numRepeats];
+        byte[] ciphertext = null;
+        for (int i = 0; i < numRepeats; i++) {
+            SignEncryptOperation op = new SignEncryptOperation(mContext, mKeyRepository,
+                    new ProgressScaler(progress, i * 50 / numRepeats, (i + 1) * 50 / numRepeats, 100), mCancelled);
             PgpSignEncryptData data = new PgpSignEncryptData();
             data.setSymmetricPassphrase(passphrase);
-            data.setSymmetricEncryptionAlgorithm(OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+            data.setSymmetricEncryptionAlgorithm(symmetricAlgorithm);
+            data.setCompressionAlgorithm(compressionAlgorithm);
+            data.setEnableAsciiArmorOutput(armor);
             SignEncryptParcel input = new SignEncryptParcel(data);
             input.setBytes(buf);
-            encryptResult = op.execute(input, new CryptoInputParcel());
-            log.add(encryptResult, 1);
-            log.add(LogType.MSG_BENCH_ENC_TIME, 2,
-                    String.format("%.2f", encryptResult.getResults().get(0).mOperationTime / 1000.0));
-            totalTime += encryptResult.getResults().get(0).mOperationTime;
-        } while (++i < numRepeats);
-
-        long encryptionTime = totalTime / numRepeats;
-        totalTime = 0;
-
-        // decrypt
-        i = 0;
-        do {
-            DecryptVerifyResult decryptResult;
-            PgpDecryptVerifyOperation op =
-                    new PgpDecryptVerifyOperation(mContext, mKeyRepository,
-                            new ProgressScaler(mProgressable, 50 +i*(50/numRepeats), 50 +(i+1)*(50/numRepeats), 100));
-            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel(encryptResult.getResultBytes());
+
+            long startTime = System.nanoTime();
+            SignEncryptResult encryptResult = op.execute(input, new CryptoInputParcel());
+            encryptTimes[i] = System.nanoTime() - startTime;
+
+            if (!encryptResult.success()) {
+                log.add(encryptResult, 1);
+                return false;
+            }
+            log.add(LogType.MSG_BENCH_ENC_TIME, 2, String.format("%.2f", encryptTimes[i] / 1000000000.0));
+            ciphertext = encryptResult.getResultBytes();
+        }
+
+        long[] decryptTimes = new long[numRepeats];
+        for (int i = 0; i < numRepeats; i++) {
+            PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(mContext, mKeyRepository,
+                    new ProgressScaler(progress, 50 + i * 50 / numRepeats, 50 + (i + 1) * 50 / numRepeats, 100));
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel(ciphertext);
             input.setAllowSymmetricDecryption(true);
-            decryptResult = op.execute(input, new CryptoInputParcel(passphrase));
-            log.add(decryptResult, 1);
-            log.add(LogType.MSG_BENCH_DEC_TIME, 2, String.format("%.2f", decryptResult.mOperationTime / 1000.0));
-            totalTime += decryptResult.mOperationTime;
-        } while (++i < numRepeats);
 
-        long decryptionTime = totalTime / numRepeats;
-        totalTime = 0;
+            long startTime = System.nanoTime();
+            DecryptVerifyResult decryptResult = op.execute(input, new CryptoInputParcel(passphrase));
+            decryptTimes[i] = System.nanoTime() - startTime;
+
+            if (!decryptResult.success()) {
+                log.add(decryptResult, 1);
+                return false;
+            }
+            log.add(LogType.MSG_BENCH_DEC_TIME, 2, String.format("%.2f", decryptTimes[i] / 1000000000.0));
+        }
+
+        addMeasurement(log, measurements, new Measurement(OperationType.ENCRYPT, buf.length, symmetricAlgorithm,
+                compressionAlgorithm, armor, null, encryptTimes));
+        addMeasurement(log, measurements, new Measurement(OperationType.DECRYPT, buf.length, symmetricAlgorithm,
+                compressionAlgorithm, armor, null, decryptTimes));
+        return true;
+    }
+
+    private boolean benchmarkPublicKey(OperationLog log, ArrayList<Measurement> measurements,
+            int numRepeats, byte[] data, PublicKeyAlgorithm algorithm) {
+        log.add(LogType.MSG_BENCH_KEYGEN, 1, algorithm.toString());
 
-        int iterationsFor100ms;
+        PgpEditKeyResult keyResult =
+                new PgpKeyOperation(null, mCancelled).createSecretKeyRing(createKeyParcel(algorithm));
+        if (!keyResult.success()) {
+            log.add(keyResult, 2);
+            return false;
+        }
+
+        long[] signTimes = new long[numRepeats];
+        long[] verifyTimes = new long[numRepeats];
+        long[] encryptTimes = new long[numRepeats];
+        long[] decryptTimes = new long[numRepeats];
         try {
-            PGPDigestCalculatorProvider digestCalcProvider = new JcaPGPDigestCalculatorProviderBuilder()
-                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build();
-            PBEDataDecryptorFactory decryptorFactory = new JcePBEDataDecryptorFactoryBuilder(
-                    digestCalcProvider).setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
-                    "".toCharArray());
-
-            byte[] iv = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
-            int iterations = 0;
-            while (iterations < 255 && totalTime < 100) {
-                iterations += 1;
-
-                S2K s2k = new S2K(HashAlgorithmTags.SHA1, iv, iterations);
-                totalTime = System.currentTimeMillis();
-                decryptorFactory.makeKeyFromPassPhrase(SymmetricKeyAlgorithmTags.AES_128, s2k);
-                totalTime = System.currentTimeMillis() -totalTime;
-
-                if ((iterations % 10) == 0) {
-                    log.add(LogType.MSG_BENCH_S2K_FOR_IT, 1, Integer.toString(iterations), Long.toString(totalTime));
+            PgpPublicKeyBenchmark benchmark = new PgpPublicKeyBenchmark(
+                    new CanonicalizedSecretKeyRing(keyResult.getRing().getEncoded(), 0), data);
+
+            PGPSignature signature = null;
+            for (int i = 0; i < numRepeats; i++) {
+                long startTime = System.nanoTime();
+                signature = benchmark.sign();
+                signTimes[i] = System.nanoTime() - startTime;
+            }
+            for (int i = 0; i < numRepeats; i++) {
+                long startTime = System.nanoTime();
+                boolean verified = benchmark.verify(signature);
+                verifyTimes[i] = System.nanoTime() - startTime;
+                if (!verified) {
+                    throw new PGPException("signature did not verify");
                 }
+            }
 
+            byte[] ciphertext = null;
+            for (int i = 0; i < numRepeats; i++) {
+                long startTime = System.nanoTime();
+                ciphertext = benchmark.encrypt();
+                encryptTimes[i] = System.nanoTime() - startTime;
             }
-            iterationsFor100ms = iterations;
+            for (int i = 0; i < numRepeats; i++) {
+                long startTime = System.nanoTime();
+                benchmark.decrypt(ciphertext);
+                decryptTimes[i] = System.nanoTime() - startTime;
+            }
+        } catch (PgpGeneralException | PgpKeyNotFoundException | PGPException | IOException e) {
+            Log.e(Constants.TAG, "error during public key benchmark", e);
+            log.add(LogType.MSG_BENCH_ERROR_PUBLIC_KEY, 2);
+            return false;
+        }
 
-        } catch (PGPException e) {
-            Log.e(Constants.TAG, "internal error during benchmark", e);
-            log.add(LogType.MSG_INTERNAL_ERROR, 0);
-            return new BenchmarkResult(BenchmarkResult.RESULT_ERROR, log);
+        String keyAlgorithm = algorithm.toString();
+        addMeasurement(log, measurements,
+                new Measurement(OperationType.SIGN, data.length, -1, -1, false, keyAlgorithm, signTimes));
+        addMeasurement(log, measurements,
+                new Measurement(OperationType.VERIFY, data.length, -1, -1, false, keyAlgorithm, verifyTimes));
+        addMeasurement(log, measurements, new Measurement(OperationType.PUBLIC_KEY_ENCRYPT, data.length, -1, -1, false,
+                keyAlgorithm, encryptTimes));
+        addMeasurement(log, measurements, new Measurement(OperationType.PUBLIC_KEY_DECRYPT, data.length, -1, -1, false,
+                keyAlgorithm, decryptTimes));
+        return true;
+    }
+
+    private static void addMeasurement(OperationLog log, ArrayList<Measurement> measurements,
+            Measurement measurement) {
+        measurements.add(measurement);
+        log.add(LogType.MSG_BENCH_MEASUREMENT, 1, measurement.getDescription(),
+                String.format("%.2f", measurement.getMegabytesPerSecond()),
+                String.format("%.2f", measurement.getOperationsPerSecond()),
+                String.format("%.2f", measurement.getPercentileMillis(50)));
+    }
+
+    private static SaveKeyringParcel createKeyParcel(PublicKeyAlgorithm algorithm) {
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        switch (algorithm) {
+            case RSA_2048:
+            case RSA_4096: {
+                int keySize = algorithm == PublicKeyAlgorithm.RSA_2048 ? 2048 : 4096;
+                parcel.mAddSubKeys.add(new SubkeyAdd(Algorithm.RSA, keySize, null,
+                        KeyFlags.CERTIFY_OTHER | KeyFlags.SIGN_DATA, 0L));
+                parcel.mAddSubKeys.add(new SubkeyAdd(Algorithm.RSA, keySize, null,
+                        KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE, 0L));
+                break;
+            }
+            case ECC_P256:
+            case ECC_P521: {
+                Curve curve = algorithm == PublicKeyAlgorithm.ECC_P256 ? Curve.NIST_P256 : Curve.NIST_P521;
+                parcel.mAddSubKeys.add(new SubkeyAdd(Algorithm.ECDSA, 0, curve,
+                        KeyFlags.CERTIFY_OTHER | KeyFlags.SIGN_DATA, 0L));
+                parcel.mAddSubKeys.add(new SubkeyAdd(Algorithm.ECDH, 0, curve,
+                        KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE, 0L));
+                break;
+            }
         }
+        parcel.mAddUserIds.add("benchmark");
+        parcel.setNewUnlock(new ChangeUnlockParcel(new Passphrase()));
+        return parcel;
+    }
 
-        log.add(LogType.MSG_BENCH_S2K_100MS_ITS, 1, Integer.toString(iterationsFor100ms));
-        log.add(LogType.MSG_BENCH_ENC_TIME_AVG, 1, String.format("%.2f", encryptionTime/1000.0));
-        log.add(LogType.MSG_BENCH_DEC_TIME_AVG, 1, String.format("%.2f", decryptionTime/1000.0));
+    private int benchmarkS2k(OperationLog log) throws PGPException {
+        PGPDigestCalculatorProvider digestCalcProvider = new JcaPGPDigestCalculatorProviderBuilder()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build();
+        PBEDataDecryptorFactory decryptorFactory = new JcePBEDataDecryptorFactoryBuilder(
+                digestCalcProvider).setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
+                "".toCharArray());
 
-        log.add(LogType.MSG_BENCH_SUCCESS, 0);
-        return new BenchmarkResult(BenchmarkResult.RESULT_OK, log);
+        byte[] iv = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+        int iterations = 0;
+        long totalTime = 0;
+        while (iterations < 255 && totalTime < 100) {
+            iterations += 1;
+
+            S2K s2k = new S2K(HashAlgorithmTags.SHA1, iv, iterations);
+            totalTime = System.currentTimeMillis();
+            decryptorFactory.makeKeyFromPassPhrase(SymmetricKeyAlgorithmTags.AES_128, s2k);
+            totalTime = System.currentTimeMillis() -totalTime;
+
+            if ((iterations % 10) == 0) {
+                log.add(LogType.MSG_BENCH_S2K_FOR_IT, 1, Integer.toString(iterations), Long.toString(totalTime));
+            }
+
+        }
+        return iterations;
     }
 
 }
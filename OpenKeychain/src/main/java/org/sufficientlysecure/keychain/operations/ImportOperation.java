@@ -20,6 +20,7 @@ package org.sufficientlysecure.keychain.operations;
 
 
 import android.content.Context;
+import android.net.Uri;
 import android.support.annotation.NonNull;
 
 import org.sufficientlysecure.keychain.Constants;
@@ -37,31 +38,48 @@ import org.sufficientlysecure.keychain.operations.results.OperationResult.Operat
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
 import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.pgp.SignatureVerificationCache;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing.IteratorWithIOThrow;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
+import org.sufficientlysecure.keychain.provider.KeyRepository;
+import org.sufficientlysecure.keychain.provider.KeyRepository.NotFoundException;
 import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
+import org.sufficientlysecure.keychain.provider.KeyWritableRepository.PreparedPublicKeyRing;
 import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
 import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.IteratorWithSize;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ParcelableFileCache;
 import org.sufficientlysecure.keychain.util.ParcelableProxy;
+import org.sufficientlysecure.keychain.util.PositionAwareInputStream;
 import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 import org.sufficientlysecure.keychain.network.orbot.OrbotHelper;
 
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.GregorianCalendar;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -73,7 +91,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * For the import operation, the only valid source is an Iterator of
  * ParcelableKeyRing, each of which must contain either a single
  * keyring encoded as bytes, or a unique reference to a keyring
- * on keyservers and/or keybase.io.
+ * on keyservers and/or keybase.io. Alternatively, keyrings can be streamed
+ * directly from a file given by its Uri.
  * It is important to note that public keys should generally be imported before
  * secret keys, because some implementations (notably Symantec PGP Desktop) do
  * not include self certificates for user ids in the secret keyring. The import
@@ -83,9 +102,16 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel> {
 
     private static final int MAX_THREADS = 10;
+    // number of keyrings saved per database transaction when importing from a file
+    private static final int IMPORT_BATCH_SIZE = 100;
+    // number of batches read ahead of the database writes when streaming from a file
+    private static final int IMPORT_STREAM_QUEUE_SIZE = 2;
 
     public static final String CACHE_FILE_NAME = "key_import.pcl";
 
+    // keys are fetched one at a time, unless more are allowed with setMaxThreads
+    private int mMaxThreads = 1;
+
     public ImportOperation(Context context, KeyWritableRepository databaseInteractor, Progressable
             progressable) {
         super(context, databaseInteractor, progressable);
@@ -96,6 +122,14 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         super(context, databaseInteractor, progressable, cancelled);
     }
 
+    /** Sets the number of keys fetched at once, up to MAX_THREADS. */
+    public void setMaxThreads(int maxThreads) {
+        if (maxThreads <= 0) {
+            throw new IllegalArgumentException("maxThreads must be positive!");
+        }
+        mMaxThreads = Math.min(maxThreads, MAX_THREADS);
+    }
+
     // Overloaded functions for using progressable supplied in constructor during import
     public ImportKeyResult serialKeyRingImport(Iterator<ParcelableKeyRing> entries, int num,
                                                ParcelableHkpKeyserver keyserver, ParcelableProxy proxy, boolean skipSave) {
@@ -103,15 +137,21 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
     }
 
     @NonNull
-    private ImportKeyResult serialKeyRingImport(ParcelableFileCache<ParcelableKeyRing> cache,
-                                                ParcelableHkpKeyserver keyserver, ParcelableProxy proxy, boolean skipSave) {
+    private ImportKeyResult importKeyRingsFromCache(ParcelableFileCache<ParcelableKeyRing> cache, boolean skipSave) {
 
         // get entries from cached file
         try {
             IteratorWithSize<ParcelableKeyRing> it = cache.readCache();
             int numEntries = it.getSize();
 
-            return serialKeyRingImport(it, numEntries, keyserver, mProgressable, proxy, skipSave);
+            // keyrings which are not saved don't need to be batched
+            if (skipSave) {
+                return serialKeyRingImport(it, numEntries, null, mProgressable, null, true);
+            }
+
+            OperationLog log = new OperationLog();
+            log.add(LogType.MSG_IMPORT, 0, numEntries);
+            return batchedKeyRingImport(log, new CachedKeyRingBatchSource(it, numEntries, IMPORT_BATCH_SIZE));
         } catch (IOException e) {
 
             // Special treatment here, we need a lot
@@ -124,6 +164,33 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
 
     }
 
+    @NonNull
+    private ImportKeyResult importKeyRingsFromStream(Uri inputUri) {
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_IMPORT_STREAM, 0);
+
+        InputStream inputStream;
+        try {
+            inputStream = mContext.getContentResolver().openInputStream(inputUri);
+            if (inputStream == null) {
+                throw new FileNotFoundException("Could not open " + inputUri);
+            }
+        } catch (FileNotFoundException e) {
+            Log.e(Constants.TAG, "Error opening keyring file for import", e);
+            log.add(LogType.MSG_IMPORT_ERROR_IO, 0, 0);
+            return new ImportKeyResult(ImportKeyResult.RESULT_ERROR, log);
+        }
+
+        long inputSize = FileHelper.getFileSize(mContext, inputUri, -1);
+        StreamingKeyRingBatchSource source = new StreamingKeyRingBatchSource(
+                inputStream, inputSize, IMPORT_BATCH_SIZE, IMPORT_STREAM_QUEUE_SIZE);
+        try {
+            return batchedKeyRingImport(log, source);
+        } finally {
+            source.close();
+        }
+    }
+
     /**
      * Since the introduction of multithreaded import, we expect calling functions to handle the
      * contact-to-key sync i.e ContactSyncAdapterService.requestContactsSync()
@@ -131,8 +198,8 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
      * @param entries      keys to import
      * @param num          number of keys to import
      * @param hkpKeyserver contains uri of keyserver to import from, if it is an import from cloud
-     * @param progressable Allows multi-threaded import to supply a progressable that ignores the
-     *                     progress of a single key being imported
+     * @param progressable Allows the caller to supply a progressable that ignores the progress
+     *                     of the import
      */
     @NonNull
     private ImportKeyResult serialKeyRingImport(Iterator<ParcelableKeyRing> entries, int num,
@@ -150,18 +217,20 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
             return new ImportKeyResult(ImportKeyResult.RESULT_FAIL_NOTHING, log);
         }
 
-        int newKeys = 0, updatedKeys = 0, badKeys = 0, secret = 0;
-        ArrayList<Long> importedMasterKeyIds = new ArrayList<>();
+        ImportCounts counts = new ImportCounts();
 
         ArrayList<CanonicalizedKeyRing> canKeyRings = new ArrayList<>();
 
+        long trustedCacheHits = mKeyWritableRepository.getTrustedKeysCacheHitCount();
+        long trustedCacheMisses = mKeyWritableRepository.getTrustedKeysCacheMissCount();
+        long verificationCacheHits = SignatureVerificationCache.getInstance().getHitCount();
+        long verificationCacheMisses = SignatureVerificationCache.getInstance().getMissCount();
+
         boolean cancelled = false;
         int position = 0;
         double progSteps = 100.0 / num;
 
-        KeybaseKeyserver keybaseServer = null;
-        FacebookKeyserver facebookServer = null;
-        ParcelableHkpKeyserver keyServer = null;
+        KeyRingFetcher fetcher = new KeyRingFetcher(hkpKeyserver, proxy, skipSave);
 
         // iterate over all entries
         while (entries.hasNext()) {
@@ -175,141 +244,11 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
 
             try {
 
-                UncachedKeyRing key = null;
-
-                // If there is already byte data, use that
-                if (entry.mBytes != null) {
-                    key = UncachedKeyRing.decodeFromData(entry.mBytes);
-                }
-                // Otherwise, we need to fetch the data from a server first
-                else {
-
-                    // We fetch from keyservers first, because we tend to get more certificates
-                    // from there, so the number of certificates which are merged in later is
-                    // smaller.
-
-                    // If we have a keyServerUri and a fingerprint or at least a keyId,
-                    // download from HKP
-                    if (hkpKeyserver != null
-                            && (entry.mKeyIdHex != null || entry.mExpectedFingerprint != null)) {
-                        // Make sure we have the keyserver instance cached
-                        if (keyServer == null) {
-                            log.add(LogType.MSG_IMPORT_KEYSERVER, 1, hkpKeyserver);
-                            keyServer = hkpKeyserver;
-                        }
-
-                        try {
-                            byte[] data;
-                            // Download by fingerprint, or keyId - whichever is available
-                            if (entry.mExpectedFingerprint != null) {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, "0x" +
-                                        entry.mExpectedFingerprint.substring(24));
-                                data = keyServer.get("0x" + entry.mExpectedFingerprint, proxy).getBytes();
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, entry.mKeyIdHex);
-                                data = keyServer.get(entry.mKeyIdHex, proxy).getBytes();
-                            }
-                            key = UncachedKeyRing.decodeFromData(data);
-                            if (key != null) {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
-                            }
-                        } catch (Keyserver.QueryFailedException e) {
-                            Log.d(Constants.TAG, "query failed", e);
-                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
-                        }
-                    }
-
-                    // If we have a keybase name, try to fetch from there
-                    if (entry.mKeybaseName != null) {
-                        // Make sure we have this cached
-                        if (keybaseServer == null) {
-                            keybaseServer = new KeybaseKeyserver();
-                        }
-
-                        try {
-                            log.add(LogType.MSG_IMPORT_FETCH_KEYBASE, 2, entry.mKeybaseName);
-                            byte[] data = keybaseServer.get(entry.mKeybaseName, proxy).getBytes();
-                            UncachedKeyRing keybaseKey = UncachedKeyRing.decodeFromData(data);
-
-                            if (keybaseKey != null) {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
-                            }
-
-                            // If there already is a key, merge the two
-                            if (key != null && keybaseKey != null) {
-                                log.add(LogType.MSG_IMPORT_MERGE, 3);
-                                keybaseKey = key.merge(keybaseKey, log, 4);
-                                // If the merge didn't fail, use the new merged key
-                                if (keybaseKey != null) {
-                                    key = keybaseKey;
-                                } else {
-                                    log.add(LogType.MSG_IMPORT_MERGE_ERROR, 4);
-                                }
-                            } else if (keybaseKey != null) {
-                                key = keybaseKey;
-                            }
-                        } catch (Keyserver.QueryFailedException e) {
-                            // download failed, too bad. just proceed
-                            Log.e(Constants.TAG, "query failed", e);
-                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
-                        }
-                    }
-
-                    // if the key is from Facebook, fetch from there
-                    if (entry.mFbUsername != null) {
-                        // Make sure we have this cached
-                        if (facebookServer == null) {
-                            facebookServer = new FacebookKeyserver();
-                        }
-
-                        try {
-                            log.add(LogType.MSG_IMPORT_FETCH_FACEBOOK, 2, entry.mFbUsername);
-                            byte[] data = facebookServer.get(entry.mFbUsername, proxy).getBytes();
-                            UncachedKeyRing facebookKey = UncachedKeyRing.decodeFromData(data);
-
-                            if (facebookKey != null) {
-                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
-                            } else {
-                                log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
-                            }
-
-                            // If there already is a key, merge the two
-                            if (key != null && facebookKey != null) {
-                                log.add(LogType.MSG_IMPORT_MERGE, 3);
-                                facebookKey = key.merge(facebookKey, log, 4);
-                                // If the merge didn't fail, use the new merged key
-                                if (facebookKey != null) {
-                                    key = facebookKey;
-                                } else {
-                                    log.add(LogType.MSG_IMPORT_MERGE_ERROR, 4);
-                                }
-                            } else if (facebookKey != null) {
-                                key = facebookKey;
-                            }
-                        } catch (Keyserver.QueryFailedException e) {
-                            // download failed, too bad. just proceed
-                            Log.e(Constants.TAG, "query failed", e);
-                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
-                        }
-                    }
-                }
-
-                if (key == null) {
-                    log.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
-                    badKeys += 1;
-                    continue;
-                }
-
-                // never import secret keys from keyserver!
-                if (entry.mBytes == null && key.isSecret()) {
-                    log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER_SECRET, 2);
-                    badKeys += 1;
+                FetchedKeyRing fetched = fetcher.fetch(entry, log);
+                if (handleUnsavedKeyRing(log, counts, fetched)) {
                     continue;
                 }
+                UncachedKeyRing key = fetched.mKey;
 
                 SaveKeyringResult result;
                 // synchronizing prevents https://github.com/open-keychain/open-keychain/issues/1221
@@ -326,43 +265,243 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
                                 entry.mExpectedFingerprint, canKeyRings, skipSave);
                     }
                 }
-                if (!result.success()) {
-                    badKeys += 1;
-                } else {
-                    if (result.updated()) {
-                        updatedKeys += 1;
-                        importedMasterKeyIds.add(key.getMasterKeyId());
-                    } else {
-                        newKeys += 1;
-                        if (key.isSecret()) {
-                            secret += 1;
-                        }
-                        importedMasterKeyIds.add(key.getMasterKeyId());
-                    }
-                    if (!skipSave && (entry.mBytes == null)) {
-                        // synonymous to isDownloadFromKeyserver.
-                        // If no byte data was supplied, import from keyserver took place
-                        // this prevents file imports being noted as keyserver imports
-                        mKeyWritableRepository.renewKeyLastUpdatedTime(key.getMasterKeyId(),
-                                GregorianCalendar.getInstance().getTimeInMillis(),
-                                TimeUnit.MILLISECONDS);
-                    }
-                }
-
-                log.add(result, 2);
+                recordSavedKeyRing(log, counts, fetched, result, skipSave);
             } catch (IOException | PgpGeneralException e) {
                 Log.e(Constants.TAG, "Encountered bad key on import!", e);
-                ++badKeys;
+                ++counts.mBadKeys;
             }
             // update progress
             position++;
         }
 
+        return finishKeyRingImport(log, progressable, skipSave, cancelled, counts, canKeyRings,
+                trustedCacheHits, trustedCacheMisses, verificationCacheHits, verificationCacheMisses);
+    }
+
+    /**
+     * Handles a fetched keyring which is not saved, because its data is already in the
+     * database, it could not be fetched, or it is a secret keyring from a keyserver.
+     *
+     * @return true if the keyring was handled here, false if it still has to be saved
+     */
+    private boolean handleUnsavedKeyRing(OperationLog log, ImportCounts counts, FetchedKeyRing fetched) {
+        // Early breakout if there is nothing new in this data
+        if (fetched.mUnchangedMasterKeyId != null) {
+            log.add(LogType.MSG_IMPORT_UNCHANGED, 2,
+                    KeyFormattingUtils.convertKeyIdToHex(fetched.mUnchangedMasterKeyId));
+            counts.mUpdatedKeys += 1;
+            counts.mUnchangedKeys += 1;
+            counts.mImportedMasterKeyIds.add(fetched.mUnchangedMasterKeyId);
+            if (fetched.mEntry.mBytes == null) {
+                // the key was still checked on the keyserver
+                mKeyWritableRepository.renewKeyLastUpdatedTime(fetched.mUnchangedMasterKeyId,
+                        GregorianCalendar.getInstance().getTimeInMillis(),
+                        TimeUnit.MILLISECONDS);
+            }
+            return true;
+        }
+
+        if (fetched.mKey == null) {
+            log.add(LogType.MSG_IMPORT_FETCH_ERROR, 2);
+            counts.mBadKeys += 1;
+            return true;
+        }
+
+        // never import secret keys from keyserver!
+        if (fetched.mEntry.mBytes == null && fetched.mKey.isSecret()) {
+            log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER_SECRET, 2);
+            counts.mBadKeys += 1;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Counts the result of saving a fetched keyring, and remembers where its data came from.
+     */
+    private void recordSavedKeyRing(OperationLog log, ImportCounts counts, FetchedKeyRing fetched,
+                                    SaveKeyringResult result, boolean skipSave) {
+        UncachedKeyRing key = fetched.mKey;
+        counts.addSaveResult(key, result);
+        if (result.success()) {
+            if (!skipSave && (fetched.mEntry.mBytes == null)) {
+                // synonymous to isDownloadFromKeyserver.
+                // If no byte data was supplied, import from keyserver took place
+                // this prevents file imports being noted as keyserver imports
+                mKeyWritableRepository.renewKeyLastUpdatedTime(key.getMasterKeyId(),
+                        GregorianCalendar.getInstance().getTimeInMillis(),
+                        TimeUnit.MILLISECONDS);
+            }
+            // secret keyrings can change without their public keyring being saved again,
+            // so only data of public keyrings is remembered
+            if (!skipSave && fetched.mDigest != null && !key.isSecret()) {
+                mKeyWritableRepository.setUpstreamDigest(key.getMasterKeyId(), fetched.mDigest);
+            }
+        }
+
+        log.add(result, 2);
+    }
+
+    /**
+     * Returns the master key id of the keyring in the database which already contains all of
+     * the data with the given digest, or null if that data has to be imported. This is only
+     * returned if it is the keyring the entry asks for, otherwise the data is imported as usual,
+     * which includes the check against the expected fingerprint.
+     */
+    private Long findUnchangedKeyRing(String digest, ParcelableKeyRing entry) {
+        long masterKeyId;
+        try {
+            masterKeyId = mKeyRepository.getMasterKeyIdByDigest(digest);
+        } catch (NotFoundException e) {
+            return null;
+        }
+
+        if (entry.mExpectedFingerprint != null) {
+            try {
+                String fingerprint = KeyFormattingUtils.convertFingerprintToHex(
+                        mKeyRepository.getCachedPublicKeyRing(masterKeyId).getFingerprint());
+                if (!fingerprint.equalsIgnoreCase(entry.mExpectedFingerprint)) {
+                    return null;
+                }
+            } catch (PgpKeyNotFoundException e) {
+                return null;
+            }
+        } else if (entry.mKeyIdHex != null) {
+            try {
+                long keyId = KeyFormattingUtils.convertKeyIdHexToKeyId(entry.mKeyIdHex);
+                // short key ids only match the lower 32 bits
+                long mask = entry.mKeyIdHex.length() > 10 ? -1L : 0xffffffffL;
+                if ((masterKeyId & mask) != keyId) {
+                    return null;
+                }
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+
+        return masterKeyId;
+    }
+
+    /**
+     * Imports keyrings which are available as raw data, e.g. from a keyring file. This works
+     * like serialKeyRingImport, but the keyrings are saved to the database in transactions of
+     * one batch each, rather than one by one. The next batch is read and prepared while the
+     * previous one is saved.
+     */
+    @NonNull
+    private ImportKeyResult batchedKeyRingImport(OperationLog log, KeyRingBatchSource source) {
+        if (mProgressable != null) {
+            mProgressable.setProgress(R.string.progress_importing, 0, 100);
+        }
+
+        ImportCounts counts = new ImportCounts();
+
+        // canonicalized keyrings are only returned when skipping the save, don't hold on to them
+        ArrayList<CanonicalizedKeyRing> canKeyRings = new ArrayList<>();
+
+        long trustedCacheHits = mKeyWritableRepository.getTrustedKeysCacheHitCount();
+        long trustedCacheMisses = mKeyWritableRepository.getTrustedKeysCacheMissCount();
+        long verificationCacheHits = SignatureVerificationCache.getInstance().getHitCount();
+        long verificationCacheMisses = SignatureVerificationCache.getInstance().getMissCount();
+
+        boolean cancelled = false;
+
+        KeyRingSavePipeline pipeline = new KeyRingSavePipeline();
+        // the batch which is being saved, while the next one is read
+        List<UncachedKeyRing> savingBatch = null;
+        Future<List<SaveKeyringResult>> savingResults = null;
+        int savingProgress = 0;
+
+        try {
+            while (true) {
+                // Has this action been cancelled? If so, don't proceed any further
+                if (checkCancelled()) {
+                    cancelled = true;
+                    break;
+                }
+
+                List<UncachedKeyRing> batch = source.nextBatch();
+                if (batch == null) {
+                    break;
+                }
+                Future<List<SaveKeyringResult>> results = pipeline.saveKeyRingsBatched(batch);
+
+                if (savingBatch != null) {
+                    recordSavedBatch(log, counts, savingBatch, savingResults, savingProgress);
+                }
+                savingBatch = batch;
+                savingResults = results;
+                savingProgress = source.getProgress();
+            }
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Error reading keyrings for import", e);
+            log.add(LogType.MSG_IMPORT_ERROR_IO, 1);
+            counts.mBadKeys += 1;
+        } finally {
+            // batches which were already submitted are still saved
+            pipeline.shutdown();
+        }
+        if (savingBatch != null) {
+            recordSavedBatch(log, counts, savingBatch, savingResults, savingProgress);
+        }
+        counts.mBadKeys += source.getBadKeyCount();
+
+        return finishKeyRingImport(log, mProgressable, false, cancelled, counts, canKeyRings,
+                trustedCacheHits, trustedCacheMisses, verificationCacheHits, verificationCacheMisses);
+    }
+
+    /**
+     * Waits until a batch submitted to the save pipeline is saved, and counts its results.
+     */
+    private void recordSavedBatch(OperationLog log, ImportCounts counts, List<UncachedKeyRing> batch,
+                                  Future<List<SaveKeyringResult>> results, int progress) {
+        List<SaveKeyringResult> batchResults;
+        try {
+            batchResults = results.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(Constants.TAG, "Error saving keyrings during import", e);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.add(LogType.MSG_INTERNAL_ERROR, 1);
+            counts.mBadKeys += batch.size();
+            return;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            SaveKeyringResult result = batchResults.get(i);
+            counts.addSaveResult(batch.get(i), result);
+            log.add(result, 2);
+        }
+
+        if (mProgressable != null) {
+            mProgressable.setProgress(progress, 100);
+        }
+    }
+
+    @NonNull
+    private ImportKeyResult finishKeyRingImport(OperationLog log, Progressable progressable, boolean skipSave,
+            boolean cancelled, ImportCounts counts, ArrayList<CanonicalizedKeyRing> canKeyRings,
+            long trustedCacheHits, long trustedCacheMisses, long verificationCacheHits, long verificationCacheMisses) {
+
+        trustedCacheHits = mKeyWritableRepository.getTrustedKeysCacheHitCount() - trustedCacheHits;
+        trustedCacheMisses = mKeyWritableRepository.getTrustedKeysCacheMissCount() - trustedCacheMisses;
+        if (trustedCacheHits > 0 || trustedCacheMisses > 0) {
+            log.add(LogType.MSG_IMPORT_TRUSTED_KEY_CACHE, 1, trustedCacheHits, trustedCacheMisses);
+        }
+        // the cache is process-wide, so this includes verifications of operations running meanwhile
+        verificationCacheHits = SignatureVerificationCache.getInstance().getHitCount() - verificationCacheHits;
+        verificationCacheMisses = SignatureVerificationCache.getInstance().getMissCount() - verificationCacheMisses;
+        if (verificationCacheHits > 0 || verificationCacheMisses > 0) {
+            log.add(LogType.MSG_IMPORT_VERIFICATION_CACHE, 1, verificationCacheHits, verificationCacheMisses);
+        }
+
         // Special: consolidate on secret key import (cannot be cancelled!)
         // synchronized on mProviderHelper to prevent
         // https://github.com/open-keychain/open-keychain/issues/1221 since a consolidate deletes
         // and re-inserts keys, which could conflict with a parallel db key update
-        if (!skipSave && (secret > 0)) {
+        if (!skipSave && (counts.mSecret > 0)) {
             setPreventCancel();
             ConsolidateResult result;
             synchronized (mKeyRepository) {
@@ -377,9 +516,9 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         // ContactSyncAdapterService.requestContactsSync();
 
         // convert to long array
-        long[] importedMasterKeyIdsArray = new long[importedMasterKeyIds.size()];
-        for (int i = 0; i < importedMasterKeyIds.size(); ++i) {
-            importedMasterKeyIdsArray[i] = importedMasterKeyIds.get(i);
+        long[] importedMasterKeyIdsArray = new long[counts.mImportedMasterKeyIds.size()];
+        for (int i = 0; i < counts.mImportedMasterKeyIds.size(); ++i) {
+            importedMasterKeyIdsArray[i] = counts.mImportedMasterKeyIds.get(i);
         }
 
         int resultType = 0;
@@ -389,18 +528,18 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         }
 
         // special return case: no new keys at all
-        if (badKeys == 0 && newKeys == 0 && updatedKeys == 0) {
+        if (counts.mBadKeys == 0 && counts.mNewKeys == 0 && counts.mUpdatedKeys == 0) {
             resultType = ImportKeyResult.RESULT_FAIL_NOTHING;
         } else {
-            if (newKeys > 0) {
+            if (counts.mNewKeys > 0) {
                 resultType |= ImportKeyResult.RESULT_OK_NEWKEYS;
             }
-            if (updatedKeys > 0) {
+            if (counts.mUpdatedKeys > 0) {
                 resultType |= ImportKeyResult.RESULT_OK_UPDATED;
             }
-            if (badKeys > 0) {
+            if (counts.mBadKeys > 0) {
                 resultType |= ImportKeyResult.RESULT_WITH_ERRORS;
-                if (newKeys == 0 && updatedKeys == 0) {
+                if (counts.mNewKeys == 0 && counts.mUpdatedKeys == 0) {
                     resultType |= ImportKeyResult.RESULT_ERROR;
                 }
             }
@@ -411,17 +550,17 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
 
         if (!cancelled) {
             // Final log entry, it's easier to do this individually
-            if ((newKeys > 0 || updatedKeys > 0) && badKeys > 0) {
+            if ((counts.mNewKeys > 0 || counts.mUpdatedKeys > 0) && counts.mBadKeys > 0) {
                 log.add(LogType.MSG_IMPORT_PARTIAL, 1);
-            } else if (newKeys > 0 || updatedKeys > 0) {
+            } else if (counts.mNewKeys > 0 || counts.mUpdatedKeys > 0) {
                 log.add(LogType.MSG_IMPORT_SUCCESS, 1);
             } else {
                 log.add(LogType.MSG_IMPORT_ERROR, 1);
             }
         }
 
-        ImportKeyResult result = new ImportKeyResult(resultType, log, newKeys, updatedKeys, badKeys, secret,
-                importedMasterKeyIdsArray);
+        ImportKeyResult result = new ImportKeyResult(resultType, log, counts.mNewKeys, counts.mUpdatedKeys,
+                counts.mBadKeys, counts.mSecret, counts.mUnchangedKeys, importedMasterKeyIdsArray);
 
         result.setCanonicalizedKeyRings(canKeyRings);
         return result;
@@ -435,10 +574,12 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         boolean skipSave = importInput.mSkipSave;
 
         ImportKeyResult result;
-        if (keyList == null) {// import from file, do serially
+        if (importInput.mInputUri != null) {// stream directly from file, do in batches
+            result = importKeyRingsFromStream(importInput.mInputUri);
+        } else if (keyList == null) {// import from file, do in batches
             ParcelableFileCache<ParcelableKeyRing> cache =
                     new ParcelableFileCache<>(mContext, CACHE_FILE_NAME);
-            result = serialKeyRingImport(cache, null, null, skipSave);
+            result = importKeyRingsFromCache(cache, skipSave);
         } else {
             ParcelableProxy proxy;
             if (cryptoInput.getParcelableProxy() == null) {
@@ -467,56 +608,631 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
 
         Log.d(Constants.TAG, "Multi-threaded key import starting");
 
-        final Iterator<ParcelableKeyRing> keyListIterator = keyList.iterator();
         final int totKeys = keyList.size();
+        if (mProgressable != null) {
+            mProgressable.setProgress(0, totKeys);
+        }
 
-        ExecutorService importExecutor = new ThreadPoolExecutor(0, MAX_THREADS, 30L, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<Runnable>());
-        ExecutorCompletionService<ImportKeyResult> importCompletionService =
-                new ExecutorCompletionService<>(importExecutor);
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_IMPORT, 0, totKeys);
+
+        if (totKeys == 0) {
+            return new ImportKeyResult(ImportKeyResult.RESULT_FAIL_NOTHING, log);
+        }
+
+        ImportCounts counts = new ImportCounts();
 
-        while (keyListIterator.hasNext()) { // submit all key rings to be imported
+        ArrayList<CanonicalizedKeyRing> canKeyRings = new ArrayList<>();
 
-            final ParcelableKeyRing pkRing = keyListIterator.next();
+        long trustedCacheHits = mKeyWritableRepository.getTrustedKeysCacheHitCount();
+        long trustedCacheMisses = mKeyWritableRepository.getTrustedKeysCacheMissCount();
+        long verificationCacheHits = SignatureVerificationCache.getInstance().getHitCount();
+        long verificationCacheMisses = SignatureVerificationCache.getInstance().getMissCount();
 
-            Callable<ImportKeyResult> importOperationCallable = new Callable<ImportKeyResult>
-                    () {
+        // fetching mostly waits for the network, so it is done on a pool of its own
+        ExecutorService fetchExecutor = SubTaskExecutor.newFixedThreadPool(mMaxThreads);
+        ExecutorCompletionService<FetchedKeyRing> fetchCompletionService =
+                new ExecutorCompletionService<>(fetchExecutor);
+        KeyRingSavePipeline pipeline = new KeyRingSavePipeline();
 
+        for (final ParcelableKeyRing entry : keyList) { // submit all key rings to be fetched
+            fetchCompletionService.submit(new Callable<FetchedKeyRing>() {
                 @Override
-                public ImportKeyResult call() {
+                public FetchedKeyRing call() throws IOException, PgpGeneralException {
                     if (checkCancelled()) {
                         return null;
                     }
 
-                    ArrayList<ParcelableKeyRing> list = new ArrayList<>();
-                    list.add(pkRing);
-                    ProgressScaler ignoreProgressable = new ProgressScaler();
+                    // fetchers cache their keyserver instances, so they aren't shared between threads
+                    KeyRingFetcher fetcher = new KeyRingFetcher(keyServer, proxy, skipSave);
+                    return fetcher.fetch(entry, new OperationLog());
+                }
+            });
+        }
 
-                    return serialKeyRingImport(list.iterator(), 1, keyServer, ignoreProgressable,
-                            proxy, skipSave);
+        boolean cancelled = false;
+        // keyrings submitted to the save pipeline, which saves them in this order
+        ArrayDeque<PendingSave> pendingSaves = new ArrayDeque<>();
+        try {
+            for (int i = 0; i < totKeys; i++) {
+                try {
+                    FetchedKeyRing fetched = fetchCompletionService.take().get();
+                    if (fetched == null) {
+                        cancelled = true;
+                    } else if (handleUnsavedKeyRing(fetched.mLog, counts, fetched)) {
+                        log.addAll(fetched.mLog.toList());
+                    } else {
+                        pendingSaves.add(new PendingSave(fetched, pipeline.saveKeyRing(fetched.mKey,
+                                fetched.mEntry.mExpectedFingerprint, canKeyRings, skipSave)));
+                    }
+                } catch (ExecutionException e) {
+                    // fetching only throws for data which can't be decoded, count the key as bad
+                    Log.e(Constants.TAG, "Encountered bad key on import!", e.getCause());
+                    if (!(e.getCause() instanceof IOException || e.getCause() instanceof PgpGeneralException)) {
+                        log.add(LogType.MSG_INTERNAL_ERROR, 1);
+                    }
+                    counts.mBadKeys += 1;
+                }
+
+                // count the keyrings saved so far, without waiting for the others
+                while (!pendingSaves.isEmpty() && pendingSaves.peek().mResult.isDone()) {
+                    recordPendingSave(log, counts, pendingSaves.poll(), skipSave);
+                }
+                if (mProgressable != null) {
+                    mProgressable.setProgress(i + 1 - pendingSaves.size(), totKeys);
                 }
-            };
+            }
+        } catch (InterruptedException e) {
+            Log.e(Constants.TAG, "Interrupted during multi-threaded import", e);
+            Thread.currentThread().interrupt();
+            cancelled = true;
+        } finally {
+            fetchExecutor.shutdown();
+            // keyrings which were already submitted are still saved
+            pipeline.shutdown();
+        }
 
-            importCompletionService.submit(importOperationCallable);
+        while (!pendingSaves.isEmpty()) {
+            recordPendingSave(log, counts, pendingSaves.poll(), skipSave);
+            if (mProgressable != null) {
+                mProgressable.setProgress(totKeys - pendingSaves.size(), totKeys);
+            }
         }
 
-        KeyImportAccumulator accumulator = new KeyImportAccumulator(totKeys, mProgressable);
-        while (!accumulator.isImportFinished()) { // accumulate the results of each import
+        return finishKeyRingImport(log, mProgressable, skipSave, cancelled, counts, canKeyRings,
+                trustedCacheHits, trustedCacheMisses, verificationCacheHits, verificationCacheMisses);
+    }
+
+    /**
+     * Waits until a keyring submitted to the save pipeline is saved, and counts its result.
+     */
+    private void recordPendingSave(OperationLog log, ImportCounts counts, PendingSave pendingSave,
+                                   boolean skipSave) {
+        SaveKeyringResult result;
+        try {
+            result = pendingSave.mResult.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(Constants.TAG, "Error saving keyring during multi-threaded import", e);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            OperationLog errorLog = new OperationLog();
+            errorLog.add(LogType.MSG_INTERNAL_ERROR, 0);
+            result = new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, errorLog, null);
+        }
+
+        FetchedKeyRing fetched = pendingSave.mFetched;
+        recordSavedKeyRing(fetched.mLog, counts, fetched, result, skipSave);
+        log.addAll(fetched.mLog.toList());
+    }
+
+    /**
+     * Fetches keyrings for their ParcelableKeyRing entries, from keyservers if necessary.
+     * Keyserver instances are cached, so a fetcher must only be used by one thread.
+     */
+    private class KeyRingFetcher {
+        private final ParcelableHkpKeyserver mHkpKeyserver;
+        private final ParcelableProxy mProxy;
+        private final boolean mSkipSave;
+
+        private KeybaseKeyserver mKeybaseServer;
+        private FacebookKeyserver mFacebookServer;
+        private ParcelableHkpKeyserver mKeyServer;
+
+        KeyRingFetcher(ParcelableHkpKeyserver hkpKeyserver, ParcelableProxy proxy, boolean skipSave) {
+            mHkpKeyserver = hkpKeyserver;
+            mProxy = proxy;
+            mSkipSave = skipSave;
+        }
+
+        FetchedKeyRing fetch(ParcelableKeyRing entry, OperationLog log) throws IOException, PgpGeneralException {
+            UncachedKeyRing key = null;
+            // digest of the data the key was decoded from, if it came from a single source
+            String digest = null;
+            // set if that data is already in the database, in which case it isn't decoded
+            Long unchangedMasterKeyId = null;
+
+            // If there is already byte data, use that
+            if (entry.mBytes != null) {
+                digest = KeyRepository.computeKeyRingDigest(entry.mBytes);
+                unchangedMasterKeyId = mSkipSave ? null : findUnchangedKeyRing(digest, entry);
+                if (unchangedMasterKeyId == null) {
+                    key = UncachedKeyRing.decodeFromData(entry.mBytes);
+                }
+            }
+            // Otherwise, we need to fetch the data from a server first
+            else {
+
+                // We fetch from keyservers first, because we tend to get more certificates
+                // from there, so the number of certificates which are merged in later is
+                // smaller.
+
+                // If we have a keyServerUri and a fingerprint or at least a keyId,
+                // download from HKP
+                if (mHkpKeyserver != null
+                        && (entry.mKeyIdHex != null || entry.mExpectedFingerprint != null)) {
+                    // Make sure we have the keyserver instance cached
+                    if (mKeyServer == null) {
+                        log.add(LogType.MSG_IMPORT_KEYSERVER, 1, mHkpKeyserver);
+                        mKeyServer = mHkpKeyserver;
+                    }
+
+                    try {
+                        byte[] data;
+                        // Download by fingerprint, or keyId - whichever is available
+                        if (entry.mExpectedFingerprint != null) {
+                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, "0x" +
+                                    entry.mExpectedFingerprint.substring(24));
+                            data = mKeyServer.get("0x" + entry.mExpectedFingerprint, mProxy).getBytes();
+                        } else {
+                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 2, entry.mKeyIdHex);
+                            data = mKeyServer.get(entry.mKeyIdHex, mProxy).getBytes();
+                        }
+                        // data merged with keybase or facebook data is not recognized later
+                        if (entry.mKeybaseName == null && entry.mFbUsername == null) {
+                            digest = KeyRepository.computeKeyRingDigest(data);
+                            unchangedMasterKeyId = mSkipSave ? null : findUnchangedKeyRing(digest, entry);
+                        }
+                        if (unchangedMasterKeyId == null) {
+                            key = UncachedKeyRing.decodeFromData(data);
+                            if (key != null) {
+                                log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
+                            } else {
+                                log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
+                            }
+                        }
+                    } catch (Keyserver.QueryFailedException e) {
+                        Log.d(Constants.TAG, "query failed", e);
+                        log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
+                    }
+                }
+
+                // If we have a keybase name, try to fetch from there
+                if (entry.mKeybaseName != null) {
+                    // Make sure we have this cached
+                    if (mKeybaseServer == null) {
+                        mKeybaseServer = new KeybaseKeyserver();
+                    }
+
+                    try {
+                        log.add(LogType.MSG_IMPORT_FETCH_KEYBASE, 2, entry.mKeybaseName);
+                        byte[] data = mKeybaseServer.get(entry.mKeybaseName, mProxy).getBytes();
+                        UncachedKeyRing keybaseKey = UncachedKeyRing.decodeFromData(data);
+
+                        if (keybaseKey != null) {
+                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
+                        } else {
+                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
+                        }
+
+                        // If there already is a key, merge the two
+                        if (key != null && keybaseKey != null) {
+                            log.add(LogType.MSG_IMPORT_MERGE, 3);
+                            keybaseKey = key.merge(keybaseKey, log, 4);
+                            // If the merge didn't fail, use the new merged key
+                            if (keybaseKey != null) {
+                                key = keybaseKey;
+                            } else {
+                                log.add(LogType.MSG_IMPORT_MERGE_ERROR, 4);
+                            }
+                        } else if (keybaseKey != null) {
+                            key = keybaseKey;
+                        }
+                    } catch (Keyserver.QueryFailedException e) {
+                        // download failed, too bad. just proceed
+                        Log.e(Constants.TAG, "query failed", e);
+                        log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
+                    }
+                }
+
+                // if the key is from Facebook, fetch from there
+                if (entry.mFbUsername != null) {
+                    // Make sure we have this cached
+                    if (mFacebookServer == null) {
+                        mFacebookServer = new FacebookKeyserver();
+                    }
+
+                    try {
+                        log.add(LogType.MSG_IMPORT_FETCH_FACEBOOK, 2, entry.mFbUsername);
+                        byte[] data = mFacebookServer.get(entry.mFbUsername, mProxy).getBytes();
+                        UncachedKeyRing facebookKey = UncachedKeyRing.decodeFromData(data);
+
+                        if (facebookKey != null) {
+                            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER_OK, 3);
+                        } else {
+                            log.add(LogType.MSG_IMPORT_FETCH_ERROR_DECODE, 3);
+                        }
+
+                        // If there already is a key, merge the two
+                        if (key != null && facebookKey != null) {
+                            log.add(LogType.MSG_IMPORT_MERGE, 3);
+                            facebookKey = key.merge(facebookKey, log, 4);
+                            // If the merge didn't fail, use the new merged key
+                            if (facebookKey != null) {
+                                key = facebookKey;
+                            } else {
+                                log.add(LogType.MSG_IMPORT_MERGE_ERROR, 4);
+                            }
+                        } else if (facebookKey != null) {
+                            key = facebookKey;
+                        }
+                    } catch (Keyserver.QueryFailedException e) {
+                        // download failed, too bad. just proceed
+                        Log.e(Constants.TAG, "query failed", e);
+                        log.add(LogType.MSG_IMPORT_FETCH_ERROR_KEYSERVER, 3, e.getMessage());
+                    }
+                }
+            }
+
+            return new FetchedKeyRing(entry, log, key, digest, unchangedMasterKeyId);
+        }
+    }
+
+    /**
+     * A keyring fetched by KeyRingFetcher, with the log of fetching it.
+     */
+    private static class FetchedKeyRing {
+        final ParcelableKeyRing mEntry;
+        final OperationLog mLog;
+        // null if the keyring could not be fetched, or its data is unchanged
+        final UncachedKeyRing mKey;
+        // digest of the data the key was decoded from, if it came from a single source
+        final String mDigest;
+        // set if that data is already in the database
+        final Long mUnchangedMasterKeyId;
+
+        FetchedKeyRing(ParcelableKeyRing entry, OperationLog log, UncachedKeyRing key, String digest,
+                       Long unchangedMasterKeyId) {
+            mEntry = entry;
+            mLog = log;
+            mKey = key;
+            mDigest = digest;
+            mUnchangedMasterKeyId = unchangedMasterKeyId;
+        }
+    }
+
+    /**
+     * A fetched keyring which was submitted to the save pipeline.
+     */
+    private static class PendingSave {
+        final FetchedKeyRing mFetched;
+        final Future<SaveKeyringResult> mResult;
+
+        PendingSave(FetchedKeyRing fetched, Future<SaveKeyringResult> result) {
+            mFetched = fetched;
+            mResult = result;
+        }
+    }
+
+    /**
+     * Counts of imported keyrings, which make up the ImportKeyResult.
+     */
+    private static class ImportCounts {
+        int mNewKeys = 0, mUpdatedKeys = 0, mBadKeys = 0, mSecret = 0, mUnchangedKeys = 0;
+        final ArrayList<Long> mImportedMasterKeyIds = new ArrayList<>();
+
+        void addSaveResult(UncachedKeyRing key, SaveKeyringResult result) {
+            if (!result.success()) {
+                mBadKeys += 1;
+                return;
+            }
+
+            if (result.updated()) {
+                mUpdatedKeys += 1;
+            } else {
+                mNewKeys += 1;
+                if (key.isSecret()) {
+                    mSecret += 1;
+                }
+            }
+            mImportedMasterKeyIds.add(key.getMasterKeyId());
+        }
+    }
+
+    /**
+     * Saves keyrings in two stages, without the importing thread waiting for each save.
+     * Merging and canonicalization of public keyrings is CPU bound and only reads from the
+     * database, so it is done on the shared sub-task pool. All database writes are then done
+     * in order by a single writer thread, which only waits for the keyring it saves next.
+     * <p/>
+     * Progress can only be reported from the thread of the operation, so the results are
+     * counted there.
+     */
+    private class KeyRingSavePipeline {
+        private final ExecutorService mDatabaseWriter = Executors.newSingleThreadExecutor();
+
+        private Future<PreparedPublicKeyRing> prepare(final UncachedKeyRing publicRing) {
+            return SubTaskExecutor.getExecutor().submit(new Callable<PreparedPublicKeyRing>() {
+                @Override
+                public PreparedPublicKeyRing call() {
+                    return mKeyWritableRepository.preparePublicKeyRing(publicRing);
+                }
+            });
+        }
+
+        Future<SaveKeyringResult> saveKeyRing(final UncachedKeyRing key, final String expectedFingerprint,
+                                              final ArrayList<CanonicalizedKeyRing> canKeyRings,
+                                              final boolean skipSave) {
+            final Future<PreparedPublicKeyRing> prepared = key.isSecret() ? null : prepare(key);
+
+            return mDatabaseWriter.submit(new Callable<SaveKeyringResult>() {
+                @Override
+                public SaveKeyringResult call() throws Exception {
+                    // if preparing hasn't started yet, it is done right here
+                    PreparedPublicKeyRing preparedRing = prepared != null ? SubTaskExecutor.await(prepared) : null;
+
+                    // synchronizing prevents https://github.com/open-keychain/open-keychain/issues/1221
+                    // and https://github.com/open-keychain/open-keychain/issues/1480
+                    synchronized (mKeyRepository) {
+                        mKeyRepository.clearLog();
+                        if (preparedRing == null) {
+                            return mKeyWritableRepository.saveSecretKeyRing(key, new ProgressScaler(),
+                                    canKeyRings, skipSave);
+                        }
+                        return mKeyWritableRepository.savePreparedPublicKeyRing(preparedRing, new ProgressScaler(),
+                                expectedFingerprint, canKeyRings, skipSave);
+                    }
+                }
+            });
+        }
+
+        Future<List<SaveKeyringResult>> saveKeyRingsBatched(final List<UncachedKeyRing> keyRings) {
+            final ArrayList<Future<PreparedPublicKeyRing>> prepared = new ArrayList<>(keyRings.size());
+            for (UncachedKeyRing keyRing : keyRings) {
+                prepared.add(keyRing.isSecret() ? null : prepare(keyRing));
+            }
+
+            return mDatabaseWriter.submit(new Callable<List<SaveKeyringResult>>() {
+                @Override
+                public List<SaveKeyringResult> call() throws Exception {
+                    ArrayList<PreparedPublicKeyRing> preparedRings = new ArrayList<>(prepared.size());
+                    for (Future<PreparedPublicKeyRing> preparedRing : prepared) {
+                        preparedRings.add(preparedRing != null ? SubTaskExecutor.await(preparedRing) : null);
+                    }
+
+                    // synchronizing prevents https://github.com/open-keychain/open-keychain/issues/1221
+                    // and https://github.com/open-keychain/open-keychain/issues/1480
+                    synchronized (mKeyRepository) {
+                        mKeyRepository.clearLog();
+                        return mKeyWritableRepository.saveKeyRingsBatched(keyRings, preparedRings,
+                                new ProgressScaler(), null);
+                    }
+                }
+            });
+        }
+
+        void shutdown() {
+            mDatabaseWriter.shutdown();
+        }
+    }
+
+    /**
+     * Supplies keyrings for batchedKeyRingImport, one batch at a time.
+     */
+    interface KeyRingBatchSource {
+        /**
+         * Returns the next batch of keyrings, or null if there are no more.
+         */
+        List<UncachedKeyRing> nextBatch() throws IOException;
+
+        /**
+         * Returns the progress in percent up to the end of the last returned batch.
+         */
+        int getProgress();
+
+        /**
+         * Returns the number of entries which were skipped because they could not be decoded.
+         */
+        int getBadKeyCount();
+    }
+
+    /**
+     * Decodes keyrings from ParcelableKeyRing entries which carry their data as bytes.
+     */
+    private static class CachedKeyRingBatchSource implements KeyRingBatchSource {
+        private final Iterator<ParcelableKeyRing> mEntries;
+        private final int mNumEntries;
+        private final int mBatchSize;
+        private int mPosition = 0;
+        private int mBadKeys = 0;
+
+        CachedKeyRingBatchSource(Iterator<ParcelableKeyRing> entries, int numEntries, int batchSize) {
+            mEntries = entries;
+            mNumEntries = numEntries;
+            mBatchSize = batchSize;
+        }
+
+        @Override
+        public List<UncachedKeyRing> nextBatch() {
+            if (!mEntries.hasNext()) {
+                return null;
+            }
+
+            ArrayList<UncachedKeyRing> batch = new ArrayList<>(mBatchSize);
+            while (mEntries.hasNext() && batch.size() < mBatchSize) {
+                ParcelableKeyRing entry = mEntries.next();
+                mPosition++;
+
+                try {
+                    batch.add(UncachedKeyRing.decodeFromData(entry.mBytes));
+                } catch (IOException | PgpGeneralException e) {
+                    Log.e(Constants.TAG, "Encountered bad key on import!", e);
+                    mBadKeys++;
+                }
+            }
+            return batch;
+        }
+
+        @Override
+        public int getProgress() {
+            return mNumEntries > 0 ? mPosition * 100 / mNumEntries : 100;
+        }
+
+        @Override
+        public int getBadKeyCount() {
+            return mBadKeys;
+        }
+    }
+
+    /**
+     * Parses keyrings from a stream on a separate thread, so the next batch is read while the
+     * current one is saved. Only a fixed number of batches is buffered, which keeps memory use
+     * independent of the size of the input.
+     * <p/>
+     * Secret keyrings are collected in batches of their own, and all public keyrings read before
+     * a secret batch are passed on ahead of it, since public keyrings should be imported first
+     * (see ImportOperation). A public keyring which only comes later in the stream is still
+     * merged into the secret keyring when it is saved.
+     */
+    private static class StreamingKeyRingBatchSource implements KeyRingBatchSource, Runnable {
+        // marks the end of the stream in the queue, compared by identity
+        private static final List<UncachedKeyRing> END_OF_STREAM = new ArrayList<>();
+
+        private final PositionAwareInputStream mInputStream;
+        private final long mInputSize;
+        private final int mBatchSize;
+        private final BlockingQueue<List<UncachedKeyRing>> mQueue;
+        private final Thread mReaderThread;
+
+        private volatile long mBytesRead = 0;
+        private volatile Throwable mReadException;
+        private boolean mFinished = false;
+
+        StreamingKeyRingBatchSource(InputStream inputStream, long inputSize, int batchSize, int queueSize) {
+            mInputStream = new PositionAwareInputStream(inputStream);
+            mInputSize = inputSize;
+            mBatchSize = batchSize;
+            mQueue = new ArrayBlockingQueue<>(queueSize);
+
+            mReaderThread = new Thread(this, "KeyImportReader");
+            mReaderThread.start();
+        }
+
+        @Override
+        public void run() {
             try {
-                accumulator.accumulateKeyImport(importCompletionService.take().get());
-            } catch (InterruptedException | ExecutionException e) {
-                Log.e(Constants.TAG, "A key could not be imported during multi-threaded " +
-                        "import", e);
-                // do nothing?
-                if (e instanceof ExecutionException) {
-                    // Since serialKeyRingImport does not throw any exceptions, this is what
-                    // would have happened if
-                    // we were importing the key on this thread
-                    throw new RuntimeException(e);
+                readKeyRings();
+            } catch (InterruptedException e) {
+                // import was stopped, nobody is waiting for more keyrings. keep the flag set, so
+                // we don't block on a full queue below
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                // anything thrown here is rethrown on the importing thread, which would otherwise wait forever
+                mReadException = e;
+            } finally {
+                try {
+                    mQueue.put(END_OF_STREAM);
+                } catch (InterruptedException e) {
+                    // import was stopped, nobody is waiting for the end of the stream
+                }
+            }
+        }
+
+        private void readKeyRings() throws IOException, InterruptedException {
+            ArrayList<UncachedKeyRing> batch = new ArrayList<>(mBatchSize);
+            ArrayList<UncachedKeyRing> secretBatch = new ArrayList<>(mBatchSize);
+
+            IteratorWithIOThrow<UncachedKeyRing> it =
+                    UncachedKeyRing.fromStream(new BufferedInputStream(mInputStream));
+            while (it.hasNext()) {
+                UncachedKeyRing keyRing = it.next();
+                mBytesRead = mInputStream.position();
+
+                if (keyRing.isSecret()) {
+                    secretBatch.add(keyRing);
+                    if (secretBatch.size() >= mBatchSize) {
+                        if (!batch.isEmpty()) {
+                            mQueue.put(batch);
+                            batch = new ArrayList<>(mBatchSize);
+                        }
+                        mQueue.put(secretBatch);
+                        secretBatch = new ArrayList<>(mBatchSize);
+                    }
+                    continue;
+                }
+
+                batch.add(keyRing);
+                if (batch.size() >= mBatchSize) {
+                    mQueue.put(batch);
+                    batch = new ArrayList<>(mBatchSize);
                 }
             }
+            if (!batch.isEmpty()) {
+                mQueue.put(batch);
+            }
+            if (!secretBatch.isEmpty()) {
+                mQueue.put(secretBatch);
+            }
+        }
+
+        @Override
+        public List<UncachedKeyRing> nextBatch() throws IOException {
+            if (mFinished) {
+                return null;
+            }
+
+            List<UncachedKeyRing> batch;
+            try {
+                batch = mQueue.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for keyrings");
+            }
+
+            if (batch == END_OF_STREAM) {
+                mFinished = true;
+                if (mReadException instanceof IOException) {
+                    throw (IOException) mReadException;
+                }
+                if (mReadException != null) {
+                    throw new IOException("Error reading keyrings", mReadException);
+                }
+                return null;
+            }
+            return batch;
+        }
+
+        @Override
+        public int getProgress() {
+            if (mInputSize <= 0) {
+                return mFinished ? 100 : 0;
+            }
+            return (int) Math.min(100, mBytesRead * 100 / mInputSize);
+        }
+
+        @Override
+        public int getBadKeyCount() {
+            // objects which are not keyrings are skipped by the parser, anything else is an IOException
+            return 0;
+        }
+
+        void close() {
+            mReaderThread.interrupt();
+            try {
+                mInputStream.close();
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Error closing keyring input stream", e);
+            }
         }
-        return accumulator.getConsolidatedResult();
     }
 
     /**
@@ -532,6 +1248,7 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
         private int mNewKeys = 0;
         private int mUpdatedKeys = 0;
         private int mSecret = 0;
+        private int mUnchangedKeys = 0;
         private int mResultType = 0;
         private boolean mHasCancelledResult;
 
@@ -578,6 +1295,7 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
             mNewKeys += result.mNewKeys;
             mUpdatedKeys += result.mUpdatedKeys;
             mSecret += result.mSecret;
+            mUnchangedKeys += result.mUnchangedKeys;
 
             long[] masterKeyIds = result.getImportedMasterKeyIds();
             for (long masterKeyId : masterKeyIds) {
@@ -626,7 +1344,7 @@ public class ImportOperation extends BaseReadWriteOperation<ImportKeyringParcel>
             }
 
             ImportKeyResult result = new ImportKeyResult(mResultType, mImportLog, mNewKeys,
-                    mUpdatedKeys, mBadKeys, mSecret, masterKeyIds);
+                    mUpdatedKeys, mBadKeys, mSecret, mUnchangedKeys, masterKeyIds);
 
             result.setCanonicalizedKeyRings(mCanonicalizedKeyRings);
             return result;
@@ -20,7 +20,14 @@ package org.sufficientlysecure.keychain.operations;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import android.content.Context;
 import android.net.Uri;
@@ -52,9 +59,16 @@ import org.sufficientlysecure.keychain.util.ProgressScaler;
  * <p/>
  * This operation is fail-fast: If any sign/encrypt sub-operation fails or returns
  * a pending result, it will terminate.
+ * <p/>
+ * With more than one input file, the first one is processed on its own, so a missing
+ * passphrase is reported before any other work is done. The remaining files are then
+ * processed in parallel, while results are still reported in input order.
  */
 public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
 
+    // interval in which the progress of parallel sub-operations is reported
+    private static final long PROGRESS_INTERVAL_MS = 200;
+
     public SignEncryptOperation(Context context, KeyRepository keyRepository,
                                 Progressable progressable, AtomicBoolean cancelled) {
         super(context, keyRepository, progressable, cancelled);
@@ -71,11 +85,8 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
         ArrayDeque<Uri> outputUris = new ArrayDeque<>(input.getOutputUris());
         byte[] inputBytes = input.getBytes();
 
-        int total = inputBytes != null ? 1 : inputUris.size(), count = 0;
         ArrayList<PgpSignEncryptResult> results = new ArrayList<>();
 
-        SecurityTokenSignOperationsBuilder pendingInputBuilder = null;
-
         PgpSignEncryptData data = input.getData();
         // if signing subkey has not explicitly been set, get first usable subkey capable of signing
         if (data.getSignatureMasterKeyId() != Constants.key.none
@@ -90,14 +101,8 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
             }
         }
 
+        ArrayList<PgpSignEncryptInputParcel> inputParcels = new ArrayList<>();
         do {
-            if (checkCancelled()) {
-                log.add(LogType.MSG_OPERATION_CANCELLED, 0);
-                return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
-            }
-
-            PgpSignEncryptOperation op = new PgpSignEncryptOperation(mContext, mKeyRepository,
-                    new ProgressScaler(mProgressable, 100 * count / total, 100 * ++count / total, 100), mCancelled);
             PgpSignEncryptInputParcel inputParcel = new PgpSignEncryptInputParcel(input.getData());
             if (inputBytes != null) {
                 inputParcel.setInputBytes(inputBytes);
@@ -105,38 +110,198 @@ public class SignEncryptOperation extends BaseOperation<SignEncryptParcel> {
                 inputParcel.setInputUri(inputUris.removeFirst());
             }
             inputParcel.setOutputUri(outputUris.pollFirst());
+            inputParcels.add(inputParcel);
+        } while (!inputUris.isEmpty());
+
+        if (!outputUris.isEmpty()) {
+            throw new AssertionError("Got outputs left but no inputs. This is a programming error, please report!");
+        }
+
+        int total = inputParcels.size();
+        ResultCollector collector = new ResultCollector(log, results, data, cryptoInput);
+
+        if (checkCancelled()) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+            return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, log, results);
+        }
+
+        PgpSignEncryptOperation firstOp = new PgpSignEncryptOperation(mContext, mKeyRepository,
+                new ProgressScaler(mProgressable, 0, 100 / total, 100), mCancelled);
+        SignEncryptResult earlyResult = collector.add(firstOp.execute(inputParcels.get(0), cryptoInput));
+        if (earlyResult != null) {
+            return earlyResult;
+        }
 
-            PgpSignEncryptResult result = op.execute(inputParcel, cryptoInput);
-            results.add(result);
-            log.add(result, 2);
+        if (total > 1) {
+            earlyResult = signEncryptParallel(inputParcels, collector, cryptoInput);
+            if (earlyResult != null) {
+                return earlyResult;
+            }
+        }
+
+        if (collector.mPendingInputBuilder != null && !collector.mPendingInputBuilder.isEmpty()) {
+            return new SignEncryptResult(log, collector.mPendingInputBuilder.build(), results, cryptoInput);
+        }
+
+        log.add(LogType.MSG_SE_SUCCESS, 1);
+        return new SignEncryptResult(SignEncryptResult.RESULT_OK, log, results,
+                results.get(results.size() - 1).getOutputBytes());
+    }
+
+    /**
+     * Processes all but the first input on the shared sub-task pool, and adds their results in
+     * input order.
+     * Returns a result if the operation should terminate early, or null otherwise.
+     */
+    private SignEncryptResult signEncryptParallel(ArrayList<PgpSignEncryptInputParcel> inputParcels,
+            ResultCollector collector, final CryptoInputParcel cryptoInput) {
+        final int total = inputParcels.size();
+        // progress of each input in percent. the first one is done already.
+        final AtomicIntegerArray progress = new AtomicIntegerArray(total);
+        progress.set(0, 100);
+        // sub-operations are cancelled if this operation is, or if one of them fails
+        final AtomicBoolean abort = new AtomicBoolean(false);
+
+        ExecutorService executor = SubTaskExecutor.getExecutor();
+        ArrayList<Future<PgpSignEncryptResult>> futures = new ArrayList<>();
+        try {
+            for (int i = 1; i < total; i++) {
+                final int index = i;
+                final PgpSignEncryptInputParcel inputParcel = inputParcels.get(i);
+                futures.add(executor.submit(new Callable<PgpSignEncryptResult>() {
+                    @Override
+                    public PgpSignEncryptResult call() {
+                        if (abort.get()) {
+                            return null;
+                        }
+                        PgpSignEncryptOperation op = new PgpSignEncryptOperation(mContext, mKeyRepository,
+                                new InputProgressable(progress, index), abort);
+                        // each sub-operation gets its own copy, the crypto input is not thread safe
+                        return op.execute(inputParcel, cryptoInput.copy());
+                    }
+                }));
+            }
+
+            for (Future<PgpSignEncryptResult> future : futures) {
+                PgpSignEncryptResult result = awaitResult(future, progress, abort);
+                if (result == null || checkCancelled()) {
+                    collector.mLog.add(LogType.MSG_OPERATION_CANCELLED, 0);
+                    return new SignEncryptResult(SignEncryptResult.RESULT_CANCELLED, collector.mLog,
+                            collector.mResults);
+                }
+
+                SignEncryptResult earlyResult = collector.add(result);
+                if (earlyResult != null) {
+                    return earlyResult;
+                }
+            }
+            return null;
+        } finally {
+            abort.set(true);
+            SubTaskExecutor.cancelAll(futures);
+        }
+    }
+
+    /** Waits for a sub-operation, reporting the overall progress of all of them meanwhile. */
+    private PgpSignEncryptResult awaitResult(Future<PgpSignEncryptResult> future,
+            AtomicIntegerArray progress, AtomicBoolean abort) {
+        while (true) {
+            if (checkCancelled()) {
+                abort.set(true);
+            }
+            try {
+                return future.get(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (mProgressable == null) {
+                    continue;
+                }
+                int sum = 0;
+                for (int i = 0; i < progress.length(); i++) {
+                    sum += progress.get(i);
+                }
+                // progress is only reported from this thread, which the progressable may depend on
+                mProgressable.setProgress(sum / progress.length(), 100);
+            } catch (InterruptedException e) {
+                abort.set(true);
+            } catch (ExecutionException e) {
+                // PgpSignEncryptOperation should not throw any exceptions, fail like it would
+                // for any other error
+                Log.e(Constants.TAG, "Error in parallel sign/encrypt operation", e.getCause());
+                OperationLog log = new OperationLog();
+                log.add(LogType.MSG_INTERNAL_ERROR, 0);
+                return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
+            }
+        }
+    }
+
+    /** Collects sub-operation results in order, aggregating pending security token input. */
+    private static class ResultCollector {
+        final OperationLog mLog;
+        final ArrayList<PgpSignEncryptResult> mResults;
+        final PgpSignEncryptData mData;
+        final CryptoInputParcel mCryptoInput;
+        SecurityTokenSignOperationsBuilder mPendingInputBuilder;
+
+        ResultCollector(OperationLog log, ArrayList<PgpSignEncryptResult> results, PgpSignEncryptData data,
+                CryptoInputParcel cryptoInput) {
+            mLog = log;
+            mResults = results;
+            mData = data;
+            mCryptoInput = cryptoInput;
+        }
+
+        /** Returns a result if the operation should terminate early, or null otherwise. */
+        SignEncryptResult add(PgpSignEncryptResult result) {
+            mResults.add(result);
+            mLog.add(result, 2);
 
             if (result.isPending()) {
                 RequiredInputParcel requiredInput = result.getRequiredInputParcel();
                 // Passphrase returns immediately, nfc are aggregated
                 if (requiredInput.mType == RequiredInputType.PASSPHRASE) {
-                    return new SignEncryptResult(log, requiredInput, results, cryptoInput);
+                    return new SignEncryptResult(mLog, requiredInput, mResults, mCryptoInput);
                 }
-                if (pendingInputBuilder == null) {
-                    pendingInputBuilder = new SecurityTokenSignOperationsBuilder(requiredInput.mSignatureTime,
-                            data.getSignatureMasterKeyId(), data.getSignatureSubKeyId());
+                if (mPendingInputBuilder == null) {
+                    mPendingInputBuilder = new SecurityTokenSignOperationsBuilder(requiredInput.mSignatureTime,
+                            mData.getSignatureMasterKeyId(), mData.getSignatureSubKeyId());
                 }
-                pendingInputBuilder.addAll(requiredInput);
+                mPendingInputBuilder.addAll(requiredInput);
             } else if (!result.success()) {
-                return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, log, results);
+                return new SignEncryptResult(SignEncryptResult.RESULT_ERROR, mLog, mResults);
             }
-        } while (!inputUris.isEmpty());
+            return null;
+        }
+    }
 
-        if (pendingInputBuilder != null && !pendingInputBuilder.isEmpty()) {
-            return new SignEncryptResult(log, pendingInputBuilder.build(), results, cryptoInput);
+    /** Records the progress of one parallel sub-operation, to be reported by awaitResult. */
+    private static class InputProgressable implements Progressable {
+        private final AtomicIntegerArray mProgress;
+        private final int mIndex;
+
+        InputProgressable(AtomicIntegerArray progress, int index) {
+            mProgress = progress;
+            mIndex = index;
         }
 
-        if (!outputUris.isEmpty()) {
-            throw new AssertionError("Got outputs left but no inputs. This is a programming error, please report!");
+        @Override
+        public void setProgress(String message, int progress, int max) {
+            setProgress(progress, max);
         }
 
-        log.add(LogType.MSG_SE_SUCCESS, 1);
-        return new SignEncryptResult(SignEncryptResult.RESULT_OK, log, results,
-                results.get(results.size() - 1).getOutputBytes());
+        @Override
+        public void setProgress(int resourceId, int progress, int max) {
+            setProgress(progress, max);
+        }
+
+        @Override
+        public void setProgress(int progress, int max) {
+            mProgress.set(mIndex, max > 0 ? 100 * progress / max : 0);
+        }
+
+        @Override
+        public void setPreventCancel() {
+            // the parallel sub-operations are cancelled together
+        }
     }
 
 }
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.util.Collection;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Pools for the parts of an operation which run in parallel, like the files of a batch.
+ * <p/>
+ * Operations themselves run on the bounded pool of KeychainService. Their CPU bound sub-tasks
+ * all go to one process-wide pool of at most MAX_THREADS threads, so the number of threads
+ * doing crypto work stays bounded no matter how many operations run at once. Sub-tasks must
+ * not wait for other sub-tasks, unless through {@link #await}.
+ */
+class SubTaskExecutor {
+
+    static final int MAX_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static ThreadPoolExecutor sExecutor;
+
+    /** Returns the process-wide pool for CPU bound sub-tasks. This must not be shut down. */
+    static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = newFixedThreadPool(MAX_THREADS);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Returns a pool of the given number of threads, which time out when idle. This is for
+     * sub-tasks which mostly wait, e.g. for the network, and so don't count towards MAX_THREADS.
+     */
+    static ThreadPoolExecutor newFixedThreadPool(int threads) {
+        // all threads are core threads, with an unbounded queue no others would be started
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Waits for a sub-task submitted to the shared pool. If it hasn't started yet, it is run on
+     * the calling thread instead, so a caller which is itself a sub-task can't starve the pool.
+     */
+    static <T> T await(Future<T> future) throws InterruptedException, ExecutionException {
+        ThreadPoolExecutor executor;
+        synchronized (SubTaskExecutor.class) {
+            executor = sExecutor;
+        }
+        if (executor != null && future instanceof RunnableFuture && executor.remove((Runnable) future)) {
+            ((RunnableFuture<T>) future).run();
+        }
+        return future.get();
+    }
+
+    /** Cancels sub-tasks which are no longer needed, interrupting those already running. */
+    static void cancelAll(Collection<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+}
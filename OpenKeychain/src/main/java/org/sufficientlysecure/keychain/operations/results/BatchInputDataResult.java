@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations.results;
+
+
+import java.util.ArrayList;
+
+import android.net.Uri;
+import android.os.Parcel;
+import android.support.annotation.NonNull;
+
+
+public class BatchInputDataResult extends InputPendingResult {
+
+    // input uris and results of all processed inputs which were not reported to a listener
+    public final ArrayList<Uri> mInputUris;
+    public final ArrayList<InputDataResult> mResults;
+
+    public BatchInputDataResult(OperationLog log, @NonNull InputPendingResult result) {
+        super(log, result);
+        mInputUris = null;
+        mResults = null;
+    }
+
+    public BatchInputDataResult(int result, OperationLog log,
+            @NonNull ArrayList<Uri> inputUris, @NonNull ArrayList<InputDataResult> results) {
+        super(result, log);
+        if (inputUris.size() != results.size()) {
+            throw new AssertionError("number of input URIs must match results!");
+        }
+        mInputUris = inputUris;
+        mResults = results;
+    }
+
+    protected BatchInputDataResult(Parcel in) {
+        super(in);
+        mInputUris = in.createTypedArrayList(Uri.CREATOR);
+        mResults = in.createTypedArrayList(InputDataResult.CREATOR);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        super.writeToParcel(dest, flags);
+        dest.writeTypedList(mInputUris);
+        dest.writeTypedList(mResults);
+    }
+
+    public static final Creator<BatchInputDataResult> CREATOR = new Creator<BatchInputDataResult>() {
+        @Override
+        public BatchInputDataResult createFromParcel(Parcel in) {
+            return new BatchInputDataResult(in);
+        }
+
+        @Override
+        public BatchInputDataResult[] newArray(int size) {
+            return new BatchInputDataResult[size];
+        }
+    };
+
+}
@@ -18,23 +18,40 @@
 
 package org.sufficientlysecure.keychain.operations.results;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import android.os.Parcel;
+import android.os.Parcelable;
 
 
 public class BenchmarkResult extends OperationResult {
 
+    public final ArrayList<Measurement> mMeasurements;
+    public final int mS2kIterationsFor100ms;
+
     public BenchmarkResult(int result, OperationLog log) {
+        this(result, log, new ArrayList<Measurement>(), 0);
+    }
+
+    public BenchmarkResult(int result, OperationLog log, ArrayList<Measurement> measurements,
+            int s2kIterationsFor100ms) {
         super(result, log);
+        mMeasurements = measurements;
+        mS2kIterationsFor100ms = s2kIterationsFor100ms;
     }
 
-    /** Construct from a parcel - trivial because we have no extra data. */
     public BenchmarkResult(Parcel source) {
         super(source);
+        mMeasurements = source.createTypedArrayList(Measurement.CREATOR);
+        mS2kIterationsFor100ms = source.readInt();
     }
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
         super.writeToParcel(dest, flags);
+        dest.writeTypedList(mMeasurements);
+        dest.writeInt(mS2kIterationsFor100ms);
     }
 
     public static Creator<BenchmarkResult> CREATOR = new Creator<BenchmarkResult>() {
@@ -47,4 +64,116 @@ public class BenchmarkResult extends OperationResult {
         }
     };
 
+    /**
+     * The timings of all repetitions of a single operation. The parameters which do not apply
+     * to the operation are left at -1 (or null for the key algorithm).
+     */
+    public static class Measurement implements Parcelable {
+
+        public enum OperationType {
+            ENCRYPT, DECRYPT, SIGN, VERIFY, PUBLIC_KEY_ENCRYPT, PUBLIC_KEY_DECRYPT
+        }
+
+        public final OperationType mType;
+        public final int mPayloadSize;
+        public final int mSymmetricAlgorithm;
+        public final int mCompressionAlgorithm;
+        public final boolean mArmor;
+        public final String mKeyAlgorithm;
+        // sorted, in nanoseconds
+        private final long[] mTimes;
+
+        public Measurement(OperationType type, int payloadSize, int symmetricAlgorithm,
+                int compressionAlgorithm, boolean armor, String keyAlgorithm, long[] times) {
+            mType = type;
+            mPayloadSize = payloadSize;
+            mSymmetricAlgorithm = symmetricAlgorithm;
+            mCompressionAlgorithm = compressionAlgorithm;
+            mArmor = armor;
+            mKeyAlgorithm = keyAlgorithm;
+            mTimes = Arrays.copyOf(times, times.length);
+            Arrays.sort(mTimes);
+        }
+
+        protected Measurement(Parcel in) {
+            mType = OperationType.values()[in.readInt()];
+            mPayloadSize = in.readInt();
+            mSymmetricAlgorithm = in.readInt();
+            mCompressionAlgorithm = in.readInt();
+            mArmor = in.readByte() != 0;
+            mKeyAlgorithm = in.readString();
+            mTimes = in.createLongArray();
+        }
+
+        public int getNumRepeats() {
+            return mTimes.length;
+        }
+
+        public double getMeanMillis() {
+            long total = 0;
+            for (long time : mTimes) {
+                total += time;
+            }
+            return total / (double) mTimes.length / 1000000.0;
+        }
+
+        /** Returns the given percentile of all timings (nearest rank), e.g. 50 for the median. */
+        public double getPercentileMillis(int percentile) {
+            int rank = (int) Math.ceil(percentile / 100.0 * mTimes.length);
+            return mTimes[Math.max(0, rank - 1)] / 1000000.0;
+        }
+
+        public double getOperationsPerSecond() {
+            return 1000.0 / getMeanMillis();
+        }
+
+        public double getMegabytesPerSecond() {
+            return mPayloadSize / (1024.0 * 1024.0) * getOperationsPerSecond();
+        }
+
+        /** Returns the operation and those of its parameters which apply to it. */
+        public String getDescription() {
+            if (mKeyAlgorithm != null) {
+                return String.format("%s %s, %d bytes", mType, mKeyAlgorithm, mPayloadSize);
+            }
+            return String.format("%s sym=%d comp=%d armor=%b, %d bytes",
+                    mType, mSymmetricAlgorithm, mCompressionAlgorithm, mArmor, mPayloadSize);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %.2f MB/s, %.2f ops/s, p50=%.2fms, p90=%.2fms", getDescription(),
+                    getMegabytesPerSecond(), getOperationsPerSecond(),
+                    getPercentileMillis(50), getPercentileMillis(90));
+        }
+
+        @Override
+        public int describeContents() {
+            return 0;
+        }
+
+        @Override
+        public void writeToParcel(Parcel dest, int flags) {
+            dest.writeInt(mType.ordinal());
+            dest.writeInt(mPayloadSize);
+            dest.writeInt(mSymmetricAlgorithm);
+            dest.writeInt(mCompressionAlgorithm);
+            dest.writeByte((byte) (mArmor ? 1 : 0));
+            dest.writeString(mKeyAlgorithm);
+            dest.writeLongArray(mTimes);
+        }
+
+        public static final Creator<Measurement> CREATOR = new Creator<Measurement>() {
+            @Override
+            public Measurement createFromParcel(Parcel in) {
+                return new Measurement(in);
+            }
+
+            @Override
+            public Measurement[] newArray(int size) {
+                return new Measurement[size];
+            }
+        };
+    }
+
 }
@@ -38,6 +38,8 @@ import java.util.ArrayList;
 public class ImportKeyResult extends InputPendingResult {
 
     public final int mNewKeys, mUpdatedKeys, mBadKeys, mSecret;
+    // keys skipped because their data was already in the database, included in mUpdatedKeys
+    public final int mUnchangedKeys;
     public final long[] mImportedMasterKeyIds;
 
     // NOT PARCELED
@@ -84,6 +86,7 @@ public class ImportKeyResult extends InputPendingResult {
         mUpdatedKeys = source.readInt();
         mBadKeys = source.readInt();
         mSecret = source.readInt();
+        mUnchangedKeys = source.readInt();
         mImportedMasterKeyIds = source.createLongArray();
     }
 
@@ -94,11 +97,18 @@ public class ImportKeyResult extends InputPendingResult {
     public ImportKeyResult(int result, OperationLog log,
                            int newKeys, int updatedKeys, int badKeys, int secret,
                            long[] importedMasterKeyIds) {
+        this(result, log, newKeys, updatedKeys, badKeys, secret, 0, importedMasterKeyIds);
+    }
+
+    public ImportKeyResult(int result, OperationLog log,
+                           int newKeys, int updatedKeys, int badKeys, int secret, int unchangedKeys,
+                           long[] importedMasterKeyIds) {
         super(result, log);
         mNewKeys = newKeys;
         mUpdatedKeys = updatedKeys;
         mBadKeys = badKeys;
         mSecret = secret;
+        mUnchangedKeys = unchangedKeys;
         mImportedMasterKeyIds = importedMasterKeyIds;
     }
 
@@ -110,6 +120,7 @@ public class ImportKeyResult extends InputPendingResult {
         mUpdatedKeys = 0;
         mBadKeys = 0;
         mSecret = 0;
+        mUnchangedKeys = 0;
         mImportedMasterKeyIds = new long[]{};
     }
 
@@ -124,6 +135,7 @@ public class ImportKeyResult extends InputPendingResult {
         dest.writeInt(mUpdatedKeys);
         dest.writeInt(mBadKeys);
         dest.writeInt(mSecret);
+        dest.writeInt(mUnchangedKeys);
         dest.writeLongArray(mImportedMasterKeyIds);
     }
 
@@ -337,6 +337,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_IP(LogLevel.START, R.string.msg_ip),
         MSG_IP_APPLY_BATCH (LogLevel.DEBUG, R.string.msg_ip_apply_batch),
         MSG_IP_BAD_TYPE_SECRET (LogLevel.WARN, R.string.msg_ip_bad_type_secret),
+        MSG_IP_BATCH_QUEUED (LogLevel.DEBUG, R.string.msg_ip_batch_queued),
         MSG_IP_DELETE_OLD_FAIL (LogLevel.DEBUG, R.string.msg_ip_delete_old_fail),
         MSG_IP_DELETE_OLD_OK (LogLevel.DEBUG, R.string.msg_ip_delete_old_ok),
         MSG_IP_ENCODE_FAIL (LogLevel.DEBUG, R.string.msg_ip_encode_fail),
@@ -488,6 +489,8 @@ public abstract class OperationResult implements Parcelable {
         MSG_KC_UID_DUP (LogLevel.DEBUG, R.string.msg_kc_uid_dup),
         MSG_KC_UID_TOO_MANY (LogLevel.DEBUG, R.string.msg_kc_uid_too_many),
         MSG_KC_UID_FOREIGN (LogLevel.DEBUG, R.string.msg_kc_uid_foreign),
+        MSG_KC_UID_FOREIGN_TOO_MANY (LogLevel.WARN, R.string.msg_kc_uid_foreign_too_many),
+        MSG_KC_UID_FOREIGN_BAD (LogLevel.WARN, R.string.msg_kc_uid_foreign_bad),
         MSG_KC_UID_NO_CERT (LogLevel.DEBUG, R.string.msg_kc_uid_no_cert),
         MSG_KC_UID_REVOKE_DUP (LogLevel.DEBUG, R.string.msg_kc_uid_revoke_dup),
         MSG_KC_UID_REVOKE_OLD (LogLevel.DEBUG, R.string.msg_kc_uid_revoke_old),
@@ -683,6 +686,8 @@ public abstract class OperationResult implements Parcelable {
         MSG_DC_OK_META_ONLY (LogLevel.OK, R.string.msg_dc_ok_meta_only),
         MSG_DC_OK (LogLevel.OK, R.string.msg_dc_ok),
         MSG_DC_PASS_CACHED (LogLevel.DEBUG, R.string.msg_dc_pass_cached),
+        MSG_DC_SESSION_KEY_CACHED (LogLevel.DEBUG, R.string.msg_dc_session_key_cached),
+        MSG_DC_SESSION_KEY_NOT_CACHED (LogLevel.DEBUG, R.string.msg_dc_session_key_not_cached),
         MSG_DC_PENDING_NFC (LogLevel.INFO, R.string.msg_dc_pending_nfc),
         MSG_DC_PENDING_PASSPHRASE (LogLevel.INFO, R.string.msg_dc_pending_passphrase),
         MSG_DC_PREP_STREAMS (LogLevel.DEBUG, R.string.msg_dc_prep_streams),
@@ -766,6 +771,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_CRT_WARN_UPLOAD_FAILED (LogLevel.WARN, R.string.msg_crt_warn_upload_failed),
 
         MSG_IMPORT (LogLevel.START, R.plurals.msg_import),
+        MSG_IMPORT_STREAM (LogLevel.START, R.string.msg_import_stream),
 
         MSG_IMPORT_FETCH_ERROR (LogLevel.ERROR, R.string.msg_import_fetch_error),
         MSG_IMPORT_FETCH_ERROR_DECODE (LogLevel.ERROR, R.string.msg_import_fetch_error_decode),
@@ -782,6 +788,9 @@ public abstract class OperationResult implements Parcelable {
         MSG_IMPORT_ERROR_IO (LogLevel.ERROR, R.string.msg_import_error_io),
         MSG_IMPORT_PARTIAL (LogLevel.ERROR, R.string.msg_import_partial),
         MSG_IMPORT_SUCCESS (LogLevel.OK, R.string.msg_import_success),
+        MSG_IMPORT_TRUSTED_KEY_CACHE (LogLevel.DEBUG, R.string.msg_import_trusted_key_cache),
+        MSG_IMPORT_VERIFICATION_CACHE (LogLevel.DEBUG, R.string.msg_import_verification_cache),
+        MSG_IMPORT_UNCHANGED (LogLevel.OK, R.string.msg_import_unchanged),
 
         MSG_BACKUP(LogLevel.START, R.plurals.msg_backup),
         MSG_BACKUP_PUBLIC(LogLevel.DEBUG, R.string.msg_backup_public),
@@ -791,6 +800,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_BACKUP_ERROR_DB(LogLevel.ERROR, R.string.msg_backup_error_db),
         MSG_BACKUP_ERROR_IO(LogLevel.ERROR, R.string.msg_backup_error_io),
         MSG_BACKUP_SUCCESS(LogLevel.OK, R.string.msg_backup_success),
+        MSG_BACKUP_STATS(LogLevel.DEBUG, R.string.msg_backup_stats),
 
         MSG_UPLOAD(LogLevel.START, R.string.msg_upload),
         MSG_UPLOAD_KEY(LogLevel.INFO, R.string.msg_upload_key),
@@ -876,6 +886,11 @@ public abstract class OperationResult implements Parcelable {
         MSG_DATA_OK (LogLevel.OK, R.string.msg_data_ok),
         MSG_DATA_SKIP_MIME (LogLevel.DEBUG, R.string.msg_data_skip_mime),
 
+        MSG_BATCH_DATA (LogLevel.START, R.plurals.msg_batch_data),
+        MSG_BATCH_DATA_FILE_ERROR (LogLevel.WARN, R.string.msg_batch_data_file_error),
+        MSG_BATCH_DATA_FILE_PENDING (LogLevel.WARN, R.string.msg_batch_data_file_pending),
+        MSG_BATCH_DATA_OK (LogLevel.OK, R.plurals.msg_batch_data_ok),
+
         MSG_LV (LogLevel.START, R.string.msg_lv),
         MSG_LV_MATCH (LogLevel.DEBUG, R.string.msg_lv_match),
         MSG_LV_MATCH_ERROR (LogLevel.ERROR, R.string.msg_lv_match_error),
@@ -902,6 +917,10 @@ public abstract class OperationResult implements Parcelable {
         MSG_BENCH_ENC_TIME_AVG (LogLevel.INFO, R.string.msg_bench_enc_time_avg),
         MSG_BENCH_DEC_TIME (LogLevel.DEBUG, R.string.msg_bench_dec_time),
         MSG_BENCH_DEC_TIME_AVG (LogLevel.INFO, R.string.msg_bench_enc_time_avg),
+        MSG_BENCH_MEASUREMENT (LogLevel.INFO, R.string.msg_bench_measurement),
+        MSG_BENCH_KEYGEN (LogLevel.DEBUG, R.string.msg_bench_keygen),
+        MSG_BENCH_ERROR_NUM_REPEATS (LogLevel.ERROR, R.string.msg_bench_error_num_repeats),
+        MSG_BENCH_ERROR_PUBLIC_KEY (LogLevel.ERROR, R.string.msg_bench_error_public_key),
         MSG_BENCH_S2K_FOR_IT (LogLevel.DEBUG, R.string.msg_bench_s2k_for_it),
         MSG_BENCH_S2K_100MS_ITS (LogLevel.INFO, R.string.msg_bench_s2k_100ms_its),
         MSG_BENCH_SUCCESS (LogLevel.OK, R.string.msg_bench_success),
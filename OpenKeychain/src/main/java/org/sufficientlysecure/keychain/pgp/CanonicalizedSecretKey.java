@@ -163,6 +163,16 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
      * Returns true on right passphrase
      */
     public boolean unlock(final Passphrase passphrase) throws PgpGeneralException {
+        return unlock(passphrase, null);
+    }
+
+    /**
+     * Returns true on right passphrase. If an UnlockedKeyCache is given, the key derived from the
+     * passphrase is taken from there if it was derived before from the same passphrase, and put
+     * there otherwise.
+     */
+    public boolean unlock(final Passphrase passphrase, UnlockedKeyCache unlockedKeyCache)
+            throws PgpGeneralException {
         // handle keys on OpenPGP cards like they were unlocked
         S2K s2k = mSecretKey.getS2K();
         if (s2k != null
@@ -172,6 +182,8 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
             return true;
         }
 
+        boolean cacheSessionKey = false;
+        byte[] sessionKey = null;
         // try to extract keys using the passphrase
         try {
 
@@ -182,8 +194,13 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
                 return true;
             }
 
-            byte[] sessionKey;
-            sessionKey = passphrase.getCachedSessionKeyForParameters(keyEncryptionAlgorithm, s2k);
+            if (unlockedKeyCache != null) {
+                sessionKey = unlockedKeyCache.get(mSecretKey.getKeyID(), passphrase);
+                cacheSessionKey = sessionKey == null;
+            }
+            if (sessionKey == null) {
+                sessionKey = passphrase.getCachedSessionKeyForParameters(keyEncryptionAlgorithm, s2k);
+            }
             if (sessionKey == null) {
                 PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder().setProvider(
                         Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(passphrase.getCharArray());
@@ -202,6 +219,9 @@ public class CanonicalizedSecretKey extends CanonicalizedPublicKey {
         if (mPrivateKey == null) {
             throw new PgpGeneralException("error extracting key");
         }
+        if (cacheSessionKey) {
+            unlockedKeyCache.put(mSecretKey.getKeyID(), passphrase, sessionKey);
+        }
         return true;
     }
 
@@ -20,6 +20,7 @@
 package org.sufficientlysecure.keychain.pgp;
 
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
@@ -69,11 +70,9 @@ import org.sufficientlysecure.keychain.operations.results.OperationResult.LogTyp
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
-import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing;
 import org.sufficientlysecure.keychain.provider.KeyRepository;
 import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
-import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
@@ -82,14 +81,21 @@ import org.sufficientlysecure.keychain.util.FileHelper;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.SpillingOutputStream;
 
 public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInputParcel> {
 
     public static final int PROGRESS_STRIDE_MILLISECONDS = 200;
+    // cleartext signed messages larger than this are buffered in a temporary file for verification
+    private static final int CLEARTEXT_MEMORY_LIMIT = 1 << 20;
+
+    private final SessionKeyCache mSessionKeyCache;
 
     public PgpDecryptVerifyOperation(Context context, KeyRepository keyRepository, Progressable progressable) {
         super(context, keyRepository, progressable);
+        mSessionKeyCache = SessionKeyCache.getInstance(context);
     }
 
     /** Decrypts and/or verifies data based on parameters of PgpDecryptVerifyInputParcel. */
@@ -207,6 +213,8 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         // the cached session key
         byte[] sessionKey;
         byte[] decryptedSessionKey;
+        // master key the session key belongs to, if it should go into the SessionKeyCache
+        Long sessionKeyMasterKeyId;
 
         int symmetricEncryptionAlgo = 0;
 
@@ -522,6 +530,14 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             if (esResult.encryptedData.isIntegrityProtected()) {
                 if (esResult.encryptedData.verify()) {
                     log.add(LogType.MSG_DC_INTEGRITY_CHECK_OK, indent);
+                    // only keep session keys which are known to be correct
+                    if (esResult.sessionKeyMasterKeyId != null && esResult.decryptedSessionKey != null
+                            && esResult.encryptedData instanceof PGPPublicKeyEncryptedData) {
+                        mSessionKeyCache.put((PGPPublicKeyEncryptedData) esResult.encryptedData,
+                                esResult.sessionKeyMasterKeyId,
+                                esResult.decryptedSessionKey,
+                                Preferences.getPreferences(mContext).getPassphraseCacheTtl().getShortestTtl());
+                    }
                 } else {
                     log.add(LogType.MSG_DC_ERROR_INTEGRITY_CHECK, indent);
                     return new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log);
@@ -589,16 +605,20 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                 if (decryptedSessionKeyAvailable) {
                     asymmetricPacketFound = true;
                     encryptedDataAsymmetric = encData;
+                    try {
+                        // remember for other operations, e.g. a session key obtained from a security token
+                        result.sessionKeyMasterKeyId = mKeyRepository.getMasterKeyId(subKeyId);
+                    } catch (KeyWritableRepository.NotFoundException e) {
+                        // not our key, nothing to cache
+                    }
                     break;
                 }
 
                 CachedPublicKeyRing cachedPublicKeyRing;
                 try {
                     // get actual keyring object based on master key id
-                    cachedPublicKeyRing = mKeyRepository.getCachedPublicKeyRing(
-                            KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId)
-                    );
-                    long masterKeyId = cachedPublicKeyRing.getMasterKeyId();
+                    long masterKeyId = mKeyRepository.getMasterKeyId(subKeyId);
+                    cachedPublicKeyRing = mKeyRepository.getCachedPublicKeyRing(masterKeyId);
 
                     // allow only specific keys for decryption?
                     if (input.getAllowedKeyIds() != null) {
@@ -658,6 +678,25 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                         }
                     }
 
+                    // the session key may have been recovered by an earlier operation. this is only
+                    // used while the passphrase is still available, and not with an explicitly given
+                    // passphrase, which must be checked.
+                    if (!cryptoInput.hasPassphrase()) {
+                        byte[] sessionKey = mSessionKeyCache.get(encData, masterKeyId);
+                        long hitCount = mSessionKeyCache.getHitCount();
+                        long lookupCount = hitCount + mSessionKeyCache.getMissCount();
+                        if (sessionKey == null) {
+                            log.add(LogType.MSG_DC_SESSION_KEY_NOT_CACHED, indent + 1, hitCount, lookupCount);
+                        } else {
+                            log.add(LogType.MSG_DC_SESSION_KEY_CACHED, indent + 1, hitCount, lookupCount);
+                            cryptoInput.addCryptoData(encData.getSessionKey()[0], sessionKey);
+                            decryptedSessionKeyAvailable = true;
+                            asymmetricPacketFound = true;
+                            encryptedDataAsymmetric = encData;
+                            break;
+                        }
+                    }
+
                     // check for insecure encryption key
                     if ( ! PgpSecurityConstants.isSecureKey(candidateDecryptionKey)) {
                         log.add(LogType.MSG_DC_INSECURE_KEY, indent + 1);
@@ -668,8 +707,9 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
                     asymmetricPacketFound = true;
                     encryptedDataAsymmetric = encData;
                     decryptionKey = candidateDecryptionKey;
+                    result.sessionKeyMasterKeyId = masterKeyId;
 
-                } catch (PgpKeyNotFoundException | KeyWritableRepository.NotFoundException e) {
+                } catch (KeyWritableRepository.NotFoundException e) {
                     // continue with the next packet in the while loop
                     log.add(LogType.MSG_DC_ASKIP_NO_KEY, indent + 1);
                     continue;
@@ -769,7 +809,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             } else {
                 try {
                     log.add(LogType.MSG_DC_UNLOCKING, indent + 1);
-                    if (!decryptionKey.unlock(passphrase)) {
+                    if (!decryptionKey.unlock(passphrase, UnlockedKeyCache.getInstance(mContext))) {
                         log.add(LogType.MSG_DC_ERROR_BAD_PASSPHRASE, indent + 1);
                         return result.with(new DecryptVerifyResult(DecryptVerifyResult.RESULT_ERROR, log));
                     }
@@ -806,10 +846,16 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
             Map<ByteBuffer, byte[]> cachedSessionKeys = decryptorFactory.getCachedSessionKeys();
             cryptoInput.addCryptoData(cachedSessionKeys);
-            if (cachedSessionKeys.size() >= 1) {
+            byte[] encryptedSessionKey = encryptedDataAsymmetric.getSessionKey()[0];
+            byte[] decryptedSessionKey = cachedSessionKeys.get(ByteBuffer.wrap(encryptedSessionKey));
+            if (decryptedSessionKey != null) {
+                result.sessionKey = encryptedSessionKey;
+                result.decryptedSessionKey = decryptedSessionKey;
+            } else if (cachedSessionKeys.size() >= 1) {
                 Entry<ByteBuffer, byte[]> entry = cachedSessionKeys.entrySet().iterator().next();
                 result.sessionKey = entry.getKey().array();
                 result.decryptedSessionKey = entry.getValue();
+                result.sessionKeyMasterKeyId = null;
             }
         } else {
             // there wasn't even any useful data
@@ -845,35 +891,44 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
     private DecryptVerifyResult verifyCleartextSignature(
             PgpDecryptVerifyInputParcel input, ArmoredInputStream aIn, OutputStream outputStream, int indent) throws IOException, PGPException {
 
+        // the signature follows the cleartext, so we can only check it after reading all of the
+        // text. pass the text through to the output directly, and keep a copy for the check.
+        SpillingOutputStream clearText = new SpillingOutputStream(mContext.getCacheDir(), CLEARTEXT_MEMORY_LIMIT);
+        try {
+            return verifyCleartextSignature(input, aIn, outputStream, clearText, indent);
+        } finally {
+            clearText.discard();
+        }
+    }
+
+    @NonNull
+    private DecryptVerifyResult verifyCleartextSignature(PgpDecryptVerifyInputParcel input, ArmoredInputStream aIn,
+            OutputStream outputStream, SpillingOutputStream clearText, int indent) throws IOException, PGPException {
+
         OperationLog log = new OperationLog();
 
-        byte[] clearText;
         { // read cleartext
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-
             updateProgress(R.string.progress_reading_data, 0, 100);
 
+            if (outputStream != null) {
+                outputStream = new BufferedOutputStream(outputStream, 1 << 16);
+            }
+
             ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
             int lookAhead = readInputLine(lineOut, aIn);
             byte[] lineSep = getLineSeparator();
 
             byte[] line = lineOut.toByteArray();
-            out.write(line, 0, getLengthWithoutSeparator(line));
-            out.write(lineSep);
+            writeCleartextLine(line, lineSep, clearText, outputStream);
 
             while (lookAhead != -1 && aIn.isClearText()) {
                 lookAhead = readInputLine(lineOut, lookAhead, aIn);
                 line = lineOut.toByteArray();
-                out.write(line, 0, getLengthWithoutSeparator(line));
-                out.write(lineSep);
+                writeCleartextLine(line, lineSep, clearText, outputStream);
             }
-
-            out.close();
-            clearText = out.toByteArray();
         }
 
         if (outputStream != null) {
-            outputStream.write(clearText);
             outputStream.close();
         }
 
@@ -892,7 +947,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
             try {
                 updateProgress(R.string.progress_verifying_signature, 90, 100);
 
-                signatureChecker.updateSignatureWithCleartext(clearText);
+                signatureChecker.updateSignatureWithCleartext(clearText.getInputStream());
                 signatureChecker.verifySignature(log, indent);
 
             } catch (SignatureException e) {
@@ -905,7 +960,7 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
 
         log.add(LogType.MSG_DC_OK, indent);
 
-        OpenPgpMetadata metadata = new OpenPgpMetadata("", "text/plain", -1, clearText.length, "utf-8");
+        OpenPgpMetadata metadata = new OpenPgpMetadata("", "text/plain", -1, clearText.getSize(), "utf-8");
 
         DecryptVerifyResult result = new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
         result.setSignatureResult(signatureChecker.getSignatureResult());
@@ -1042,6 +1097,17 @@ public class PgpDecryptVerifyOperation extends BaseOperation<PgpDecryptVerifyInp
         return lookAhead;
     }
 
+    private static void writeCleartextLine(byte[] line, byte[] lineSep, OutputStream clearText,
+            OutputStream outputStream) throws IOException {
+        int length = getLengthWithoutSeparator(line);
+        clearText.write(line, 0, length);
+        clearText.write(lineSep);
+        if (outputStream != null) {
+            outputStream.write(line, 0, length);
+            outputStream.write(lineSep);
+        }
+    }
+
     private static int getLengthWithoutSeparator(byte[] line) {
         int end = line.length - 1;
 
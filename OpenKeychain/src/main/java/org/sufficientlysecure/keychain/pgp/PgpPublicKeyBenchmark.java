@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
+import org.bouncycastle.openpgp.PGPEncryptedDataList;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKeyEncryptedData;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureGenerator;
+import org.bouncycastle.openpgp.jcajce.JcaSkipMarkerPGPObjectFactory;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+import org.bouncycastle.openpgp.operator.jcajce.JcePGPDataEncryptorBuilder;
+import org.bouncycastle.util.io.Streams;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+/**
+ * Raw public key operations on the keys of a single keyring, for BenchmarkOperation.
+ * <p/>
+ * These work directly on the keyring rather than going through the database, so keys
+ * generated for benchmarking never show up in the user's key list. The keyring must
+ * have a signing master key and an encryption subkey, both with an empty passphrase.
+ */
+public class PgpPublicKeyBenchmark {
+
+    private final CanonicalizedSecretKey mSigningKey;
+    private final CanonicalizedSecretKey mDecryptionKey;
+    private final byte[] mData;
+
+    public PgpPublicKeyBenchmark(CanonicalizedSecretKeyRing secretRing, byte[] data)
+            throws PgpGeneralException, PgpKeyNotFoundException {
+        mSigningKey = secretRing.getSecretKey();
+        mSigningKey.unlock(new Passphrase());
+        mDecryptionKey = secretRing.getSecretKey(secretRing.getEncryptId());
+        mDecryptionKey.unlock(new Passphrase());
+        mData = data;
+    }
+
+    public PGPSignature sign() throws PgpGeneralException, PGPException {
+        PGPSignatureGenerator signatureGenerator = mSigningKey.getDataSignatureGenerator(
+                PgpSecurityConstants.DEFAULT_HASH_ALGORITHM, false, null, new Date());
+        signatureGenerator.update(mData);
+        return signatureGenerator.generate();
+    }
+
+    public boolean verify(PGPSignature signature) throws PGPException {
+        signature.init(new JcaPGPContentVerifierBuilderProvider()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME), mSigningKey.getPublicKey());
+        signature.update(mData);
+        return signature.verify();
+    }
+
+    public byte[] encrypt() throws PGPException, IOException {
+        PGPEncryptedDataGenerator encryptedDataGenerator = new PGPEncryptedDataGenerator(
+                new JcePGPDataEncryptorBuilder(SymmetricKeyAlgorithmTags.AES_256)
+                        .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME)
+                        .setWithIntegrityPacket(true));
+        encryptedDataGenerator.addMethod(mDecryptionKey.getPubKeyEncryptionGenerator(false));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream encryptedOut = encryptedDataGenerator.open(out, mData.length);
+        encryptedOut.write(mData);
+        encryptedOut.close();
+        return out.toByteArray();
+    }
+
+    public byte[] decrypt(byte[] ciphertext) throws PGPException, IOException {
+        JcaSkipMarkerPGPObjectFactory factory = new JcaSkipMarkerPGPObjectFactory(
+                new ByteArrayInputStream(ciphertext));
+        PGPEncryptedDataList encryptedDataList = (PGPEncryptedDataList) factory.nextObject();
+        PGPPublicKeyEncryptedData encryptedData = (PGPPublicKeyEncryptedData) encryptedDataList.get(0);
+
+        // a fresh CryptoInputParcel each time, so the session key is never cached
+        InputStream in = encryptedData.getDataStream(
+                mDecryptionKey.getCachingDecryptorFactory(new CryptoInputParcel()));
+        byte[] plaintext = Streams.readAll(in);
+        if (!encryptedData.verify()) {
+            throw new PGPException("integrity check failed");
+        }
+        return plaintext;
+    }
+
+}
@@ -276,7 +276,7 @@ public class PgpSignEncryptOperation extends BaseOperation<PgpSignEncryptInputPa
                                     signingMasterKeyId, signingKey.getKeyId(),
                                     cryptoInput.getSignatureTime()), cryptoInput);
                         }
-                        if (!signingKey.unlock(localPassphrase)) {
+                        if (!signingKey.unlock(localPassphrase, UnlockedKeyCache.getInstance(mContext))) {
                             log.add(LogType.MSG_PSE_ERROR_BAD_PASSPHRASE, indent);
                             return new PgpSignEncryptResult(PgpSignEncryptResult.RESULT_ERROR, log);
                         }
@@ -20,7 +20,6 @@ package org.sufficientlysecure.keychain.pgp;
 
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -191,9 +190,9 @@ class PgpSignatureChecker {
         }
     }
 
-    public void updateSignatureWithCleartext(byte[] clearText) throws IOException, SignatureException {
+    public void updateSignatureWithCleartext(InputStream clearText) throws IOException, SignatureException {
 
-        InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
+        InputStream sigIn = new BufferedInputStream(clearText);
 
         ByteArrayOutputStream outputBuffer = new ByteArrayOutputStream();
 
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.bouncycastle.bcpg.BCPGInputStream;
+import org.bouncycastle.bcpg.BCPGOutputStream;
+import org.bouncycastle.bcpg.ContainedPacket;
+import org.bouncycastle.bcpg.Packet;
+import org.bouncycastle.bcpg.PublicKeyPacket;
+import org.bouncycastle.bcpg.SignaturePacket;
+import org.bouncycastle.bcpg.SignatureSubpacket;
+import org.bouncycastle.bcpg.UserAttributePacket;
+import org.bouncycastle.bcpg.UserIDPacket;
+import org.bouncycastle.bcpg.sig.Exportable;
+import org.bouncycastle.openpgp.PGPKeyRing;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.operator.jcajce.JcaKeyFingerprintCalculator;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.util.IterableIterator;
+
+
+/** Accumulates the packets of a public keyring, so certificates can be added or stripped in
+ * bulk, and the resulting keyring is only materialized once.
+ *
+ * PGPPublicKey.addCertification and removeCertification copy the entire key for every single
+ * certificate, which makes merging or stripping n certificates cost O(n^2). Keys flooded with
+ * certificates on public keyservers carry tens of thousands of them. All operations in this
+ * class are linear in the number of packets.
+ *
+ * Only the public parts of a keyring are kept, trust packets are dropped.
+ *
+ */
+class PublicKeyRingBuilder {
+
+    private final ArrayList<KeyBlock> mKeys = new ArrayList<>();
+    private final HashMap<Long, KeyBlock> mKeysById = new HashMap<>();
+    // encodings of all certificates in the ring, to skip known ones while merging
+    private final HashSet<ByteBuffer> mCerts = new HashSet<>();
+
+    private boolean mModified;
+
+    PublicKeyRingBuilder(PGPKeyRing ring) throws IOException {
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(ring.getPublicKeys())) {
+            addKeyBlock(parseKeyBlock(key.getKeyID(), key.getEncoded()));
+        }
+    }
+
+    /** Merges all subkeys, user ids, user attributes and certificates of another keyring
+     * which are not part of this one yet. For known keys, only the certificates are merged.
+     *
+     * @return the number of new certificates on keys which were already known
+     */
+    int merge(PublicKeyRingBuilder other, OperationLog log, int indent) {
+        int newCerts = 0;
+
+        for (KeyBlock key : other.mKeys) {
+            KeyBlock existing = mKeysById.get(key.mKeyId);
+            if (existing == null) {
+                log.add(LogType.MSG_MG_NEW_SUBKEY, indent);
+                addKeyBlock(key);
+                mModified = true;
+                continue;
+            }
+
+            newCerts += addCerts(existing.mKeyCerts, key.mKeyCerts);
+
+            // user ids and attributes are only merged for the master key
+            if (existing != mKeys.get(0)) {
+                continue;
+            }
+            for (CertifiedPacket userId : key.mUserIds) {
+                CertifiedPacket existingUserId = existing.mUserIdsByEncoding.get(userId.mEncoded);
+                if (existingUserId != null) {
+                    newCerts += addCerts(existingUserId.mCerts, userId.mCerts);
+                    continue;
+                }
+                // a new user id is only added along with at least one new certificate
+                CertifiedPacket newUserId = new CertifiedPacket(userId.mPacket, userId.mEncoded);
+                int added = addCerts(newUserId.mCerts, userId.mCerts);
+                if (added > 0) {
+                    existing.addUserId(newUserId);
+                    newCerts += added;
+                }
+            }
+        }
+
+        return newCerts;
+    }
+
+    /** Strips the certificates by keys other than the master key from each user id and user
+     * attribute which canonicalization would drop anyway: those of an unknown type, those
+     * created after maxCreationTime, and those marked as local. This is done before
+     * {@link #limitThirdPartyCerts}, so invalid certificates can't crowd out valid ones.
+     *
+     * @return the number of stripped certificates
+     */
+    int stripInvalidThirdPartyCerts(Date maxCreationTime) {
+        KeyBlock masterKey = mKeys.get(0);
+        int stripped = 0;
+
+        for (CertifiedPacket userId : masterKey.mUserIds) {
+            ArrayList<SignaturePacket> kept = new ArrayList<>(userId.mCerts.size());
+            for (SignaturePacket cert : userId.mCerts) {
+                if (cert.getKeyID() != masterKey.mKeyId && !isValidCert(cert, maxCreationTime)) {
+                    mCerts.remove(ByteBuffer.wrap(encode(cert)));
+                    stripped += 1;
+                    continue;
+                }
+                kept.add(cert);
+            }
+            userId.mCerts = kept;
+        }
+
+        if (stripped > 0) {
+            mModified = true;
+        }
+        return stripped;
+    }
+
+    /** Strips the certificates by keys other than the master key from each user id and user
+     * attribute, beyond the first maxPerUserId ones. Since merging appends new certificates,
+     * the ones kept are those which were known first. Certificates by the keys in
+     * exemptKeyIds are neither counted nor stripped.
+     *
+     * @return the number of stripped certificates
+     */
+    int limitThirdPartyCerts(int maxPerUserId, Set<Long> exemptKeyIds) {
+        KeyBlock masterKey = mKeys.get(0);
+        int stripped = 0;
+
+        for (CertifiedPacket userId : masterKey.mUserIds) {
+            ArrayList<SignaturePacket> kept = new ArrayList<>(userId.mCerts.size());
+            int thirdPartyCerts = 0;
+            for (SignaturePacket cert : userId.mCerts) {
+                if (cert.getKeyID() != masterKey.mKeyId && !exemptKeyIds.contains(cert.getKeyID())
+                        && ++thirdPartyCerts > maxPerUserId) {
+                    mCerts.remove(ByteBuffer.wrap(encode(cert)));
+                    stripped += 1;
+                    continue;
+                }
+                kept.add(cert);
+            }
+            userId.mCerts = kept;
+        }
+
+        if (stripped > 0) {
+            mModified = true;
+        }
+        return stripped;
+    }
+
+    /** @return true if any packets were added or stripped since construction */
+    boolean isModified() {
+        return mModified;
+    }
+
+    PGPPublicKeyRing build() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(2048);
+        BCPGOutputStream out = new BCPGOutputStream(stream);
+        for (KeyBlock key : mKeys) {
+            out.writePacket(key.mKeyPacket);
+            for (SignaturePacket cert : key.mKeyCerts) {
+                out.writePacket(cert);
+            }
+            for (CertifiedPacket userId : key.mUserIds) {
+                out.writePacket(userId.mPacket);
+                for (SignaturePacket cert : userId.mCerts) {
+                    out.writePacket(cert);
+                }
+            }
+        }
+        out.close();
+
+        return new PGPPublicKeyRing(stream.toByteArray(), new JcaKeyFingerprintCalculator());
+    }
+
+    private void addKeyBlock(KeyBlock key) {
+        mKeys.add(key);
+        mKeysById.put(key.mKeyId, key);
+        for (SignaturePacket cert : key.mKeyCerts) {
+            mCerts.add(ByteBuffer.wrap(encode(cert)));
+        }
+        for (CertifiedPacket userId : key.mUserIds) {
+            for (SignaturePacket cert : userId.mCerts) {
+                mCerts.add(ByteBuffer.wrap(encode(cert)));
+            }
+        }
+    }
+
+    private int addCerts(ArrayList<SignaturePacket> target, ArrayList<SignaturePacket> certs) {
+        int added = 0;
+        for (SignaturePacket cert : certs) {
+            // known cert, skip it
+            if (!mCerts.add(ByteBuffer.wrap(encode(cert)))) {
+                continue;
+            }
+            target.add(cert);
+            added += 1;
+        }
+        if (added > 0) {
+            mModified = true;
+        }
+        return added;
+    }
+
+    private static KeyBlock parseKeyBlock(long keyId, byte[] encoded) throws IOException {
+        BCPGInputStream in = new BCPGInputStream(new ByteArrayInputStream(encoded));
+
+        KeyBlock key = null;
+        CertifiedPacket userId = null;
+        Packet packet;
+        while ((packet = in.readPacket()) != null) {
+            if (packet instanceof PublicKeyPacket) {
+                key = new KeyBlock(keyId, (PublicKeyPacket) packet);
+            } else if (key == null) {
+                throw new IOException("keyring encoding must start with a key packet");
+            } else if (packet instanceof UserIDPacket || packet instanceof UserAttributePacket) {
+                ContainedPacket idPacket = (ContainedPacket) packet;
+                userId = new CertifiedPacket(idPacket, ByteBuffer.wrap(idPacket.getEncoded()));
+                key.addUserId(userId);
+            } else if (packet instanceof SignaturePacket) {
+                if (userId != null) {
+                    userId.mCerts.add((SignaturePacket) packet);
+                } else {
+                    key.mKeyCerts.add((SignaturePacket) packet);
+                }
+            }
+            // trust packets are not kept
+        }
+
+        if (key == null) {
+            throw new IOException("no key packet found in key encoding");
+        }
+        return key;
+    }
+
+    // same checks as in UncachedKeyRing.canonicalize, which only needs the packet
+    private static boolean isValidCert(SignaturePacket cert, Date maxCreationTime) {
+        int type = cert.getSignatureType();
+        if (type != PGPSignature.DEFAULT_CERTIFICATION
+                && type != PGPSignature.NO_CERTIFICATION
+                && type != PGPSignature.CASUAL_CERTIFICATION
+                && type != PGPSignature.POSITIVE_CERTIFICATION
+                && type != PGPSignature.CERTIFICATION_REVOCATION) {
+            return false;
+        }
+        if (cert.getCreationTime() > maxCreationTime.getTime()) {
+            return false;
+        }
+        SignatureSubpacket[] hashedSubpackets = cert.getHashedSubPackets();
+        if (hashedSubpackets != null) {
+            for (SignatureSubpacket subpacket : hashedSubpackets) {
+                // the subpackets of a parsed packet are instances of their specific classes
+                if (subpacket instanceof Exportable && !((Exportable) subpacket).isExportable()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static byte[] encode(SignaturePacket cert) {
+        try {
+            return cert.getEncoded();
+        } catch (IOException e) {
+            // encoding to a byte array does not do any actual I/O
+            throw new AssertionError(e);
+        }
+    }
+
+    private static class KeyBlock {
+        final long mKeyId;
+        final PublicKeyPacket mKeyPacket;
+        // direct key, revocation and subkey binding certificates
+        final ArrayList<SignaturePacket> mKeyCerts = new ArrayList<>();
+        // user ids and user attributes, in order
+        final ArrayList<CertifiedPacket> mUserIds = new ArrayList<>();
+        final HashMap<ByteBuffer, CertifiedPacket> mUserIdsByEncoding = new HashMap<>();
+
+        KeyBlock(long keyId, PublicKeyPacket keyPacket) {
+            mKeyId = keyId;
+            mKeyPacket = keyPacket;
+        }
+
+        void addUserId(CertifiedPacket userId) {
+            mUserIds.add(userId);
+            mUserIdsByEncoding.put(userId.mEncoded, userId);
+        }
+    }
+
+    /** A user id or user attribute packet, with its certificates. */
+    private static class CertifiedPacket {
+        final ContainedPacket mPacket;
+        final ByteBuffer mEncoded;
+        ArrayList<SignaturePacket> mCerts = new ArrayList<>();
+
+        CertifiedPacket(ContainedPacket packet, ByteBuffer encoded) {
+            mPacket = packet;
+            mEncoded = encoded;
+        }
+    }
+
+}
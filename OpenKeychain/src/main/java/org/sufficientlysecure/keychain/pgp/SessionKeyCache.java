@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import org.bouncycastle.openpgp.PGPPublicKeyEncryptedData;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+
+/**
+ * Process-wide cache of decrypted session keys, keyed by the encrypted session key packet.
+ * <p/>
+ * CachingDataDecryptorFactory only remembers recovered session keys within a single
+ * CryptoInputParcel, so every time a client renders the same message again the private key
+ * operation is repeated, which for security tokens also means another round trip.
+ * <p/>
+ * Entries expire like cached passphrases: after the shortest time to live the user has
+ * enabled for the passphrase cache, or on screen lock if that is "until screen is locked",
+ * which KeychainApplication reports through {@link #removeScreenLockSessionKeys()}.
+ * PgpDecryptVerifyOperation additionally only uses an entry while the passphrase of its key
+ * is still available, so clearing the passphrase cache also makes its session keys unusable.
+ * Session keys are overwritten in memory when they are removed.
+ */
+public class SessionKeyCache {
+    private static final int MAX_ENTRIES = 64;
+
+    private static SessionKeyCache sInstance;
+
+    private final Context mApplicationContext;
+    // in access order, for LRU eviction
+    private final LinkedHashMap<ByteBuffer, CachedSessionKey> mSessionKeys =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    private long mHitCount;
+    private long mMissCount;
+
+    public static synchronized SessionKeyCache getInstance(Context context) {
+        Context applicationContext = context.getApplicationContext();
+        if (applicationContext == null) {
+            applicationContext = context;
+        }
+
+        // there is only one application context per process, except in tests
+        if (sInstance == null || sInstance.mApplicationContext != applicationContext) {
+            if (sInstance != null) {
+                sInstance.clear();
+            }
+            sInstance = new SessionKeyCache(applicationContext);
+        }
+        return sInstance;
+    }
+
+    private SessionKeyCache(Context applicationContext) {
+        mApplicationContext = applicationContext;
+    }
+
+    /**
+     * Returns a copy of the cached session key for this encrypted session key packet, if it was
+     * recovered with the given master key and has not expired yet.
+     */
+    public synchronized byte[] get(PGPPublicKeyEncryptedData encryptedData, long masterKeyId) {
+        ByteBuffer key = ByteBuffer.wrap(encodePacket(encryptedData));
+        CachedSessionKey cached = mSessionKeys.get(key);
+        if (cached != null && cached.isExpired()) {
+            mSessionKeys.remove(key);
+            cached.removeFromMemory();
+            cached = null;
+        }
+
+        if (cached == null || cached.mMasterKeyId != masterKeyId) {
+            mMissCount += 1;
+            return null;
+        }
+        mHitCount += 1;
+        return Arrays.copyOf(cached.mSessionKey, cached.mSessionKey.length);
+    }
+
+    /** @param timeToLiveSeconds as for PassphraseCacheService, 0 means until the screen is locked */
+    public synchronized void put(PGPPublicKeyEncryptedData encryptedData, long masterKeyId, byte[] sessionKey,
+            int timeToLiveSeconds) {
+        removeExpired();
+
+        long expiryTime;
+        if (timeToLiveSeconds == 0) {
+            expiryTime = CachedSessionKey.UNTIL_SCREEN_LOCK;
+        } else if (timeToLiveSeconds >= Integer.MAX_VALUE) {
+            expiryTime = CachedSessionKey.NEVER;
+        } else {
+            expiryTime = SystemClock.elapsedRealtime() + timeToLiveSeconds * 1000L;
+        }
+
+        // copy the session key, so the caller's array is not affected when the entry is removed
+        CachedSessionKey previous = mSessionKeys.put(ByteBuffer.wrap(encodePacket(encryptedData)),
+                new CachedSessionKey(masterKeyId, Arrays.copyOf(sessionKey, sessionKey.length), expiryTime));
+        if (previous != null) {
+            previous.removeFromMemory();
+        }
+
+        Iterator<CachedSessionKey> it = mSessionKeys.values().iterator();
+        while (mSessionKeys.size() > MAX_ENTRIES && it.hasNext()) {
+            it.next().removeFromMemory();
+            it.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        for (CachedSessionKey cached : mSessionKeys.values()) {
+            cached.removeFromMemory();
+        }
+        mSessionKeys.clear();
+    }
+
+    public synchronized void removeScreenLockSessionKeys() {
+        Iterator<CachedSessionKey> it = mSessionKeys.values().iterator();
+        while (it.hasNext()) {
+            CachedSessionKey cached = it.next();
+            if (cached.mExpiryTime == CachedSessionKey.UNTIL_SCREEN_LOCK) {
+                cached.removeFromMemory();
+                it.remove();
+            }
+        }
+        Log.d(Constants.TAG, "SessionKeyCache: Removing all cached-until-lock session keys from memory!");
+    }
+
+    private void removeExpired() {
+        Iterator<Map.Entry<ByteBuffer, CachedSessionKey>> it = mSessionKeys.entrySet().iterator();
+        while (it.hasNext()) {
+            CachedSessionKey cached = it.next().getValue();
+            if (cached.isExpired()) {
+                cached.removeFromMemory();
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Encodes the contents of the public-key encrypted session key packet. Besides the encrypted
+     * session key, which for ECDH and ElGamal consists of more than one MPI, this includes the
+     * recipient key id and algorithm, so equal MPIs for different recipients don't collide.
+     */
+    private static byte[] encodePacket(PGPPublicKeyEncryptedData encryptedData) {
+        byte[][] encSessionKey = encryptedData.getSessionKey();
+        int length = 8 + 4;
+        for (byte[] mpi : encSessionKey) {
+            length += 4 + mpi.length;
+        }
+
+        ByteBuffer packet = ByteBuffer.allocate(length);
+        packet.putLong(encryptedData.getKeyID());
+        packet.putInt(encryptedData.getAlgorithm());
+        for (byte[] mpi : encSessionKey) {
+            packet.putInt(mpi.length);
+            packet.put(mpi);
+        }
+        return packet.array();
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    private static class CachedSessionKey {
+        static final long UNTIL_SCREEN_LOCK = -1;
+        static final long NEVER = Long.MAX_VALUE;
+
+        final long mMasterKeyId;
+        final byte[] mSessionKey;
+        // in elapsedRealtime, or one of the constants above
+        final long mExpiryTime;
+
+        CachedSessionKey(long masterKeyId, byte[] sessionKey, long expiryTime) {
+            mMasterKeyId = masterKeyId;
+            mSessionKey = sessionKey;
+            mExpiryTime = expiryTime;
+        }
+
+        boolean isExpired() {
+            return mExpiryTime != UNTIL_SCREEN_LOCK && SystemClock.elapsedRealtime() >= mExpiryTime;
+        }
+
+        void removeFromMemory() {
+            Arrays.fill(mSessionKey, (byte) 0);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Process-wide cache of successful certificate verifications.
+ * <p/>
+ * canonicalize verifies all self certificates of a keyring, and saving a keyring verifies
+ * all certificates made by trusted keys. The same keyrings are canonicalized and saved over
+ * and over, on each merge during import or keyserver sync and on consolidate, so almost all
+ * of these certificates were verified before.
+ * <p/>
+ * Entries are keyed by a digest over the signature packet, the public key packet of the
+ * signing key and the certified data, so a hit stands for a verification of exactly the
+ * same input. Only successful verifications are remembered, since failed ones are rare in
+ * keyrings which are saved repeatedly. Entries are dropped in least recently used order.
+ */
+public class SignatureVerificationCache {
+    private static final int MAX_ENTRIES = 8192;
+
+    private static final SignatureVerificationCache sInstance = new SignatureVerificationCache();
+
+    // in access order, for LRU eviction
+    private final LinkedHashMap<ByteBuffer, Boolean> mVerified =
+            new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    private long mHitCount;
+    private long mMissCount;
+
+    public static SignatureVerificationCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Returns a cache key for the verification of a signature by a signing key, over the
+     * given parts of certified data. The type distinguishes the kinds of certified data.
+     */
+    static ByteBuffer computeKey(int type, byte[] signature, byte[] signingKey, byte[]... certifiedData) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((byte) type);
+            updateWithLength(digest, signature);
+            updateWithLength(digest, signingKey);
+            for (byte[] data : certifiedData) {
+                updateWithLength(digest, data);
+            }
+            return ByteBuffer.wrap(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is always available");
+        }
+    }
+
+    // the length prefix keeps the parts from being shifted into each other
+    private static void updateWithLength(MessageDigest digest, byte[] data) {
+        int length = data.length;
+        digest.update(new byte[] {
+                (byte) (length >> 24), (byte) (length >> 16), (byte) (length >> 8), (byte) length });
+        digest.update(data);
+    }
+
+    synchronized boolean isVerified(ByteBuffer key) {
+        if (mVerified.get(key) != null) {
+            mHitCount += 1;
+            return true;
+        }
+        mMissCount += 1;
+        return false;
+    }
+
+    /** Remembers the result of a verification if it was successful, and returns it. */
+    synchronized boolean putResult(ByteBuffer key, boolean verified) {
+        if (verified) {
+            mVerified.put(key, Boolean.TRUE);
+        }
+        return verified;
+    }
+
+    synchronized void clear() {
+        mVerified.clear();
+    }
+
+    /** Number of lookups which found a verification, since the process was started */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /** Number of lookups which did not find a verification, since the process was started */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+}
@@ -19,6 +19,7 @@
 package org.sufficientlysecure.keychain.pgp;
 
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -27,6 +28,7 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
@@ -93,6 +95,8 @@ public class UncachedKeyRing {
     final boolean mIsSecret;
 
     private static final int CANONICALIZE_MAX_USER_IDS = 100;
+    // certificates by other keys beyond this, per user id, are dropped (see canonicalize)
+    public static final int CANONICALIZE_MAX_THIRD_PARTY_CERTS = 1000;
 
     UncachedKeyRing(PGPKeyRing ring) {
         mRing = ring;
@@ -166,20 +170,31 @@ public class UncachedKeyRing {
 
     }
 
-    public static IteratorWithIOThrow<UncachedKeyRing> fromStream(final InputStream stream) {
+    public static IteratorWithIOThrow<UncachedKeyRing> fromStream(InputStream inputStream) {
+        // available() may return 0 before the end of e.g. a pipe, so the end is detected by peeking
+        final InputStream stream = inputStream.markSupported() ? inputStream : new BufferedInputStream(inputStream);
 
         return new IteratorWithIOThrow<UncachedKeyRing>() {
 
             UncachedKeyRing mNext = null;
             PGPObjectFactory mObjectFactory = null;
 
+            private boolean isEndOfStream() throws IOException {
+                stream.mark(1);
+                if (stream.read() == -1) {
+                    return true;
+                }
+                stream.reset();
+                return false;
+            }
+
             private void cacheNext() throws IOException {
                 if (mNext != null) {
                     return;
                 }
 
                 try {
-                    while (stream.available() > 0) {
+                    while (!isEndOfStream()) {
                         // if there are no objects left from the last factory, create a new one
                         if (mObjectFactory == null) {
                             InputStream in = PGPUtil.getDecoderStream(stream);
@@ -329,8 +344,44 @@ public class UncachedKeyRing {
      * @return A canonicalized key, or null on fatal error (log will include a message in this case)
      *
      */
-    @SuppressWarnings("ConstantConditions")
     public CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport) {
+        return canonicalize(log, indent, forExport, CANONICALIZE_MAX_THIRD_PARTY_CERTS);
+    }
+
+    /** "Canonicalizes" a public key, removing inconsistencies in the process.
+     *
+     * Works as described above, except that for public keys, certificates by other keys
+     * are kept for each user id and user attribute only up to the given maximum. This protects
+     * against keys flooded with certificates, which are all dropped in a single pass before
+     * any other processing happens. Invalid certificates by other keys are dropped before
+     * counting, the ones kept are those which come first in the keyring, ie those which were
+     * known before more were merged in.
+     *
+     * @param forExport if this is true, non-exportable signatures will be removed
+     * @param maxThirdPartyCerts maximum number of certificates by other keys per user id
+     * @return A canonicalized key, or null on fatal error (log will include a message in this case)
+     *
+     */
+    public CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport,
+            int maxThirdPartyCerts) {
+        return canonicalize(log, indent, forExport, maxThirdPartyCerts, Collections.<Long>emptySet());
+    }
+
+    /** "Canonicalizes" a public key, removing inconsistencies in the process.
+     *
+     * Works as described above, except that certificates by the keys in exemptSignerIds
+     * neither count towards maxThirdPartyCerts nor are stripped because of it. This is meant
+     * for the user's own keys, whose certificates are usually the newest ones on a keyring.
+     *
+     * @param forExport if this is true, non-exportable signatures will be removed
+     * @param maxThirdPartyCerts maximum number of certificates by other keys per user id
+     * @param exemptSignerIds key ids whose certificates are always kept
+     * @return A canonicalized key, or null on fatal error (log will include a message in this case)
+     *
+     */
+    @SuppressWarnings("ConstantConditions")
+    public CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport,
+            int maxThirdPartyCerts, Set<Long> exemptSignerIds) {
 
         log.add(isSecret() ? LogType.MSG_KC_SECRET : LogType.MSG_KC_PUBLIC,
                 indent, KeyFormattingUtils.convertKeyIdToHex(getMasterKeyId()));
@@ -350,7 +401,31 @@ public class UncachedKeyRing {
         int redundantCerts = 0, badCerts = 0;
 
         PGPKeyRing ring = mRing;
-        PGPPublicKey masterKey = mRing.getPublicKey();
+
+        // strip excess third-party certificates in bulk. secret keys lose all of them below
+        if (!isSecret() && countCertificates(mRing.getPublicKey()) > maxThirdPartyCerts) {
+            try {
+                PublicKeyRingBuilder builder = new PublicKeyRingBuilder(mRing);
+                int invalid = builder.stripInvalidThirdPartyCerts(nowPlusOneDay);
+                if (invalid > 0) {
+                    log.add(LogType.MSG_KC_UID_FOREIGN_BAD, indent, Integer.toString(invalid));
+                    badCerts += invalid;
+                }
+                int stripped = builder.limitThirdPartyCerts(maxThirdPartyCerts, exemptSignerIds);
+                if (stripped > 0) {
+                    log.add(LogType.MSG_KC_UID_FOREIGN_TOO_MANY, indent,
+                            Integer.toString(stripped), Integer.toString(maxThirdPartyCerts));
+                    redundantCerts += stripped;
+                }
+                if (builder.isModified()) {
+                    ring = builder.build();
+                }
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "Error stripping third-party certificates, keeping all", e);
+            }
+        }
+
+        PGPPublicKey masterKey = ring.getPublicKey();
         final long masterKeyId = masterKey.getKeyID();
 
         if (Arrays.binarySearch(KNOWN_ALGORITHMS, masterKey.getAlgorithm()) < 0) {
@@ -1097,6 +1172,26 @@ public class UncachedKeyRing {
             return null;
         }
 
+        // public keyrings may come with a lot of third-party certificates, merge them in bulk
+        if (!isSecret()) {
+            try {
+                PublicKeyRingBuilder builder = new PublicKeyRingBuilder(mRing);
+                int newCerts = builder.merge(new PublicKeyRingBuilder(other.mRing), log, indent);
+
+                if (newCerts > 0) {
+                    log.add(LogType.MSG_MG_FOUND_NEW, indent,
+                            Integer.toString(newCerts));
+                } else {
+                    log.add(LogType.MSG_MG_UNCHANGED, indent);
+                }
+
+                return builder.isModified() ? new UncachedKeyRing(builder.build()) : this;
+            } catch (IOException e) {
+                log.add(LogType.MSG_MG_ERROR_ENCODE, indent);
+                return null;
+            }
+        }
+
         // remember which certs we already added. this is cheaper than semantic deduplication
         Set<byte[]> certs = new TreeSet<>(new Comparator<byte[]>() {
             public int compare(byte[] left, byte[] right) {
@@ -1260,6 +1355,14 @@ public class UncachedKeyRing {
                 new PGPPublicKeyRing(stream.toByteArray(), new JcaKeyFingerprintCalculator()));
     }
 
+    private static int countCertificates(PGPPublicKey key) {
+        int count = 0;
+        for (Iterator<?> it = key.getSignatures(); it.hasNext(); it.next()) {
+            count += 1;
+        }
+        return count;
+    }
+
     /** This method replaces a public key in a keyring.
      *
      * This method essentially wraps PGP*KeyRing.insertPublicKey, where the keyring may be of either
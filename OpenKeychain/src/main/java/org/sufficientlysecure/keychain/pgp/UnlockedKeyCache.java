@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp;
+
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.SystemClock;
+import android.support.v4.util.LongSparseArray;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.Preferences;
+
+
+/**
+ * Process-wide cache of the keys derived from passphrases to unlock secret keys, so the
+ * expensive S2K derivation for a secret key is only done once while its passphrase is cached.
+ * This is opt-in, see {@link Preferences#getPassphraseCacheUnlockedKeys()}.
+ * <p/>
+ * A derived key is only handed out for the same passphrase it was derived from, which is
+ * checked against a salted digest. Operations only have that passphrase while it is cached by
+ * PassphraseCacheService or entered by the user, so clearing the passphrase cache also makes
+ * the derived keys unusable. Entries additionally expire after the time to live preselected
+ * in the passphrase dialog, on screen lock if that is "until screen is locked", and whenever
+ * any keyring changes, e.g. because its passphrase was changed.
+ * <p/>
+ * Unlike the extracted private keys, which are immutable BigIntegers, the derived keys can be
+ * overwritten in memory, which is done whenever an entry is removed.
+ */
+public class UnlockedKeyCache {
+    private static UnlockedKeyCache sInstance;
+
+    private final Context mApplicationContext;
+    private final ContentObserver mObserver;
+    private final byte[] mSalt = new byte[16];
+
+    private final LongSparseArray<UnlockedKey> mUnlockedKeys = new LongSparseArray<>();
+
+    private long mHitCount;
+    private long mMissCount;
+
+    public static synchronized UnlockedKeyCache getInstance(Context context) {
+        Context applicationContext = context.getApplicationContext();
+        if (applicationContext == null) {
+            applicationContext = context;
+        }
+
+        // tests get a new application context each, don't leak the old observer
+        if (sInstance == null || sInstance.mApplicationContext != applicationContext) {
+            if (sInstance != null) {
+                sInstance.unregisterObserver();
+                sInstance.clear();
+            }
+            sInstance = new UnlockedKeyCache(applicationContext);
+        }
+        return sInstance;
+    }
+
+    private UnlockedKeyCache(Context applicationContext) {
+        mApplicationContext = applicationContext;
+        new SecureRandom().nextBytes(mSalt);
+
+        // a changed keyring may have a new passphrase, so drop everything. this may be called
+        // on any thread, clear() is synchronized.
+        mObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                clear();
+            }
+        };
+        applicationContext.getContentResolver().registerContentObserver(KeyRings.CONTENT_URI, true, mObserver);
+    }
+
+    private void unregisterObserver() {
+        mApplicationContext.getContentResolver().unregisterContentObserver(mObserver);
+    }
+
+    private boolean isEnabled() {
+        return Preferences.getPreferences(mApplicationContext).getPassphraseCacheUnlockedKeys();
+    }
+
+    /**
+     * Returns a copy of the key derived for this subkey if it was derived from the same
+     * passphrase, or null.
+     */
+    synchronized byte[] get(long keyId, Passphrase passphrase) {
+        if (!isEnabled()) {
+            clear();
+            return null;
+        }
+
+        UnlockedKey unlockedKey = mUnlockedKeys.get(keyId);
+        if (unlockedKey != null && unlockedKey.isExpired()) {
+            mUnlockedKeys.remove(keyId);
+            unlockedKey.removeFromMemory();
+            unlockedKey = null;
+        }
+
+        if (unlockedKey == null || !MessageDigest.isEqual(unlockedKey.mPassphraseDigest, digest(passphrase))) {
+            mMissCount += 1;
+            return null;
+        }
+        mHitCount += 1;
+        return Arrays.copyOf(unlockedKey.mDerivedKey, unlockedKey.mDerivedKey.length);
+    }
+
+    synchronized void put(long keyId, Passphrase passphrase, byte[] derivedKey) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        int timeToLiveSeconds = Preferences.getPreferences(mApplicationContext).getPassphraseCacheTtl()
+                .getShortestTtl();
+        long expiryTime;
+        if (timeToLiveSeconds == 0) {
+            expiryTime = UnlockedKey.UNTIL_SCREEN_LOCK;
+        } else if (timeToLiveSeconds >= Integer.MAX_VALUE) {
+            expiryTime = UnlockedKey.NEVER;
+        } else {
+            expiryTime = SystemClock.elapsedRealtime() + timeToLiveSeconds * 1000L;
+        }
+
+        UnlockedKey previous = mUnlockedKeys.get(keyId);
+        if (previous != null) {
+            previous.removeFromMemory();
+        }
+        // copy the key, the caller's array is also cached in the Passphrase object
+        mUnlockedKeys.put(keyId, new UnlockedKey(Arrays.copyOf(derivedKey, derivedKey.length),
+                digest(passphrase), expiryTime));
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < mUnlockedKeys.size(); i++) {
+            mUnlockedKeys.valueAt(i).removeFromMemory();
+        }
+        mUnlockedKeys.clear();
+    }
+
+    public synchronized void removeScreenLockKeys() {
+        for (int i = 0; i < mUnlockedKeys.size(); ) {
+            UnlockedKey unlockedKey = mUnlockedKeys.valueAt(i);
+            if (unlockedKey.mExpiryTime == UnlockedKey.UNTIL_SCREEN_LOCK) {
+                unlockedKey.removeFromMemory();
+                mUnlockedKeys.removeAt(i);
+                continue;
+            }
+            // only do this if we didn't remove at, which continues loop by reducing size!
+            i += 1;
+        }
+        Log.d(Constants.TAG, "UnlockedKeyCache: Removing all unlocked-until-lock keys from memory!");
+    }
+
+    private byte[] digest(Passphrase passphrase) {
+        ByteBuffer encoded = Charset.forName("UTF-8").encode(CharBuffer.wrap(passphrase.getCharArray()));
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(mSalt);
+            digest.update(encoded);
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is always available");
+        } finally {
+            Arrays.fill(encoded.array(), (byte) 0);
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    private static class UnlockedKey {
+        static final long UNTIL_SCREEN_LOCK = -1;
+        static final long NEVER = Long.MAX_VALUE;
+
+        final byte[] mDerivedKey;
+        final byte[] mPassphraseDigest;
+        // in elapsedRealtime, or one of the constants above
+        final long mExpiryTime;
+
+        UnlockedKey(byte[] derivedKey, byte[] passphraseDigest, long expiryTime) {
+            mDerivedKey = derivedKey;
+            mPassphraseDigest = passphraseDigest;
+            mExpiryTime = expiryTime;
+        }
+
+        boolean isExpired() {
+            return mExpiryTime != UNTIL_SCREEN_LOCK && SystemClock.elapsedRealtime() >= mExpiryTime;
+        }
+
+        void removeFromMemory() {
+            Arrays.fill(mDerivedKey, (byte) 0);
+        }
+    }
+}
@@ -19,6 +19,7 @@
 package org.sufficientlysecure.keychain.pgp;
 
 import org.bouncycastle.bcpg.SignatureSubpacket;
+import org.bouncycastle.bcpg.UserAttributeSubpacket;
 import org.bouncycastle.bcpg.SignatureSubpacketTags;
 import org.bouncycastle.bcpg.sig.Exportable;
 import org.bouncycastle.bcpg.sig.NotationData;
@@ -36,7 +37,10 @@ import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -57,7 +61,16 @@ public class WrappedSignature {
     public static final int POSITIVE_CERTIFICATION = PGPSignature.POSITIVE_CERTIFICATION;
     public static final int CERTIFICATION_REVOCATION = PGPSignature.CERTIFICATION_REVOCATION;
 
+    // kinds of certified data, for the verification cache
+    private static final int CERTIFIED_KEY = 1;
+    private static final int CERTIFIED_SUBKEY = 2;
+    private static final int CERTIFIED_USER_ID = 3;
+    private static final int CERTIFIED_RAW_USER_ID = 4;
+    private static final int CERTIFIED_USER_ATTRIBUTE = 5;
+
     final PGPSignature mSig;
+    // the key this signature was initialized with, null before init
+    private PGPPublicKey mSigningKey;
 
     WrappedSignature(PGPSignature sig) {
         mSig = sig;
@@ -151,6 +164,7 @@ public class WrappedSignature {
                     new JcaPGPContentVerifierBuilderProvider()
                             .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME);
             mSig.init(contentVerifierBuilderProvider, key);
+            mSigningKey = key;
         } catch(PGPException e) {
             throw new PgpGeneralException(e);
         }
@@ -173,45 +187,127 @@ public class WrappedSignature {
     }
 
     boolean verifySignature(PGPPublicKey key) throws PgpGeneralException {
+        ByteBuffer cacheKey = getVerificationCacheKey(CERTIFIED_KEY, encodeKeyPacket(key));
+        if (isKnownVerified(cacheKey)) {
+            return true;
+        }
         try {
-            return mSig.verifyCertification(key);
+            return putVerificationResult(cacheKey, mSig.verifyCertification(key));
         } catch (PGPException e) {
             throw new PgpGeneralException("Error!", e);
         }
     }
 
     boolean verifySignature(PGPPublicKey masterKey, PGPPublicKey subKey) throws PgpGeneralException {
+        ByteBuffer cacheKey = getVerificationCacheKey(CERTIFIED_SUBKEY,
+                encodeKeyPacket(masterKey), encodeKeyPacket(subKey));
+        if (isKnownVerified(cacheKey)) {
+            return true;
+        }
         try {
-            return mSig.verifyCertification(masterKey, subKey);
+            return putVerificationResult(cacheKey, mSig.verifyCertification(masterKey, subKey));
         } catch (PGPException e) {
             throw new PgpGeneralException("Error!", e);
         }
     }
 
     boolean verifySignature(PGPPublicKey key, String uid) throws PgpGeneralException {
+        ByteBuffer cacheKey = getVerificationCacheKey(CERTIFIED_USER_ID,
+                encodeKeyPacket(key), uid.getBytes(Charset.forName("UTF-8")));
+        if (isKnownVerified(cacheKey)) {
+            return true;
+        }
         try {
-            return mSig.verifyCertification(uid, key);
+            return putVerificationResult(cacheKey, mSig.verifyCertification(uid, key));
         } catch (PGPException e) {
             throw new PgpGeneralException("Error!", e);
         }
     }
 
     boolean verifySignature(PGPPublicKey key, byte[] rawUserId) throws PgpGeneralException {
+        ByteBuffer cacheKey = getVerificationCacheKey(CERTIFIED_RAW_USER_ID, encodeKeyPacket(key), rawUserId);
+        if (isKnownVerified(cacheKey)) {
+            return true;
+        }
         try {
-            return mSig.verifyCertification(rawUserId, key);
+            return putVerificationResult(cacheKey, mSig.verifyCertification(rawUserId, key));
         } catch (PGPException e) {
             throw new PgpGeneralException("Error!", e);
         }
     }
 
     boolean verifySignature(PGPPublicKey key, PGPUserAttributeSubpacketVector attribute) throws PgpGeneralException {
+        ByteBuffer cacheKey = getVerificationCacheKey(CERTIFIED_USER_ATTRIBUTE,
+                encodeKeyPacket(key), encodeUserAttribute(attribute));
+        if (isKnownVerified(cacheKey)) {
+            return true;
+        }
         try {
-            return mSig.verifyCertification(attribute, key);
+            return putVerificationResult(cacheKey, mSig.verifyCertification(attribute, key));
         } catch (PGPException e) {
             throw new PgpGeneralException("Error!", e);
         }
     }
 
+    /**
+     * Returns the key of this certificate's verification in the SignatureVerificationCache,
+     * or null if it can't be cached. A null part of certified data also means no caching.
+     */
+    private ByteBuffer getVerificationCacheKey(int type, byte[]... certifiedData) {
+        if (mSigningKey == null) {
+            return null;
+        }
+        for (byte[] data : certifiedData) {
+            if (data == null) {
+                return null;
+            }
+        }
+        byte[] signingKey = encodeKeyPacket(mSigningKey);
+        if (signingKey == null) {
+            return null;
+        }
+        try {
+            return SignatureVerificationCache.computeKey(type, mSig.getEncoded(), signingKey, certifiedData);
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "error encoding signature, not caching its verification", e);
+            return null;
+        }
+    }
+
+    private static boolean isKnownVerified(ByteBuffer cacheKey) {
+        return cacheKey != null && SignatureVerificationCache.getInstance().isVerified(cacheKey);
+    }
+
+    private static boolean putVerificationResult(ByteBuffer cacheKey, boolean verified) {
+        if (cacheKey == null) {
+            return verified;
+        }
+        return SignatureVerificationCache.getInstance().putResult(cacheKey, verified);
+    }
+
+    // only the key packet, the certificates on the key don't matter here
+    private static byte[] encodeKeyPacket(PGPPublicKey key) {
+        try {
+            return key.getPublicKeyPacket().getEncodedContents();
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "error encoding key packet", e);
+            return null;
+        }
+    }
+
+    private static byte[] encodeUserAttribute(PGPUserAttributeSubpacketVector attribute) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (UserAttributeSubpacket subpacket : attribute.toSubpacketArray()) {
+                subpacket.encode(out);
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "error encoding user attribute", e);
+            return null;
+        }
+    }
+
     public boolean verifySignature(UncachedPublicKey key, byte[] rawUserId) throws PgpGeneralException {
         return verifySignature(key.getPublicKey(), rawUserId);
     }
@@ -3,6 +3,8 @@ package org.sufficientlysecure.keychain.provider;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 
@@ -12,6 +14,7 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.util.Log;
 
+import org.bouncycastle.util.encoders.Hex;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
@@ -37,24 +40,31 @@ public class KeyRepository {
 
     final ContentResolver mContentResolver;
     final LocalPublicKeyStorage mLocalPublicKeyStorage;
+    final PublicKeyRingCache mPublicKeyRingCache;
+    final SubkeyIdCache mSubkeyIdCache;
     OperationLog mLog;
     int mIndent;
 
     public static KeyRepository createDatabaseInteractor(Context context) {
         ContentResolver contentResolver = context.getContentResolver();
         LocalPublicKeyStorage localPublicKeyStorage = LocalPublicKeyStorage.getInstance(context);
+        PublicKeyRingCache publicKeyRingCache = PublicKeyRingCache.getInstance(context);
+        SubkeyIdCache subkeyIdCache = SubkeyIdCache.getInstance(context);
 
-        return new KeyRepository(contentResolver, localPublicKeyStorage);
+        return new KeyRepository(contentResolver, localPublicKeyStorage, publicKeyRingCache, subkeyIdCache);
     }
 
-    private KeyRepository(ContentResolver contentResolver, LocalPublicKeyStorage localPublicKeyStorage) {
-        this(contentResolver, localPublicKeyStorage, new OperationLog(), 0);
+    private KeyRepository(ContentResolver contentResolver, LocalPublicKeyStorage localPublicKeyStorage,
+            PublicKeyRingCache publicKeyRingCache, SubkeyIdCache subkeyIdCache) {
+        this(contentResolver, localPublicKeyStorage, publicKeyRingCache, subkeyIdCache, new OperationLog(), 0);
     }
 
     KeyRepository(ContentResolver contentResolver, LocalPublicKeyStorage localPublicKeyStorage,
-            OperationLog log, int indent) {
+            PublicKeyRingCache publicKeyRingCache, SubkeyIdCache subkeyIdCache, OperationLog log, int indent) {
         mContentResolver = contentResolver;
         mLocalPublicKeyStorage = localPublicKeyStorage;
+        mPublicKeyRingCache = publicKeyRingCache;
+        mSubkeyIdCache = subkeyIdCache;
         mIndent = indent;
         mLog = log;
     }
@@ -148,6 +158,14 @@ public class KeyRepository {
     }
 
     public long getMasterKeyId(long subKeyId) throws NotFoundException {
+        long[] masterKeyIds = mSubkeyIdCache.getMasterKeyIds(mContentResolver, subKeyId);
+        if (masterKeyIds.length == 0) {
+            throw new NotFoundException("No key with subkey id " + subKeyId);
+        }
+        if (masterKeyIds.length == 1) {
+            return masterKeyIds[0];
+        }
+        // more than one keyring has a subkey with this id, pick one the same way as before the cache
         return (Long) getGenericData(KeyRings.buildUnifiedKeyRingsFindBySubkeyUri(subKeyId),
                 KeyRings.MASTER_KEY_ID, FIELD_TYPE_INTEGER);
     }
@@ -166,6 +184,8 @@ public class KeyRepository {
     }
 
     public CanonicalizedPublicKeyRing getCanonicalizedPublicKeyRing(Uri queryUri) throws NotFoundException {
+        // a keyring changed after this point must not be cached
+        long invalidationCount = mPublicKeyRingCache.getInvalidationCount();
         Cursor cursor = mContentResolver.query(queryUri,
                 new String[] { KeyRings.MASTER_KEY_ID, KeyRings.VERIFIED }, null, null, null);
         try {
@@ -173,8 +193,15 @@ public class KeyRepository {
                 long masterKeyId = cursor.getLong(0);
                 int verified = cursor.getInt(1);
 
+                CanonicalizedPublicKeyRing keyRing = mPublicKeyRingCache.get(masterKeyId, verified);
+                if (keyRing != null) {
+                    return keyRing;
+                }
+
                 byte[] publicKeyData = loadPublicKeyRingData(masterKeyId);
-                return new CanonicalizedPublicKeyRing(publicKeyData, verified);
+                keyRing = new CanonicalizedPublicKeyRing(publicKeyData, verified);
+                mPublicKeyRingCache.put(masterKeyId, keyRing, publicKeyData.length, invalidationCount);
+                return keyRing;
             } else {
                 throw new NotFoundException("Key not found!");
             }
@@ -254,16 +281,26 @@ public class KeyRepository {
     }
 
     public final byte[] loadPublicKeyRingData(long masterKeyId) throws NotFoundException {
-        byte[] data = (byte[]) getGenericDataOrNull(KeyRingData.buildPublicKeyRingUri(masterKeyId),
-                KeyRingData.KEY_RING_DATA, FIELD_TYPE_BLOB);
+        byte[] data;
+        IOException storageException = null;
+        try {
+            data = mLocalPublicKeyStorage.readPublicKey(masterKeyId);
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Error reading public key from storage!", e);
+            storageException = e;
+            data = null;
+        }
 
+        // fall back to the copy cached in the database
         if (data == null) {
-            try {
-                data = mLocalPublicKeyStorage.readPublicKey(masterKeyId);
-            } catch (IOException e) {
-                Log.e(Constants.TAG, "Error reading public key from storage!", e);
-                throw new NotFoundException();
-            }
+            data = (byte[]) getGenericDataOrNull(KeyRingData.buildPublicKeyRingUri(masterKeyId),
+                    KeyRingData.KEY_RING_DATA, FIELD_TYPE_BLOB);
+        }
+
+        // the key may well exist, its data just can't be read
+        if (data == null && storageException != null) {
+            throw new IllegalStateException("Error reading public key data, this should not happen!",
+                    storageException);
         }
 
         if (data == null) {
@@ -284,6 +321,68 @@ public class KeyRepository {
         return data;
     }
 
+    /**
+     * Returns the digest of a keyring encoding, as stored in the KEY_RING_DIGEST and
+     * UPSTREAM_DIGEST columns. This is cheap compared to parsing the keyring, so it is used to
+     * recognize data which is already in the database before doing any actual work on it.
+     */
+    public static String computeKeyRingDigest(byte[] encoded) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Hex.toHexString(digest.digest(encoded));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is always available");
+        }
+    }
+
+    /**
+     * Returns the digest of the public keyring stored for a master key id, or null if there is
+     * none yet because the keyring wasn't saved since the digest column was added.
+     */
+    public String getPublicKeyRingDigest(long masterKeyId) throws NotFoundException {
+        return (String) getGenericDataOrNull(KeyRingData.buildPublicKeyRingUri(masterKeyId),
+                KeyRingData.KEY_RING_DIGEST, FIELD_TYPE_STRING);
+    }
+
+    /** Like getPublicKeyRingDigest, but for the secret keyring of a master key id. */
+    public String getSecretKeyRingDigest(long masterKeyId) throws NotFoundException {
+        return (String) getGenericDataOrNull(KeyRingData.buildSecretKeyRingUri(masterKeyId),
+                KeyRingData.KEY_RING_DIGEST, FIELD_TYPE_STRING);
+    }
+
+    /**
+     * Returns the master key id of the keyring whose stored public or secret encoding has the
+     * given digest, or whose public keyring was last imported from data with that digest.
+     */
+    public long getMasterKeyIdByDigest(String digest) throws NotFoundException {
+        Long masterKeyId = queryMasterKeyId(KeyRingData.buildPublicKeyRingUri(),
+                KeyRingData.KEY_RING_DIGEST + " = ? OR " + KeyRingData.UPSTREAM_DIGEST + " = ?",
+                new String[] { digest, digest });
+        if (masterKeyId == null) {
+            masterKeyId = queryMasterKeyId(KeyRingData.buildSecretKeyRingUri(),
+                    KeyRingData.KEY_RING_DIGEST + " = ?", new String[] { digest });
+        }
+        if (masterKeyId == null) {
+            throw new NotFoundException();
+        }
+        return masterKeyId;
+    }
+
+    private Long queryMasterKeyId(Uri uri, String selection, String[] selectionArgs) {
+        Cursor cursor = mContentResolver.query(uri, new String[] { KeyRingData.MASTER_KEY_ID },
+                selection, selectionArgs, null);
+        try {
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     public static class NotFoundException extends Exception {
         public NotFoundException() {
         }
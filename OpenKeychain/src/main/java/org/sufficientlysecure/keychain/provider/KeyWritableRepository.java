@@ -24,8 +24,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import android.content.ContentProviderOperation;
@@ -92,6 +94,8 @@ public class KeyWritableRepository extends KeyRepository {
     private static final int MAX_CACHED_KEY_SIZE = 1024 * 50;
 
     private final Context mContext;
+    // certificates by other keys beyond this, per user id, are dropped from public keys
+    private final int mMaxThirdPartyCerts;
 
     public static KeyWritableRepository createDatabaseReadWriteInteractor(Context context) {
         LocalPublicKeyStorage localPublicKeyStorage = LocalPublicKeyStorage.getInstance(context);
@@ -106,9 +110,11 @@ public class KeyWritableRepository extends KeyRepository {
 
     private KeyWritableRepository(
             Context context, LocalPublicKeyStorage localPublicKeyStorage, OperationLog log, int indent) {
-        super(context.getContentResolver(), localPublicKeyStorage, log, indent);
+        super(context.getContentResolver(), localPublicKeyStorage, PublicKeyRingCache.getInstance(context),
+                SubkeyIdCache.getInstance(context), log, indent);
 
         mContext = context;
+        mMaxThirdPartyCerts = Preferences.getPreferences(context).getMaxThirdPartyCerts();
     }
 
     private LongSparseArray<CanonicalizedPublicKey> getTrustedMasterKeys() {
@@ -118,33 +124,66 @@ public class KeyWritableRepository extends KeyRepository {
                 KeyRings.HAS_ANY_SECRET, KeyRings.VERIFIED
         }, KeyRings.HAS_ANY_SECRET + " = 1", null, null);
 
+        long[] masterKeyIds;
+        int[] verifiedStates;
         try {
-            LongSparseArray<CanonicalizedPublicKey> result = new LongSparseArray<>();
-
             if (cursor == null) {
-                return result;
+                return new LongSparseArray<>();
             }
 
-            while (cursor.moveToNext()) {
-                try {
-                    long masterKeyId = cursor.getLong(0);
-                    int verified = cursor.getInt(2);
-                    byte[] blob = loadPublicKeyRingData(masterKeyId);
-                    if (blob != null) {
-                        result.put(masterKeyId, new CanonicalizedPublicKeyRing(blob, verified).getPublicKey());
-                    }
-                } catch (NotFoundException e) {
-                    throw new IllegalStateException("Error reading secret key data, this should not happen!", e);
-                }
+            masterKeyIds = new long[cursor.getCount()];
+            verifiedStates = new int[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                masterKeyIds[i] = cursor.getLong(0);
+                verifiedStates[i] = cursor.getInt(2);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
             }
+        }
 
-            return result;
+        try {
+            // only keys which are not in the cache yet, or whose verification state changed,
+            // are actually loaded and parsed
+            return TrustedKeysCache.getInstance().getTrustedKeys(masterKeyIds, verifiedStates,
+                    new TrustedKeysCache.TrustedKeyLoader() {
+                        @Override
+                        public CanonicalizedPublicKey loadTrustedKey(long masterKeyId, int verified)
+                                throws NotFoundException {
+                            byte[] blob = loadPublicKeyRingData(masterKeyId);
+                            return new CanonicalizedPublicKeyRing(blob, verified).getPublicKey();
+                        }
+                    });
+        } catch (NotFoundException e) {
+            throw new IllegalStateException("Error reading secret key data, this should not happen!", e);
+        }
+    }
+
+    /** Returns the master key ids of all keyrings we have a secret key for. */
+    private Set<Long> getSecretMasterKeyIds() {
+        Cursor cursor = mContentResolver.query(KeyRingData.buildSecretKeyRingUri(),
+                new String[] { KeyRingData.MASTER_KEY_ID }, null, null, null);
+
+        HashSet<Long> masterKeyIds = new HashSet<>();
+        try {
+            while (cursor != null && cursor.moveToNext()) {
+                masterKeyIds.add(cursor.getLong(0));
+            }
         } finally {
             if (cursor != null) {
                 cursor.close();
             }
         }
+        return masterKeyIds;
+    }
+
+    public long getTrustedKeysCacheHitCount() {
+        return TrustedKeysCache.getInstance().getHitCount();
+    }
 
+    public long getTrustedKeysCacheMissCount() {
+        return TrustedKeysCache.getInstance().getMissCount();
     }
 
     // bits, in order: CESA. make SURE these are correct, we will get bad log entries otherwise!!
@@ -172,37 +211,30 @@ public class KeyWritableRepository extends KeyRepository {
     };
 
     /**
-     * Saves an UncachedKeyRing of the public variant into the db.
-     * <p/>
-     * This method will not delete all previous data for this masterKeyId from the database prior
-     * to inserting. All public data is effectively re-inserted, secret keyrings are left deleted
-     * and need to be saved externally to be preserved past the operation.
+     * Builds the operations to insert all keys, user ids and trusted certificates of a
+     * canonicalized public keyring into the database. Its data is added to pendingKeyData,
+     * to be written to local storage before the operations are applied, see
+     * writePendingPublicKeyData. Returns false on error, the reason is written to the log.
      */
-    @SuppressWarnings("unchecked")
-    private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing,
-                                               Progressable progress, boolean selfCertsAreTrusted) {
-
-        // start with ok result
-        int result = SaveKeyringResult.SAVED_PUBLIC;
+    private boolean buildPublicKeyRingOperations(CanonicalizedPublicKeyRing keyRing, Progressable progress,
+            boolean selfCertsAreTrusted, ArrayList<ContentProviderOperation> operations,
+            LongSparseArray<byte[]> pendingKeyData) {
 
         long masterKeyId = keyRing.getMasterKeyId();
         UncachedPublicKey masterKey = keyRing.getPublicKey();
 
-        ArrayList<ContentProviderOperation> operations;
         try {
 
             log(LogType.MSG_IP_PREPARE);
             mIndent += 1;
 
             // save all keys and userIds included in keyRing object in database
-            operations = new ArrayList<>();
-
             log(LogType.MSG_IP_INSERT_KEYRING);
             try {
-                writePublicKeyRing(keyRing, masterKeyId, operations);
+                writePublicKeyRing(keyRing, masterKeyId, operations, pendingKeyData);
             } catch (IOException e) {
                 log(LogType.MSG_IP_ENCODE_FAIL);
-                return SaveKeyringResult.RESULT_ERROR;
+                return false;
             }
 
             log(LogType.MSG_IP_INSERT_SUBKEYS);
@@ -516,11 +548,36 @@ public class KeyWritableRepository extends KeyRepository {
         } catch (IOException e) {
             log(LogType.MSG_IP_ERROR_IO_EXC);
             Log.e(Constants.TAG, "IOException during import", e);
-            return SaveKeyringResult.RESULT_ERROR;
+            return false;
         } finally {
             mIndent -= 1;
         }
 
+        return true;
+    }
+
+    /**
+     * Saves an UncachedKeyRing of the public variant into the db.
+     * <p/>
+     * This method will not delete all previous data for this masterKeyId from the database prior
+     * to inserting. All public data is effectively re-inserted, secret keyrings are left deleted
+     * and need to be saved externally to be preserved past the operation.
+     */
+    @SuppressWarnings("unchecked")
+    private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing,
+                                               Progressable progress, boolean selfCertsAreTrusted) {
+
+        // start with ok result
+        int result = SaveKeyringResult.SAVED_PUBLIC;
+
+        long masterKeyId = keyRing.getMasterKeyId();
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        LongSparseArray<byte[]> pendingKeyData = new LongSparseArray<>(1);
+        if (!buildPublicKeyRingOperations(keyRing, progress, selfCertsAreTrusted, operations, pendingKeyData)) {
+            return SaveKeyringResult.RESULT_ERROR;
+        }
+
         // before deleting key, retrieve it's last updated time
         final int INDEX_MASTER_KEY_ID = 0;
         final int INDEX_LAST_UPDATED = 1;
@@ -551,6 +608,13 @@ public class KeyWritableRepository extends KeyRepository {
         }
         lastUpdatedCursor.close();
 
+        // the data is written before the database refers to it, if that fails nothing is changed
+        LongSparseArray<byte[]> previousKeyData = new LongSparseArray<>(1);
+        if (!writePendingPublicKeyData(pendingKeyData, previousKeyData).isEmpty()) {
+            log(LogType.MSG_IP_ERROR_IO_EXC);
+            return SaveKeyringResult.RESULT_ERROR;
+        }
+
         try {
             // delete old version of this keyRing (from database only!), which also deletes all keys and userIds on cascade
             int deleted = mContentResolver.delete(
@@ -558,6 +622,8 @@ public class KeyWritableRepository extends KeyRepository {
             if (deleted > 0) {
                 log(LogType.MSG_IP_DELETE_OLD_OK);
                 result |= SaveKeyringResult.UPDATED;
+                // the delete cascades to the secret keyring, which is re-inserted separately
+                TrustedKeysCache.getInstance().invalidate(masterKeyId);
             } else {
                 log(LogType.MSG_IP_DELETE_OLD_FAIL);
             }
@@ -565,6 +631,9 @@ public class KeyWritableRepository extends KeyRepository {
             log(LogType.MSG_IP_APPLY_BATCH);
             progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
             mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            // don't wait for the change notification, which arrives asynchronously
+            mPublicKeyRingCache.invalidate(masterKeyId);
+            mSubkeyIdCache.invalidate(masterKeyId);
 
             log(LogType.MSG_IP_SUCCESS);
             progress.setProgress(LogType.MSG_IP_SUCCESS.getMsgId(), 90, 100);
@@ -573,19 +642,59 @@ public class KeyWritableRepository extends KeyRepository {
         } catch (RemoteException e) {
             log(LogType.MSG_IP_ERROR_REMOTE_EX);
             Log.e(Constants.TAG, "RemoteException during import", e);
+            restorePublicKeyData(previousKeyData);
             return SaveKeyringResult.RESULT_ERROR;
         } catch (OperationApplicationException e) {
             log(LogType.MSG_IP_ERROR_OP_EXC);
             Log.e(Constants.TAG, "OperationApplicationException during import", e);
+            restorePublicKeyData(previousKeyData);
             return SaveKeyringResult.RESULT_ERROR;
         }
 
     }
 
+    /**
+     * Like saveCanonicalizedPublicKeyRing, but adds all database operations to the given list
+     * to be applied later, rather than applying them directly. This must not be used for
+     * keyrings which have a secret part.
+     */
+    private int addCanonicalizedPublicKeyRingToBatch(CanonicalizedPublicKeyRing keyRing, Progressable progress,
+            boolean alreadyExists, PublicKeyRingBatch batch) {
+
+        long masterKeyId = keyRing.getMasterKeyId();
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        // delete old version of this keyRing first, which also deletes all keys and userIds on cascade.
+        // whichever keyring comes first in the batch, this marks it to be applied in one transaction
+        operations.add(ContentProviderOperation.newDelete(KeychainContract.buildBatchTransactionUri(
+                KeyRingData.buildPublicKeyRingUri(masterKeyId))).build());
+
+        if (!buildPublicKeyRingOperations(keyRing, progress, false, operations, batch.mKeyData)) {
+            return SaveKeyringResult.RESULT_ERROR;
+        }
+
+        Long lastUpdated = batch.mLastUpdatedTimes.get(masterKeyId);
+        if (lastUpdated != null) {
+            // re-insert last updated time after the new key is inserted
+            ContentValues lastUpdatedEntry = new ContentValues(2);
+            lastUpdatedEntry.put(UpdatedKeys.MASTER_KEY_ID, masterKeyId);
+            lastUpdatedEntry.put(UpdatedKeys.LAST_UPDATED, lastUpdated);
+            operations.add(ContentProviderOperation.newInsert(UpdatedKeys.CONTENT_URI)
+                    .withValues(lastUpdatedEntry).build());
+        }
+
+        batch.mOperations.put(masterKeyId, operations);
+        log(LogType.MSG_IP_BATCH_QUEUED);
+        progress.setProgress(LogType.MSG_IP_BATCH_QUEUED.getMsgId(), 90, 100);
+
+        return SaveKeyringResult.SAVED_PUBLIC | (alreadyExists ? SaveKeyringResult.UPDATED : 0);
+    }
+
     private void writePublicKeyRing(CanonicalizedPublicKeyRing keyRing, long masterKeyId,
-            ArrayList<ContentProviderOperation> operations) throws IOException {
+            ArrayList<ContentProviderOperation> operations, LongSparseArray<byte[]> pendingKeyData)
+            throws IOException {
         byte[] encodedKey = keyRing.getEncoded();
-        mLocalPublicKeyStorage.writePublicKey(masterKeyId, encodedKey);
+        pendingKeyData.put(masterKeyId, encodedKey);
 
         ContentValues values = new ContentValues();
         values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
@@ -594,23 +703,86 @@ public class KeyWritableRepository extends KeyRepository {
         } else {
             values.put(KeyRingData.KEY_RING_DATA, (byte[]) null);
         }
+        values.put(KeyRingData.KEY_RING_DIGEST, computeKeyRingDigest(encodedKey));
 
         Uri uri = KeyRingData.buildPublicKeyRingUri(masterKeyId);
         operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
     }
 
+    /**
+     * Writes keyring data to local storage, before the database operations referring to it are
+     * applied. Readers only see the new data together with the new database rows, since the
+     * caches are invalidated once the operations were applied. The data stored before is put
+     * into previousKeyData, so restorePublicKeyData can put it back if the operations fail.
+     * The operations of keyrings which could not be written must not be applied.
+     *
+     * @return the master key ids of all keyrings which could not be written
+     */
+    private LongSparseArray<Boolean> writePendingPublicKeyData(LongSparseArray<byte[]> pendingKeyData,
+            LongSparseArray<byte[]> previousKeyData) {
+        LongSparseArray<Boolean> failed = new LongSparseArray<>();
+        for (int i = 0; i < pendingKeyData.size(); i++) {
+            long masterKeyId = pendingKeyData.keyAt(i);
+            try {
+                byte[] previous = mLocalPublicKeyStorage.readPublicKey(masterKeyId);
+                mLocalPublicKeyStorage.writePublicKey(masterKeyId, pendingKeyData.valueAt(i));
+                previousKeyData.put(masterKeyId, previous);
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "IOException writing keyring data", e);
+                failed.put(masterKeyId, true);
+            }
+        }
+        pendingKeyData.clear();
+        return failed;
+    }
+
+    /**
+     * Puts back the keyring data replaced by writePendingPublicKeyData, after the database
+     * operations referring to the new data failed.
+     */
+    private void restorePublicKeyData(LongSparseArray<byte[]> previousKeyData) {
+        for (int i = 0; i < previousKeyData.size(); i++) {
+            long masterKeyId = previousKeyData.keyAt(i);
+            byte[] previous = previousKeyData.valueAt(i);
+            try {
+                if (previous != null) {
+                    mLocalPublicKeyStorage.writePublicKey(masterKeyId, previous);
+                } else {
+                    mLocalPublicKeyStorage.deletePublicKey(masterKeyId);
+                }
+            } catch (IOException e) {
+                Log.e(Constants.TAG, "IOException restoring keyring data", e);
+            }
+            mPublicKeyRingCache.invalidate(masterKeyId);
+            mSubkeyIdCache.invalidate(masterKeyId);
+        }
+        previousKeyData.clear();
+    }
+
     private Uri writeSecretKeyRing(CanonicalizedSecretKeyRing keyRing, long masterKeyId) throws IOException {
         byte[] encodedKey = keyRing.getEncoded();
 
         ContentValues values = new ContentValues();
         values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
         values.put(KeyRingData.KEY_RING_DATA, encodedKey);
+        values.put(KeyRingData.KEY_RING_DIGEST, computeKeyRingDigest(encodedKey));
 
         // insert new version of this keyRing
         Uri uri = KeyRingData.buildSecretKeyRingUri(masterKeyId);
         return mContentResolver.insert(uri, values);
     }
 
+    /**
+     * Remembers that the public keyring of a master key id contains everything in the imported
+     * data with the given digest, so importing the same data again can be skipped. This is
+     * reset whenever the keyring is saved again.
+     */
+    public void setUpstreamDigest(long masterKeyId, String digest) {
+        ContentValues values = new ContentValues();
+        values.put(KeyRingData.UPSTREAM_DIGEST, digest);
+        mContentResolver.update(KeyRingData.buildPublicKeyRingUri(masterKeyId), values, null, null);
+    }
+
     public boolean deleteKeyRing(long masterKeyId) {
         try {
             mLocalPublicKeyStorage.deletePublicKey(masterKeyId);
@@ -619,6 +791,9 @@ public class KeyWritableRepository extends KeyRepository {
             return false;
         }
         int deletedRows = mContentResolver.delete(KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
+        TrustedKeysCache.getInstance().invalidate(masterKeyId);
+        mPublicKeyRingCache.invalidate(masterKeyId);
+        mSubkeyIdCache.invalidate(masterKeyId);
         return deletedRows > 0;
     }
 
@@ -676,6 +851,7 @@ public class KeyWritableRepository extends KeyRepository {
             int result = SaveKeyringResult.SAVED_SECRET;
 
             // save secret keyring
+            TrustedKeysCache.getInstance().invalidate(masterKeyId);
             try {
                 Uri insertedUri = writeSecretKeyRing(keyRing, masterKeyId);
                 if (insertedUri == null) {
@@ -766,6 +942,141 @@ public class KeyWritableRepository extends KeyRepository {
                                                String expectedFingerprint,
                                                ArrayList<CanonicalizedKeyRing> canKeyRings,
                                                boolean skipSave) {
+        return savePublicKeyRing(publicRing, progress, expectedFingerprint, canKeyRings, skipSave,
+                null, null);
+    }
+
+    /**
+     * A public keyring which was merged with the keyring in the database and canonicalized
+     * by preparePublicKeyRing, ready to be saved with savePreparedPublicKeyRing.
+     */
+    public static class PreparedPublicKeyRing {
+        private final UncachedKeyRing mPublicRing;
+        private final OperationLog mLog;
+        // encoded keyring from the database at the time of merging, null if there was none
+        private byte[] mOldEncoded;
+        // digest of the keyring in the database, only set if publicRing is identical to it
+        private String mUnchangedDigest;
+        private UncachedKeyRing mMergedRing;
+        // null if merging or canonicalization failed
+        private CanonicalizedPublicKeyRing mCanPublicRing;
+
+        private PreparedPublicKeyRing(UncachedKeyRing publicRing, OperationLog log) {
+            mPublicRing = publicRing;
+            mLog = log;
+        }
+    }
+
+    /**
+     * Merges a public keyring with the one in the database, if any, and canonicalizes it.
+     * <p>
+     * This is the expensive part of savePublicKeyRing. It only reads from the database and
+     * does not use the log of this instance, so it may be called from several threads at
+     * once. If the keyring in the database is changed before the result is saved, saving
+     * falls back to merging again.
+     */
+    public PreparedPublicKeyRing preparePublicKeyRing(UncachedKeyRing publicRing) {
+        OperationLog log = new OperationLog();
+        // this log is appended below the MSG_IP entry when saving, assuming a top level save
+        int indent = 1;
+        try {
+            return mergePublicKeyRing(publicRing, log, indent, true);
+        } catch (IOException e) {
+            log.add(LogType.MSG_IP_ERROR_IO_EXC, indent);
+            return new PreparedPublicKeyRing(publicRing, log);
+        }
+    }
+
+    /**
+     * Saves a public keyring which was prepared by preparePublicKeyRing. This works exactly
+     * like savePublicKeyRing, except that merging and canonicalization are skipped where possible.
+     */
+    public SaveKeyringResult savePreparedPublicKeyRing(PreparedPublicKeyRing prepared, Progressable progress,
+                                                       String expectedFingerprint,
+                                                       ArrayList<CanonicalizedKeyRing> canKeyRings,
+                                                       boolean skipSave) {
+        if (!isPreparedFromCurrentKeyRing(prepared)) {
+            return savePublicKeyRing(prepared.mPublicRing, progress, expectedFingerprint, canKeyRings, skipSave);
+        }
+        return savePublicKeyRing(prepared.mPublicRing, progress, expectedFingerprint, canKeyRings, skipSave,
+                null, prepared);
+    }
+
+    private boolean isPreparedFromCurrentKeyRing(PreparedPublicKeyRing prepared) {
+        try {
+            if (prepared.mUnchangedDigest != null) {
+                return prepared.mUnchangedDigest.equals(
+                        getPublicKeyRingDigest(prepared.mPublicRing.getMasterKeyId()));
+            }
+            UncachedKeyRing currentRing =
+                    getCanonicalizedPublicKeyRing(prepared.mPublicRing.getMasterKeyId()).getUncachedKeyRing();
+            return Arrays.equals(currentRing.getEncoded(), prepared.mOldEncoded);
+        } catch (NotFoundException e) {
+            return prepared.mOldEncoded == null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * If checkDigest is true, merging and canonicalization are skipped if publicRing is
+     * identical to the keyring in the database, which is recognized by its digest alone.
+     * In this case, mUnchangedDigest is set and there is no canonicalized keyring.
+     */
+    private PreparedPublicKeyRing mergePublicKeyRing(UncachedKeyRing publicRing, OperationLog log, int indent,
+                                                     boolean checkDigest) throws IOException {
+        PreparedPublicKeyRing prepared = new PreparedPublicKeyRing(publicRing, log);
+
+        if (checkDigest) {
+            byte[] encoded = publicRing.getEncoded();
+            String digest = computeKeyRingDigest(encoded);
+            try {
+                if (digest.equals(getPublicKeyRingDigest(publicRing.getMasterKeyId()))) {
+                    prepared.mOldEncoded = encoded;
+                    prepared.mUnchangedDigest = digest;
+                    return prepared;
+                }
+            } catch (NotFoundException e) {
+                // new keyring, nothing to compare with
+            }
+        }
+
+        // If there is an old keyring, merge it
+        try {
+            UncachedKeyRing oldPublicRing =
+                    getCanonicalizedPublicKeyRing(publicRing.getMasterKeyId()).getUncachedKeyRing();
+            prepared.mOldEncoded = oldPublicRing.getEncoded();
+
+            // Merge data from new public ring into the old one
+            log.add(LogType.MSG_IP_MERGE_PUBLIC, indent);
+            publicRing = oldPublicRing.merge(publicRing, log, indent);
+
+            // If this is null, there is an error in the log so we can just return
+            if (publicRing == null) {
+                return prepared;
+            }
+        } catch (NotFoundException e) {
+            // Not an issue, just means we are dealing with a new keyring.
+        }
+
+        // Canonicalize this keyring, to assert a number of assumptions made about it.
+        // Certificates by our own keys are never stripped, they are usually the newest ones.
+        prepared.mMergedRing = publicRing;
+        prepared.mCanPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(log, indent,
+                false, mMaxThirdPartyCerts, getSecretMasterKeyIds());
+        return prepared;
+    }
+
+    /**
+     * If batch is non-null, database operations for a keyring without a secret part are added
+     * to it instead of being applied directly. If prepared is non-null, it is used instead of
+     * merging publicRing again.
+     */
+    private SaveKeyringResult savePublicKeyRing(UncachedKeyRing publicRing, Progressable progress,
+                                                String expectedFingerprint,
+                                                ArrayList<CanonicalizedKeyRing> canKeyRings,
+                                                boolean skipSave, PublicKeyRingBatch batch,
+                                                PreparedPublicKeyRing prepared) {
 
         try {
             long masterKeyId = publicRing.getMasterKeyId();
@@ -777,45 +1088,35 @@ public class KeyWritableRepository extends KeyRepository {
                 return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
             }
 
-            CanonicalizedPublicKeyRing canPublicRing;
-            boolean alreadyExists = false;
-
-            // If there is an old keyring, merge it
-            try {
-                UncachedKeyRing oldPublicRing = getCanonicalizedPublicKeyRing(masterKeyId).getUncachedKeyRing();
-                alreadyExists = true;
-
-                // Merge data from new public ring into the old one
-                log(LogType.MSG_IP_MERGE_PUBLIC);
-                publicRing = oldPublicRing.merge(publicRing, mLog, mIndent);
-
-                // If this is null, there is an error in the log so we can just return
-                if (publicRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
-                }
-
-                // Canonicalize this keyring, to assert a number of assumptions made about it.
-                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
-                if (canPublicRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
-                }
-                if (canKeyRings != null) canKeyRings.add(canPublicRing);
+            if (prepared != null) {
+                mLog.addAll(prepared.mLog.toList());
+            } else {
+                prepared = mergePublicKeyRing(publicRing, mLog, mIndent, !skipSave);
+            }
 
-                // Early breakout if nothing changed
-                if (Arrays.hashCode(publicRing.getEncoded())
-                        == Arrays.hashCode(oldPublicRing.getEncoded())) {
+            // Early breakout if this is exactly the keyring in the database
+            if (prepared.mUnchangedDigest != null) {
+                if (!skipSave) {
                     log(LogType.MSG_IP_SUCCESS_IDENTICAL);
                     return new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null);
                 }
-            } catch (NotFoundException e) {
-                // Not an issue, just means we are dealing with a new keyring.
+                // the canonicalized keyring is part of the result when not saving
+                prepared = mergePublicKeyRing(publicRing, mLog, mIndent, false);
+            }
 
-                // Canonicalize this keyring, to assert a number of assumptions made about it.
-                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
-                if (canPublicRing == null) {
-                    return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
-                }
-                if (canKeyRings != null) canKeyRings.add(canPublicRing);
+            CanonicalizedPublicKeyRing canPublicRing = prepared.mCanPublicRing;
+            if (canPublicRing == null) {
+                return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
+            }
+            if (canKeyRings != null) canKeyRings.add(canPublicRing);
+
+            publicRing = prepared.mMergedRing;
+            boolean alreadyExists = prepared.mOldEncoded != null;
+
+            // Early breakout if nothing changed
+            if (alreadyExists && Arrays.equals(publicRing.getEncoded(), prepared.mOldEncoded)) {
+                log(LogType.MSG_IP_SUCCESS_IDENTICAL);
+                return new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null);
             }
 
             // If there is a secret key, merge new data (if any) and save the key for later
@@ -857,6 +1158,8 @@ public class KeyWritableRepository extends KeyRepository {
                 // skip save method, set fixed result
                 result = SaveKeyringResult.SAVED_PUBLIC
                         | (alreadyExists ? SaveKeyringResult.UPDATED : 0);
+            } else if (batch != null && canSecretRing == null) {
+                result = addCanonicalizedPublicKeyRingToBatch(canPublicRing, progress, alreadyExists, batch);
             } else {
                 result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, canSecretRing != null);
             }
@@ -896,6 +1199,178 @@ public class KeyWritableRepository extends KeyRepository {
         return savePublicKeyRing(keyRing, new ProgressScaler(), null);
     }
 
+    /**
+     * Saves a number of keyrings into the database. This works like savePublicKeyRing and
+     * saveSecretKeyRing, but the database operations for all public keyrings are collected
+     * and applied in a single transaction, which is a lot faster for large imports.
+     * <p>
+     * Secret keyrings, and public keyrings we have a secret key for, are saved immediately.
+     * If a keyring occurs more than once, the batch is committed before it is merged again.
+     * If committing fails, all keyrings of the batch are reported as failed.
+     *
+     * @return one result per keyring, in the same order as the input list
+     */
+    public List<SaveKeyringResult> saveKeyRingsBatched(List<UncachedKeyRing> keyRings, Progressable progress,
+                                                       ArrayList<CanonicalizedKeyRing> canKeyRings) {
+        return saveKeyRingsBatched(keyRings, null, progress, canKeyRings);
+    }
+
+    /**
+     * Works like saveKeyRingsBatched, but uses public keyrings which were already prepared by
+     * preparePublicKeyRing, where they are still based on the keyring in the database.
+     *
+     * @param preparedRings one entry per keyring, in the same order as keyRings, null for
+     *                      secret keyrings. May be null if no keyring was prepared.
+     */
+    public List<SaveKeyringResult> saveKeyRingsBatched(List<UncachedKeyRing> keyRings,
+                                                       List<PreparedPublicKeyRing> preparedRings,
+                                                       Progressable progress,
+                                                       ArrayList<CanonicalizedKeyRing> canKeyRings) {
+
+        int numKeyRings = keyRings.size();
+        SaveKeyringResult[] results = new SaveKeyringResult[numKeyRings];
+        OperationLog[] logs = new OperationLog[numKeyRings];
+
+        PublicKeyRingBatch batch = new PublicKeyRingBatch(loadLastUpdatedTimes(keyRings));
+
+        for (int i = 0; i < numKeyRings; i++) {
+            UncachedKeyRing keyRing = keyRings.get(i);
+            long masterKeyId = keyRing.getMasterKeyId();
+
+            // the keyring must be in the database before we can merge into it again
+            if (batch.mKeyRings.indexOfKey(masterKeyId) >= 0) {
+                commitBatch(batch, results, logs);
+            }
+
+            clearLog();
+            logs[i] = mLog;
+            ProgressScaler progressScaler = new ProgressScaler(progress,
+                    i * 100 / numKeyRings, (i + 1) * 100 / numKeyRings, 100);
+
+            if (keyRing.isSecret()) {
+                results[i] = saveSecretKeyRing(keyRing, progressScaler, canKeyRings, false);
+                continue;
+            }
+
+            // checked only now, since the batch may just have been committed
+            PreparedPublicKeyRing prepared = preparedRings != null ? preparedRings.get(i) : null;
+            if (prepared != null && !isPreparedFromCurrentKeyRing(prepared)) {
+                prepared = null;
+            }
+
+            int numOperations = batch.mOperations.size();
+            results[i] = savePublicKeyRing(keyRing, progressScaler, null, canKeyRings, false, batch, prepared);
+            // if nothing was added, the keyring was either unchanged, failed, or saved directly
+            if (batch.mOperations.size() > numOperations) {
+                batch.mKeyRings.put(masterKeyId, i);
+            }
+        }
+
+        commitBatch(batch, results, logs);
+
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Database operations and keyring data of public keyrings, collected by saveKeyRingsBatched
+     * to be committed at once.
+     */
+    private static class PublicKeyRingBatch {
+        // master key id => database operations, for all keyrings in the uncommitted batch
+        final LongSparseArray<ArrayList<ContentProviderOperation>> mOperations = new LongSparseArray<>();
+        // master key id => index, for all keyrings in the uncommitted batch
+        final LongSparseArray<Integer> mKeyRings = new LongSparseArray<>();
+        // keyring data to write to local storage before the operations are committed
+        final LongSparseArray<byte[]> mKeyData = new LongSparseArray<>();
+        // last updated times of all keyrings which may be added to the batch
+        final LongSparseArray<Long> mLastUpdatedTimes;
+
+        PublicKeyRingBatch(LongSparseArray<Long> lastUpdatedTimes) {
+            mLastUpdatedTimes = lastUpdatedTimes;
+        }
+    }
+
+    private void commitBatch(PublicKeyRingBatch batch, SaveKeyringResult[] results, OperationLog[] logs) {
+        if (batch.mOperations.size() == 0) {
+            return;
+        }
+
+        // keyrings whose data can't be written are left out, the database keeps their old version
+        LongSparseArray<byte[]> previousKeyData = new LongSparseArray<>();
+        LongSparseArray<Boolean> failedKeyData = writePendingPublicKeyData(batch.mKeyData, previousKeyData);
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (int i = 0; i < batch.mOperations.size(); i++) {
+            if (failedKeyData.get(batch.mOperations.keyAt(i)) == null) {
+                operations.addAll(batch.mOperations.valueAt(i));
+            }
+        }
+
+        LogType resultLogType;
+        try {
+            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+            resultLogType = LogType.MSG_IP_SUCCESS;
+        } catch (RemoteException e) {
+            Log.e(Constants.TAG, "RemoteException during batched import", e);
+            resultLogType = LogType.MSG_IP_ERROR_REMOTE_EX;
+        } catch (OperationApplicationException e) {
+            Log.e(Constants.TAG, "OperationApplicationException during batched import", e);
+            resultLogType = LogType.MSG_IP_ERROR_OP_EXC;
+        }
+
+        // the transaction was rolled back on error, so the old data belongs to the database again
+        if (resultLogType != LogType.MSG_IP_SUCCESS) {
+            restorePublicKeyData(previousKeyData);
+        }
+
+        for (int i = 0; i < batch.mKeyRings.size(); i++) {
+            long masterKeyId = batch.mKeyRings.keyAt(i);
+            mPublicKeyRingCache.invalidate(masterKeyId);
+            mSubkeyIdCache.invalidate(masterKeyId);
+
+            LogType logType = failedKeyData.get(masterKeyId) != null ? LogType.MSG_IP_ERROR_IO_EXC : resultLogType;
+            int index = batch.mKeyRings.valueAt(i);
+            logs[index].add(logType, 1);
+            if (logType != LogType.MSG_IP_SUCCESS) {
+                results[index] = new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, logs[index], null);
+            }
+        }
+
+        batch.mOperations.clear();
+        batch.mKeyRings.clear();
+    }
+
+    private LongSparseArray<Long> loadLastUpdatedTimes(List<UncachedKeyRing> keyRings) {
+        LongSparseArray<Long> result = new LongSparseArray<>();
+        if (keyRings.isEmpty()) {
+            return result;
+        }
+
+        StringBuilder masterKeyIds = new StringBuilder();
+        for (UncachedKeyRing keyRing : keyRings) {
+            if (masterKeyIds.length() > 0) {
+                masterKeyIds.append(',');
+            }
+            masterKeyIds.append(keyRing.getMasterKeyId());
+        }
+
+        Cursor cursor = mContentResolver.query(UpdatedKeys.CONTENT_URI,
+                new String[] { UpdatedKeys.MASTER_KEY_ID, UpdatedKeys.LAST_UPDATED },
+                UpdatedKeys.MASTER_KEY_ID + " IN (" + masterKeyIds + ")", null, null);
+        if (cursor == null) {
+            return result;
+        }
+
+        try {
+            while (cursor.moveToNext()) {
+                result.put(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return result;
+    }
+
     public SaveKeyringResult saveSecretKeyRing(UncachedKeyRing secretRing, Progressable progress,
                                                ArrayList<CanonicalizedKeyRing> canKeyRings,
                                                boolean skipSave) {
@@ -910,6 +1385,20 @@ public class KeyWritableRepository extends KeyRepository {
                 return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
             }
 
+            // Early breakout if this is exactly the keyring in the database, e.g. when restoring
+            // a backup again after an interrupted restore
+            if (!skipSave) {
+                try {
+                    String digest = computeKeyRingDigest(secretRing.getEncoded());
+                    if (digest.equals(getSecretKeyRingDigest(masterKeyId))) {
+                        log(LogType.MSG_IS_SUCCESS_IDENTICAL, KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+                        return new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null);
+                    }
+                } catch (NotFoundException e) {
+                    // new keyring, nothing to compare with
+                }
+            }
+
             CanonicalizedSecretKeyRing canSecretRing;
             boolean alreadyExists = false;
 
@@ -986,7 +1475,7 @@ public class KeyWritableRepository extends KeyRepository {
             }
 
             CanonicalizedPublicKeyRing canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog,
-                    mIndent);
+                    mIndent, false, mMaxThirdPartyCerts, getSecretMasterKeyIds());
             if (canPublicRing == null) {
                 return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
             }
@@ -1230,6 +1719,9 @@ public class KeyWritableRepository extends KeyRepository {
 
             log.add(LogType.MSG_CON_DB_CLEAR, indent);
             mContentResolver.delete(KeyRings.buildUnifiedKeyRingsUri(), null, null);
+            TrustedKeysCache.getInstance().invalidateAll();
+            mPublicKeyRingCache.invalidateAll();
+            mSubkeyIdCache.invalidateAll();
 
             ParcelableFileCache<ParcelableKeyRing> cacheSecret, cachePublic;
 
@@ -28,6 +28,8 @@ public class KeychainContract {
     interface KeyRingsColumns {
         String MASTER_KEY_ID = "master_key_id"; // not a database id
         String KEY_RING_DATA = "key_ring_data"; // PGPPublicKeyRing / PGPSecretKeyRing blob
+        String KEY_RING_DIGEST = "key_ring_digest"; // sha-256 of the stored encoding, in hex
+        String UPSTREAM_DIGEST = "upstream_digest"; // sha-256 of the data last imported, in hex
     }
 
     interface KeysColumns {
@@ -63,6 +65,7 @@ public class KeychainContract {
         String USER_ID = "user_id"; // not a database id
         String NAME = "name";
         String EMAIL = "email";
+        String EMAIL_NORMALIZED = "email_normalized"; // only for lookups, set on insert
         String COMMENT = "comment";
         String ATTRIBUTE_DATA = "attribute_data"; // not a database id
         String RANK = "rank"; // ONLY used for sorting! no key, no nothing!
@@ -122,6 +125,12 @@ public class KeychainContract {
     public static final String PATH_KEYS = "keys";
     public static final String PATH_CERTS = "certs";
 
+    /**
+     * If the uri of the first operation of a batch has this query parameter set to true, the
+     * whole batch is applied in a single transaction.
+     */
+    public static final String PARAM_BATCH_TRANSACTION = "batch_transaction";
+
     public static final String BASE_API_APPS = "api_apps";
     public static final String PATH_ACCOUNTS = "accounts";
     public static final String PATH_ALLOWED_KEYS = "allowed_keys";
@@ -138,6 +147,7 @@ public class KeychainContract {
         public static final String HAS_CERTIFY = "has_certify";
         public static final String HAS_AUTHENTICATE = "has_authenticate";
         public static final String HAS_DUPLICATE_USER_ID = "has_duplicate_user_id";
+        public static final String KEY_RING_DIGEST = KeyRingsColumns.KEY_RING_DIGEST;
 
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
                 .appendPath(BASE_KEY_RINGS).build();
@@ -241,6 +251,10 @@ public class KeychainContract {
         public static final String CONTENT_ITEM_TYPE
                 = "vnd.android.cursor.item/vnd.org.sufficientlysecure.keychain.provider.keychain.keys";
 
+        public static Uri buildKeysUri() {
+            return CONTENT_URI.buildUpon().appendPath(PATH_KEYS).build();
+        }
+
         public static Uri buildKeysUri(long masterKeyId) {
             return CONTENT_URI.buildUpon().appendPath(Long.toString(masterKeyId)).appendPath(PATH_KEYS).build();
         }
@@ -397,6 +411,10 @@ public class KeychainContract {
 
     }
 
+    public static Uri buildBatchTransactionUri(Uri uri) {
+        return uri.buildUpon().appendQueryParameter(PARAM_BATCH_TRANSACTION, "true").build();
+    }
+
     private KeychainContract() {
     }
 }
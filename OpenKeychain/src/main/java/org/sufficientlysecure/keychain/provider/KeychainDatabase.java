@@ -23,9 +23,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Locale;
 
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.BaseColumns;
@@ -52,7 +55,7 @@ import org.sufficientlysecure.keychain.util.Log;
  */
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "openkeychain.db";
-    private static final int DATABASE_VERSION = 20;
+    private static final int DATABASE_VERSION = 23;
     private Context mContext;
 
     public interface Tables {
@@ -61,6 +64,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         String KEYS = "keys";
         String UPDATED_KEYS = "updated_keys";
         String USER_PACKETS = "user_packets";
+        String USER_IDS_FTS = "user_ids_fts";
         String CERTS = "certs";
         String API_APPS = "api_apps";
         String API_ACCOUNTS = "api_accounts";
@@ -70,13 +74,16 @@ public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String CREATE_KEYRINGS_PUBLIC =
             "CREATE TABLE IF NOT EXISTS keyrings_public ("
                 + KeyRingsColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY,"
-                + KeyRingsColumns.KEY_RING_DATA + " BLOB"
+                + KeyRingsColumns.KEY_RING_DATA + " BLOB,"
+                + KeyRingsColumns.KEY_RING_DIGEST + " TEXT,"
+                + KeyRingsColumns.UPSTREAM_DIGEST + " TEXT"
             + ")";
 
     private static final String CREATE_KEYRINGS_SECRET =
             "CREATE TABLE IF NOT EXISTS keyrings_secret ("
                     + KeyRingsColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY,"
                     + KeyRingsColumns.KEY_RING_DATA + " BLOB, "
+                    + KeyRingsColumns.KEY_RING_DIGEST + " TEXT, "
                     + "FOREIGN KEY(" + KeyRingsColumns.MASTER_KEY_ID + ") "
                         + "REFERENCES keyrings_public(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
             + ")";
@@ -115,6 +122,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 + UserPacketsColumns.USER_ID + " TEXT, "
                 + UserPacketsColumns.NAME + " TEXT, "
                 + UserPacketsColumns.EMAIL + " TEXT, "
+                + UserPacketsColumns.EMAIL_NORMALIZED + " TEXT, "
                 + UserPacketsColumns.COMMENT + " TEXT, "
                 + UserPacketsColumns.ATTRIBUTE_DATA + " BLOB, "
 
@@ -127,6 +135,34 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                     + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
             + ")";
 
+    /**
+     * Full-text index over all user ids of each keyring, with the master key id as docid.
+     * This is kept up to date by the triggers below, which also covers cascading deletes.
+     */
+    private static final String CREATE_USER_IDS_FTS =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + Tables.USER_IDS_FTS + " USING fts4("
+                + UserPacketsColumns.USER_ID
+            + ")";
+
+    private static final String UPDATE_USER_IDS_FTS_FOR_KEY =
+            "DELETE FROM " + Tables.USER_IDS_FTS + " WHERE docid = %1$s." + UserPacketsColumns.MASTER_KEY_ID + ";"
+            + "INSERT INTO " + Tables.USER_IDS_FTS + " (docid, " + UserPacketsColumns.USER_ID + ")"
+                + " SELECT " + UserPacketsColumns.MASTER_KEY_ID + ", group_concat(" + UserPacketsColumns.USER_ID + ", ' ')"
+                + " FROM " + Tables.USER_PACKETS
+                + " WHERE " + UserPacketsColumns.MASTER_KEY_ID + " = %1$s." + UserPacketsColumns.MASTER_KEY_ID
+                    + " AND " + UserPacketsColumns.USER_ID + " IS NOT NULL"
+                + " GROUP BY " + UserPacketsColumns.MASTER_KEY_ID + ";";
+
+    private static final String CREATE_USER_IDS_FTS_INSERT_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS user_ids_fts_insert AFTER INSERT ON " + Tables.USER_PACKETS
+                + " WHEN new." + UserPacketsColumns.USER_ID + " IS NOT NULL"
+            + " BEGIN " + String.format(UPDATE_USER_IDS_FTS_FOR_KEY, "new") + " END";
+
+    private static final String CREATE_USER_IDS_FTS_DELETE_TRIGGER =
+            "CREATE TRIGGER IF NOT EXISTS user_ids_fts_delete AFTER DELETE ON " + Tables.USER_PACKETS
+                + " WHEN old." + UserPacketsColumns.USER_ID + " IS NOT NULL"
+            + " BEGIN " + String.format(UPDATE_USER_IDS_FTS_FOR_KEY, "old") + " END";
+
     private static final String CREATE_CERTS =
             "CREATE TABLE IF NOT EXISTS " + Tables.CERTS + "("
                 + CertsColumns.MASTER_KEY_ID + " INTEGER,"
@@ -190,6 +226,16 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 + Tables.API_APPS + "(" + ApiAppsAllowedKeysColumns.PACKAGE_NAME + ") ON DELETE CASCADE"
                 + ")";
 
+    private static final String CREATE_INDEX_PUBLIC_KEY_RING_DIGEST =
+            "CREATE INDEX IF NOT EXISTS keyrings_public_by_digest ON " + Tables.KEY_RINGS_PUBLIC
+                + " (" + KeyRingsColumns.KEY_RING_DIGEST + ")";
+    private static final String CREATE_INDEX_PUBLIC_UPSTREAM_DIGEST =
+            "CREATE INDEX IF NOT EXISTS keyrings_public_by_upstream_digest ON " + Tables.KEY_RINGS_PUBLIC
+                + " (" + KeyRingsColumns.UPSTREAM_DIGEST + ")";
+    private static final String CREATE_INDEX_SECRET_KEY_RING_DIGEST =
+            "CREATE INDEX IF NOT EXISTS keyrings_secret_by_digest ON " + Tables.KEY_RINGS_SECRET
+                + " (" + KeyRingsColumns.KEY_RING_DIGEST + ")";
+
     public KeychainDatabase(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         mContext = context;
@@ -210,10 +256,20 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         db.execSQL(CREATE_API_APPS_ALLOWED_KEYS);
 
         db.execSQL("CREATE INDEX keys_by_rank ON keys (" + KeysColumns.RANK + ");");
+        db.execSQL("CREATE INDEX keys_by_key_id ON keys (" + KeysColumns.KEY_ID + ");");
         db.execSQL("CREATE INDEX uids_by_rank ON user_packets (" + UserPacketsColumns.RANK + ", "
                 + UserPacketsColumns.USER_ID + ", " + UserPacketsColumns.MASTER_KEY_ID + ");");
         db.execSQL("CREATE INDEX verified_certs ON certs ("
                 + CertsColumns.VERIFIED + ", " + CertsColumns.MASTER_KEY_ID + ");");
+        db.execSQL("CREATE INDEX uids_by_email_normalized ON user_packets ("
+                + UserPacketsColumns.EMAIL_NORMALIZED + ");");
+        db.execSQL(CREATE_INDEX_PUBLIC_KEY_RING_DIGEST);
+        db.execSQL(CREATE_INDEX_PUBLIC_UPSTREAM_DIGEST);
+        db.execSQL(CREATE_INDEX_SECRET_KEY_RING_DIGEST);
+
+        db.execSQL(CREATE_USER_IDS_FTS);
+        db.execSQL(CREATE_USER_IDS_FTS_INSERT_TRIGGER);
+        db.execSQL(CREATE_USER_IDS_FTS_DELETE_TRIGGER);
 
     }
 
@@ -301,6 +357,9 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 db.execSQL("CREATE INDEX uids_by_email ON user_packets (email COLLATE NOCASE)");
                 if (oldVersion == 14) {
                     // no consolidate necessary
+                    migrateUserIdSearch(db);
+                    db.execSQL("CREATE INDEX IF NOT EXISTS keys_by_key_id ON keys (key_id)");
+                    addKeyRingDigests(db);
                     return;
                 }
             case 16:
@@ -314,6 +373,19 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 db.execSQL("UPDATE keys SET is_secure = 1;");
                 if (oldVersion == 18 || oldVersion == 19) {
                     // no consolidate for now, often crashes!
+                    migrateUserIdSearch(db);
+                    db.execSQL("CREATE INDEX IF NOT EXISTS keys_by_key_id ON keys (key_id)");
+                    addKeyRingDigests(db);
+                    return;
+                }
+            case 20:
+                migrateUserIdSearch(db);
+            case 21:
+                db.execSQL("CREATE INDEX IF NOT EXISTS keys_by_key_id ON keys (key_id)");
+            case 22:
+                addKeyRingDigests(db);
+                if (oldVersion == 20 || oldVersion == 21 || oldVersion == 22) {
+                    // no consolidate necessary
                     return;
                 }
         }
@@ -326,6 +398,105 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         mContext.getApplicationContext().startActivity(consolidateIntent);
     }
 
+    /** Adds the normalized email column and the full-text index of user ids, filled in place. */
+    private static void migrateUserIdSearch(SQLiteDatabase db) {
+        addColumnIfMissing(db, Tables.USER_PACKETS, UserPacketsColumns.EMAIL_NORMALIZED, "TEXT");
+        db.execSQL("CREATE INDEX IF NOT EXISTS uids_by_email_normalized ON user_packets (email_normalized)");
+
+        // done here rather than in sql, so this is exactly the normalization used on insert
+        Cursor cursor = db.query(Tables.USER_PACKETS, new String[] { "oid", UserPacketsColumns.EMAIL },
+                UserPacketsColumns.EMAIL + " IS NOT NULL", null, null, null, null);
+        try {
+            ContentValues values = new ContentValues(1);
+            while (cursor.moveToNext()) {
+                values.put(UserPacketsColumns.EMAIL_NORMALIZED, normalizeEmail(cursor.getString(1)));
+                db.update(Tables.USER_PACKETS, values, "oid = ?", new String[] { cursor.getString(0) });
+            }
+        } finally {
+            cursor.close();
+        }
+
+        db.execSQL(CREATE_USER_IDS_FTS);
+        db.execSQL("INSERT INTO user_ids_fts (docid, user_id)"
+                + " SELECT master_key_id, group_concat(user_id, ' ') FROM user_packets"
+                + " WHERE user_id IS NOT NULL GROUP BY master_key_id");
+        db.execSQL(CREATE_USER_IDS_FTS_INSERT_TRIGGER);
+        db.execSQL(CREATE_USER_IDS_FTS_DELETE_TRIGGER);
+    }
+
+    /**
+     * Adds the digest columns to both keyring tables, and fills them in for existing keyrings,
+     * so their next import or contact sync can be short-circuited right away.
+     */
+    private void addKeyRingDigests(SQLiteDatabase db) {
+        // columns which already exist are skipped, any other failure aborts the upgrade
+        addColumnIfMissing(db, Tables.KEY_RINGS_PUBLIC, KeyRingsColumns.KEY_RING_DIGEST, "TEXT");
+        addColumnIfMissing(db, Tables.KEY_RINGS_PUBLIC, KeyRingsColumns.UPSTREAM_DIGEST, "TEXT");
+        addColumnIfMissing(db, Tables.KEY_RINGS_SECRET, KeyRingsColumns.KEY_RING_DIGEST, "TEXT");
+        db.execSQL(CREATE_INDEX_PUBLIC_KEY_RING_DIGEST);
+        db.execSQL(CREATE_INDEX_PUBLIC_UPSTREAM_DIGEST);
+        db.execSQL(CREATE_INDEX_SECRET_KEY_RING_DIGEST);
+
+        fillKeyRingDigests(db, Tables.KEY_RINGS_PUBLIC, LocalPublicKeyStorage.getInstance(mContext));
+        fillKeyRingDigests(db, Tables.KEY_RINGS_SECRET, null);
+    }
+
+    /**
+     * Computes the digests of all keyrings in a table which have none yet. Large public keyrings
+     * are only kept in local storage, those are read from there. Keyrings whose data can't be
+     * read keep no digest, and just get one the next time they are saved.
+     */
+    private static void fillKeyRingDigests(SQLiteDatabase db, String table, LocalPublicKeyStorage storage) {
+        Cursor cursor = db.query(table, new String[] { KeyRingsColumns.MASTER_KEY_ID, KeyRingsColumns.KEY_RING_DATA },
+                KeyRingsColumns.KEY_RING_DIGEST + " IS NULL", null, null, null, null);
+        try {
+            ContentValues values = new ContentValues(1);
+            while (cursor.moveToNext()) {
+                long masterKeyId = cursor.getLong(0);
+                byte[] data = cursor.getBlob(1);
+                if (data == null && storage != null) {
+                    try {
+                        data = storage.readPublicKey(masterKeyId);
+                    } catch (IOException e) {
+                        Log.e(Constants.TAG, "Error reading public key from storage!", e);
+                    }
+                }
+                if (data == null) {
+                    continue;
+                }
+
+                values.put(KeyRingsColumns.KEY_RING_DIGEST, KeyRepository.computeKeyRingDigest(data));
+                db.update(table, values, KeyRingsColumns.MASTER_KEY_ID + " = ?",
+                        new String[] { Long.toString(masterKeyId) });
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void addColumnIfMissing(SQLiteDatabase db, String table, String column, String type) {
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int nameIndex = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(nameIndex))) {
+                    return;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+    }
+
+    /** Normalizes an email address for exact, case insensitive lookups. */
+    static String normalizeEmail(String email) {
+        if (email == null) {
+            return null;
+        }
+        return email.trim().toLowerCase(Locale.ENGLISH);
+    }
+
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         // Downgrade is ok for the debug version, makes it easier to work with branches
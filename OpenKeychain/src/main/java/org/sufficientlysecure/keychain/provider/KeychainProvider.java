@@ -20,7 +20,10 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -46,9 +49,11 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColu
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 public class KeychainProvider extends ContentProvider {
@@ -57,6 +62,7 @@ public class KeychainProvider extends ContentProvider {
     private static final int KEY_RINGS_PUBLIC = 102;
     private static final int KEY_RINGS_SECRET = 103;
     private static final int KEY_RINGS_USER_IDS = 104;
+    private static final int KEY_RINGS_KEYS = 105;
 
     private static final int KEY_RING_UNIFIED = 200;
     private static final int KEY_RING_KEYS = 201;
@@ -100,6 +106,7 @@ public class KeychainProvider extends ContentProvider {
          * key_rings/public
          * key_rings/secret
          * key_rings/user_ids
+         * key_rings/keys
          * </pre>
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
@@ -114,6 +121,9 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
                         + "/" + KeychainContract.PATH_USER_IDS,
                 KEY_RINGS_USER_IDS);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS
+                        + "/" + KeychainContract.PATH_KEYS,
+                KEY_RINGS_KEYS);
 
         /**
          * find by criteria other than master key id
@@ -227,6 +237,56 @@ public class KeychainProvider extends ContentProvider {
         return mKeychainDatabase;
     }
 
+    /** Uris changed during the batch running on the current thread, null if there is none */
+    private final ThreadLocal<HashSet<Uri>> mBatchChangedUris = new ThreadLocal<>();
+
+    /**
+     * Applies all operations in a single transaction if the batch asks for it, see
+     * KeychainContract.PARAM_BATCH_TRANSACTION. Change notifications are collected and sent
+     * once after the transaction has been committed, and not at all if it is rolled back.
+     * Other batches are applied operation by operation, as usual.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        if (operations.isEmpty() || !operations.get(0).getUri()
+                .getBooleanQueryParameter(KeychainContract.PARAM_BATCH_TRANSACTION, false)) {
+            return super.applyBatch(operations);
+        }
+
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+
+        HashSet<Uri> changedUris = new HashSet<>();
+        mBatchChangedUris.set(changedUris);
+        boolean committed = false;
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            committed = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            mBatchChangedUris.set(null);
+
+            if (committed) {
+                for (Uri uri : changedUris) {
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+            }
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        HashSet<Uri> batchChangedUris = mBatchChangedUris.get();
+        if (batchChangedUris != null) {
+            batchChangedUris.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -237,6 +297,7 @@ public class KeychainProvider extends ContentProvider {
             case KEY_RING_PUBLIC:
                 return KeyRings.CONTENT_ITEM_TYPE;
 
+            case KEY_RINGS_KEYS:
             case KEY_RING_KEYS:
                 return Keys.CONTENT_TYPE;
 
@@ -329,6 +390,11 @@ public class KeychainProvider extends ContentProvider {
                                 + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " = "
                                 + Tables.KEY_RINGS_SECRET + "." + KeyRingData.MASTER_KEY_ID
                                 + ")) AS " + KeyRings.HAS_ANY_SECRET);
+                projectionMap.put(KeyRings.KEY_RING_DIGEST,
+                        "(SELECT " + KeyRingData.KEY_RING_DIGEST + " FROM " + Tables.KEY_RINGS_PUBLIC + " WHERE "
+                                + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " = "
+                                + Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.MASTER_KEY_ID
+                                + ") AS " + KeyRings.KEY_RING_DIGEST);
                 projectionMap.put(KeyRings.HAS_ENCRYPT,
                         "kE." + Keys.KEY_ID + " AS " + KeyRings.HAS_ENCRYPT);
                 projectionMap.put(KeyRings.HAS_SIGN,
@@ -420,11 +486,10 @@ public class KeychainProvider extends ContentProvider {
                     case KEY_RINGS_FIND_BY_SUBKEY: {
                         try {
                             String subkey = Long.valueOf(uri.getLastPathSegment()).toString();
-                            qb.appendWhere(" AND EXISTS ("
-                                    + " SELECT 1 FROM " + Tables.KEYS + " AS tmp"
-                                    + " WHERE tmp." + UserPackets.MASTER_KEY_ID
-                                    + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                    + " AND tmp." + Keys.KEY_ID + " = " + subkey + ""
+                            // uses the keys_by_key_id index, rather than checking each keyring
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                                    + " SELECT tmp." + Keys.MASTER_KEY_ID + " FROM " + Tables.KEYS + " AS tmp"
+                                    + " WHERE tmp." + Keys.KEY_ID + " = " + subkey
                                     + ")");
                         } catch(NumberFormatException e) {
                             Log.e(Constants.TAG, "Malformed find by subkey query!", e);
@@ -438,29 +503,34 @@ public class KeychainProvider extends ContentProvider {
                         boolean gotCondition = false;
                         String emailWhere = "";
                         // JAVA ♥
-                        for (int i = 0; i < chunks.length; ++i) {
-                            if (chunks[i].length() == 0) {
+                        for (String chunk : chunks) {
+                            String condition = match == KEY_RINGS_FIND_BY_EMAIL
+                                    ? DatabaseUtils.sqlEscapeString(KeychainDatabase.normalizeEmail(chunk))
+                                    : buildUserIdMatchQuery(chunk);
+                            if (chunk.length() == 0 || condition == null) {
                                 continue;
                             }
-                            if (i != 0) {
-                                emailWhere += " OR ";
+                            if (gotCondition) {
+                                emailWhere += match == KEY_RINGS_FIND_BY_EMAIL ? ", " : " UNION ";
                             }
                             if (match == KEY_RINGS_FIND_BY_EMAIL) {
-                                emailWhere += "tmp." + UserPackets.EMAIL + " LIKE "
-                                        + DatabaseUtils.sqlEscapeString(chunks[i]);
+                                emailWhere += condition;
                             } else {
-                                emailWhere += "tmp." + UserPackets.USER_ID + " LIKE "
-                                        + DatabaseUtils.sqlEscapeString("%" + chunks[i] + "%");
+                                // the full-text index has one row per keyring, with the master key id as docid
+                                emailWhere += "SELECT docid FROM " + Tables.USER_IDS_FTS
+                                        + " WHERE " + Tables.USER_IDS_FTS + " MATCH "
+                                        + DatabaseUtils.sqlEscapeString(condition);
                             }
                             gotCondition = true;
                         }
-                        if(gotCondition) {
-                            qb.appendWhere(" AND EXISTS ("
-                                + " SELECT 1 FROM " + Tables.USER_PACKETS + " AS tmp"
-                                    + " WHERE tmp." + UserPackets.MASTER_KEY_ID
-                                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                        + " AND (" + emailWhere + ")"
+                        if (gotCondition && match == KEY_RINGS_FIND_BY_EMAIL) {
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID + " IN ("
+                                + " SELECT " + UserPackets.MASTER_KEY_ID + " FROM " + Tables.USER_PACKETS
+                                    + " WHERE " + UserPackets.EMAIL_NORMALIZED + " IN (" + emailWhere + ")"
                                 + ")");
+                        } else if (gotCondition) {
+                            qb.appendWhere(" AND " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                                    + " IN (" + emailWhere + ")");
                         } else {
                             // TODO better way to do this?
                             Log.e(Constants.TAG, "Malformed find by email query!");
@@ -480,6 +550,7 @@ public class KeychainProvider extends ContentProvider {
                 break;
             }
 
+            case KEY_RINGS_KEYS:
             case KEY_RING_KEYS: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(Keys._ID, Tables.KEYS + ".oid AS _id");
@@ -502,8 +573,10 @@ public class KeychainProvider extends ContentProvider {
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEYS);
-                qb.appendWhere(Keys.MASTER_KEY_ID + " = ");
-                qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                if (match == KEY_RING_KEYS) {
+                    qb.appendWhere(Keys.MASTER_KEY_ID + " = ");
+                    qb.appendWhereEscapeString(uri.getPathSegments().get(1));
+                }
 
                 break;
             }
@@ -566,6 +639,8 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(KeyRingData._ID, Tables.KEY_RINGS_PUBLIC + ".oid AS _id");
                 projectionMap.put(KeyRingData.MASTER_KEY_ID, KeyRingData.MASTER_KEY_ID);
                 projectionMap.put(KeyRingData.KEY_RING_DATA, KeyRingData.KEY_RING_DATA);
+                projectionMap.put(KeyRingData.KEY_RING_DIGEST, KeyRingData.KEY_RING_DIGEST);
+                projectionMap.put(KeyRingData.UPSTREAM_DIGEST, KeyRingData.UPSTREAM_DIGEST);
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEY_RINGS_PUBLIC);
@@ -584,6 +659,7 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(KeyRingData._ID, Tables.KEY_RINGS_SECRET + ".oid AS _id");
                 projectionMap.put(KeyRingData.MASTER_KEY_ID, KeyRingData.MASTER_KEY_ID);
                 projectionMap.put(KeyRingData.KEY_RING_DATA, KeyRingData.KEY_RING_DATA);
+                projectionMap.put(KeyRingData.KEY_RING_DIGEST, KeyRingData.KEY_RING_DIGEST);
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEY_RINGS_SECRET);
@@ -761,6 +837,26 @@ public class KeychainProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * Builds a full-text query matching user ids which contain words starting with each
+     * word of the search string, or null if there are no words in it. Words are split the
+     * same way as by the default tokenizer of the index, and quoted so they are never
+     * taken for query operators.
+     */
+    private static String buildUserIdMatchQuery(String search) {
+        StringBuilder query = new StringBuilder();
+        for (String word : search.split("[^a-zA-Z0-9\\u0080-\\uffff]+")) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (query.length() > 0) {
+                query.append(' ');
+            }
+            query.append('"').append(word).append("*\"");
+        }
+        return query.length() > 0 ? query.toString() : null;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -802,6 +898,8 @@ public class KeychainProvider extends ContentProvider {
                     if (((Number) values.get(UserPacketsColumns.RANK)).intValue() == 0 && values.get(UserPacketsColumns.USER_ID) == null) {
                         throw new AssertionError("Rank 0 user packet must be a user id!");
                     }
+                    values.put(UserPacketsColumns.EMAIL_NORMALIZED,
+                            KeychainDatabase.normalizeEmail(values.getAsString(UserPacketsColumns.EMAIL)));
                     db.insertOrThrow(Tables.USER_PACKETS, null, values);
                     keyId = values.getAsLong(UserPackets.MASTER_KEY_ID);
                     break;
@@ -852,7 +950,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on insert! Entry already existing?", e);
@@ -922,7 +1020,7 @@ public class KeychainProvider extends ContentProvider {
         }
 
         // notify of changes in db
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         return count;
     }
@@ -954,6 +1052,20 @@ public class KeychainProvider extends ContentProvider {
                     count = db.update(Tables.KEYS, values, actualSelection, selectionArgs);
                     break;
                 }
+                case KEY_RING_PUBLIC: {
+                    if (values.size() != 1 || !values.containsKey(KeyRingData.UPSTREAM_DIGEST)) {
+                        throw new UnsupportedOperationException(
+                                "Only upstream_digest column may be updated!");
+                    }
+                    // make sure we get a long value here
+                    Long mkid = Long.parseLong(uri.getPathSegments().get(1));
+                    String actualSelection = KeyRingData.MASTER_KEY_ID + " = " + Long.toString(mkid);
+                    if (!TextUtils.isEmpty(selection)) {
+                        actualSelection += " AND (" + selection + ")";
+                    }
+                    count = db.update(Tables.KEY_RINGS_PUBLIC, values, actualSelection, selectionArgs);
+                    break;
+                }
                 case API_APPS_BY_PACKAGE_NAME: {
                     count = db.update(Tables.API_APPS, values,
                             buildDefaultApiAppsSelection(uri, selection), selectionArgs);
@@ -970,7 +1082,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on update! Entry already existing?", e);
@@ -1,88 +1,485 @@
 package org.sufficientlysecure.keychain.provider;
 
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FileFilter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
+import android.support.annotation.VisibleForTesting;
 
-import okhttp3.internal.Util;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
 
 
+/**
+ * Stores encoded public keyrings in an append-only pack file.
+ * <p/>
+ * Each record in the pack consists of the master key id, the length of the keyring, and the
+ * encoded keyring. Updating a keyring appends a new record, deleting one appends a record with
+ * length TOMBSTONE. An index from master key id to record offset is built by scanning the record
+ * headers, and keyrings are read from read-only mappings of the pack. Data appended to the pack
+ * is mapped as a region of its own, so growing the pack doesn't remap what is already mapped.
+ * <p/>
+ * The app runs in several processes, each with its own instance of this class. All writes are
+ * done under a FileLock on a separate lock file, and each process picks up records appended by
+ * others on its next access. Once stale records take up more than half the pack, it is compacted
+ * in the background into a new pack with the next generation number, and the old one is deleted.
+ * Keyrings stored as one file per key by earlier versions are moved into the pack when it is
+ * first created.
+ */
 class LocalPublicKeyStorage {
-    private static final String FORMAT_STR_PUBLIC_KEY = "0x%016x.pub";
     private static final String PUBLIC_KEYS_DIR_NAME = "public_keys";
+    private static final String LEGACY_PUBLIC_KEY_SUFFIX = ".pub";
+    private static final String PACK_FILE_PREFIX = "keys.";
+    private static final String PACK_FILE_SUFFIX = ".pack";
+    private static final String LOCK_FILE_NAME = "keys.lock";
+
+    private static final int PACK_MAGIC = 0x4f4b504b;
+    private static final int PACK_HEADER_SIZE = 4;
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final int TOMBSTONE = -1;
+
+    private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+    // beyond this, all mapped regions are replaced by a single mapping of the whole pack
+    private static final int MAX_MAPPED_REGIONS = 16;
+
+    private static final HashMap<File, LocalPublicKeyStorage> sInstances = new HashMap<>();
+    // FileLocks are held by the process, so threads of the same process are kept apart here
+    private static final Object sFileLockMonitor = new Object();
+    // compactions of all packs run one at a time, the thread is only kept while there is work
+    private static final ThreadPoolExecutor sCompactionExecutor = new ThreadPoolExecutor(
+            1, 1, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+    static {
+        sCompactionExecutor.allowCoreThreadTimeOut(true);
+    }
 
 
     private final File localPublicKeysDir;
+    private final HashMap<Long, Long> recordOffsets = new HashMap<>();
+
+    private FileChannel lockChannel;
+    private long packGeneration;
+    private FileChannel packChannel;
+    // mapped regions of the pack, by offset. records never span two regions
+    private final TreeMap<Long, MappedByteBuffer> packRegions = new TreeMap<>();
+    private long mappedSize;
+    private long indexedSize;
+    private long staleSize;
+    private boolean compactionScheduled;
 
 
     public static LocalPublicKeyStorage getInstance(Context context) {
         File localPublicKeysDir = new File(context.getFilesDir(), PUBLIC_KEYS_DIR_NAME);
-        return new LocalPublicKeyStorage(localPublicKeysDir);
+        synchronized (sInstances) {
+            LocalPublicKeyStorage instance = sInstances.get(localPublicKeysDir);
+            if (instance == null) {
+                instance = new LocalPublicKeyStorage(localPublicKeysDir);
+                sInstances.put(localPublicKeysDir, instance);
+            }
+            return instance;
+        }
     }
 
-    private LocalPublicKeyStorage(File localPublicKeysDir) {
+    @VisibleForTesting
+    LocalPublicKeyStorage(File localPublicKeysDir) {
         this.localPublicKeysDir = localPublicKeysDir;
     }
 
-    private File getPublicKeyFile(long masterKeyId) throws IOException {
-        if (!localPublicKeysDir.exists()) {
-            localPublicKeysDir.mkdir();
+    synchronized void writePublicKey(long masterKeyId, byte[] encoded) throws IOException {
+        synchronized (sFileLockMonitor) {
+            FileLock lock = lockPack();
+            try {
+                appendRecord(masterKeyId, encoded);
+            } finally {
+                lock.release();
+            }
         }
-        if (!localPublicKeysDir.isDirectory()) {
-            throw new IOException("Failed creating public key directory!");
+        scheduleCompactionIfNeeded();
+    }
+
+    synchronized byte[] readPublicKey(long masterKeyId) throws IOException {
+        openPackIfNeeded();
+        if (packChannel == null) {
+            // first access, create the pack
+            synchronized (sFileLockMonitor) {
+                lockPack().release();
+            }
+        }
+        refreshIndex();
+
+        Long offset = recordOffsets.get(masterKeyId);
+        if (offset == null) {
+            return null;
+        }
+
+        int length = readRecordLength(offset);
+        if (offset >= mappedSize) {
+            mapPack();
         }
 
-        String keyFilename = String.format(FORMAT_STR_PUBLIC_KEY, masterKeyId);
-        return new File(localPublicKeysDir, keyFilename);
+        Entry<Long, MappedByteBuffer> region = packRegions.floorEntry(offset);
+        ByteBuffer slice = region.getValue().duplicate();
+        slice.position((int) (offset - region.getKey() + RECORD_HEADER_SIZE));
+        byte[] encoded = new byte[length];
+        slice.get(encoded);
+        return encoded;
     }
 
-    void writePublicKey(long masterKeyId, byte[] encoded) throws IOException {
-        File publicKeyFile = getPublicKeyFile(masterKeyId);
+    synchronized void deletePublicKey(long masterKeyId) throws IOException {
+        synchronized (sFileLockMonitor) {
+            FileLock lock = lockPack();
+            try {
+                if (recordOffsets.containsKey(masterKeyId)) {
+                    appendRecord(masterKeyId, null);
+                }
+            } finally {
+                lock.release();
+            }
+        }
+        scheduleCompactionIfNeeded();
+    }
 
-        FileOutputStream fileOutputStream = new FileOutputStream(publicKeyFile);
+    /** Writes all current records into a new pack, dropping the stale ones. */
+    synchronized void compact() throws IOException {
+        synchronized (sFileLockMonitor) {
+            FileLock lock = lockPack();
+            try {
+                long newGeneration = packGeneration + 1;
+                File tempFile = new File(localPublicKeysDir, getPackFilename(newGeneration) + ".tmp");
+                RandomAccessFile newPack = new RandomAccessFile(tempFile, "rw");
+                try {
+                    FileChannel newPackChannel = newPack.getChannel();
+                    newPackChannel.truncate(0);
+                    writeFully(newPackChannel, createPackHeader(), 0);
+                    // transferTo appends at the channel's position
+                    newPackChannel.position(PACK_HEADER_SIZE);
+                    for (long offset : recordOffsets.values()) {
+                        long recordSize = RECORD_HEADER_SIZE + readRecordLength(offset);
+                        long transferred = 0;
+                        while (transferred < recordSize) {
+                            transferred += packChannel.transferTo(
+                                    offset + transferred, recordSize - transferred, newPackChannel);
+                        }
+                    }
+                    newPackChannel.force(true);
+                } finally {
+                    closeQuietly(newPack);
+                }
+
+                if (!tempFile.renameTo(getPackFile(newGeneration))) {
+                    throw new IOException("Failed moving compacted public key pack into place!");
+                }
+                File oldPackFile = getPackFile(packGeneration);
+                openPack(newGeneration);
+                refreshIndex();
+                if (!oldPackFile.delete()) {
+                    Log.e(Constants.TAG, "Could not delete old public key pack!");
+                }
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private void scheduleCompactionIfNeeded() {
+        if (compactionScheduled || staleSize < MIN_COMPACTION_SIZE || staleSize * 2 < indexedSize) {
+            return;
+        }
+        compactionScheduled = true;
+
+        sCompactionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    Log.e(Constants.TAG, "Error compacting public key pack!", e);
+                } finally {
+                    synchronized (LocalPublicKeyStorage.this) {
+                        compactionScheduled = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Locks the pack against writes from other processes, and brings this instance up to date
+     * with it. Must be called while holding sFileLockMonitor.
+     */
+    private FileLock lockPack() throws IOException {
+        if (lockChannel == null) {
+            createPublicKeysDir();
+            lockChannel = new RandomAccessFile(new File(localPublicKeysDir, LOCK_FILE_NAME), "rw").getChannel();
+        }
+
+        FileLock lock = lockChannel.lock();
         try {
-            fileOutputStream.write(encoded);
-        } finally {
-            Util.closeQuietly(fileOutputStream);
+            openPackIfNeeded();
+            if (packChannel == null) {
+                createPack();
+                openPackIfNeeded();
+            }
+            refreshIndex();
+            // drop the incomplete record of an interrupted write, if any
+            if (packChannel.size() > indexedSize) {
+                packChannel.truncate(indexedSize);
+            }
+        } catch (IOException | RuntimeException e) {
+            lock.release();
+            throw e;
+        }
+        return lock;
+    }
+
+    private void appendRecord(long masterKeyId, byte[] encoded) throws IOException {
+        int length = encoded != null ? encoded.length : TOMBSTONE;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + Math.max(length, 0));
+        record.putLong(masterKeyId);
+        record.putInt(length);
+        if (encoded != null) {
+            record.put(encoded);
         }
+        record.flip();
+
+        long offset = indexedSize;
+        writeFully(packChannel, record, offset);
+        indexRecord(masterKeyId, length, offset);
+        indexedSize = offset + RECORD_HEADER_SIZE + Math.max(length, 0);
     }
 
-    byte[] readPublicKey(long masterKeyId) throws IOException {
-        File publicKeyFile = getPublicKeyFile(masterKeyId);
+    private void openPackIfNeeded() throws IOException {
+        // a compaction in another process replaces the pack with one of a later generation
+        if (packChannel != null && getPackFile(packGeneration).exists()) {
+            return;
+        }
+
+        long generation = findLatestGeneration();
+        if (!getPackFile(generation).exists()) {
+            // nothing stored yet, the pack is created with the first write
+            recordOffsets.clear();
+            return;
+        }
+        openPack(generation);
+    }
+
+    private void openPack(long generation) throws IOException {
+        if (packChannel != null) {
+            closeQuietly(packChannel);
+        }
+
+        packChannel = new RandomAccessFile(getPackFile(generation), "rw").getChannel();
+        packGeneration = generation;
+        packRegions.clear();
+        mappedSize = 0;
+        recordOffsets.clear();
+        indexedSize = PACK_HEADER_SIZE;
+        staleSize = 0;
+
+        ByteBuffer header = ByteBuffer.allocate(PACK_HEADER_SIZE);
+        packChannel.read(header, 0);
+        if (header.getInt(0) != PACK_MAGIC) {
+            throw new IOException("Public key pack has wrong format!");
+        }
+    }
 
+    /**
+     * Creates the first pack, containing all keyrings stored as one file per key by earlier
+     * versions. The pack is only moved into place once complete, so other processes never
+     * see it without those keyrings.
+     */
+    private void createPack() throws IOException {
+        File[] legacyFiles = localPublicKeysDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(LEGACY_PUBLIC_KEY_SUFFIX);
+            }
+        });
+
+        File tempFile = new File(localPublicKeysDir, getPackFilename(0) + ".tmp");
+        RandomAccessFile newPack = new RandomAccessFile(tempFile, "rw");
         try {
-            FileInputStream fileInputStream = new FileInputStream(publicKeyFile);
-            return readIntoByteArray(fileInputStream);
-        } catch (FileNotFoundException e) {
-            return null;
+            FileChannel newPackChannel = newPack.getChannel();
+            newPackChannel.truncate(0);
+            writeFully(newPackChannel, createPackHeader(), 0);
+
+            if (legacyFiles != null && legacyFiles.length > 0) {
+                Log.d(Constants.TAG, "Moving " + legacyFiles.length + " public keys into pack");
+                long position = PACK_HEADER_SIZE;
+                for (File legacyFile : legacyFiles) {
+                    // filenames are of the form 0x0123456789abcdef.pub
+                    String name = legacyFile.getName();
+                    long masterKeyId = new BigInteger(
+                            name.substring(2, name.length() - LEGACY_PUBLIC_KEY_SUFFIX.length()), 16).longValue();
+
+                    RandomAccessFile file = new RandomAccessFile(legacyFile, "r");
+                    try {
+                        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + (int) file.length());
+                        record.putLong(masterKeyId);
+                        record.putInt((int) file.length());
+                        file.readFully(record.array(), RECORD_HEADER_SIZE, (int) file.length());
+                        record.position(0);
+                        writeFully(newPackChannel, record, position);
+                        position += record.capacity();
+                    } finally {
+                        closeQuietly(file);
+                    }
+                }
+            }
+            newPackChannel.force(true);
+        } finally {
+            closeQuietly(newPack);
+        }
+
+        if (!tempFile.renameTo(getPackFile(0))) {
+            throw new IOException("Failed creating public key pack!");
+        }
+
+        if (legacyFiles != null) {
+            for (File legacyFile : legacyFiles) {
+                if (!legacyFile.delete()) {
+                    Log.e(Constants.TAG, "Could not delete migrated public key file " + legacyFile);
+                }
+            }
+        }
+    }
+
+    /** Indexes all records appended since the last call. */
+    private void refreshIndex() throws IOException {
+        if (packChannel == null) {
+            return;
+        }
+
+        long size = packChannel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Public key pack too large to map!");
+        }
+
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (indexedSize + RECORD_HEADER_SIZE <= size) {
+            recordHeader.clear();
+            readFully(packChannel, recordHeader, indexedSize);
+            long masterKeyId = recordHeader.getLong(0);
+            int length = recordHeader.getInt(8);
+
+            long end = indexedSize + RECORD_HEADER_SIZE + Math.max(length, 0);
+            if (end > size) {
+                // incomplete record, will be dropped with the next write
+                break;
+            }
+            indexRecord(masterKeyId, length, indexedSize);
+            indexedSize = end;
+        }
+    }
+
+    private void indexRecord(long masterKeyId, int length, long offset) throws IOException {
+        Long previousOffset = length == TOMBSTONE
+                ? recordOffsets.remove(masterKeyId) : recordOffsets.put(masterKeyId, offset);
+        if (previousOffset != null) {
+            staleSize += RECORD_HEADER_SIZE + readRecordLength(previousOffset);
+        }
+        if (length == TOMBSTONE) {
+            staleSize += RECORD_HEADER_SIZE;
+        }
+    }
+
+    /** Maps all indexed records which are not mapped yet. */
+    private void mapPack() throws IOException {
+        if (packRegions.size() >= MAX_MAPPED_REGIONS) {
+            packRegions.clear();
+            mappedSize = 0;
+        }
+        packRegions.put(mappedSize, packChannel.map(MapMode.READ_ONLY, mappedSize, indexedSize - mappedSize));
+        mappedSize = indexedSize;
+    }
+
+    private int readRecordLength(long offset) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(packChannel, length, offset + 8);
+        return length.getInt(0);
+    }
+
+    private long findLatestGeneration() {
+        long generation = 0;
+        String[] filenames = localPublicKeysDir.list();
+        if (filenames == null) {
+            return generation;
+        }
+        for (String filename : filenames) {
+            if (!filename.startsWith(PACK_FILE_PREFIX) || !filename.endsWith(PACK_FILE_SUFFIX)) {
+                continue;
+            }
+            try {
+                generation = Math.max(generation, Long.parseLong(filename.substring(
+                        PACK_FILE_PREFIX.length(), filename.length() - PACK_FILE_SUFFIX.length())));
+            } catch (NumberFormatException e) {
+                // not a pack file
+            }
+        }
+        return generation;
+    }
+
+    private void createPublicKeysDir() throws IOException {
+        if (!localPublicKeysDir.exists()) {
+            localPublicKeysDir.mkdir();
+        }
+        if (!localPublicKeysDir.isDirectory()) {
+            throw new IOException("Failed creating public key directory!");
         }
     }
 
-    private static byte[] readIntoByteArray(FileInputStream fileInputStream) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    private File getPackFile(long generation) {
+        return new File(localPublicKeysDir, getPackFilename(generation));
+    }
 
-        byte[] buf = new byte[128];
-        int bytesRead;
-        while ((bytesRead = fileInputStream.read(buf)) != -1) {
-            baos.write(buf, 0, bytesRead);
+    private static String getPackFilename(long generation) {
+        return PACK_FILE_PREFIX + generation + PACK_FILE_SUFFIX;
+    }
+
+    private static ByteBuffer createPackHeader() {
+        ByteBuffer header = ByteBuffer.allocate(PACK_HEADER_SIZE);
+        header.putInt(PACK_MAGIC);
+        header.flip();
+        return header;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
         }
+    }
 
-        return baos.toByteArray();
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "Error closing public key storage file", e);
+        }
     }
 
-    void deletePublicKey(long masterKeyId) throws IOException {
-        File publicKeyFile = getPublicKeyFile(masterKeyId);
-        if (publicKeyFile.exists()) {
-            boolean deleteSuccess = publicKeyFile.delete();
-            if (!deleteSuccess) {
-                throw new IOException("File exists, but could not be deleted!");
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of public key pack!");
             }
+            position += read;
         }
     }
 }
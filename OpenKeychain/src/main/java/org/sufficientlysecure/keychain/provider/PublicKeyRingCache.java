@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+
+
+/**
+ * Process-wide cache of parsed public keyrings, bounded by their encoded size.
+ * <p/>
+ * The same few keyrings are loaded over and over by remote API calls, and parsing
+ * them is a large part of the cost of each call. Entries are dropped in least recently
+ * used order once the encoded size of all cached keyrings exceeds MAX_CACHE_SIZE.
+ * <p/>
+ * Keyrings may be changed from any process, so entries are invalidated by a
+ * ContentObserver on KeyRings.CONTENT_URI. Since those notifications arrive
+ * asynchronously, KeyWritableRepository additionally invalidates entries directly after
+ * each write, and a keyring loaded concurrently with an invalidation is not cached.
+ */
+class PublicKeyRingCache {
+    private static final int MAX_CACHE_SIZE = 2 * 1024 * 1024;
+    // larger keyrings would push out too many others
+    private static final int MAX_ENTRY_SIZE = MAX_CACHE_SIZE / 8;
+
+    private static PublicKeyRingCache sInstance;
+
+    private final Context mApplicationContext;
+    private final ContentObserver mObserver;
+    // in access order, for LRU eviction
+    private final LinkedHashMap<Long, CacheEntry> mKeyRings = new LinkedHashMap<>(16, 0.75f, true);
+    private long mCacheSize;
+    private long mInvalidationCount;
+
+    static synchronized PublicKeyRingCache getInstance(Context context) {
+        Context applicationContext = context.getApplicationContext();
+        if (applicationContext == null) {
+            applicationContext = context;
+        }
+
+        // there is only one application context per process, except in tests
+        if (sInstance == null || sInstance.mApplicationContext != applicationContext) {
+            if (sInstance != null) {
+                sInstance.unregisterObserver();
+            }
+            sInstance = new PublicKeyRingCache(applicationContext);
+        }
+        return sInstance;
+    }
+
+    private PublicKeyRingCache(Context applicationContext) {
+        mApplicationContext = applicationContext;
+        // no handler, notifications are handled right on the binder thread
+        mObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidateAll();
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                invalidate(uri);
+            }
+        };
+        applicationContext.getContentResolver().registerContentObserver(KeyRings.CONTENT_URI, true, mObserver);
+    }
+
+    private void unregisterObserver() {
+        mApplicationContext.getContentResolver().unregisterContentObserver(mObserver);
+    }
+
+    /** Returns the cached keyring, if it is present and has the given verification status. */
+    synchronized CanonicalizedPublicKeyRing get(long masterKeyId, int verified) {
+        CacheEntry entry = mKeyRings.get(masterKeyId);
+        if (entry == null || entry.mKeyRing.getVerified() != verified) {
+            return null;
+        }
+        return entry.mKeyRing;
+    }
+
+    /**
+     * Returns a token to pass to put(), which must be obtained before the keyring is
+     * loaded from the database.
+     */
+    synchronized long getInvalidationCount() {
+        return mInvalidationCount;
+    }
+
+    synchronized void put(long masterKeyId, CanonicalizedPublicKeyRing keyRing, int encodedSize,
+            long invalidationCount) {
+        if (invalidationCount != mInvalidationCount || encodedSize > MAX_ENTRY_SIZE) {
+            // the loaded keyring may already be outdated
+            return;
+        }
+
+        removeEntry(masterKeyId);
+        mKeyRings.put(masterKeyId, new CacheEntry(keyRing, encodedSize));
+        mCacheSize += encodedSize;
+
+        Iterator<CacheEntry> it = mKeyRings.values().iterator();
+        while (mCacheSize > MAX_CACHE_SIZE && it.hasNext()) {
+            mCacheSize -= it.next().mEncodedSize;
+            it.remove();
+        }
+    }
+
+    synchronized void invalidate(long masterKeyId) {
+        mInvalidationCount += 1;
+        removeEntry(masterKeyId);
+    }
+
+    synchronized void invalidateAll() {
+        mInvalidationCount += 1;
+        mKeyRings.clear();
+        mCacheSize = 0;
+    }
+
+    private void invalidate(Uri uri) {
+        // notifications are for key_rings/<master key id>, or key_rings/unified for all keyrings
+        List<String> pathSegments = uri != null ? uri.getPathSegments() : null;
+        if (pathSegments == null || pathSegments.size() < 2) {
+            invalidateAll();
+            return;
+        }
+        try {
+            invalidate(Long.parseLong(pathSegments.get(1)));
+        } catch (NumberFormatException e) {
+            invalidateAll();
+        }
+    }
+
+    private void removeEntry(long masterKeyId) {
+        CacheEntry entry = mKeyRings.remove(masterKeyId);
+        if (entry != null) {
+            mCacheSize -= entry.mEncodedSize;
+        }
+    }
+
+    private static class CacheEntry {
+        final CanonicalizedPublicKeyRing mKeyRing;
+        final int mEncodedSize;
+
+        CacheEntry(CanonicalizedPublicKeyRing keyRing, int encodedSize) {
+            mKeyRing = keyRing;
+            mEncodedSize = encodedSize;
+        }
+    }
+}
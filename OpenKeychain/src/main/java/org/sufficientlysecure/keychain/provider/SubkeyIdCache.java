@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.v4.util.LongSparseArray;
+
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeyRepository.NotFoundException;
+
+
+/**
+ * Process-wide map from the key ids of all subkeys in the database to their master key ids.
+ * <p/>
+ * Decryption looks up the keyring of each recipient of a message by subkey id, which for
+ * messages with many recipients otherwise means many queries. The map is loaded with a single
+ * query on first use. Key ids are not unique, so a key id maps to the master key ids of all
+ * keyrings which contain a subkey with that id.
+ * <p/>
+ * On a change to a single keyring, from any process, only the subkeys of that keyring are
+ * reloaded, on the next lookup. Other changes to KeyRings.CONTENT_URI drop the whole map. Since
+ * those notifications arrive asynchronously, KeyWritableRepository additionally invalidates
+ * keyrings directly after each write, and a map loaded concurrently with an invalidation is
+ * not kept.
+ */
+class SubkeyIdCache {
+    private static final long[] NO_MASTER_KEY_IDS = new long[0];
+
+    private static SubkeyIdCache sInstance;
+
+    private final Context mApplicationContext;
+    private final ContentObserver mObserver;
+
+    private LongSparseArray<long[]> mMasterKeyIdsBySubkeyId;
+    // to drop the entries of a single keyring
+    private HashMap<Long, long[]> mSubkeyIdsByMasterKeyId;
+    // keyrings whose subkeys must be reloaded before the next lookup
+    private final LongSparseArray<Boolean> mStaleMasterKeyIds = new LongSparseArray<>();
+    private long mInvalidationCount;
+
+    static synchronized SubkeyIdCache getInstance(Context context) {
+        Context applicationContext = context.getApplicationContext();
+        if (applicationContext == null) {
+            applicationContext = context;
+        }
+
+        // there is only one application context per process, except in tests
+        if (sInstance == null || sInstance.mApplicationContext != applicationContext) {
+            if (sInstance != null) {
+                sInstance.unregisterObserver();
+            }
+            sInstance = new SubkeyIdCache(applicationContext);
+        }
+        return sInstance;
+    }
+
+    private SubkeyIdCache(Context applicationContext) {
+        mApplicationContext = applicationContext;
+        // no handler, notifications are handled right on the binder thread
+        mObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidateAll();
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                invalidate(uri);
+            }
+        };
+        applicationContext.getContentResolver().registerContentObserver(KeyRings.CONTENT_URI, true, mObserver);
+    }
+
+    private void unregisterObserver() {
+        mApplicationContext.getContentResolver().unregisterContentObserver(mObserver);
+    }
+
+    /**
+     * Returns the master key ids of all keyrings which contain a subkey with the given key id,
+     * or an empty array if there is none.
+     */
+    long[] getMasterKeyIds(ContentResolver contentResolver, long subKeyId) throws NotFoundException {
+        long invalidationCount;
+        synchronized (this) {
+            if (mMasterKeyIdsBySubkeyId != null) {
+                reloadStaleKeyRings(contentResolver);
+                long[] masterKeyIds = mMasterKeyIdsBySubkeyId.get(subKeyId);
+                return masterKeyIds != null ? masterKeyIds : NO_MASTER_KEY_IDS;
+            }
+            invalidationCount = mInvalidationCount;
+        }
+
+        LongSparseArray<long[]> masterKeyIdsBySubkeyId = new LongSparseArray<>();
+        HashMap<Long, long[]> subkeyIdsByMasterKeyId = new HashMap<>();
+        // in order of key id, so entries are appended to the LongSparseArray
+        Cursor cursor = contentResolver.query(Keys.buildKeysUri(),
+                new String[] { Keys.KEY_ID, Keys.MASTER_KEY_ID }, null, null, Keys.KEY_ID + " ASC");
+        if (cursor == null) {
+            throw new NotFoundException("Error loading subkey ids!");
+        }
+        try {
+            while (cursor.moveToNext()) {
+                addEntry(masterKeyIdsBySubkeyId, subkeyIdsByMasterKeyId, cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        synchronized (this) {
+            // the loaded map may already be outdated, but is still good for this lookup
+            if (invalidationCount == mInvalidationCount) {
+                mMasterKeyIdsBySubkeyId = masterKeyIdsBySubkeyId;
+                mSubkeyIdsByMasterKeyId = subkeyIdsByMasterKeyId;
+            }
+        }
+
+        long[] masterKeyIds = masterKeyIdsBySubkeyId.get(subKeyId);
+        return masterKeyIds != null ? masterKeyIds : NO_MASTER_KEY_IDS;
+    }
+
+    synchronized void invalidate(long masterKeyId) {
+        mInvalidationCount += 1;
+        if (mMasterKeyIdsBySubkeyId != null) {
+            mStaleMasterKeyIds.put(masterKeyId, true);
+        }
+    }
+
+    synchronized void invalidateAll() {
+        mInvalidationCount += 1;
+        mMasterKeyIdsBySubkeyId = null;
+        mSubkeyIdsByMasterKeyId = null;
+        mStaleMasterKeyIds.clear();
+    }
+
+    private void invalidate(Uri uri) {
+        // notifications are for key_rings/<master key id>, or key_rings/unified for all keyrings
+        List<String> pathSegments = uri != null ? uri.getPathSegments() : null;
+        if (pathSegments == null || pathSegments.size() < 2) {
+            invalidateAll();
+            return;
+        }
+        try {
+            invalidate(Long.parseLong(pathSegments.get(1)));
+        } catch (NumberFormatException e) {
+            invalidateAll();
+        }
+    }
+
+    private void reloadStaleKeyRings(ContentResolver contentResolver) throws NotFoundException {
+        while (mStaleMasterKeyIds.size() > 0) {
+            long masterKeyId = mStaleMasterKeyIds.keyAt(0);
+
+            Cursor cursor = contentResolver.query(Keys.buildKeysUri(masterKeyId),
+                    new String[] { Keys.KEY_ID }, null, null, null);
+            if (cursor == null) {
+                throw new NotFoundException("Error loading subkey ids!");
+            }
+            try {
+                removeEntries(masterKeyId);
+                while (cursor.moveToNext()) {
+                    addEntry(mMasterKeyIdsBySubkeyId, mSubkeyIdsByMasterKeyId, cursor.getLong(0), masterKeyId);
+                }
+            } finally {
+                cursor.close();
+            }
+            mStaleMasterKeyIds.remove(masterKeyId);
+        }
+    }
+
+    private void removeEntries(long masterKeyId) {
+        long[] subkeyIds = mSubkeyIdsByMasterKeyId.remove(masterKeyId);
+        if (subkeyIds == null) {
+            return;
+        }
+
+        for (long subkeyId : subkeyIds) {
+            long[] masterKeyIds = mMasterKeyIdsBySubkeyId.get(subkeyId);
+            if (masterKeyIds == null) {
+                continue;
+            }
+            long[] remaining = new long[masterKeyIds.length];
+            int numRemaining = 0;
+            for (long id : masterKeyIds) {
+                if (id != masterKeyId) {
+                    remaining[numRemaining++] = id;
+                }
+            }
+            if (numRemaining == 0) {
+                mMasterKeyIdsBySubkeyId.remove(subkeyId);
+            } else {
+                mMasterKeyIdsBySubkeyId.put(subkeyId, Arrays.copyOf(remaining, numRemaining));
+            }
+        }
+    }
+
+    private static void addEntry(LongSparseArray<long[]> masterKeyIdsBySubkeyId,
+            HashMap<Long, long[]> subkeyIdsByMasterKeyId, long subkeyId, long masterKeyId) {
+        masterKeyIdsBySubkeyId.put(subkeyId, append(masterKeyIdsBySubkeyId.get(subkeyId), masterKeyId));
+        subkeyIdsByMasterKeyId.put(masterKeyId, append(subkeyIdsByMasterKeyId.get(masterKeyId), subkeyId));
+    }
+
+    private static long[] append(long[] values, long value) {
+        if (values == null) {
+            return new long[] { value };
+        }
+        long[] result = Arrays.copyOf(values, values.length + 1);
+        result[values.length] = value;
+        return result;
+    }
+}
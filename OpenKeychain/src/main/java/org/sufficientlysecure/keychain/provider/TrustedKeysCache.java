@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import android.support.v4.util.LongSparseArray;
+
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
+import org.sufficientlysecure.keychain.provider.KeyRepository.NotFoundException;
+
+
+/**
+ * Process-wide cache of the master keys of all keyrings we have secret keys for.
+ * <p/>
+ * These are used to verify third-party certifications on every keyring save, so
+ * without this cache each save re-parses all secret keyrings. Entries are dropped
+ * explicitly when a secret keyring is saved or deleted. Since the database is also
+ * written from other processes, callers pass in the current list of trusted master
+ * key ids along with their verification state, and only keys missing from the cache,
+ * or cached with a different verification state, are loaded.
+ */
+class TrustedKeysCache {
+    private static final TrustedKeysCache sInstance = new TrustedKeysCache();
+
+    private LongSparseArray<TrustedKey> mTrustedKeys = new LongSparseArray<>();
+    private long mHitCount;
+    private long mMissCount;
+
+    static TrustedKeysCache getInstance() {
+        return sInstance;
+    }
+
+    interface TrustedKeyLoader {
+        CanonicalizedPublicKey loadTrustedKey(long masterKeyId, int verified) throws NotFoundException;
+    }
+
+    /**
+     * Returns the trusted keys for exactly the given master key ids, in the given
+     * verification states.
+     */
+    synchronized LongSparseArray<CanonicalizedPublicKey> getTrustedKeys(
+            long[] masterKeyIds, int[] verifiedStates, TrustedKeyLoader loader) throws NotFoundException {
+        LongSparseArray<TrustedKey> trustedKeys = new LongSparseArray<>(masterKeyIds.length);
+        LongSparseArray<CanonicalizedPublicKey> result = new LongSparseArray<>(masterKeyIds.length);
+
+        for (int i = 0; i < masterKeyIds.length; i++) {
+            long masterKeyId = masterKeyIds[i];
+            int verified = verifiedStates[i];
+
+            TrustedKey trustedKey = mTrustedKeys.get(masterKeyId);
+            if (trustedKey != null && trustedKey.mVerified == verified) {
+                mHitCount += 1;
+            } else {
+                mMissCount += 1;
+                trustedKey = new TrustedKey(loader.loadTrustedKey(masterKeyId, verified), verified);
+            }
+            trustedKeys.put(masterKeyId, trustedKey);
+            result.put(masterKeyId, trustedKey.mKey);
+        }
+
+        // this also drops keys which are no longer trusted
+        mTrustedKeys = trustedKeys;
+        return result;
+    }
+
+    synchronized void invalidate(long masterKeyId) {
+        mTrustedKeys.remove(masterKeyId);
+    }
+
+    synchronized void invalidateAll() {
+        mTrustedKeys = new LongSparseArray<>();
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    private static class TrustedKey {
+        final CanonicalizedPublicKey mKey;
+        // the verification state the key was loaded with
+        final int mVerified;
+
+        TrustedKey(CanonicalizedPublicKey key, int verified) {
+            mKey = key;
+            mVerified = verified;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+
+import java.util.ArrayList;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+
+/** Input for BatchInputDataOperation, which processes all of these inputs in parallel. */
+public class BatchInputDataParcel implements Parcelable {
+
+    private final ArrayList<InputDataParcel> mInputs;
+
+    public BatchInputDataParcel(ArrayList<InputDataParcel> inputs) {
+        mInputs = inputs;
+    }
+
+    BatchInputDataParcel(Parcel source) {
+        mInputs = source.createTypedArrayList(InputDataParcel.CREATOR);
+    }
+
+    public ArrayList<InputDataParcel> getInputs() {
+        return mInputs;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeTypedList(mInputs);
+    }
+
+    public static final Creator<BatchInputDataParcel> CREATOR = new Creator<BatchInputDataParcel>() {
+        public BatchInputDataParcel createFromParcel(final Parcel source) {
+            return new BatchInputDataParcel(source);
+        }
+
+        public BatchInputDataParcel[] newArray(final int size) {
+            return new BatchInputDataParcel[size];
+        }
+    };
+
+}
@@ -22,13 +22,56 @@ package org.sufficientlysecure.keychain.service;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import org.bouncycastle.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
 
+
+/**
+ * Configures which measurements BenchmarkOperation performs.
+ * <p/>
+ * Symmetric encryption and decryption is measured for every combination of payload size,
+ * symmetric algorithm, compression algorithm and armor setting. Public key operations are
+ * measured once for each public key algorithm, on a payload of PUBLIC_KEY_PAYLOAD_SIZE bytes.
+ */
 public class BenchmarkInputParcel implements Parcelable {
 
+    public static final int PUBLIC_KEY_PAYLOAD_SIZE = 1024;
+
+    public enum PublicKeyAlgorithm {
+        RSA_2048, RSA_4096, ECC_P256, ECC_P521
+    }
+
+    public int[] mPayloadSizes;
+    public int[] mSymmetricAlgorithms;
+    public int[] mCompressionAlgorithms;
+    public boolean[] mArmorSettings;
+    public PublicKeyAlgorithm[] mPublicKeyAlgorithms;
+    public int mNumRepeats;
+    public boolean mBenchmarkS2k;
+
+    /** The default benchmark, which finishes within a minute or so on most devices. */
     public BenchmarkInputParcel() {
+        mPayloadSizes = new int[] { 64 * 1024, 1024 * 1024 };
+        mSymmetricAlgorithms = new int[] { SymmetricKeyAlgorithmTags.AES_128, SymmetricKeyAlgorithmTags.AES_256 };
+        mCompressionAlgorithms = new int[] { CompressionAlgorithmTags.UNCOMPRESSED, CompressionAlgorithmTags.ZIP };
+        mArmorSettings = new boolean[] { false, true };
+        mPublicKeyAlgorithms = new PublicKeyAlgorithm[] { PublicKeyAlgorithm.RSA_2048, PublicKeyAlgorithm.ECC_P256 };
+        mNumRepeats = 5;
+        mBenchmarkS2k = true;
     }
 
     protected BenchmarkInputParcel(Parcel in) {
+        mPayloadSizes = in.createIntArray();
+        mSymmetricAlgorithms = in.createIntArray();
+        mCompressionAlgorithms = in.createIntArray();
+        mArmorSettings = in.createBooleanArray();
+        int[] publicKeyAlgorithms = in.createIntArray();
+        mPublicKeyAlgorithms = new PublicKeyAlgorithm[publicKeyAlgorithms.length];
+        for (int i = 0; i < publicKeyAlgorithms.length; i++) {
+            mPublicKeyAlgorithms[i] = PublicKeyAlgorithm.values()[publicKeyAlgorithms[i]];
+        }
+        mNumRepeats = in.readInt();
+        mBenchmarkS2k = in.readByte() != 0;
     }
 
     @Override
@@ -38,6 +81,17 @@ public class BenchmarkInputParcel implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
+        dest.writeIntArray(mPayloadSizes);
+        dest.writeIntArray(mSymmetricAlgorithms);
+        dest.writeIntArray(mCompressionAlgorithms);
+        dest.writeBooleanArray(mArmorSettings);
+        int[] publicKeyAlgorithms = new int[mPublicKeyAlgorithms.length];
+        for (int i = 0; i < publicKeyAlgorithms.length; i++) {
+            publicKeyAlgorithms[i] = mPublicKeyAlgorithms[i].ordinal();
+        }
+        dest.writeIntArray(publicKeyAlgorithms);
+        dest.writeInt(mNumRepeats);
+        dest.writeByte((byte) (mBenchmarkS2k ? 1 : 0));
     }
 
     public static final Creator<BenchmarkInputParcel> CREATOR = new Creator<BenchmarkInputParcel>() {
@@ -51,4 +105,4 @@ public class BenchmarkInputParcel implements Parcelable {
             return new BenchmarkInputParcel[size];
         }
     };
-}
\ No newline at end of file
+}
@@ -18,6 +18,7 @@
 
 package org.sufficientlysecure.keychain.service;
 
+import android.net.Uri;
 import android.os.Parcel;
 import android.os.Parcelable;
 
@@ -30,6 +31,8 @@ public class ImportKeyringParcel implements Parcelable {
     // If null, keys are expected to be read from a cache file in ImportExportOperations
     public ArrayList<ParcelableKeyRing> mKeyList;
     public ParcelableHkpKeyserver mKeyserver; // must be set if keys are to be imported from a keyserver
+    // If set, all keys in this file are streamed into the database, mKeyList is ignored
+    public Uri mInputUri;
 
     // If false, don't save the key, only return it as part of result
     public boolean mSkipSave = false;
@@ -44,6 +47,10 @@ public class ImportKeyringParcel implements Parcelable {
         mSkipSave = skipSave;
     }
 
+    public ImportKeyringParcel(Uri inputUri) {
+        mInputUri = inputUri;
+    }
+
     protected ImportKeyringParcel(Parcel in) {
         if (in.readByte() == 0x01) {
             mKeyList = new ArrayList<>();
@@ -53,6 +60,7 @@ public class ImportKeyringParcel implements Parcelable {
         }
         mKeyserver = in.readParcelable(ParcelableHkpKeyserver.class.getClassLoader());
         mSkipSave = in.readInt() != 0;
+        mInputUri = in.readParcelable(Uri.class.getClassLoader());
     }
 
     @Override
@@ -70,6 +78,7 @@ public class ImportKeyringParcel implements Parcelable {
         }
         dest.writeParcelable(mKeyserver, flags);
         dest.writeInt(mSkipSave ? 1 : 0);
+        dest.writeParcelable(mInputUri, flags);
     }
 
     public static final Parcelable.Creator<ImportKeyringParcel> CREATOR = new Parcelable.Creator<ImportKeyringParcel>() {
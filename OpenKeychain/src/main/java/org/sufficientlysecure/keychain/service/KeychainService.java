@@ -23,12 +23,17 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Message;
+import android.net.Uri;
 import android.os.Messenger;
 import android.os.Parcelable;
 import android.os.RemoteException;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.operations.BaseOperation;
+import org.sufficientlysecure.keychain.operations.BatchInputDataOperation;
+import org.sufficientlysecure.keychain.operations.BatchInputDataOperation.OnInputDataResultListener;
 import org.sufficientlysecure.keychain.operations.BenchmarkOperation;
 import org.sufficientlysecure.keychain.operations.CertifyOperation;
 import org.sufficientlysecure.keychain.operations.ConsolidateOperation;
@@ -43,6 +48,7 @@ import org.sufficientlysecure.keychain.operations.PromoteKeyOperation;
 import org.sufficientlysecure.keychain.operations.RevokeOperation;
 import org.sufficientlysecure.keychain.operations.SignEncryptOperation;
 import org.sufficientlysecure.keychain.operations.UploadOperation;
+import org.sufficientlysecure.keychain.operations.results.InputDataResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
@@ -53,11 +59,21 @@ import org.sufficientlysecure.keychain.service.ServiceProgressHandler.MessageSta
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.util.Log;
 
+import java.util.ArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This Service contains all important long lasting operations for OpenKeychain. It receives Intents with
  * data from the activities or other apps, executes them, and stops itself after doing them.
+ * <p/>
+ * Operations are run on a bounded pool of worker threads. If more operations are started than
+ * there are workers, they are queued by priority, so an interactive decryption doesn't wait for
+ * a running import or consolidate. Each operation has its own cancellation flag.
  */
 public class KeychainService extends Service implements Progressable {
 
@@ -68,96 +84,230 @@ public class KeychainService extends Service implements Progressable {
     public static final String EXTRA_OPERATION_INPUT = "op_input";
     public static final String EXTRA_CRYPTO_INPUT = "crypto_input";
 
+    /** Cancels the operation started with the messenger in EXTRA_MESSENGER, or all without it. */
     public static final String ACTION_CANCEL = "action_cancel";
 
-    // this attribute can possibly merged with the one above? not sure...
-    private AtomicBoolean mActionCanceled = new AtomicBoolean(false);
+    // operation priorities, lower runs first
+    private static final int PRIORITY_DECRYPT = 0;
+    private static final int PRIORITY_ENCRYPT = 1;
+    private static final int PRIORITY_IMPORT = 2;
+    private static final int PRIORITY_CONSOLIDATE = 3;
+
+    private static final int WORKER_COUNT = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT,
+            30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+    // operations which are queued or running, accessed on the main thread and from workers
+    private final ArrayList<OperationTask> mActiveTasks = new ArrayList<>();
+    private final AtomicLong mSequence = new AtomicLong();
+
+    // statistics of all operations in this process, kept across service instances
+    private static final AtomicInteger sQueuedOperations = new AtomicInteger();
+    private static final AtomicLong sCompletedOperations = new AtomicLong();
+    private static final AtomicLong sQueueWaitMillis = new AtomicLong();
+    private static final AtomicLong sRunMillis = new AtomicLong();
 
     ThreadLocal<Messenger> mMessenger = new ThreadLocal<>();
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mExecutor.shutdown();
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;
     }
 
     /**
-     * This is run on the main thread, we need to spawn a runnable which runs on another thread for the actual operation
+     * This is run on the main thread, the actual operation is queued to run on a worker thread
      */
     @Override
     public int onStartCommand(final Intent intent, int flags, int startId) {
 
         if (intent.getAction() != null && intent.getAction().equals(ACTION_CANCEL)) {
-            mActionCanceled.set(true);
+            cancelOperations(intent.<Messenger>getParcelableExtra(EXTRA_MESSENGER));
             return START_NOT_STICKY;
         }
 
-        Runnable actionRunnable = new Runnable() {
-            @Override
-            public void run() {
-                // We have not been cancelled! (yet)
-                mActionCanceled.set(false);
-
-                Bundle extras = intent.getExtras();
-
-                // Set messenger for communication (for this particular thread)
-                mMessenger.set(extras.<Messenger>getParcelable(EXTRA_MESSENGER));
-
-                // Input
-                Parcelable inputParcel = extras.getParcelable(EXTRA_OPERATION_INPUT);
-                CryptoInputParcel cryptoInput = extras.getParcelable(EXTRA_CRYPTO_INPUT);
-
-                // Operation
-                BaseOperation op;
-
-                // just for brevity
-                KeychainService outerThis = KeychainService.this;
-                KeyWritableRepository databaseInteractor =
-                        KeyWritableRepository.createDatabaseReadWriteInteractor(outerThis);
-                if (inputParcel instanceof SignEncryptParcel) {
-                    op = new SignEncryptOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
-                } else if (inputParcel instanceof PgpDecryptVerifyInputParcel) {
-                    op = new PgpDecryptVerifyOperation(outerThis, databaseInteractor, outerThis);
-                } else if (inputParcel instanceof SaveKeyringParcel) {
-                    op = new EditKeyOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
-                } else if (inputParcel instanceof  ChangeUnlockParcel) {
-                    op = new ChangeUnlockOperation(outerThis, databaseInteractor, outerThis);
-                } else if (inputParcel instanceof RevokeKeyringParcel) {
-                    op = new RevokeOperation(outerThis, databaseInteractor, outerThis);
-                } else if (inputParcel instanceof CertifyActionsParcel) {
-                    op = new CertifyOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
-                } else if (inputParcel instanceof DeleteKeyringParcel) {
-                    op = new DeleteOperation(outerThis, databaseInteractor, outerThis);
-                } else if (inputParcel instanceof PromoteKeyringParcel) {
-                    op = new PromoteKeyOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
-                } else if (inputParcel instanceof ImportKeyringParcel) {
-                    op = new ImportOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
-                } else if (inputParcel instanceof BackupKeyringParcel) {
-                    op = new BackupOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
-                } else if (inputParcel instanceof UploadKeyringParcel) {
-                    op = new UploadOperation(outerThis, databaseInteractor, outerThis, mActionCanceled);
-                } else if (inputParcel instanceof ConsolidateInputParcel) {
-                    op = new ConsolidateOperation(outerThis, databaseInteractor, outerThis);
-                } else if (inputParcel instanceof KeybaseVerificationParcel) {
-                    op = new KeybaseVerificationOperation(outerThis, databaseInteractor, outerThis);
-                } else if (inputParcel instanceof InputDataParcel) {
-                    op = new InputDataOperation(outerThis, databaseInteractor, outerThis);
-                } else if (inputParcel instanceof BenchmarkInputParcel) {
-                    op = new BenchmarkOperation(outerThis, databaseInteractor, outerThis);
-                } else {
-                    throw new AssertionError("Unrecognized input parcel in KeychainService!");
+        Bundle extras = intent.getExtras();
+        OperationTask task = new OperationTask(extras.<Messenger>getParcelable(EXTRA_MESSENGER),
+                extras.getParcelable(EXTRA_OPERATION_INPUT),
+                extras.<CryptoInputParcel>getParcelable(EXTRA_CRYPTO_INPUT));
+
+        synchronized (mActiveTasks) {
+            mActiveTasks.add(task);
+        }
+        int queuedOperations = sQueuedOperations.incrementAndGet();
+        mExecutor.execute(task);
+        Log.d(Constants.TAG, "KeychainService: queued operation with priority " + task.mPriority
+                + ", queue depth " + queuedOperations);
+
+        return START_NOT_STICKY;
+    }
+
+    /** Returns the number of operations which are waiting for a worker. */
+    public static int getQueuedOperationCount() {
+        return sQueuedOperations.get();
+    }
+
+    /** Returns the number of operations which have finished, successfully or not. */
+    public static long getCompletedOperationCount() {
+        return sCompletedOperations.get();
+    }
+
+    /** Returns the total time finished operations have waited for a worker, in milliseconds. */
+    public static long getTotalQueueWaitMillis() {
+        return sQueueWaitMillis.get();
+    }
+
+    /** Returns the total time finished operations have run, in milliseconds. */
+    public static long getTotalRunMillis() {
+        return sRunMillis.get();
+    }
+
+    private void cancelOperations(Messenger messenger) {
+        synchronized (mActiveTasks) {
+            for (OperationTask task : mActiveTasks) {
+                if (messenger == null || messenger.equals(task.mReplyMessenger)) {
+                    task.mCanceled.set(true);
                 }
+            }
+        }
+    }
+
+    private class OperationTask implements Runnable, Comparable<OperationTask> {
+        final Messenger mReplyMessenger;
+        final Parcelable mInputParcel;
+        final CryptoInputParcel mCryptoInput;
+        final AtomicBoolean mCanceled = new AtomicBoolean(false);
+
+        final int mPriority;
+        // to keep submission order within a priority
+        final long mSequence;
+        final long mQueuedTime;
+
+        OperationTask(Messenger replyMessenger, Parcelable inputParcel, CryptoInputParcel cryptoInput) {
+            mReplyMessenger = replyMessenger;
+            mInputParcel = inputParcel;
+            mCryptoInput = cryptoInput;
+            mPriority = getPriority(inputParcel);
+            mSequence = KeychainService.this.mSequence.getAndIncrement();
+            mQueuedTime = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public int compareTo(@NonNull OperationTask another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            long startTime = SystemClock.elapsedRealtime();
+            int queuedOperations = sQueuedOperations.decrementAndGet();
+
+            // Set messenger for communication (for this particular thread)
+            mMessenger.set(mReplyMessenger);
+            try {
+                BaseOperation op = createOperation(mInputParcel, mCanceled);
 
                 @SuppressWarnings("unchecked") // this is unchecked, we make sure it's the correct op above!
-                OperationResult result = op.execute(inputParcel, cryptoInput);
+                OperationResult result = op.execute(mInputParcel, mCryptoInput);
                 sendMessageToHandler(MessageStatus.OKAY, result);
+            } finally {
+                mMessenger.remove();
+                synchronized (mActiveTasks) {
+                    mActiveTasks.remove(this);
+                }
 
+                long waitTime = startTime - mQueuedTime;
+                long runTime = SystemClock.elapsedRealtime() - startTime;
+                sQueueWaitMillis.addAndGet(waitTime);
+                sRunMillis.addAndGet(runTime);
+                sCompletedOperations.incrementAndGet();
+                Log.d(Constants.TAG, "KeychainService: operation with priority " + mPriority + " waited "
+                        + waitTime + "ms, ran " + runTime + "ms, queue depth " + queuedOperations);
             }
-        };
+        }
+    }
 
-        Thread actionThread = new Thread(actionRunnable);
-        actionThread.start();
+    private static int getPriority(Parcelable inputParcel) {
+        if (inputParcel instanceof PgpDecryptVerifyInputParcel || inputParcel instanceof InputDataParcel
+                || inputParcel instanceof BatchInputDataParcel) {
+            return PRIORITY_DECRYPT;
+        } else if (inputParcel instanceof ImportKeyringParcel || inputParcel instanceof UploadKeyringParcel
+                || inputParcel instanceof BackupKeyringParcel || inputParcel instanceof KeybaseVerificationParcel
+                || inputParcel instanceof BenchmarkInputParcel) {
+            return PRIORITY_IMPORT;
+        } else if (inputParcel instanceof ConsolidateInputParcel) {
+            return PRIORITY_CONSOLIDATE;
+        }
+        // encryption, and key management the user is waiting for
+        return PRIORITY_ENCRYPT;
+    }
 
-        return START_NOT_STICKY;
+    private BaseOperation createOperation(Parcelable inputParcel, AtomicBoolean canceled) {
+        // just for brevity
+        KeychainService outerThis = KeychainService.this;
+        KeyWritableRepository databaseInteractor =
+                KeyWritableRepository.createDatabaseReadWriteInteractor(outerThis);
+        if (inputParcel instanceof SignEncryptParcel) {
+            return new SignEncryptOperation(outerThis, databaseInteractor, outerThis, canceled);
+        } else if (inputParcel instanceof PgpDecryptVerifyInputParcel) {
+            return new PgpDecryptVerifyOperation(outerThis, databaseInteractor, outerThis);
+        } else if (inputParcel instanceof SaveKeyringParcel) {
+            return new EditKeyOperation(outerThis, databaseInteractor, outerThis, canceled);
+        } else if (inputParcel instanceof  ChangeUnlockParcel) {
+            return new ChangeUnlockOperation(outerThis, databaseInteractor, outerThis);
+        } else if (inputParcel instanceof RevokeKeyringParcel) {
+            return new RevokeOperation(outerThis, databaseInteractor, outerThis);
+        } else if (inputParcel instanceof CertifyActionsParcel) {
+            return new CertifyOperation(outerThis, databaseInteractor, outerThis, canceled);
+        } else if (inputParcel instanceof DeleteKeyringParcel) {
+            return new DeleteOperation(outerThis, databaseInteractor, outerThis);
+        } else if (inputParcel instanceof PromoteKeyringParcel) {
+            return new PromoteKeyOperation(outerThis, databaseInteractor, outerThis, canceled);
+        } else if (inputParcel instanceof ImportKeyringParcel) {
+            return new ImportOperation(outerThis, databaseInteractor, outerThis, canceled);
+        } else if (inputParcel instanceof BackupKeyringParcel) {
+            return new BackupOperation(outerThis, databaseInteractor, outerThis, canceled);
+        } else if (inputParcel instanceof UploadKeyringParcel) {
+            return new UploadOperation(outerThis, databaseInteractor, outerThis, canceled);
+        } else if (inputParcel instanceof ConsolidateInputParcel) {
+            return new ConsolidateOperation(outerThis, databaseInteractor, outerThis);
+        } else if (inputParcel instanceof KeybaseVerificationParcel) {
+            return new KeybaseVerificationOperation(outerThis, databaseInteractor, outerThis);
+        } else if (inputParcel instanceof InputDataParcel) {
+            return new InputDataOperation(outerThis, databaseInteractor, outerThis);
+        } else if (inputParcel instanceof BatchInputDataParcel) {
+            BatchInputDataOperation op =
+                    new BatchInputDataOperation(outerThis, databaseInteractor, outerThis, canceled);
+            // results are sent as they finish, this is called on the operation's thread
+            op.setResultListener(new OnInputDataResultListener() {
+                @Override
+                public void onInputDataResult(Uri inputUri, InputDataResult result) {
+                    Bundle bundle = new Bundle();
+                    bundle.putParcelable(ServiceProgressHandler.DATA_INPUT_URI, inputUri);
+                    bundle.putParcelable(OperationResult.EXTRA_RESULT, result);
+                    sendMessageToHandler(MessageStatus.PARTIAL_RESULT, null, bundle);
+                }
+            });
+            return op;
+        } else if (inputParcel instanceof BenchmarkInputParcel) {
+            return new BenchmarkOperation(outerThis, databaseInteractor, outerThis);
+        } else {
+            throw new AssertionError("Unrecognized input parcel in KeychainService!");
+        }
     }
 
     private void sendMessageToHandler(MessageStatus status, Integer arg2, Bundle data) {
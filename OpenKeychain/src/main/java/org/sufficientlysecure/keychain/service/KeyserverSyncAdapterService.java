@@ -2,7 +2,9 @@ package org.sufficientlysecure.keychain.service;
 
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -33,7 +35,9 @@ import android.os.Message;
 import android.os.Messenger;
 import android.os.PowerManager;
 import android.os.SystemClock;
+import android.support.annotation.NonNull;
 import android.support.v4.app.NotificationCompat;
+import android.support.v4.util.LongSparseArray;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.KeychainApplication;
@@ -68,6 +72,14 @@ public class KeyserverSyncAdapterService extends Service {
     // Time taken by Orbot before a new circuit is created
     public static final int ORBOT_CIRCUIT_TIMEOUT_SECONDS =
             Constants.DEBUG_KEYSERVER_SYNC ? 2 : (int) TimeUnit.MINUTES.toSeconds(10);
+    // number of keys updated by one import in a direct update, the position for resuming an
+    // interrupted sync is saved after each of them
+    private static final int DIRECT_UPDATE_BATCH_SIZE = 100;
+    // number of keys fetched from the keyserver at once in a direct update
+    private static final int DIRECT_UPDATE_MAX_FETCHES = 4;
+    // maximum random delay between batches of a direct update
+    private static final int DIRECT_UPDATE_MAX_JITTER_MS =
+            Constants.DEBUG_KEYSERVER_SYNC ? 100 : (int) TimeUnit.SECONDS.toMillis(5);
 
 
     private static final String ACTION_IGNORE_TOR = "ignore_tor";
@@ -299,7 +311,7 @@ public class KeyserverSyncAdapterService extends Service {
                                                                  final CryptoInputParcel cryptoInputParcel) {
         mCancelled.set(false);
 
-        ArrayList<ParcelableKeyRing> keyList = getKeysToUpdate(context);
+        ArrayList<KeyToUpdate> keyList = getKeysToUpdate(context);
 
         if (isUpdateCancelled()) { // if we've already been cancelled
             return new ImportKeyResult(OperationResult.RESULT_CANCELLED,
@@ -318,16 +330,55 @@ public class KeyserverSyncAdapterService extends Service {
         }
     }
 
-    private ImportKeyResult directUpdate(Context context, ArrayList<ParcelableKeyRing> keyList,
+    /**
+     * Updates keys in batches of DIRECT_UPDATE_BATCH_SIZE, with at most DIRECT_UPDATE_MAX_FETCHES
+     * fetched from the keyserver at once, and a random delay between batches.
+     */
+    private ImportKeyResult directUpdate(Context context, ArrayList<KeyToUpdate> keyList,
                                          CryptoInputParcel cryptoInputParcel) {
         Log.d(Constants.TAG, "Starting normal update");
-        ImportOperation importOp = new ImportOperation(context,
-                KeyWritableRepository.createDatabaseReadWriteInteractor(context), null);
-        return importOp.execute(
-                new ImportKeyringParcel(keyList,
-                        Preferences.getPreferences(context).getPreferredKeyserver()),
-                cryptoInputParcel
-        );
+        Preferences prefs = Preferences.getPreferences(context);
+
+        ImportOperation.KeyImportAccumulator accumulator
+                = new ImportOperation.KeyImportAccumulator(keyList.size(), null);
+        Random random = new Random();
+
+        for (int i = 0; i < keyList.size(); i += DIRECT_UPDATE_BATCH_SIZE) {
+            if (i > 0) {
+                try {
+                    Thread.sleep(random.nextInt(1 + DIRECT_UPDATE_MAX_JITTER_MS));
+                } catch (InterruptedException e) {
+                    Log.e(Constants.TAG, "Exception during sleep between key updates", e);
+                }
+            }
+            if (isUpdateCancelled()) {
+                return new ImportKeyResult(ImportKeyResult.RESULT_CANCELLED,
+                        new OperationResult.OperationLog());
+            }
+
+            List<KeyToUpdate> batch = keyList.subList(i, Math.min(i + DIRECT_UPDATE_BATCH_SIZE, keyList.size()));
+            ArrayList<ParcelableKeyRing> keyRings = new ArrayList<>(batch.size());
+            for (KeyToUpdate key : batch) {
+                keyRings.add(key.mKeyRing);
+            }
+
+            ImportOperation importOp = new ImportOperation(context,
+                    KeyWritableRepository.createDatabaseReadWriteInteractor(context), null, mCancelled);
+            importOp.setMaxThreads(DIRECT_UPDATE_MAX_FETCHES);
+            ImportKeyResult result = importOp.execute(
+                    new ImportKeyringParcel(keyRings, prefs.getPreferredKeyserver()), cryptoInputParcel);
+            // not all keys of this batch may have been attempted if it was cancelled
+            if (result.isPending() || result.cancelled()) {
+                return result;
+            }
+            accumulator.accumulateKeyImport(result);
+
+            KeyToUpdate last = batch.get(batch.size() - 1);
+            prefs.setKeyserverSyncResumePosition(last.mLastUpdated, last.mMasterKeyId);
+        }
+
+        prefs.clearKeyserverSyncResumePosition();
+        return accumulator.getConsolidatedResult();
     }
 
     /**
@@ -337,28 +388,31 @@ public class KeyserverSyncAdapterService extends Service {
      *
      * @return result of the sync
      */
-    private ImportKeyResult staggeredUpdate(Context context, ArrayList<ParcelableKeyRing> keyList,
+    private ImportKeyResult staggeredUpdate(Context context, ArrayList<KeyToUpdate> keyList,
                                             CryptoInputParcel cryptoInputParcel) {
         Log.d(Constants.TAG, "Starting staggered update");
         // final int WEEK_IN_SECONDS = (int) TimeUnit.DAYS.toSeconds(7);
         // we are limiting our randomness to ORBOT_CIRCUIT_TIMEOUT_SECONDS for now
         final int WEEK_IN_SECONDS = 0;
 
+        Preferences prefs = Preferences.getPreferences(context);
         ImportOperation.KeyImportAccumulator accumulator
                 = new ImportOperation.KeyImportAccumulator(keyList.size(), null);
+        Random random = new Random();
 
         // so that the first key can be updated without waiting. This is so that there isn't a
         // large gap between a "Start Orbot" notification and the next key update
         boolean first = true;
 
-        for (ParcelableKeyRing keyRing : keyList) {
+        for (KeyToUpdate key : keyList) {
+            ParcelableKeyRing keyRing = key.mKeyRing;
             int waitTime;
-            int staggeredTime = new Random().nextInt(1 + 2 * (WEEK_IN_SECONDS / keyList.size()));
+            int staggeredTime = random.nextInt(1 + 2 * (WEEK_IN_SECONDS / keyList.size()));
             if (staggeredTime >= ORBOT_CIRCUIT_TIMEOUT_SECONDS) {
                 waitTime = staggeredTime;
             } else {
                 waitTime = ORBOT_CIRCUIT_TIMEOUT_SECONDS
-                        + new Random().nextInt(1 + ORBOT_CIRCUIT_TIMEOUT_SECONDS);
+                        + random.nextInt(1 + ORBOT_CIRCUIT_TIMEOUT_SECONDS);
             }
 
             if (first) {
@@ -386,30 +440,34 @@ public class KeyserverSyncAdapterService extends Service {
                             .execute(
                                     new ImportKeyringParcel(
                                             keyWrapper,
-                                            Preferences.getPreferences(context)
-                                                    .getPreferredKeyserver()
+                                            prefs.getPreferredKeyserver()
                                     ),
                                     cryptoInputParcel
                             );
-            if (result.isPending()) {
+            if (result.isPending() || result.cancelled()) {
                 return result;
             }
             accumulator.accumulateKeyImport(result);
+            // a sync with Tor takes a long time, the next one continues where this one stopped
+            prefs.setKeyserverSyncResumePosition(key.mLastUpdated, key.mMasterKeyId);
         }
+
+        prefs.clearKeyserverSyncResumePosition();
         return accumulator.getConsolidatedResult();
     }
 
     /**
-     * 1. Get keys which have been updated recently and therefore do not need to
-     * be updated now
-     * 2. Get list of all keys and filter out ones that don't need to be updated
-     * 3. Return keys to be updated
+     * 1. Get the last update time of all keys which have been updated before
+     * 2. Get list of all keys and filter out ones that have been updated recently
+     * 3. Return keys to be updated, keys which were never updated first and then by their last
+     * update time. If an earlier sync was interrupted, keys after the last one it attempted to
+     * update come first, so keys which could not be updated don't hold up all others.
      *
      * @return list of keys that require update
      */
-    private ArrayList<ParcelableKeyRing> getKeysToUpdate(Context context) {
+    private ArrayList<KeyToUpdate> getKeysToUpdate(Context context) {
 
-        // 1. Get keys which have been updated recently and don't need to updated now
+        // 1. Get the last update time of all keys, in a single query
         final int INDEX_UPDATED_KEYS_MASTER_KEY_ID = 0;
         final int INDEX_LAST_UPDATED = 1;
 
@@ -421,17 +479,15 @@ public class KeyserverSyncAdapterService extends Service {
                         KeychainContract.UpdatedKeys.MASTER_KEY_ID,
                         KeychainContract.UpdatedKeys.LAST_UPDATED
                 },
-                "? - " + KeychainContract.UpdatedKeys.LAST_UPDATED + " < " + KEY_UPDATE_LIMIT,
-                new String[]{"" + CURRENT_TIME},
+                null,
+                null,
                 null
         );
 
-        ArrayList<Long> ignoreMasterKeyIds = new ArrayList<>();
+        LongSparseArray<Long> lastUpdatedTimes = new LongSparseArray<>();
         while (updatedKeysCursor != null && updatedKeysCursor.moveToNext()) {
-            long masterKeyId = updatedKeysCursor.getLong(INDEX_UPDATED_KEYS_MASTER_KEY_ID);
-            Log.d(Constants.TAG, "Keyserver sync: Ignoring {" + masterKeyId + "} last updated at {"
-                    + updatedKeysCursor.getLong(INDEX_LAST_UPDATED) + "}s");
-            ignoreMasterKeyIds.add(masterKeyId);
+            lastUpdatedTimes.put(updatedKeysCursor.getLong(INDEX_UPDATED_KEYS_MASTER_KEY_ID),
+                    updatedKeysCursor.getLong(INDEX_LAST_UPDATED));
         }
         if (updatedKeysCursor != null) {
             updatedKeysCursor.close();
@@ -455,22 +511,40 @@ public class KeyserverSyncAdapterService extends Service {
             return new ArrayList<>();
         }
 
-        ArrayList<ParcelableKeyRing> keyList = new ArrayList<>();
+        ArrayList<KeyToUpdate> keyList = new ArrayList<>();
+        int ignoredKeys = 0;
         while (keyCursor.moveToNext()) {
             long keyId = keyCursor.getLong(INDEX_MASTER_KEY_ID);
-            if (ignoreMasterKeyIds.contains(keyId)) {
+            // never updated keys sort first
+            long lastUpdated = lastUpdatedTimes.get(keyId, 0L);
+            if (CURRENT_TIME - lastUpdated < KEY_UPDATE_LIMIT) {
+                ignoredKeys += 1;
                 continue;
             }
-            Log.d(Constants.TAG, "Keyserver sync: Updating {" + keyId + "}");
             String fingerprint = KeyFormattingUtils
                     .convertFingerprintToHex(keyCursor.getBlob(INDEX_FINGERPRINT));
             String hexKeyId = KeyFormattingUtils
                     .convertKeyIdToHex(keyId);
             // we aren't updating from keybase as of now
-            keyList.add(new ParcelableKeyRing(fingerprint, hexKeyId, null, null));
+            keyList.add(new KeyToUpdate(lastUpdated, keyId,
+                    new ParcelableKeyRing(fingerprint, hexKeyId, null, null)));
         }
         keyCursor.close();
 
+        // 3. Sort by last update, and continue after the last key attempted by an earlier sync
+        Collections.sort(keyList);
+        Preferences prefs = Preferences.getPreferences(context);
+        if (prefs.hasKeyserverSyncResumePosition()) {
+            KeyToUpdate resumePosition = new KeyToUpdate(prefs.getKeyserverSyncResumeLastUpdated(),
+                    prefs.getKeyserverSyncResumeMasterKeyId(), null);
+            int index = Collections.binarySearch(keyList, resumePosition);
+            // start after the resume position, whether or not it is still in the list
+            int start = index >= 0 ? index + 1 : -index - 1;
+            Collections.rotate(keyList, -start);
+        }
+
+        Log.d(Constants.TAG, "Keyserver sync: Updating " + keyList.size() + " keys, ignoring "
+                + ignoredKeys + " recently updated keys");
         return keyList;
     }
 
@@ -603,4 +677,26 @@ public class KeyserverSyncAdapterService extends Service {
         d.draw(c);
         return b;
     }
+
+    /** A key to update, ordered by last update time, then master key id. */
+    private static class KeyToUpdate implements Comparable<KeyToUpdate> {
+        // in seconds, 0 if the key was never updated
+        final long mLastUpdated;
+        final long mMasterKeyId;
+        final ParcelableKeyRing mKeyRing;
+
+        KeyToUpdate(long lastUpdated, long masterKeyId, ParcelableKeyRing keyRing) {
+            mLastUpdated = lastUpdated;
+            mMasterKeyId = masterKeyId;
+            mKeyRing = keyRing;
+        }
+
+        @Override
+        public int compareTo(@NonNull KeyToUpdate another) {
+            if (mLastUpdated != another.mLastUpdated) {
+                return mLastUpdated < another.mLastUpdated ? -1 : 1;
+            }
+            return mMasterKeyId < another.mMasterKeyId ? -1 : (mMasterKeyId == another.mMasterKeyId ? 0 : 1);
+        }
+    }
 }
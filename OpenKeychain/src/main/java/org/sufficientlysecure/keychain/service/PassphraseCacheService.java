@@ -18,21 +18,26 @@
 package org.sufficientlysecure.keychain.service;
 
 
+import android.app.ActivityManager;
+import android.app.ActivityManager.RunningAppProcessInfo;
 import android.app.AlarmManager;
 import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.os.Binder;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Process;
 import android.os.RemoteException;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.util.LongSparseArray;
@@ -46,13 +51,21 @@ import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.Preferences;
 
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 /**
- * This service runs in its own process, but is available to all other processes as the main
+ * This service runs in the main process, but is available to all other processes as the main
  * passphrase cache. Use the static methods addCachedPassphrase and getCachedPassphrase for
  * convenience.
  *
+ * Passphrases are added and cleared by intents, which also manage the TTL alarms. In the main
+ * process, where KeychainService runs its operations, lookups read the cache of the running
+ * service directly, on any thread. Other processes like the remote API go through a binder,
+ * so they don't need a round trip through the main thread. The binding does not keep the
+ * service alive, lookups fall back to an intent, which starts it, while it is not connected.
+ *
  * The passphrase cache service always works with both a master key id and a subkey id. The master
  * key id is always used to retrieve relevant info from the database, while the subkey id is used
  * to determine the type behavior (regular passphrase, empty passphrase, stripped key,
@@ -100,7 +113,16 @@ public class PassphraseCacheService extends Service {
 
     private BroadcastReceiver mIntentReceiver;
 
-    private LongSparseArray<CachedPassphrase> mPassphraseCache = new LongSparseArray<>();
+    // read by binder threads, so all access is synchronized on the map
+    private final LongSparseArray<CachedPassphrase> mPassphraseCache = new LongSparseArray<>();
+
+    // the running service, if it runs in this process
+    private static volatile PassphraseCacheService sRunningService;
+    private static Boolean sIsServiceProcess;
+
+    private static final Object sBindLock = new Object();
+    private static ServiceConnection sServiceConnection;
+    private static IPassphraseCacheService sBoundService;
 
     Context mContext;
 
@@ -158,8 +180,8 @@ public class PassphraseCacheService extends Service {
     }
 
     /**
-     * Gets a cached passphrase from memory by sending an intent to the service. This method is
-     * designed to wait until the service returns the passphrase.
+     * Gets a cached passphrase from memory through the bound service. This method is designed to
+     * wait until the service returns the passphrase.
      *
      * @return passphrase or null (if no passphrase is cached for this keyId)
      */
@@ -167,6 +189,121 @@ public class PassphraseCacheService extends Service {
         Log.d(Constants.TAG, "PassphraseCacheService.getCachedPassphrase() for masterKeyId "
                 + masterKeyId + ", subKeyId " + subKeyId);
 
+        if (isServiceProcess(context)) {
+            // if the service is not running, nothing is cached
+            PassphraseCacheService runningService = sRunningService;
+            LongSparseArray<CachedPassphrase> passphraseCache = runningService != null
+                    ? runningService.mPassphraseCache : new LongSparseArray<CachedPassphrase>();
+            // If only one of these is symmetric, error out!
+            if (masterKeyId == Constants.key.symmetric ^ subKeyId == Constants.key.symmetric) {
+                Log.e(Constants.TAG, "PassphraseCacheService: Bad request, missing masterKeyId or subKeyId!");
+                throw new KeyNotFoundException();
+            }
+            try {
+                return getCachedPassphraseImpl(context, passphraseCache, masterKeyId, subKeyId);
+            } catch (KeyRepository.NotFoundException e) {
+                Log.e(Constants.TAG, "PassphraseCacheService: Passphrase for unknown key was requested!");
+                throw new KeyNotFoundException();
+            }
+        }
+
+        IPassphraseCacheService service = getBoundService(context);
+        if (service != null) {
+            try {
+                Bundle returnData = service.getCachedPassphrase(masterKeyId, subKeyId);
+                if (returnData == null) {
+                    throw new KeyNotFoundException();
+                }
+                returnData.setClassLoader(context.getClassLoader());
+                return returnData.getParcelable(EXTRA_PASSPHRASE);
+            } catch (RemoteException e) {
+                Log.e(Constants.TAG, "PassphraseCacheService: bound lookup failed, falling back to intent", e);
+            }
+        }
+
+        return getCachedPassphraseByIntent(context, masterKeyId, subKeyId);
+    }
+
+    /**
+     * Returns true if this is the process the service runs in, where intents to it are handled
+     * on the main thread and so can't be waited for there.
+     */
+    private static synchronized boolean isServiceProcess(Context context) {
+        if (sIsServiceProcess == null) {
+            String serviceProcessName;
+            try {
+                serviceProcessName = context.getPackageManager().getServiceInfo(
+                        new ComponentName(context, PassphraseCacheService.class), 0).processName;
+            } catch (NameNotFoundException e) {
+                throw new AssertionError("PassphraseCacheService is always declared");
+            }
+
+            String processName = null;
+            ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            List<RunningAppProcessInfo> processes = activityManager.getRunningAppProcesses();
+            if (processes != null) {
+                for (RunningAppProcessInfo process : processes) {
+                    if (process.pid == Process.myPid()) {
+                        processName = process.processName;
+                    }
+                }
+            }
+            sIsServiceProcess = serviceProcessName.equals(processName);
+        }
+        return sIsServiceProcess;
+    }
+
+    /**
+     * Returns the binder of the service, or null if it is not connected (yet). Binds to it on
+     * first use in this process, without creating the service. The connection is delivered on
+     * the main thread, so this doesn't wait for it, the intent fallback is used until then.
+     */
+    private static IPassphraseCacheService getBoundService(Context context) {
+        synchronized (sBindLock) {
+            if (sServiceConnection == null) {
+                final Context applicationContext = context.getApplicationContext() != null
+                        ? context.getApplicationContext() : context;
+                ServiceConnection serviceConnection = new ServiceConnection() {
+                    @Override
+                    public void onServiceConnected(ComponentName name, IBinder binder) {
+                        synchronized (sBindLock) {
+                            sBoundService = IPassphraseCacheService.Stub.asInterface(binder);
+                        }
+                    }
+
+                    @Override
+                    public void onServiceDisconnected(ComponentName name) {
+                        // the service was stopped or killed, bind again on the next lookup
+                        synchronized (sBindLock) {
+                            sBoundService = null;
+                            if (sServiceConnection == this) {
+                                sServiceConnection = null;
+                            }
+                        }
+                        applicationContext.unbindService(this);
+                    }
+                };
+                Intent intent = new Intent(applicationContext, PassphraseCacheService.class);
+                // no BIND_AUTO_CREATE, so the binding doesn't keep the service around
+                if (!applicationContext.bindService(intent, serviceConnection, 0)) {
+                    applicationContext.unbindService(serviceConnection);
+                    return null;
+                }
+                sServiceConnection = serviceConnection;
+            }
+            return sBoundService;
+        }
+    }
+
+    /**
+     * Gets a cached passphrase from memory by sending an intent to the service. This method is
+     * designed to wait until the service returns the passphrase.
+     *
+     * @return passphrase or null (if no passphrase is cached for this keyId)
+     */
+    private static Passphrase getCachedPassphraseByIntent(Context context, long masterKeyId, long subKeyId)
+            throws KeyNotFoundException {
+
         Intent intent = new Intent(context, PassphraseCacheService.class);
         intent.setAction(ACTION_PASSPHRASE_CACHE_GET);
 
@@ -224,7 +361,9 @@ public class PassphraseCacheService extends Service {
     /**
      * Internal implementation to get cached passphrase.
      */
-    private Passphrase getCachedPassphraseImpl(long masterKeyId, long subKeyId) throws KeyRepository.NotFoundException {
+    private static Passphrase getCachedPassphraseImpl(Context context,
+            LongSparseArray<CachedPassphrase> passphraseCache, long masterKeyId, long subKeyId)
+            throws KeyRepository.NotFoundException {
         // on "none" key, just do nothing
         if (masterKeyId == Constants.key.none) {
             return null;
@@ -233,11 +372,9 @@ public class PassphraseCacheService extends Service {
         // passphrase for symmetric encryption?
         if (masterKeyId == Constants.key.symmetric) {
             Log.d(Constants.TAG, "PassphraseCacheService.getCachedPassphraseImpl() for symmetric encryption");
-            CachedPassphrase cachedPassphrase = mPassphraseCache.get(Constants.key.symmetric);
-            if (cachedPassphrase == null) {
-                return null;
+            synchronized (passphraseCache) {
+                return copyCachedPassphrase(passphraseCache.get(Constants.key.symmetric));
             }
-            return cachedPassphrase.mPassphrase;
         }
 
         // try to get master key id which is used as an identifier for cached passphrases
@@ -245,7 +382,7 @@ public class PassphraseCacheService extends Service {
                 + masterKeyId + ", subKeyId " + subKeyId);
 
         // get the type of key (from the database)
-        CachedPublicKeyRing keyRing = KeyRepository.createDatabaseInteractor(this).getCachedPublicKeyRing(masterKeyId);
+        CachedPublicKeyRing keyRing = KeyRepository.createDatabaseInteractor(context).getCachedPublicKeyRing(masterKeyId);
         SecretKeyType keyType = keyRing.getSecretKeyType(subKeyId);
 
         switch (keyType) {
@@ -257,34 +394,50 @@ public class PassphraseCacheService extends Service {
                 throw new KeyRepository.NotFoundException("secret key for stripped subkey is not available");
         }
 
-        // get cached passphrase
-        CachedPassphrase cachedPassphrase = mPassphraseCache.get(subKeyId);
-        if (cachedPassphrase == null) {
+        boolean cacheSubs = Preferences.getPreferences(context).getPassphraseCacheSubs();
 
-            // If we cache strictly by subkey, exit early
-            if (Preferences.getPreferences(mContext).getPassphraseCacheSubs()) {
-                Log.d(Constants.TAG, "PassphraseCacheService: specific subkey passphrase not (yet) cached, returning null");
-                // not really an error, just means the passphrase is not cached but not empty either
-                return null;
-            }
+        // get cached passphrase, and copy it before it can be removed from memory
+        synchronized (passphraseCache) {
+            CachedPassphrase cachedPassphrase = passphraseCache.get(subKeyId);
+            if (cachedPassphrase == null) {
 
-            if (subKeyId == masterKeyId) {
-                Log.d(Constants.TAG, "PassphraseCacheService: masterkey passphrase not (yet) cached, returning null");
-                // not really an error, just means the passphrase is not cached but not empty either
-                return null;
-            }
+                // If we cache strictly by subkey, exit early
+                if (cacheSubs) {
+                    Log.d(Constants.TAG, "PassphraseCacheService: specific subkey passphrase not (yet) cached, returning null");
+                    // not really an error, just means the passphrase is not cached but not empty either
+                    return null;
+                }
+
+                if (subKeyId == masterKeyId) {
+                    Log.d(Constants.TAG, "PassphraseCacheService: masterkey passphrase not (yet) cached, returning null");
+                    // not really an error, just means the passphrase is not cached but not empty either
+                    return null;
+                }
+
+                cachedPassphrase = passphraseCache.get(masterKeyId);
+                // If we cache strictly by subkey, exit early
+                if (cachedPassphrase == null) {
+                    Log.d(Constants.TAG, "PassphraseCacheService: keyring passphrase not (yet) cached, returning null");
+                    // not really an error, just means the passphrase is not cached but not empty either
+                    return null;
+                }
 
-            cachedPassphrase = mPassphraseCache.get(masterKeyId);
-            // If we cache strictly by subkey, exit early
-            if (cachedPassphrase == null) {
-                Log.d(Constants.TAG, "PassphraseCacheService: keyring passphrase not (yet) cached, returning null");
-                // not really an error, just means the passphrase is not cached but not empty either
-                return null;
             }
 
+            return copyCachedPassphrase(cachedPassphrase);
         }
+    }
 
-        return cachedPassphrase.mPassphrase;
+    /**
+     * In the main process the binder hands out objects without parceling them, so callers get a
+     * copy which stays intact when the cached passphrase is removed from memory.
+     */
+    private static Passphrase copyCachedPassphrase(CachedPassphrase cachedPassphrase) {
+        if (cachedPassphrase == null || cachedPassphrase.mPassphrase == null) {
+            return null;
+        }
+        char[] chars = cachedPassphrase.mPassphrase.getCharArray();
+        return new Passphrase(Arrays.copyOf(chars, chars.length));
     }
 
     /**
@@ -376,7 +529,9 @@ public class PassphraseCacheService extends Service {
                     am.set(AlarmManager.RTC_WAKEUP, triggerTime, buildIntent(this, referenceKeyId));
                 }
 
-                mPassphraseCache.put(referenceKeyId, cachedPassphrase);
+                synchronized (mPassphraseCache) {
+                    mPassphraseCache.put(referenceKeyId, cachedPassphrase);
+                }
 
                 break;
             }
@@ -392,7 +547,7 @@ public class PassphraseCacheService extends Service {
                         Log.e(Constants.TAG, "PassphraseCacheService: Bad request, missing masterKeyId or subKeyId!");
                         msg.what = MSG_PASSPHRASE_CACHE_GET_KEY_NOT_FOUND;
                     } else {
-                        Passphrase passphrase = getCachedPassphraseImpl(masterKeyId, subKeyId);
+                        Passphrase passphrase = getCachedPassphraseImpl(this, mPassphraseCache, masterKeyId, subKeyId);
                         msg.what = MSG_PASSPHRASE_CACHE_GET_OKAY;
                         Bundle bundle = new Bundle();
                         bundle.putParcelable(EXTRA_PASSPHRASE, passphrase);
@@ -423,18 +578,22 @@ public class PassphraseCacheService extends Service {
                     }
                     // Stop specific ttl alarm and
                     am.cancel(buildIntent(this, referenceKeyId));
-                    mPassphraseCache.delete(referenceKeyId);
+                    synchronized (mPassphraseCache) {
+                        mPassphraseCache.delete(referenceKeyId);
+                    }
 
                 } else {
 
                     // Stop all ttl alarms
-                    for (int i = 0; i < mPassphraseCache.size(); i++) {
-                        CachedPassphrase cachedPassphrase = mPassphraseCache.valueAt(i);
-                        if (cachedPassphrase.mTimeoutMode == TimeoutMode.TTL) {
-                            am.cancel(buildIntent(this, mPassphraseCache.keyAt(i)));
+                    synchronized (mPassphraseCache) {
+                        for (int i = 0; i < mPassphraseCache.size(); i++) {
+                            CachedPassphrase cachedPassphrase = mPassphraseCache.valueAt(i);
+                            if (cachedPassphrase.mTimeoutMode == TimeoutMode.TTL) {
+                                am.cancel(buildIntent(this, mPassphraseCache.keyAt(i)));
+                            }
                         }
+                        mPassphraseCache.clear();
                     }
-                    mPassphraseCache.clear();
 
                 }
                 break;
@@ -453,14 +612,17 @@ public class PassphraseCacheService extends Service {
     /** Called when one specific passphrase for keyId timed out. */
     private void removeTimeoutedPassphrase(long keyId) {
 
-        CachedPassphrase cPass = mPassphraseCache.get(keyId);
-        if (cPass != null) {
-            if (cPass.mPassphrase != null) {
-                // clean internal char[] from memory!
-                cPass.mPassphrase.removeFromMemory();
+        // binder threads copy the passphrase while holding the lock, so it's safe to clean it here
+        synchronized (mPassphraseCache) {
+            CachedPassphrase cPass = mPassphraseCache.get(keyId);
+            if (cPass != null) {
+                if (cPass.mPassphrase != null) {
+                    // clean internal char[] from memory!
+                    cPass.mPassphrase.removeFromMemory();
+                }
+                // remove passphrase object
+                mPassphraseCache.remove(keyId);
             }
-            // remove passphrase object
-            mPassphraseCache.remove(keyId);
         }
 
         Log.d(Constants.TAG, "PassphraseCacheService Timeout of keyId " + keyId + ", removed from memory!");
@@ -470,15 +632,17 @@ public class PassphraseCacheService extends Service {
 
     private void removeScreenLockPassphrases() {
 
-        for (int i = 0; i < mPassphraseCache.size(); ) {
-            CachedPassphrase cPass = mPassphraseCache.valueAt(i);
-            if (cPass.mTimeoutMode == TimeoutMode.LOCK) {
-                // remove passphrase object
-                mPassphraseCache.removeAt(i);
-                continue;
+        synchronized (mPassphraseCache) {
+            for (int i = 0; i < mPassphraseCache.size(); ) {
+                CachedPassphrase cPass = mPassphraseCache.valueAt(i);
+                if (cPass.mTimeoutMode == TimeoutMode.LOCK) {
+                    // remove passphrase object
+                    mPassphraseCache.removeAt(i);
+                    continue;
+                }
+                // only do this if we didn't remove at, which continues loop by reducing size!
+                i += 1;
             }
-            // only do this if we didn't remove at, which continues loop by reducing size!
-            i += 1;
         }
 
         Log.d(Constants.TAG, "PassphraseCacheService Removing all cached-until-lock passphrases from memory!");
@@ -487,8 +651,12 @@ public class PassphraseCacheService extends Service {
     }
 
     private void updateService() {
-        if (mPassphraseCache.size() > 0) {
-            startForeground(Constants.Notification.PASSPHRASE_CACHE, getNotification());
+        int cacheSize;
+        synchronized (mPassphraseCache) {
+            cacheSize = mPassphraseCache.size();
+        }
+        if (cacheSize > 0) {
+            startForeground(Constants.Notification.PASSPHRASE_CACHE, getNotification(cacheSize));
         } else {
             // stop whole service if no cached passphrases remaining
             Log.d(Constants.TAG, "PassphraseCacheService: No passphrases remaining in memory, stopping service!");
@@ -496,12 +664,12 @@ public class PassphraseCacheService extends Service {
         }
     }
 
-    private Notification getNotification() {
+    private Notification getNotification(int cacheSize) {
         NotificationCompat.Builder builder = new NotificationCompat.Builder(this);
         builder.setSmallIcon(R.drawable.ic_stat_notify_24dp)
                 .setColor(getResources().getColor(R.color.primary))
                 .setContentTitle(getResources().getQuantityString(R.plurals.passp_cache_notif_n_keys,
-                        mPassphraseCache.size(), mPassphraseCache.size()))
+                        cacheSize, cacheSize))
                 .setContentText(getString(R.string.passp_cache_notif_touch_to_clear));
 
         NotificationCompat.InboxStyle inboxStyle = new NotificationCompat.InboxStyle();
@@ -509,8 +677,10 @@ public class PassphraseCacheService extends Service {
         inboxStyle.setBigContentTitle(getString(R.string.passp_cache_notif_keys));
 
         // Moves events into the big view
-        for (int i = 0; i < mPassphraseCache.size(); i++) {
-            inboxStyle.addLine(mPassphraseCache.valueAt(i).mPrimaryUserId);
+        synchronized (mPassphraseCache) {
+            for (int i = 0; i < mPassphraseCache.size(); i++) {
+                inboxStyle.addLine(mPassphraseCache.valueAt(i).mPrimaryUserId);
+            }
         }
 
         // Moves the big view style object into the notification object.
@@ -544,6 +714,8 @@ public class PassphraseCacheService extends Service {
         mContext = this;
         Log.d(Constants.TAG, "PassphraseCacheService, onCreate()");
 
+        sRunningService = this;
+
         registerReceiver();
     }
 
@@ -552,6 +724,8 @@ public class PassphraseCacheService extends Service {
         super.onDestroy();
         Log.d(Constants.TAG, "PassphraseCacheService, onDestroy()");
 
+        sRunningService = null;
+
         unregisterReceiver(mIntentReceiver);
     }
 
@@ -560,13 +734,25 @@ public class PassphraseCacheService extends Service {
         return mBinder;
     }
 
-    public class PassphraseCacheBinder extends Binder {
-        public PassphraseCacheService getService() {
-            return PassphraseCacheService.this;
+    private final IBinder mBinder = new IPassphraseCacheService.Stub() {
+        @Override
+        public Bundle getCachedPassphrase(long masterKeyId, long subKeyId) {
+            // If only one of these is symmetric, error out!
+            if (masterKeyId == Constants.key.symmetric ^ subKeyId == Constants.key.symmetric) {
+                Log.e(Constants.TAG, "PassphraseCacheService: Bad request, missing masterKeyId or subKeyId!");
+                return null;
+            }
+            try {
+                Bundle bundle = new Bundle();
+                bundle.putParcelable(EXTRA_PASSPHRASE, getCachedPassphraseImpl(
+                        PassphraseCacheService.this, mPassphraseCache, masterKeyId, subKeyId));
+                return bundle;
+            } catch (KeyRepository.NotFoundException e) {
+                Log.e(Constants.TAG, "PassphraseCacheService: Passphrase for unknown key was requested!");
+                return null;
+            }
         }
-    }
-
-    private final IBinder mBinder = new PassphraseCacheBinder();
+    };
 
     private enum TimeoutMode {
         NEVER, TTL, LOCK
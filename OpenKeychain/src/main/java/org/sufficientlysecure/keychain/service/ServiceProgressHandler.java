@@ -22,6 +22,7 @@ import android.app.ProgressDialog;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Messenger;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentManager;
 
@@ -39,7 +40,8 @@ public class ServiceProgressHandler extends Handler {
         OKAY,
         EXCEPTION,
         UPDATE_PROGRESS,
-        PREVENT_CANCEL;
+        PREVENT_CANCEL,
+        PARTIAL_RESULT;
 
         private static final MessageStatus[] values = values();
 
@@ -58,6 +60,7 @@ public class ServiceProgressHandler extends Handler {
     public static final String DATA_PROGRESS_MAX = "max";
     public static final String DATA_MESSAGE = "message";
     public static final String DATA_MESSAGE_ID = "message_id";
+    public static final String DATA_INPUT_URI = "input_uri";
 
     // keybase proof specific
     public static final String KEYBASE_PROOF_URL = "keybase_proof_url";
@@ -82,7 +85,8 @@ public class ServiceProgressHandler extends Handler {
         final ProgressDialogFragment frag = ProgressDialogFragment.newInstance(
                 progressDialogMessage,
                 progressDialogStyle,
-                cancelable);
+                cancelable,
+                new Messenger(this));
 
         // TODO: This is a hack!, see
         // http://stackoverflow.com/questions/10114324/show-dialogfragment-from-onactivityresult
@@ -143,6 +147,10 @@ public class ServiceProgressHandler extends Handler {
                 setPreventCancel(true);
                 break;
 
+            case PARTIAL_RESULT:
+                // handled by subclasses, the operation is still running
+                break;
+
             default:
                 Log.e(Constants.TAG, "unknown handler message!");
                 break;
@@ -112,6 +112,31 @@ public class CryptoInputParcel implements Parcelable {
 
     }
 
+    /**
+     * Returns a copy of this parcel with its own crypto data, for an operation running in
+     * parallel with others. The explicit passphrase is not copied, since it may not belong to
+     * the key used by that operation.
+     */
+    public CryptoInputParcel copyWithoutPassphrase() {
+        CryptoInputParcel copy = copy();
+        copy.mPassphrase = null;
+        return copy;
+    }
+
+    /**
+     * Returns a copy of this parcel with its own crypto data, for an operation running in
+     * parallel with others, which may add crypto data concurrently.
+     */
+    public CryptoInputParcel copy() {
+        CryptoInputParcel copy = new CryptoInputParcel(mCachePassphrase);
+        copy.mHasSignature = mHasSignature;
+        copy.mSignatureTime = mSignatureTime;
+        copy.mPassphrase = mPassphrase;
+        copy.mParcelableProxy = mParcelableProxy;
+        copy.mCryptoData.putAll(mCryptoData);
+        return copy;
+    }
+
     @Override
     public int describeContents() {
         return 0;
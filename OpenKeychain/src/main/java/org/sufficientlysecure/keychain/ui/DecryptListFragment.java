@@ -75,13 +75,17 @@ import org.sufficientlysecure.keychain.BuildConfig;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.results.BatchInputDataResult;
 import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.InputDataResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.service.BatchInputDataParcel;
 import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
 import org.sufficientlysecure.keychain.service.InputDataParcel;
 import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper;
+import org.sufficientlysecure.keychain.ui.base.CryptoOperationHelper.PartialResultCallback;
 import org.sufficientlysecure.keychain.ui.base.QueueingCryptoOperationFragment;
 // this import NEEDS to be above the ViewModel AND SubViewHolder one, or it won't compile! (as of 16.09.15)
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils.StatusHolder;
@@ -104,14 +108,18 @@ import org.sufficientlysecure.keychain.util.Preferences;
  * <p/>
  * This class has a complex control flow to manage its input URIs. Each URI
  * which is in mInputUris is also in exactly one of mPendingInputUris,
- * mCancelledInputUris, mCurrentInputUri, or a key in mInputDataResults.
+ * mCancelledInputUris, mCurrentInputUri, mBatchInputUris, or a key in
+ * mInputDataResults.
  * <p/>
  * Processing of URIs happens using a looping approach:
- * - There is always exactly one method running which works on mCurrentInputUri
+ * - There is always exactly one method running which works on mCurrentInputUri,
+ * or on mBatchInputUris
  * - Processing starts in cryptoOperation(), which pops a new mCurrentInputUri
- * from the list of mPendingInputUris.
+ * from the list of mPendingInputUris. If more than one URI is pending, they are
+ * instead moved to mBatchInputUris and processed together in parallel.
  * - Once a mCurrentInputUri is finished processing, it should be set to null and
- * control handed back to cryptoOperation()
+ * control handed back to cryptoOperation(). The same goes for mBatchInputUris,
+ * once it is empty.
  * - Control flow can move through asynchronous calls, and resume in callbacks
  * like onActivityResult() or onPermissionRequestResult().
  */
@@ -134,11 +142,15 @@ public class DecryptListFragment
     private ArrayList<Uri> mCancelledInputUris;
 
     private Uri mCurrentInputUri;
+    private final ArrayList<Uri> mBatchInputUris = new ArrayList<>();
     private boolean mCanDelete;
 
     private DecryptFilesAdapter mAdapter;
     private Uri mCurrentSaveFileUri;
 
+    private final CryptoOperationHelper<BatchInputDataParcel, BatchInputDataResult> mBatchOperationHelper =
+            new CryptoOperationHelper<>(3, this, new BatchCallback(), null);
+
     /**
      * Creates new instance of this fragment
      */
@@ -205,8 +217,8 @@ public class DecryptListFragment
         outState.putParcelableArrayList(ARG_CANCELLED_URIS, mCancelledInputUris);
         outState.putBoolean(ARG_CAN_DELETE, mCanDelete);
 
-        // this does not save mCurrentInputUri - if anything is being
-        // processed at fragment recreation time, the operation in
+        // this does not save mCurrentInputUri or mBatchInputUris - if anything
+        // is being processed at fragment recreation time, the operation in
         // progress will be lost!
     }
 
@@ -234,6 +246,7 @@ public class DecryptListFragment
 
         mInputUris = inputUris;
         mCurrentInputUri = null;
+        mBatchInputUris.clear();
         mInputDataResults = results != null ? results : new HashMap<Uri, InputDataResult>(inputUris.size());
         mCancelledInputUris = cancelledUris != null ? cancelledUris : new ArrayList<Uri>();
 
@@ -275,6 +288,9 @@ public class DecryptListFragment
             }
 
             default: {
+                if (mBatchOperationHelper.handleActivityResult(requestCode, resultCode, data)) {
+                    return;
+                }
                 super.onActivityResult(requestCode, resultCode, data);
             }
         }
@@ -472,7 +488,7 @@ public class DecryptListFragment
     public void retryUri(Uri uri) {
 
         // never interrupt running operations!
-        if (mCurrentInputUri != null) {
+        if (mCurrentInputUri != null || !mBatchInputUris.isEmpty()) {
             return;
         }
 
@@ -613,6 +629,118 @@ public class DecryptListFragment
 
     }
 
+    @Override
+    protected void cryptoOperation() {
+        // the batch hands control back once it is done
+        if (!mBatchInputUris.isEmpty()) {
+            return;
+        }
+
+        Activity activity = getActivity();
+        if (mCurrentInputUri == null && mPendingInputUris.size() > 1 && activity != null) {
+            // uris which need a permission request are left to be processed on their own
+            Iterator<Uri> it = mPendingInputUris.iterator();
+            while (it.hasNext()) {
+                Uri uri = it.next();
+                if (hasReadPermission(activity, uri)) {
+                    it.remove();
+                    mBatchInputUris.add(uri);
+                }
+            }
+
+            if (mBatchInputUris.size() > 1) {
+                mBatchOperationHelper.cryptoOperation();
+                return;
+            }
+            mPendingInputUris.addAll(0, mBatchInputUris);
+            mBatchInputUris.clear();
+        }
+
+        super.cryptoOperation();
+    }
+
+    /** Handles the operation processing all of mBatchInputUris in parallel. */
+    private class BatchCallback implements CryptoOperationHelper.Callback<BatchInputDataParcel, BatchInputDataResult>,
+            PartialResultCallback {
+
+        @Override
+        public BatchInputDataParcel createOperationInput() {
+            ArrayList<InputDataParcel> inputs = new ArrayList<>();
+            for (Uri uri : mBatchInputUris) {
+                PgpDecryptVerifyInputParcel decryptInput = new PgpDecryptVerifyInputParcel()
+                        .setAllowSymmetricDecryption(true);
+                inputs.add(new InputDataParcel(uri, decryptInput));
+            }
+            return new BatchInputDataParcel(inputs);
+        }
+
+        @Override
+        public void onCryptoOperationPartialResult(Uri inputUri, OperationResult result) {
+            if (!mBatchInputUris.remove(inputUri)) {
+                return;
+            }
+            InputDataResult inputResult = (InputDataResult) result;
+
+            if (inputResult.isPending()) {
+                // this one needs a passphrase or security token of its own, ask for it later
+                mPendingInputUris.add(inputUri);
+            } else if (inputResult.success()) {
+                mInputDataResults.put(inputUri, inputResult);
+                processResult(inputUri);
+            } else {
+                mAdapter.addResult(inputUri, inputResult);
+            }
+        }
+
+        @Override
+        public void onCryptoOperationSuccess(BatchInputDataResult result) {
+            // results are only included here if they were not sent one by one
+            if (result.mInputUris != null) {
+                for (int i = 0; i < result.mInputUris.size(); i++) {
+                    onCryptoOperationPartialResult(result.mInputUris.get(i), result.mResults.get(i));
+                }
+            }
+            finishBatch(false);
+        }
+
+        @Override
+        public void onCryptoOperationCancelled() {
+            finishBatch(true);
+        }
+
+        @Override
+        public void onCryptoOperationError(BatchInputDataResult result) {
+            Activity activity = getActivity();
+            if (activity != null && result.getResult() != BatchInputDataResult.RESULT_CANCELLED) {
+                result.createNotify(activity).show();
+            }
+            finishBatch(true);
+        }
+
+        @Override
+        public boolean onCryptoSetProgress(String msg, int progress, int max) {
+            // progress is for the whole batch
+            for (Uri uri : mBatchInputUris) {
+                mAdapter.setProgress(uri, progress, max, msg);
+            }
+            return true;
+        }
+
+        private void finishBatch(boolean cancelled) {
+            for (Uri uri : mBatchInputUris) {
+                if (cancelled) {
+                    mCancelledInputUris.add(uri);
+                    mAdapter.setCancelled(uri, true);
+                } else {
+                    mPendingInputUris.add(uri);
+                }
+            }
+            mBatchInputUris.clear();
+
+            cryptoOperation();
+        }
+    }
+
     @Override
     public InputDataParcel createOperationInput() {
 
@@ -652,17 +780,7 @@ public class DecryptListFragment
      * see https://commonsware.com/blog/2015/10/07/runtime-permissions-files-action-send.html
      */
     private boolean checkAndRequestReadPermission(Activity activity, final Uri uri) {
-        if (!ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
-            return true;
-        }
-
-        // Additional check due to https://commonsware.com/blog/2015/11/09/you-cannot-hold-nonexistent-permissions.html
-        if (Build.VERSION.SDK_INT < VERSION_CODES.M) {
-            return true;
-        }
-
-        if (ContextCompat.checkSelfPermission(activity, Manifest.permission.READ_EXTERNAL_STORAGE)
-                == PackageManager.PERMISSION_GRANTED) {
+        if (hasReadPermission(activity, uri)) {
             return true;
         }
 
@@ -674,6 +792,20 @@ public class DecryptListFragment
 
     }
 
+    private static boolean hasReadPermission(Activity activity, Uri uri) {
+        if (!ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            return true;
+        }
+
+        // Additional check due to https://commonsware.com/blog/2015/11/09/you-cannot-hold-nonexistent-permissions.html
+        if (Build.VERSION.SDK_INT < VERSION_CODES.M) {
+            return true;
+        }
+
+        return ContextCompat.checkSelfPermission(activity, Manifest.permission.READ_EXTERNAL_STORAGE)
+                == PackageManager.PERMISSION_GRANTED;
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode,
                                            @NonNull String[] permissions,
@@ -733,7 +865,7 @@ public class DecryptListFragment
         }
 
         // don't process menu items until all items are done!
-        if (!mPendingInputUris.isEmpty()) {
+        if (!mPendingInputUris.isEmpty() || !mBatchInputUris.isEmpty()) {
             return true;
         }
 
@@ -363,6 +363,15 @@ public class ImportKeysActivity extends BaseActivity implements ImportKeysListen
         mOpHelper.cryptoOperation();
     }
 
+    @Override
+    public void importKeys(Uri dataUri) {
+        // keys are read from the file while importing, no need to cache them
+        ImportKeyringParcel inputParcel = new ImportKeyringParcel(dataUri);
+        ImportKeysOperationCallback callback = new ImportKeysOperationCallback(this, inputParcel, null);
+        mOpHelper = new CryptoOperationHelper<>(1, this, callback, R.string.progress_importing);
+        mOpHelper.cryptoOperation();
+    }
+
     @Override
     public void handleResult(ImportKeyResult result, Integer position) {
         String intentAction = getIntent().getAction();
@@ -166,7 +166,13 @@ public class ImportKeysListFragment extends Fragment implements
         mBinding.basic.importKeys.setOnClickListener(new OnClickListener() {
             @Override
             public void onClick(View view) {
-                mListener.importKeys(mAdapter.getEntries());
+                // all keys from a file can be streamed, instead of passing them on one by one
+                if (mLoaderState instanceof BytesLoaderState
+                        && ((BytesLoaderState) mLoaderState).mDataUri != null) {
+                    mListener.importKeys(((BytesLoaderState) mLoaderState).mDataUri);
+                } else {
+                    mListener.importKeys(mAdapter.getEntries());
+                }
             }
         });
         mBinding.basic.listKeys.setOnClickListener(new OnClickListener() {
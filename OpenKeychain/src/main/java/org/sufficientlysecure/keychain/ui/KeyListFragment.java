@@ -587,7 +587,7 @@ public class KeyListFragment extends RecyclerFragment<KeySectionedListAdapter>
 
             @Override
             public BenchmarkInputParcel createOperationInput() {
-                return new BenchmarkInputParcel(); // we want to perform a full consolidate
+                return new BenchmarkInputParcel();
             }
 
             @Override
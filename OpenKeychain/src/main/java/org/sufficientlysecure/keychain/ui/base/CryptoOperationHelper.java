@@ -24,6 +24,7 @@ import java.util.Date;
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Message;
 import android.os.Messenger;
@@ -67,6 +68,11 @@ public class CryptoOperationHelper<T extends Parcelable, S extends OperationResu
         boolean onCryptoSetProgress(String msg, int progress, int max);
     }
 
+    /** Implemented by callbacks which handle results of single inputs, sent while the operation runs. */
+    public interface PartialResultCallback {
+        void onCryptoOperationPartialResult(Uri inputUri, OperationResult result);
+    }
+
     // request codes from CryptoOperationHelper are created essentially
     // a static property, used to identify requestCodes meant for this
     // particular helper. a request code looks as follows:
@@ -297,6 +303,13 @@ public class CryptoOperationHelper<T extends Parcelable, S extends OperationResu
                             returnData.getParcelable(OperationResult.EXTRA_RESULT);
 
                     onHandleResult(result);
+                } else if (message.arg1 == MessageStatus.PARTIAL_RESULT.ordinal()
+                        && mCallback instanceof PartialResultCallback) {
+                    Bundle data = message.getData();
+                    Uri inputUri = data.getParcelable(DATA_INPUT_URI);
+                    OperationResult result = data.getParcelable(OperationResult.EXTRA_RESULT);
+
+                    ((PartialResultCallback) mCallback).onCryptoOperationPartialResult(inputUri, result);
                 }
             }
 
@@ -55,6 +55,15 @@ public class ContactHelper {
 
     private static final Map<Long, Bitmap> photoCache = new HashMap<>();
 
+    // operations applied at once, batches end between keys so back references stay valid
+    private static final int MAX_BATCH_OPERATIONS = 400;
+    // ContactsProvider rejects more than 500 operations between yield points, which are set at
+    // the first operation of each key
+    static final int MAX_KEY_OPERATIONS = 400;
+
+    // digest of the keyring a raw contact was written from, in a column reserved for sync adapters
+    private static final String RAW_CONTACT_KEY_RING_DIGEST = ContactsContract.RawContacts.SYNC1;
+
     private Context mContext;
     private ContentResolver mContentResolver;
 
@@ -454,7 +463,8 @@ public class ContactHelper {
             KeychainContract.KeyRings.HAS_ANY_SECRET,
             KeychainContract.KeyRings.NAME,
             KeychainContract.KeyRings.EMAIL,
-            KeychainContract.KeyRings.COMMENT };
+            KeychainContract.KeyRings.COMMENT,
+            KeychainContract.KeyRings.KEY_RING_DIGEST };
 
     public static final int INDEX_MASTER_KEY_ID = 0;
     public static final int INDEX_USER_ID = 1;
@@ -466,6 +476,7 @@ public class ContactHelper {
     public static final int INDEX_NAME = 7;
     public static final int INDEX_EMAIL = 8;
     public static final int INDEX_COMMENT = 9;
+    public static final int INDEX_KEY_RING_DIGEST = 10;
 
     /**
      * Write/Update the current OpenKeychain keys to the contact db
@@ -494,11 +505,21 @@ public class ContactHelper {
         return false;
     }
 
+    /**
+     * Writes the public keys to normal contacts, incrementally.
+     * <p/>
+     * Each raw contact records the digest of the keyring it was written from. Raw contacts of
+     * keyrings which did not change since are skipped, so only changed keys are written. All
+     * operations are applied in batches of up to MAX_BATCH_OPERATIONS.
+     */
     private void writeKeysToNormalContacts() {
         // delete raw contacts flagged for deletion by user so they can be reinserted
         deleteFlaggedNormalRawContacts();
 
-        Set<Long> deletedKeys = getRawContactMasterKeyIds();
+        // all raw contacts still left in here at the end belong to deleted keys
+        Map<Long, List<SyncedRawContact>> syncedContacts = getSyncedRawContacts();
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
 
         // Load all public Keys from OK
         // TODO: figure out why using selectionArgs does not work in this case
@@ -514,54 +535,112 @@ public class ContactHelper {
                 boolean isExpired = cursor.getInt(INDEX_IS_EXPIRED) != 0;
                 boolean isRevoked = cursor.getInt(INDEX_IS_REVOKED) > 0;
                 boolean isVerified = cursor.getInt(INDEX_VERIFIED) > 0;
+                String keyRingDigest = cursor.getString(INDEX_KEY_RING_DIGEST);
 
-                Log.d(Constants.TAG, "masterKeyId: " + masterKeyId);
+                List<SyncedRawContact> keyContacts = syncedContacts.remove(masterKeyId);
+                if (keyContacts == null) {
+                    keyContacts = new ArrayList<>();
+                }
 
-                deletedKeys.remove(masterKeyId);
+                writeKeyToNormalContact(ops, masterKeyId, name, !isExpired && !isRevoked && isVerified,
+                        keyRingDigest, keyContacts);
 
-                ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+                // back references only work within a batch, so batches end between keys
+                if (ops.size() >= MAX_BATCH_OPERATIONS) {
+                    applyContactsBatch(ops);
+                }
+            }
+            cursor.close();
+        }
 
-                // Do not store expired or revoked or unverified keys in contact db - and
-                // remove them if they already exist. Secret keys do not reach this point
-                if (isExpired || isRevoked || !isVerified) {
-                    Log.d(Constants.TAG, "Expired or revoked or unverified: Deleting masterKeyId "
-                            + masterKeyId);
-                    if (masterKeyId != -1) {
-                        deleteRawContactByMasterKeyId(masterKeyId);
-                    }
-                } else if (name != null) {
+        // Delete master key ids that are no longer present in OK
+        for (Map.Entry<Long, List<SyncedRawContact>> entry : syncedContacts.entrySet()) {
+            Log.d(Constants.TAG, "Delete raw contact with masterKeyId " + entry.getKey());
+            for (SyncedRawContact syncedContact : entry.getValue()) {
+                ops.add(deleteRawContact(syncedContact.mRawContactId));
+            }
+            if (ops.size() >= MAX_BATCH_OPERATIONS) {
+                applyContactsBatch(ops);
+            }
+        }
 
-                    // get raw contact to this master key id
-                    long rawContactId = findRawContactId(masterKeyId);
-                    Log.d(Constants.TAG, "rawContactId: " + rawContactId);
+        applyContactsBatch(ops);
+    }
 
-                    // Create a new rawcontact with corresponding key if it does not exist yet
-                    if (rawContactId == -1) {
-                        Log.d(Constants.TAG, "Insert new raw contact with masterKeyId " + masterKeyId);
+    /**
+     * Adds the operations which bring the raw contacts of a key up to date. Raw contacts which
+     * were inserted in this batch are referenced by the index of their insert operation.
+     *
+     * @param isActive     false if the key is expired, revoked or unverified
+     * @param keyContacts  the raw contacts of the key, there should only be one
+     */
+    void writeKeyToNormalContact(ArrayList<ContentProviderOperation> ops, long masterKeyId, String name,
+                                 boolean isActive, String keyRingDigest, List<SyncedRawContact> keyContacts) {
+        // Do not store expired or revoked or unverified keys in contact db - and
+        // remove them if they already exist. Secret keys do not reach this point
+        if (!isActive) {
+            for (SyncedRawContact syncedContact : keyContacts) {
+                Log.d(Constants.TAG, "Expired or revoked or unverified: Deleting masterKeyId "
+                        + masterKeyId);
+                ops.add(deleteRawContact(syncedContact.mRawContactId));
+            }
+            return;
+        }
+        if (name == null) {
+            return;
+        }
 
-                        insertContact(ops, masterKeyId);
-                        writeContactKey(ops, rawContactId, masterKeyId, name);
-                    }
+        // more than one raw contact is left over from an earlier sync which failed halfway
+        SyncedRawContact syncedContact = keyContacts.isEmpty() ? null : keyContacts.get(0);
+        for (int i = 1; i < keyContacts.size(); i++) {
+            Log.d(Constants.TAG, "Delete duplicate raw contact with masterKeyId " + masterKeyId);
+            ops.add(deleteRawContact(keyContacts.get(i).mRawContactId));
+        }
 
-                    // We always update the display name (which is derived from primary user id)
-                    // and email addresses from user id
-                    writeContactDisplayName(ops, rawContactId, name);
-                    writeContactEmail(ops, rawContactId, masterKeyId);
-                    try {
-                        mContentResolver.applyBatch(ContactsContract.AUTHORITY, ops);
-                    } catch (Exception e) {
-                        Log.w(Constants.TAG, e);
-                    }
-                }
-            }
-            cursor.close();
+        // keyrings without a digest were saved before digests were recorded
+        if (syncedContact != null && keyRingDigest != null
+                && keyRingDigest.equals(syncedContact.mKeyRingDigest)) {
+            return;
         }
 
-        // Delete master key ids that are no longer present in OK
-        for (Long masterKeyId : deletedKeys) {
-            Log.d(Constants.TAG, "Delete raw contact with masterKeyId " + masterKeyId);
-            deleteRawContactByMasterKeyId(masterKeyId);
+        Log.d(Constants.TAG, "masterKeyId: " + masterKeyId);
+
+        // Create a new rawcontact with corresponding key if it does not exist yet
+        int keyOperationsStart = ops.size();
+        long rawContactId;
+        int rawContactIndex = -1;
+        if (syncedContact == null) {
+            Log.d(Constants.TAG, "Insert new raw contact with masterKeyId " + masterKeyId);
+
+            rawContactId = -1;
+            rawContactIndex = ops.size();
+            insertContact(ops, masterKeyId, keyRingDigest);
+            writeContactKey(ops, rawContactId, rawContactIndex, masterKeyId, name);
+        } else {
+            rawContactId = syncedContact.mRawContactId;
+            ops.add(updateRawContactKeyRingDigest(rawContactId, keyRingDigest));
+        }
+
+        // We always update the display name (which is derived from primary user id)
+        // and email addresses from user id
+        writeContactDisplayName(ops, rawContactId, rawContactIndex, name);
+        writeContactEmail(ops, rawContactId, rawContactIndex, masterKeyId, keyOperationsStart);
+    }
+
+    /**
+     * Applies and clears a batch of operations on the contact db
+     */
+    private void applyContactsBatch(ArrayList<ContentProviderOperation> ops) {
+        if (ops.isEmpty()) {
+            return;
         }
+        try {
+            mContentResolver.applyBatch(ContactsContract.AUTHORITY, ops);
+        } catch (Exception e) {
+            // the digests of failed raw contacts are not updated, so they are retried next time
+            Log.w(Constants.TAG, e);
+        }
+        ops.clear();
     }
 
     /**
@@ -598,7 +677,7 @@ public class ContactHelper {
 
                         ArrayList<ContentProviderOperation> ops = new ArrayList<>();
                         insertMainProfileRawContact(ops, masterKeyId);
-                        writeContactKey(ops, rawContactId, masterKeyId, name);
+                        writeContactKey(ops, rawContactId, 0, masterKeyId, name);
 
                         try {
                             mContentResolver.applyBatch(ContactsContract.AUTHORITY, ops);
@@ -704,23 +783,40 @@ public class ContactHelper {
     }
 
     /**
-     * Deletes raw contacts from ContactsContract.RawContacts based on masterKeyId. Does not
-     * delete contacts from the "me" contact defined in ContactsContract.Profile
-     *
-     * @return number of rows deleted
+     * Deletes a raw contact from ContactsContract.RawContacts. Does not delete contacts from
+     * the "me" contact defined in ContactsContract.Profile
      */
-    private int deleteRawContactByMasterKeyId(long masterKeyId) {
+    private ContentProviderOperation deleteRawContact(long rawContactId) {
         // CALLER_IS_SYNCADAPTER allows us to actually wipe the RawContact from the device, otherwise
         // would be just flagged for deletion
         Uri deleteUri = ContactsContract.RawContacts.CONTENT_URI.buildUpon().
                 appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build();
 
-        return mContentResolver.delete(deleteUri,
-                ContactsContract.RawContacts.ACCOUNT_TYPE + "=? AND " +
-                        ContactsContract.RawContacts.SOURCE_ID + "=?",
-                new String[]{
-                        Constants.ACCOUNT_TYPE, Long.toString(masterKeyId)
-                });
+        return ContentProviderOperation.newDelete(deleteUri)
+                .withSelection(ContactsContract.RawContacts._ID + "=?",
+                        new String[]{
+                                Long.toString(rawContactId)
+                        })
+                .withYieldAllowed(true)
+                .build();
+    }
+
+    /**
+     * Records the digest of the keyring a raw contact was last written from
+     */
+    private ContentProviderOperation updateRawContactKeyRingDigest(long rawContactId, String keyRingDigest) {
+        // as sync adapter, so the raw contact is not marked dirty
+        Uri updateUri = ContactsContract.RawContacts.CONTENT_URI.buildUpon().
+                appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true").build();
+
+        return ContentProviderOperation.newUpdate(updateUri)
+                .withSelection(ContactsContract.RawContacts._ID + "=?",
+                        new String[]{
+                                Long.toString(rawContactId)
+                        })
+                .withValue(RAW_CONTACT_KEY_RING_DIGEST, keyRingDigest)
+                .withYieldAllowed(true)
+                .build();
     }
 
     private int deleteFlaggedNormalRawContacts() {
@@ -739,23 +835,32 @@ public class ContactHelper {
     }
 
     /**
-     * @return a set of all key master key ids currently present in the contact db
+     * @return the raw contacts of all keys currently present in the contact db, by master key id,
+     * oldest first
      */
-    private Set<Long> getRawContactMasterKeyIds() {
-        HashSet<Long> result = new HashSet<>();
-        Cursor masterKeyIds = mContentResolver.query(ContactsContract.RawContacts.CONTENT_URI,
+    private Map<Long, List<SyncedRawContact>> getSyncedRawContacts() {
+        HashMap<Long, List<SyncedRawContact>> result = new HashMap<>();
+        Cursor rawContacts = mContentResolver.query(ContactsContract.RawContacts.CONTENT_URI,
                 new String[]{
-                        ContactsContract.RawContacts.SOURCE_ID
+                        ContactsContract.RawContacts.SOURCE_ID,
+                        ContactsContract.RawContacts._ID,
+                        RAW_CONTACT_KEY_RING_DIGEST
                 },
                 ContactsContract.RawContacts.ACCOUNT_TYPE + "=?",
                 new String[]{
                         Constants.ACCOUNT_TYPE
-                }, null);
-        if (masterKeyIds != null) {
-            while (masterKeyIds.moveToNext()) {
-                result.add(masterKeyIds.getLong(0));
+                }, ContactsContract.RawContacts._ID);
+        if (rawContacts != null) {
+            while (rawContacts.moveToNext()) {
+                long masterKeyId = rawContacts.getLong(0);
+                List<SyncedRawContact> keyContacts = result.get(masterKeyId);
+                if (keyContacts == null) {
+                    keyContacts = new ArrayList<>(1);
+                    result.put(masterKeyId, keyContacts);
+                }
+                keyContacts.add(new SyncedRawContact(rawContacts.getLong(1), rawContacts.getString(2)));
             }
-            masterKeyIds.close();
+            rawContacts.close();
         }
         return result;
     }
@@ -782,38 +887,17 @@ public class ContactHelper {
         return result;
     }
 
-    /**
-     * This will search the contact db for a raw contact with a given master key id
-     *
-     * @return raw contact id or -1 if not found
-     */
-    private long findRawContactId(long masterKeyId) {
-        long rawContactId = -1;
-        Cursor raw = mContentResolver.query(ContactsContract.RawContacts.CONTENT_URI,
-                new String[]{
-                        ContactsContract.RawContacts._ID
-                },
-                ContactsContract.RawContacts.ACCOUNT_TYPE + "=? AND " + ContactsContract.RawContacts.SOURCE_ID + "=?",
-                new String[]{
-                        Constants.ACCOUNT_TYPE, Long.toString(masterKeyId)
-                }, null);
-        if (raw != null) {
-            if (raw.moveToNext()) {
-                rawContactId = raw.getLong(0);
-            }
-            raw.close();
-        }
-        return rawContactId;
-    }
-
     /**
      * Creates a empty raw contact with a given masterKeyId
      */
-    private void insertContact(ArrayList<ContentProviderOperation> ops, long masterKeyId) {
+    private void insertContact(ArrayList<ContentProviderOperation> ops, long masterKeyId,
+                               String keyRingDigest) {
         ops.add(ContentProviderOperation.newInsert(ContactsContract.RawContacts.CONTENT_URI)
                 .withValue(ContactsContract.RawContacts.ACCOUNT_NAME, Constants.ACCOUNT_NAME)
                 .withValue(ContactsContract.RawContacts.ACCOUNT_TYPE, Constants.ACCOUNT_TYPE)
                 .withValue(ContactsContract.RawContacts.SOURCE_ID, Long.toString(masterKeyId))
+                .withValue(RAW_CONTACT_KEY_RING_DIGEST, keyRingDigest)
+                .withYieldAllowed(true)
                 .build());
     }
 
@@ -823,8 +907,9 @@ public class ContactHelper {
      * This creates the link to OK in contact details
      */
     private void writeContactKey(ArrayList<ContentProviderOperation> ops, long rawContactId,
-                                 long masterKeyId, String keyName) {
-        ops.add(referenceRawContact(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI), rawContactId)
+                                 int rawContactIndex, long masterKeyId, String keyName) {
+        ops.add(referenceRawContact(ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI),
+                rawContactId, rawContactIndex)
                 .withValue(ContactsContract.Data.MIMETYPE, Constants.CUSTOM_CONTACT_DATA_MIME_TYPE)
                 .withValue(ContactsContract.Data.DATA1, mContext.getString(R.string.contact_show_key, keyName))
                 .withValue(ContactsContract.Data.DATA2, masterKeyId)
@@ -832,10 +917,11 @@ public class ContactHelper {
     }
 
     /**
-     * Write all known email addresses of a key (derived from user ids) to a given raw contact
+     * Write all known email addresses of a key (derived from user ids) to a given raw contact.
+     * Addresses beyond MAX_KEY_OPERATIONS operations for the key are left out.
      */
-    private void writeContactEmail(ArrayList<ContentProviderOperation> ops,
-                                   long rawContactId, long masterKeyId) {
+    private void writeContactEmail(ArrayList<ContentProviderOperation> ops, long rawContactId,
+                                   int rawContactIndex, long masterKeyId, int keyOperationsStart) {
         ops.add(selectByRawContactAndItemType(
                 ContentProviderOperation.newDelete(ContactsContract.Data.CONTENT_URI),
                 rawContactId, ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE).build());
@@ -847,11 +933,15 @@ public class ContactHelper {
                 null, null);
         if (ids != null) {
             while (ids.moveToNext()) {
+                if (ops.size() - keyOperationsStart >= MAX_KEY_OPERATIONS) {
+                    Log.w(Constants.TAG, "Too many email addresses for masterKeyId " + masterKeyId);
+                    break;
+                }
                 OpenPgpUtils.UserId userId = KeyRing.splitUserId(ids.getString(0));
                 if (userId.email != null) {
                     ops.add(referenceRawContact(
                             ContentProviderOperation.newInsert(ContactsContract.Data.CONTENT_URI),
-                            rawContactId)
+                            rawContactId, rawContactIndex)
                             .withValue(ContactsContract.Data.MIMETYPE,
                                     ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE)
                             .withValue(ContactsContract.CommonDataKinds.Email.DATA, userId.email)
@@ -863,26 +953,30 @@ public class ContactHelper {
     }
 
     private void writeContactDisplayName(ArrayList<ContentProviderOperation> ops, long rawContactId,
-                                         String displayName) {
+                                         int rawContactIndex, String displayName) {
         if (displayName != null) {
             ops.add(insertOrUpdateForRawContact(ContactsContract.Data.CONTENT_URI, rawContactId,
-                    ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE)
+                    rawContactIndex, ContactsContract.CommonDataKinds.StructuredName.CONTENT_ITEM_TYPE)
                     .withValue(ContactsContract.CommonDataKinds.StructuredName.DISPLAY_NAME, displayName)
                     .build());
         }
     }
 
+    /**
+     * References an existing raw contact, or if rawContactId is -1, the raw contact inserted by
+     * the operation at rawContactIndex in the same batch
+     */
     private ContentProviderOperation.Builder referenceRawContact(ContentProviderOperation.Builder builder,
-                                                                 long rawContactId) {
+                                                                 long rawContactId, int rawContactIndex) {
         return rawContactId == -1 ?
-                builder.withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, 0) :
+                builder.withValueBackReference(ContactsContract.Data.RAW_CONTACT_ID, rawContactIndex) :
                 builder.withValue(ContactsContract.Data.RAW_CONTACT_ID, rawContactId);
     }
 
     private ContentProviderOperation.Builder insertOrUpdateForRawContact(Uri uri, long rawContactId,
-                                                                         String itemType) {
+                                                                         int rawContactIndex, String itemType) {
         if (rawContactId == -1) {
-            return referenceRawContact(ContentProviderOperation.newInsert(uri), rawContactId).withValue(
+            return referenceRawContact(ContentProviderOperation.newInsert(uri), rawContactId, rawContactIndex).withValue(
                     ContactsContract.Data.MIMETYPE, itemType);
         } else {
             return selectByRawContactAndItemType(ContentProviderOperation.newUpdate(uri), rawContactId, itemType);
@@ -897,4 +991,17 @@ public class ContactHelper {
                         Long.toString(rawContactId), itemType
                 });
     }
+
+    /**
+     * A raw contact of a key, with the digest of the keyring it was last written from
+     */
+    static class SyncedRawContact {
+        final long mRawContactId;
+        final String mKeyRingDigest;
+
+        SyncedRawContact(long rawContactId, String keyRingDigest) {
+            mRawContactId = rawContactId;
+            mKeyRingDigest = keyRingDigest;
+        }
+    }
 }
@@ -33,6 +33,7 @@ import org.sufficientlysecure.keychain.Constants.Pref;
 import org.sufficientlysecure.keychain.KeychainApplication;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.keyimport.ParcelableHkpKeyserver;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.service.KeyserverSyncAdapterService;
 
 import java.io.Serializable;
@@ -104,6 +105,16 @@ public class Preferences {
         return mSharedPreferences.getBoolean(Pref.PASSPHRASE_CACHE_SUBS, false);
     }
 
+    public boolean getPassphraseCacheUnlockedKeys() {
+        return mSharedPreferences.getBoolean(Pref.PASSPHRASE_CACHE_UNLOCKED_KEYS, false);
+    }
+
+    public void setPassphraseCacheUnlockedKeys(boolean value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Pref.PASSPHRASE_CACHE_UNLOCKED_KEYS, value);
+        editor.commit();
+    }
+
     public boolean getCachedConsolidate() {
         return mSharedPreferences.getBoolean(Pref.CACHED_CONSOLIDATE, false);
     }
@@ -196,6 +207,18 @@ public class Preferences {
         return mSharedPreferences.getBoolean(Pref.TEXT_USE_COMPRESSION, true);
     }
 
+    /** maximum number of certificates by other keys kept per user id of a public key */
+    public int getMaxThirdPartyCerts() {
+        return Integer.parseInt(mSharedPreferences.getString(Pref.EXPERIMENTAL_MAX_THIRD_PARTY_CERTS,
+                Integer.toString(UncachedKeyRing.CANONICALIZE_MAX_THIRD_PARTY_CERTS)));
+    }
+
+    public void setMaxThirdPartyCerts(int maxThirdPartyCerts) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putString(Pref.EXPERIMENTAL_MAX_THIRD_PARTY_CERTS, Integer.toString(maxThirdPartyCerts));
+        editor.commit();
+    }
+
     public String getTheme() {
         return mSharedPreferences.getString(Pref.THEME, Pref.Theme.LIGHT);
     }
@@ -350,6 +373,11 @@ public class Preferences {
             }
         }
 
+        /** Returns the time to live preselected in the passphrase dialog, which is the shortest one. */
+        public int getShortestTtl() {
+            return ttlTimes.isEmpty() ? 0 : Collections.min(ttlTimes);
+        }
+
         public HashSet<String> getStringSet() {
             HashSet<String> ttlTimeStrings = new HashSet<>();
             for (Integer ttlTime : ttlTimes) {
@@ -436,6 +464,33 @@ public class Preferences {
         return mSharedPreferences.getBoolean(Pref.ENABLE_WIFI_SYNC_ONLY, true);
     }
 
+    public boolean hasKeyserverSyncResumePosition() {
+        return mSharedPreferences.contains(Pref.KEYSERVER_SYNC_RESUME_MASTER_KEY_ID);
+    }
+
+    public long getKeyserverSyncResumeLastUpdated() {
+        return mSharedPreferences.getLong(Pref.KEYSERVER_SYNC_RESUME_LAST_UPDATED, 0);
+    }
+
+    public long getKeyserverSyncResumeMasterKeyId() {
+        return mSharedPreferences.getLong(Pref.KEYSERVER_SYNC_RESUME_MASTER_KEY_ID, 0);
+    }
+
+    /** Remembers the last key a keyserver sync attempted to update, so the next sync continues after it. */
+    public void setKeyserverSyncResumePosition(long lastUpdated, long masterKeyId) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putLong(Pref.KEYSERVER_SYNC_RESUME_LAST_UPDATED, lastUpdated);
+        editor.putLong(Pref.KEYSERVER_SYNC_RESUME_MASTER_KEY_ID, masterKeyId);
+        editor.commit();
+    }
+
+    public void clearKeyserverSyncResumePosition() {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.remove(Pref.KEYSERVER_SYNC_RESUME_LAST_UPDATED);
+        editor.remove(Pref.KEYSERVER_SYNC_RESUME_MASTER_KEY_ID);
+        editor.commit();
+    }
+
     // experimental prefs
 
     public boolean getExperimentalEnableWordConfirm() {
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.sufficientlysecure.keychain.Constants;
+
+
+/**
+ * An OutputStream for data which has to be read back once after it is written, when its
+ * size is not bounded.
+ * <p/>
+ * Up to memoryLimit bytes are kept in memory. Beyond that, all data is moved to a temporary
+ * file in the given directory, so no more than a buffer's worth of it is on the heap at any
+ * time. The data may be sensitive (e.g. decrypted cleartext), so the file is encrypted with
+ * a random key which only exists in memory. The file is deleted by discard(), which must
+ * always be called.
+ */
+public class SpillingOutputStream extends OutputStream {
+
+    private static final int FILE_BUFFER_SIZE = 1 << 16;
+    private static final String SPILL_CIPHER = "AES/CTR/NoPadding";
+
+    private final File mDirectory;
+    private final int mMemoryLimit;
+
+    private ByteArrayOutputStream mMemoryBuffer = new ByteArrayOutputStream();
+    private File mFile;
+    private OutputStream mFileOut;
+    private InputStream mFileIn;
+    private SecretKeySpec mKey;
+    private IvParameterSpec mIv;
+    private long mSize;
+
+    public SpillingOutputStream(File directory, int memoryLimit) {
+        mDirectory = directory;
+        mMemoryLimit = memoryLimit;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mFile == null && mSize + len > mMemoryLimit) {
+            spillToFile();
+        }
+
+        if (mFile == null) {
+            mMemoryBuffer.write(b, off, len);
+        } else {
+            mFileOut.write(b, off, len);
+        }
+        mSize += len;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public boolean isSpilled() {
+        return mFile != null;
+    }
+
+    /** Returns an InputStream over all data written so far. No more data may be written after this. */
+    public InputStream getInputStream() throws IOException {
+        if (mFile == null) {
+            return new ByteArrayInputStream(mMemoryBuffer.toByteArray());
+        }
+
+        mFileOut.close();
+        mFileIn = new BufferedInputStream(new CipherInputStream(
+                new FileInputStream(mFile), createCipher(Cipher.DECRYPT_MODE)), FILE_BUFFER_SIZE);
+        return mFileIn;
+    }
+
+    /** Releases all buffered data, and deletes the temporary file if there is one. */
+    public void discard() {
+        mMemoryBuffer = null;
+        mKey = null;
+        closeQuietly(mFileOut);
+        closeQuietly(mFileIn);
+        if (mFile != null && !mFile.delete()) {
+            Log.e(Constants.TAG, "Could not delete spill file " + mFile);
+        }
+    }
+
+    private void spillToFile() throws IOException {
+        SecureRandom random = new SecureRandom();
+        byte[] key = new byte[16];
+        random.nextBytes(key);
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+        mKey = new SecretKeySpec(key, "AES");
+        mIv = new IvParameterSpec(iv);
+
+        mFile = File.createTempFile("spill", null, mDirectory);
+        mFileOut = new BufferedOutputStream(new CipherOutputStream(
+                new FileOutputStream(mFile), createCipher(Cipher.ENCRYPT_MODE)), FILE_BUFFER_SIZE);
+
+        mMemoryBuffer.writeTo(mFileOut);
+        mMemoryBuffer = null;
+    }
+
+    private Cipher createCipher(int mode) throws IOException {
+        try {
+            Cipher cipher = Cipher.getInstance(SPILL_CIPHER);
+            cipher.init(mode, mKey, mIv);
+            return cipher;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not set up encryption of spill file", e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "IOException when closing spill file", e);
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.keyimport.CloudSearch.OnSearchResultsListener;
+import org.sufficientlysecure.keychain.util.ParcelableProxy;
+import org.sufficientlysecure.keychain.util.Preferences.CloudSearchPrefs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.sufficientlysecure.keychain.keyimport.ImportKeysListTest.createEntry;
+
+@RunWith(KeychainTestRunner.class)
+public class CloudSearchTest {
+
+    private static final String FINGERPRINT_1 = "0123456789abcdef0123456789abcdef01234567";
+    private static final String FINGERPRINT_2 = "89abcdef0123456789abcdef0123456789abcdef";
+
+    @Test
+    public void testProgressiveResults() throws Exception {
+        ParcelableHkpKeyserver keyserver = new ParcelableHkpKeyserver("hkp://keyserver.example.com") {
+            @Override
+            public void search(String query, ParcelableProxy proxy, SearchResultListener listener) {
+                listener.onSearchResult(createEntry(FINGERPRINT_1, "Alice <alice@example.com>"));
+                listener.onSearchResult(createEntry(FINGERPRINT_2, "Bob <bob@example.com>"));
+                listener.onSearchResult(createEntry(FINGERPRINT_1, "Alice <alice@example.org>"));
+            }
+        };
+        CloudSearchPrefs cloudPrefs = new CloudSearchPrefs(true, false, false, keyserver);
+
+        final ArrayList<ArrayList<ImportKeysListEntry>> partialResults = new ArrayList<>();
+        ArrayList<ImportKeysListEntry> results = CloudSearch.search("alice", cloudPrefs,
+                ParcelableProxy.getForNoProxy(), new OnSearchResultsListener() {
+                    @Override
+                    public void onSearchResults(ArrayList<ImportKeysListEntry> results) {
+                        partialResults.add(results);
+                    }
+                });
+
+        assertEquals("results must be delivered once per server", 1, partialResults.size());
+        ArrayList<ImportKeysListEntry> partial = partialResults.get(0);
+        assertEquals("entries must be merged as they are received", 2, partial.size());
+        assertEquals(2, partial.get(0).getUserIds().size());
+
+        assertEquals(2, results.size());
+        assertEquals(FINGERPRINT_1, results.get(0).getFingerprintHex());
+        assertEquals(FINGERPRINT_2, results.get(1).getFingerprintHex());
+        assertNotSame("partial results must not share entries with the final result",
+                partial.get(0), results.get(0));
+    }
+
+}
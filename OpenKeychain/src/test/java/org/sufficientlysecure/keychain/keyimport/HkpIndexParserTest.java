@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.keyimport.ParcelableHkpKeyserver.SearchResultListener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(KeychainTestRunner.class)
+public class HkpIndexParserTest {
+
+    @Test
+    public void testParseIndex() throws Exception {
+        String index = "info:1:3\n" +
+                "pub:0123456789ABCDEF0123456789ABCDEF01234567:1:2048:1400000000::\n" +
+                "uid:Alice %3Calice@example.com%3E:1400000000::\n" +
+                "\n" +
+                "uid:Alice Universit%C3%A4t:1400000000::\n" +
+                "pub:89abcdef01234567:17:1024:1300000000::r\n" +
+                "uid:Bob <bob@example.com>:1300000000::\n" +
+                "pub:0123:1:2048:1400000000::\n" +
+                "uid:Bad key id:1400000000::\n" +
+                "pub:fedcba9876543210:1:2048:1400000000::\n";
+
+        final ArrayList<ImportKeysListEntry> entries = new ArrayList<>();
+        HkpIndexParser parser = new HkpIndexParser("query", null, new SearchResultListener() {
+            @Override
+            public void onSearchResult(ImportKeysListEntry entry) {
+                entries.add(entry);
+            }
+        });
+        parser.parse(new BufferedReader(new StringReader(index)));
+
+        assertEquals("keys with bad key id or without user ids must be skipped", 2, entries.size());
+
+        ImportKeysListEntry alice = entries.get(0);
+        assertEquals("0123456789abcdef0123456789abcdef01234567", alice.getFingerprintHex());
+        assertEquals("0x89abcdef01234567", alice.getKeyIdHex());
+        assertEquals(2048, (int) alice.getBitStrength());
+        assertEquals("user ids must be decoded", 2, alice.getUserIds().size());
+        assertEquals("Alice <alice@example.com>", alice.getUserIds().get(0));
+        assertEquals("Alice Universität", alice.getUserIds().get(1));
+        assertFalse(alice.isRevoked());
+
+        ImportKeysListEntry bob = entries.get(1);
+        assertEquals("0x89abcdef01234567", bob.getKeyIdHex());
+        assertEquals(1, bob.getUserIds().size());
+        assertTrue(bob.isRevoked());
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(KeychainTestRunner.class)
+public class ImportKeysListTest {
+
+    private static final String FINGERPRINT_1 = "0123456789abcdef0123456789abcdef01234567";
+    private static final String FINGERPRINT_2 = "89abcdef0123456789abcdef0123456789abcdef";
+
+    @Test
+    public void testMergeByFingerprint() throws Exception {
+        ImportKeysList list = new ImportKeysList(1);
+        ImportKeysListEntry first = createEntry(FINGERPRINT_1, "Alice <alice@example.com>");
+
+        list.add(first);
+        list.add(createEntry(FINGERPRINT_2, "Bob <bob@example.com>"));
+        list.add(createEntry(FINGERPRINT_1, "Alice <alice@example.org>"));
+
+        assertEquals("dupe must be merged into the existing entry", 2, list.size());
+        assertSame(first, list.get(0));
+        assertEquals(2, first.getUserIds().size());
+        assertTrue(first.getUserIds().contains("Alice <alice@example.org>"));
+    }
+
+    @Test
+    public void testNoMergeWithoutFingerprint() throws Exception {
+        ImportKeysList list = new ImportKeysList(1);
+
+        list.add(createEntry(null, "Alice <alice@example.com>"));
+        list.add(createEntry(null, "Alice <alice@example.com>"));
+
+        assertEquals("entries without fingerprint must not be merged", 2, list.size());
+    }
+
+    @Test
+    public void testRemoveUpdatesIndex() throws Exception {
+        ImportKeysList list = new ImportKeysList(1);
+        ImportKeysListEntry first = createEntry(FINGERPRINT_1, "Alice <alice@example.com>");
+        list.add(first);
+        list.add(createEntry(FINGERPRINT_2, "Bob <bob@example.com>"));
+
+        assertTrue(list.remove(first));
+        ImportKeysListEntry readded = createEntry(FINGERPRINT_1, "Alice <alice@example.org>");
+        list.add(readded);
+        assertEquals(2, list.size());
+        assertSame("entry must be added, not merged into the removed one", readded, list.get(1));
+        assertEquals(1, first.getUserIds().size());
+
+        list.remove(0);
+        list.add(createEntry(FINGERPRINT_2, "Bob <bob@example.org>"));
+        assertEquals(2, list.size());
+        assertEquals(Collections.singletonList("Bob <bob@example.org>"), list.get(1).getUserIds());
+    }
+
+    @Test
+    public void testClearUpdatesIndex() throws Exception {
+        ImportKeysList list = new ImportKeysList(1);
+        ImportKeysListEntry first = createEntry(FINGERPRINT_1, "Alice <alice@example.com>");
+        list.add(first);
+
+        list.clear();
+        ImportKeysListEntry readded = createEntry(FINGERPRINT_1, "Alice <alice@example.org>");
+        list.add(readded);
+
+        assertEquals(1, list.size());
+        assertSame("entry must be added, not merged into the cleared one", readded, list.get(0));
+        assertEquals(1, first.getUserIds().size());
+    }
+
+    @Test
+    public void testSnapshotIsNotAffectedByMerges() throws Exception {
+        ImportKeysList list = new ImportKeysList(1);
+        ImportKeysListEntry first = createEntry(FINGERPRINT_1, "Alice <alice@example.com>");
+        list.add(first);
+
+        ArrayList<ImportKeysListEntry> snapshot = list.snapshot();
+        ImportKeysListEntry dupe = createEntry(FINGERPRINT_1, "Alice <alice@example.org>");
+        dupe.setRevoked(true);
+        list.add(dupe);
+
+        assertEquals(1, snapshot.size());
+        ImportKeysListEntry copy = snapshot.get(0);
+        assertNotSame(first, copy);
+        assertEquals(FINGERPRINT_1, copy.getFingerprintHex());
+        assertEquals("snapshot must not see user ids merged later",
+                Collections.singletonList("Alice <alice@example.com>"), copy.getUserIds());
+        assertFalse("snapshot must not see flags merged later", copy.isRevoked());
+        assertTrue(first.isRevoked());
+
+        copy.setFingerprintHex(FINGERPRINT_2);
+        assertEquals("modifying the snapshot must not affect the list",
+                FINGERPRINT_1, list.get(0).getFingerprintHex());
+    }
+
+    static ImportKeysListEntry createEntry(String fingerprint, String userId) {
+        ImportKeysListEntry entry = new ImportKeysListEntry();
+        entry.setFingerprintHex(fingerprint);
+        entry.setSecure(true);
+        entry.setPrimaryUserId(userId);
+        ArrayList<String> userIds = new ArrayList<>();
+        userIds.add(userId);
+        entry.setUserIds(userIds);
+        return entry;
+    }
+
+}
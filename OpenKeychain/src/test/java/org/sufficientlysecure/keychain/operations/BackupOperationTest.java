@@ -58,8 +58,6 @@ import org.sufficientlysecure.keychain.util.TestingUtils;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.io.PrintStream;
 import java.security.Security;
 import java.util.Iterator;
@@ -70,6 +68,7 @@ import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -284,17 +283,9 @@ public class BackupOperationTest {
         Application spyApplication;
         ContentResolver mockResolver = mock(ContentResolver.class);
 
-        Uri fakePipedUri, fakeOutputUri;
+        Uri fakeOutputUri;
         ByteArrayOutputStream outStream; {
 
-            fakePipedUri = Uri.parse("content://fake/pipe/1");
-            PipedInputStream pipedInStream = new PipedInputStream(8192);
-            PipedOutputStream pipedOutStream = new PipedOutputStream(pipedInStream);
-            when(mockResolver.openOutputStream(fakePipedUri)).thenReturn(pipedOutStream);
-            when(mockResolver.openInputStream(fakePipedUri)).thenReturn(pipedInStream);
-            when(mockResolver.insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class)))
-                    .thenReturn(fakePipedUri);
-
             fakeOutputUri = Uri.parse("content://fake/out/1");
             outStream = new ByteArrayOutputStream();
             when(mockResolver.openOutputStream(fakeOutputUri)).thenReturn(outStream);
@@ -314,8 +305,7 @@ public class BackupOperationTest {
             CryptoInputParcel inputParcel = new CryptoInputParcel(passphrase);
             ExportResult result = op.execute(parcel, inputParcel);
 
-            verify(mockResolver).openOutputStream(fakePipedUri);
-            verify(mockResolver).openInputStream(fakePipedUri);
+            verify(mockResolver, never()).insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class));
             verify(mockResolver).openOutputStream(fakeOutputUri);
 
             assertTrue("export must succeed", result.success());
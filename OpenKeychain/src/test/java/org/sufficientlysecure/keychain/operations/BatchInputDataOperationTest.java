@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.app.Application;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.BatchInputDataOperation.OnInputDataResultListener;
+import org.sufficientlysecure.keychain.operations.results.BatchInputDataResult;
+import org.sufficientlysecure.keychain.operations.results.InputDataResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpSecurityConstants;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
+import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
+import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
+import org.sufficientlysecure.keychain.service.BatchInputDataParcel;
+import org.sufficientlysecure.keychain.service.InputDataParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.service.input.RequiredInputParcel.RequiredInputType;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+
+@RunWith(KeychainTestRunner.class)
+public class BatchInputDataOperationTest {
+
+    static Passphrase mPassphrase1 = TestingUtils.genPassphrase(true);
+    static Passphrase mPassphrase2 = TestingUtils.genPassphrase(true);
+
+    static PrintStream oldShadowStream;
+
+    // contents of the fake content resolver, by uri
+    private ConcurrentHashMap<Uri, byte[]> mFiles;
+    private ConcurrentHashMap<Uri, ByteArrayOutputStream> mOutputStreams;
+    private ContentResolver mMockResolver;
+    private Application mSpyApplication;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        oldShadowStream = ShadowLog.stream;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // don't log verbosely here, there are many inputs
+        ShadowLog.stream = oldShadowStream;
+
+        mFiles = new ConcurrentHashMap<>();
+        mOutputStreams = new ConcurrentHashMap<>();
+        mMockResolver = mock(ContentResolver.class);
+
+        // new temporary files get unique uris, which can be written and read back
+        final AtomicInteger fileCount = new AtomicInteger();
+        when(mMockResolver.insert(eq(TemporaryFileProvider.CONTENT_URI), any(ContentValues.class))).thenAnswer(
+                new Answer<Uri>() {
+                    @Override
+                    public Uri answer(InvocationOnMock invocation) {
+                        return Uri.parse("content://fake/out/" + fileCount.incrementAndGet());
+                    }
+                });
+        Answer<ByteArrayOutputStream> openOutputStream = new Answer<ByteArrayOutputStream>() {
+            @Override
+            public ByteArrayOutputStream answer(InvocationOnMock invocation) {
+                ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+                mOutputStreams.put((Uri) invocation.getArguments()[0], outStream);
+                return outStream;
+            }
+        };
+        when(mMockResolver.openOutputStream(any(Uri.class))).thenAnswer(openOutputStream);
+        when(mMockResolver.openOutputStream(any(Uri.class), anyString())).thenAnswer(openOutputStream);
+        when(mMockResolver.openInputStream(any(Uri.class))).thenAnswer(new Answer<ByteArrayInputStream>() {
+            @Override
+            public ByteArrayInputStream answer(InvocationOnMock invocation) {
+                return new ByteArrayInputStream(readFile((Uri) invocation.getArguments()[0]));
+            }
+        });
+
+        mSpyApplication = spy(RuntimeEnvironment.application);
+        when(mSpyApplication.getContentResolver()).thenReturn(mMockResolver);
+    }
+
+    @Test
+    public void testBatchDecrypt() throws Exception {
+
+        ArrayList<InputDataParcel> inputs = new ArrayList<>();
+        HashMap<Uri, String> plaintexts = new HashMap<>();
+        for (int i = 0; i < 12; i++) {
+            String plaintext = "Some-Header: dummy\n\nsome message text " + i + "\n";
+            Uri inputUri = addEncryptedFile(i, plaintext, mPassphrase1);
+            plaintexts.put(inputUri, plaintext);
+            inputs.add(new InputDataParcel(inputUri, new PgpDecryptVerifyInputParcel()
+                    .setAllowSymmetricDecryption(true)));
+        }
+
+        BatchInputDataOperation op = new BatchInputDataOperation(mSpyApplication,
+                KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application), null, null);
+
+        // the passphrase is only entered once, and not cached
+        BatchInputDataResult result = op.execute(new BatchInputDataParcel(inputs),
+                new CryptoInputParcel(mPassphrase1));
+
+        Assert.assertTrue("batch decryption must succeed", result.success());
+        Assert.assertEquals("must have a result for each input", inputs.size(), result.mResults.size());
+        for (int i = 0; i < result.mResults.size(); i++) {
+            InputDataResult inputResult = result.mResults.get(i);
+            Assert.assertTrue("each input must be decrypted with the entered passphrase", inputResult.success());
+            Assert.assertNotNull("each input must have a decryption result", inputResult.mDecryptVerifyResult);
+            Assert.assertEquals("each input must be decrypted to its own plaintext",
+                    plaintexts.get(result.mInputUris.get(i)),
+                    new String(readFile(inputResult.getOutputUris().get(0))));
+        }
+    }
+
+    @Test
+    public void testBatchDecryptListener() throws Exception {
+
+        ArrayList<InputDataParcel> inputs = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            inputs.add(new InputDataParcel(addEncryptedFile(i, "Some-Header: dummy\n\ntext " + i + "\n", mPassphrase1),
+                    new PgpDecryptVerifyInputParcel().setAllowSymmetricDecryption(true)));
+        }
+
+        BatchInputDataOperation op = new BatchInputDataOperation(mSpyApplication,
+                KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application), null, null);
+
+        // results of the parallel inputs are handed to the listener on the calling thread
+        final Thread callingThread = Thread.currentThread();
+        final Map<Uri, InputDataResult> listenerResults = new HashMap<>();
+        op.setResultListener(new OnInputDataResultListener() {
+            @Override
+            public void onInputDataResult(Uri inputUri, InputDataResult result) {
+                Assert.assertSame("results must be reported on the calling thread",
+                        callingThread, Thread.currentThread());
+                Assert.assertNull("each result must be reported once", listenerResults.put(inputUri, result));
+            }
+        });
+
+        BatchInputDataResult result = op.execute(new BatchInputDataParcel(inputs),
+                new CryptoInputParcel(mPassphrase1));
+
+        Assert.assertTrue("batch decryption must succeed", result.success());
+        Assert.assertTrue("reported results must not be part of the final result", result.mResults.isEmpty());
+        Assert.assertEquals("each input must be reported", inputs.size(), listenerResults.size());
+        for (InputDataParcel input : inputs) {
+            Assert.assertTrue("each input must be decrypted", listenerResults.get(input.getInputUri()).success());
+        }
+    }
+
+    @Test
+    public void testBatchDecryptPending() throws Exception {
+
+        ArrayList<InputDataParcel> inputs = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            inputs.add(new InputDataParcel(addEncryptedFile(i, "Some-Header: dummy\n\ntext " + i + "\n", mPassphrase1),
+                    new PgpDecryptVerifyInputParcel().setAllowSymmetricDecryption(true)));
+        }
+
+        BatchInputDataOperation op = new BatchInputDataOperation(mSpyApplication,
+                KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application), null, null);
+
+        BatchInputDataResult result = op.execute(new BatchInputDataParcel(inputs), new CryptoInputParcel());
+
+        Assert.assertTrue("batch without passphrase must return pending", result.isPending());
+        Assert.assertEquals("batch without passphrase must require a symmetric passphrase",
+                RequiredInputType.PASSPHRASE_SYMMETRIC, result.getRequiredInputParcel().mType);
+        for (int i = 1; i < inputs.size(); i++) {
+            verify(mMockResolver, never()).openInputStream(inputs.get(i).getInputUri());
+        }
+    }
+
+    @Test
+    public void testBatchDecryptPendingInput() throws Exception {
+
+        ArrayList<InputDataParcel> inputs = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            // the second input is encrypted with another passphrase
+            Passphrase passphrase = i == 1 ? mPassphrase2 : mPassphrase1;
+            inputs.add(new InputDataParcel(addEncryptedFile(i, "Some-Header: dummy\n\ntext " + i + "\n", passphrase),
+                    new PgpDecryptVerifyInputParcel().setAllowSymmetricDecryption(true)));
+        }
+
+        BatchInputDataOperation op = new BatchInputDataOperation(mSpyApplication,
+                KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application), null, null);
+
+        BatchInputDataResult result = op.execute(new BatchInputDataParcel(inputs),
+                new CryptoInputParcel(mPassphrase1));
+
+        Assert.assertTrue("batch must succeed with one pending input", result.success());
+        Assert.assertTrue("pending input must be logged",
+                result.getLog().containsType(LogType.MSG_BATCH_DATA_FILE_PENDING));
+        Assert.assertEquals("must have a result for each input", inputs.size(), result.mResults.size());
+        for (int i = 0; i < result.mResults.size(); i++) {
+            InputDataResult inputResult = result.mResults.get(i);
+            if (result.mInputUris.get(i).equals(inputs.get(1).getInputUri())) {
+                Assert.assertTrue("input with other passphrase must be pending", inputResult.isPending());
+                Assert.assertEquals("input with other passphrase must require its passphrase",
+                        RequiredInputType.PASSPHRASE_SYMMETRIC, inputResult.getRequiredInputParcel().mType);
+            } else {
+                Assert.assertTrue("other inputs must be decrypted", inputResult.success());
+            }
+        }
+    }
+
+    private Uri addEncryptedFile(int index, String plaintext, Passphrase passphrase) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application), null);
+
+        PgpSignEncryptData pgpData = new PgpSignEncryptData();
+        pgpData.setSymmetricPassphrase(passphrase);
+        pgpData.setSymmetricEncryptionAlgorithm(
+                PgpSecurityConstants.OpenKeychainSymmetricKeyAlgorithmTags.AES_128);
+
+        PgpSignEncryptResult result = op.execute(new PgpSignEncryptInputParcel(pgpData),
+                new CryptoInputParcel(new Date()), new InputData(in, in.available()), out);
+        Assert.assertTrue("encryption must succeed", result.success());
+
+        Uri inputUri = Uri.parse("content://fake/in/" + index);
+        mFiles.put(inputUri, out.toByteArray());
+        return inputUri;
+    }
+
+    private byte[] readFile(Uri uri) {
+        byte[] data = mFiles.get(uri);
+        if (data != null) {
+            return data;
+        }
+        ByteArrayOutputStream outStream = mOutputStreams.get(uri);
+        Assert.assertNotNull("file must exist: " + uri, outStream);
+        return outStream.toByteArray();
+    }
+
+}
@@ -19,12 +19,15 @@ package org.sufficientlysecure.keychain.operations;
 
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.shadows.ShadowLog;
 import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.BenchmarkResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
 import org.sufficientlysecure.keychain.service.BenchmarkInputParcel;
 
@@ -52,4 +55,18 @@ public class BenchmarkOperationTest {
         op.execute(new BenchmarkInputParcel(), null);
     }
 
+    @Test
+    public void testBenchmarkNoRepeats() throws Exception {
+        BenchmarkOperation op = new BenchmarkOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application), null);
+
+        BenchmarkInputParcel input = new BenchmarkInputParcel();
+        input.mNumRepeats = 0;
+        BenchmarkResult result = op.execute(input, null);
+
+        Assert.assertFalse("benchmark without repetitions should fail", result.success());
+        Assert.assertTrue("benchmark without repetitions should log an error",
+                result.getLog().containsType(LogType.MSG_BENCH_ERROR_NUM_REPEATS));
+    }
+
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.Security;
+import java.util.ArrayList;
+
+import android.net.Uri;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.io.Streams;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
+import org.sufficientlysecure.keychain.service.ImportKeyringParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.ParcelableProxy;
+
+@RunWith(KeychainTestRunner.class)
+public class ImportOperationTest {
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testStreamingImport() throws Exception {
+        // the secret key comes first, but can only be imported after its public key
+        File keyFile = File.createTempFile("keys", ".asc");
+        keyFile.deleteOnExit();
+        OutputStream out = new FileOutputStream(keyFile);
+        copyResource("/test-keys/symantec_secret.asc", out);
+        copyResource("/test-keys/symantec_public.asc", out);
+        copyResource("/test-keys/mailvelope_07_no_key_flags.asc", out);
+        out.close();
+
+        KeyWritableRepository databaseInteractor =
+                KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application);
+        ImportOperation op = new ImportOperation(RuntimeEnvironment.application, databaseInteractor, null);
+
+        ImportKeyResult result = op.execute(new ImportKeyringParcel(Uri.fromFile(keyFile)), new CryptoInputParcel());
+
+        Assert.assertTrue("streaming import should succeed", result.success());
+        Assert.assertEquals("streaming import should not have bad keys", 0, result.mBadKeys);
+        Assert.assertEquals("streaming import should report all keyrings", 3, result.getImportedMasterKeyIds().length);
+
+        long secretMasterKeyId = readRingFromResource("/test-keys/symantec_secret.asc").getMasterKeyId();
+        long publicMasterKeyId = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc").getMasterKeyId();
+        Assert.assertTrue("secret key should be imported after its public key",
+                databaseInteractor.getCachedPublicKeyRing(secretMasterKeyId).hasAnySecret());
+        Assert.assertFalse("public key should be imported",
+                databaseInteractor.getCachedPublicKeyRing(publicMasterKeyId).hasAnySecret());
+    }
+
+    @Test
+    public void testReimportUnchanged() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        copyResource("/test-keys/mailvelope_07_no_key_flags.asc", out);
+        ArrayList<ParcelableKeyRing> keyList = new ArrayList<>();
+        keyList.add(new ParcelableKeyRing(out.toByteArray()));
+
+        KeyWritableRepository databaseInteractor =
+                KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application);
+        ImportOperation op = new ImportOperation(RuntimeEnvironment.application, databaseInteractor, null);
+        CryptoInputParcel cryptoInput = new CryptoInputParcel(ParcelableProxy.getForNoProxy());
+
+        ImportKeyResult result = op.execute(new ImportKeyringParcel(keyList, null), cryptoInput);
+        Assert.assertTrue("first import should succeed", result.success());
+        Assert.assertEquals("first import should add the key", 1, result.mNewKeys);
+        Assert.assertEquals("first import should not skip the key", 0, result.mUnchangedKeys);
+
+        // the armored data is never stored as is, so this is recognized by its upstream digest
+        result = op.execute(new ImportKeyringParcel(keyList, null), cryptoInput);
+        Assert.assertTrue("second import should succeed", result.success());
+        Assert.assertEquals("second import should report the key as updated", 1, result.mUpdatedKeys);
+        Assert.assertEquals("second import should skip the key", 1, result.mUnchangedKeys);
+        Assert.assertArrayEquals("second import should report the skipped key",
+                new long[] { readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc").getMasterKeyId() },
+                result.getImportedMasterKeyIds());
+    }
+
+    private void copyResource(String name, OutputStream out) throws Exception {
+        InputStream in = ImportOperationTest.class.getResourceAsStream(name);
+        Streams.pipeAll(in, out);
+        in.close();
+    }
+
+    UncachedKeyRing readRingFromResource(String name) throws Exception {
+        return UncachedKeyRing.fromStream(ImportOperationTest.class.getResourceAsStream(name)).next();
+    }
+
+}
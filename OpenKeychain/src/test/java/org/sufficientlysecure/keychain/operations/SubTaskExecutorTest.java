@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+public class SubTaskExecutorTest {
+
+    @Test
+    public void testAwaitRunsQueuedTaskOnCallingThread() throws Exception {
+        ExecutorService executor = SubTaskExecutor.getExecutor();
+
+        // occupy all threads of the pool
+        final CountDownLatch blocked = new CountDownLatch(SubTaskExecutor.MAX_THREADS);
+        final CountDownLatch release = new CountDownLatch(1);
+        ArrayList<Future<?>> blockers = new ArrayList<>();
+        for (int i = 0; i < SubTaskExecutor.MAX_THREADS; i++) {
+            blockers.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    blocked.countDown();
+                    release.await();
+                    return null;
+                }
+            }));
+        }
+        blocked.await();
+
+        try {
+            Future<Thread> future = executor.submit(new Callable<Thread>() {
+                @Override
+                public Thread call() {
+                    return Thread.currentThread();
+                }
+            });
+            Assert.assertSame("queued task must run on the waiting thread",
+                    Thread.currentThread(), SubTaskExecutor.await(future));
+        } finally {
+            release.countDown();
+        }
+
+        for (Future<?> blocker : blockers) {
+            blocker.get();
+        }
+    }
+
+    @Test
+    public void testCancelAll() throws Exception {
+        ExecutorService executor = SubTaskExecutor.getExecutor();
+
+        final CountDownLatch release = new CountDownLatch(1);
+        ArrayList<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < SubTaskExecutor.MAX_THREADS + 1; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    release.await();
+                    return null;
+                }
+            }));
+        }
+
+        SubTaskExecutor.cancelAll(futures);
+        for (Future<Void> future : futures) {
+            Assert.assertTrue("all sub-tasks must be cancelled", future.isCancelled());
+        }
+    }
+
+}
@@ -34,11 +34,14 @@ import org.openintents.openpgp.OpenPgpMetadata;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.shadows.ShadowLog;
 import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.BatchInputDataOperation;
 import org.sufficientlysecure.keychain.operations.InputDataOperation;
+import org.sufficientlysecure.keychain.operations.results.BatchInputDataResult;
 import org.sufficientlysecure.keychain.operations.results.InputDataResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
 import org.sufficientlysecure.keychain.provider.TemporaryFileProvider;
+import org.sufficientlysecure.keychain.service.BatchInputDataParcel;
 import org.sufficientlysecure.keychain.service.InputDataParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 
@@ -284,6 +287,42 @@ public class InputDataOperationTest {
                 result.getOutputUris().get(0), FAKE_CONTENT_INPUT_URI_1);
     }
 
+    @Test
+    public void testBatchInputData() throws Exception {
+
+        String mimeContent = "Some-Header: dummy\n" +
+                "\n" +
+                "some message text\n";
+
+        ContentResolver mockResolver = mock(ContentResolver.class);
+
+        ArrayList<InputDataParcel> inputs = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Uri fakeInputUri = Uri.parse("content://fake/" + i);
+            when(mockResolver.openInputStream(fakeInputUri)).thenReturn(
+                    new ByteArrayInputStream(mimeContent.getBytes()));
+            inputs.add(new InputDataParcel(fakeInputUri, null));
+        }
+
+        // application which returns mockresolver
+        Application spyApplication = spy(RuntimeEnvironment.application);
+        when(spyApplication.getContentResolver()).thenReturn(mockResolver);
+
+        BatchInputDataOperation op = new BatchInputDataOperation(spyApplication,
+                KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application), null, null);
+
+        BatchInputDataResult result = op.execute(new BatchInputDataParcel(inputs), new CryptoInputParcel());
+
+        Assert.assertTrue(result.success());
+        Assert.assertEquals("must have a result for each input", 5, result.mResults.size());
+        for (int i = 0; i < result.mResults.size(); i++) {
+            InputDataResult inputResult = result.mResults.get(i);
+            Assert.assertTrue(inputResult.success());
+            Assert.assertEquals("output uri should simply be passed-through input uri",
+                    result.mInputUris.get(i), inputResult.getOutputUris().get(0));
+        }
+    }
+
     private InputDataResult runSimpleDataInputOperation(byte[] mimeContentBytes) throws FileNotFoundException {
         ByteArrayOutputStream outStream1 = new ByteArrayOutputStream();
         ByteArrayOutputStream outStream2 = new ByteArrayOutputStream();
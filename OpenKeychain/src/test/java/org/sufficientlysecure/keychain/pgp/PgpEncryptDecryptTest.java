@@ -52,6 +52,7 @@ import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
 import org.sufficientlysecure.keychain.support.KeyringTestingHelper.RawPacket;
 import org.sufficientlysecure.keychain.util.InputData;
 import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 import org.sufficientlysecure.keychain.util.TestingUtils;
 
@@ -1069,6 +1070,108 @@ public class PgpEncryptDecryptTest {
         }
     }
 
+    @Test
+    public void testSessionKeyCache() throws Exception {
+
+        String plaintext = "dies ist ein plaintext ☭" + TestingUtils.genPassphrase(true);
+        byte[] ciphertext;
+
+        { // encrypt data with key
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+
+            PgpSignEncryptData pgpData = new PgpSignEncryptData();
+            pgpData.setEncryptionMasterKeyIds(new long[] { mStaticRing1.getMasterKeyId() });
+
+            PgpSignEncryptResult result = op.execute(new PgpSignEncryptInputParcel(pgpData),
+                    new CryptoInputParcel(new Date()), data, out);
+            Assert.assertTrue("encryption must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+        }
+
+        { // first decryption must unlock the key
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                    mKeyPhrase1, mStaticRing1.getMasterKeyId(), null);
+            DecryptVerifyResult result = op.execute(new PgpDecryptVerifyInputParcel(),
+                    new CryptoInputParcel(), data, out);
+
+            Assert.assertTrue("decryption with cached passphrase must succeed", result.success());
+            Assert.assertTrue("session key must not be cached yet",
+                    result.getLog().containsType(LogType.MSG_DC_SESSION_KEY_NOT_CACHED));
+            Assert.assertTrue("key must be unlocked",
+                    result.getLog().containsType(LogType.MSG_DC_UNLOCKING));
+        }
+
+        { // second decryption must reuse the session key
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(
+                    mKeyPhrase1, mStaticRing1.getMasterKeyId(), null);
+            DecryptVerifyResult result = op.execute(new PgpDecryptVerifyInputParcel(),
+                    new CryptoInputParcel(), data, out);
+
+            Assert.assertTrue("decryption with cached session key must succeed", result.success());
+            Assert.assertTrue("session key from previous decryption should be reused",
+                    result.getLog().containsType(LogType.MSG_DC_SESSION_KEY_CACHED));
+            Assert.assertFalse("key must not be unlocked again",
+                    result.getLog().containsType(LogType.MSG_DC_UNLOCKING));
+            Assert.assertArrayEquals("decrypted ciphertext with cached session key should equal plaintext",
+                    out.toByteArray(), plaintext.getBytes());
+        }
+
+        { // an explicitly given passphrase must be checked, so the cache is not used
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerifyOperation op = operationWithFakePassphraseCache(null, null, null);
+            DecryptVerifyResult result = op.execute(new PgpDecryptVerifyInputParcel(),
+                    new CryptoInputParcel(new Passphrase("bad")), data, out);
+
+            Assert.assertFalse("decryption with bad passphrase must fail", result.success());
+            Assert.assertFalse("session key must not be taken from the cache",
+                    result.getLog().containsType(LogType.MSG_DC_SESSION_KEY_CACHED));
+        }
+    }
+
+    @Test
+    public void testUnlockedKeyCache() throws Exception {
+        Preferences preferences = Preferences.getPreferences(RuntimeEnvironment.application);
+        preferences.setPassphraseCacheUnlockedKeys(true);
+        try {
+            UnlockedKeyCache unlockedKeyCache = UnlockedKeyCache.getInstance(RuntimeEnvironment.application);
+            KeyWritableRepository keyRepository =
+                    KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application);
+
+            CanonicalizedSecretKey secretKey =
+                    keyRepository.getCanonicalizedSecretKeyRing(mStaticRing1.getMasterKeyId()).getSecretKey();
+            Assert.assertTrue("first unlock must succeed", secretKey.unlock(mKeyPhrase1, unlockedKeyCache));
+            Assert.assertEquals("first unlock must not be a cache hit", 0, unlockedKeyCache.getHitCount());
+
+            secretKey = keyRepository.getCanonicalizedSecretKeyRing(mStaticRing1.getMasterKeyId()).getSecretKey();
+            Assert.assertTrue("second unlock must succeed", secretKey.unlock(mKeyPhrase1, unlockedKeyCache));
+            Assert.assertEquals("second unlock must reuse the unlocked key", 1, unlockedKeyCache.getHitCount());
+
+            secretKey = keyRepository.getCanonicalizedSecretKeyRing(mStaticRing1.getMasterKeyId()).getSecretKey();
+            Assert.assertFalse("unlock with bad passphrase must fail even if the key is cached",
+                    secretKey.unlock(new Passphrase("bad"), unlockedKeyCache));
+        } finally {
+            preferences.setPassphraseCacheUnlockedKeys(false);
+        }
+    }
+
     private PgpDecryptVerifyOperation operationWithFakePassphraseCache(
             final Passphrase passphrase, final Long checkMasterKeyId, final Long checkSubKeyId) {
 
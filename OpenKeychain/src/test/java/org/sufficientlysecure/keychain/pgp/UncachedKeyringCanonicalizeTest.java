@@ -179,6 +179,24 @@ public class UncachedKeyringCanonicalizeTest {
 
     }
 
+    /** Make sure certificates are only verified once, as long as they are in the cache. */
+    @Test public void testVerificationCache() throws Exception {
+        SignatureVerificationCache cache = SignatureVerificationCache.getInstance();
+        cache.clear();
+
+        CanonicalizedKeyRing first = ring.canonicalize(log, 0);
+        long misses = cache.getMissCount();
+        long hits = cache.getHitCount();
+
+        CanonicalizedKeyRing second = ring.canonicalize(log, 0);
+        Assert.assertEquals("second canonicalization should not verify any certificate again",
+                misses, cache.getMissCount());
+        Assert.assertTrue("second canonicalization should find verifications in the cache",
+                cache.getHitCount() > hits);
+        Assert.assertArrayEquals("cached verifications should not change the result",
+                first.getEncoded(), second.getEncoded());
+    }
+
     @Test public void testUidSignature() throws Exception {
 
         UncachedPublicKey masterKey = ring.getPublicKey();
@@ -24,6 +24,16 @@ import org.bouncycastle.bcpg.S2K;
 import org.bouncycastle.bcpg.SecretKeyPacket;
 import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureGenerator;
+import org.bouncycastle.openpgp.PGPSignatureSubpacketGenerator;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.operator.jcajce.JcaPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
 import org.bouncycastle.util.Strings;
 import org.junit.Assert;
 import org.junit.Before;
@@ -31,6 +41,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.KeychainTestRunner;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
@@ -49,6 +60,7 @@ import org.sufficientlysecure.keychain.util.ProgressScaler;
 import java.io.ByteArrayInputStream;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Random;
@@ -355,6 +367,106 @@ public class UncachedKeyringMergeTest {
         }
     }
 
+    @Test
+    public void testThirdPartyCertLimit() throws Exception {
+
+        final UncachedKeyRing modified = certifyAllUserIds(ringA.extractPublicKeyRing());
+
+        {
+            CanonicalizedKeyRing canonicalized = modified.canonicalize(new OperationLog(), 0);
+            Assert.assertNotNull("canonicalization must succeed", canonicalized);
+            Assert.assertFalse("third-party certificates below the limit must be kept",
+                    KeyringTestingHelper.diffKeyrings(
+                            modified.getEncoded(), canonicalized.getEncoded(), onlyA, onlyB)
+            );
+        }
+
+        {
+            OperationLog canonicalizeLog = new OperationLog();
+            CanonicalizedKeyRing canonicalized = modified.canonicalize(canonicalizeLog, 0, false, 0);
+            Assert.assertNotNull("canonicalization must succeed", canonicalized);
+            Assert.assertTrue("log must contain stripped certificates entry",
+                    canonicalizeLog.containsType(OperationResult.LogType.MSG_KC_UID_FOREIGN_TOO_MANY));
+            Assert.assertTrue("third-party certificates over the limit must be stripped",
+                    KeyringTestingHelper.diffKeyrings(
+                            modified.getEncoded(), canonicalized.getEncoded(), onlyA, onlyB)
+            );
+            Assert.assertEquals("one certificate per user id must be stripped", 2, onlyA.size());
+            Assert.assertEquals("no packets must be added", 0, onlyB.size());
+            Assert.assertEquals("stripped packet must be a signature",
+                    PacketTags.SIGNATURE, onlyA.get(0).tag);
+        }
+
+    }
+
+    @Test
+    public void testThirdPartyCertLimitSkipsInvalid() throws Exception {
+
+        final UncachedKeyRing certified = certifyAllUserIds(ringA.extractPublicKeyRing());
+
+        // a local certificate by ringB on the first user id, ahead of the valid one
+        final PGPSignature localCert; {
+            PGPPublicKey masterKey = certified.mRing.getPublicKey();
+            PGPSecretKey signingKey = ((PGPSecretKeyRing) ringB.mRing).getSecretKey();
+            PGPPrivateKey privateKey = signingKey.extractPrivateKey(new JcePBESecretKeyDecryptorBuilder()
+                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build("".toCharArray()));
+
+            PGPSignatureSubpacketGenerator subpackets = new PGPSignatureSubpacketGenerator();
+            subpackets.setSignatureCreationTime(false, new Date());
+            subpackets.setExportable(false, false);
+
+            PGPSignatureGenerator sGen = new PGPSignatureGenerator(new JcaPGPContentSignerBuilder(
+                    signingKey.getPublicKey().getAlgorithm(), PGPUtil.SHA256)
+                    .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME));
+            sGen.setHashedSubpackets(subpackets.generate());
+            sGen.init(PGPSignature.DEFAULT_CERTIFICATION, privateKey);
+            localCert = sGen.generateCertification((String) masterKey.getUserIDs().next(), masterKey);
+        }
+
+        int userIdPosition = 0;
+        Iterator<RawPacket> it = KeyringTestingHelper.parseKeyring(certified.getEncoded());
+        while (it.next().tag != PacketTags.USER_ID) {
+            userIdPosition += 1;
+        }
+        UncachedKeyRing modified = KeyringTestingHelper.injectPacket(
+                certified, localCert.getEncoded(), userIdPosition + 1);
+
+        OperationLog canonicalizeLog = new OperationLog();
+        CanonicalizedKeyRing canonicalized = modified.canonicalize(canonicalizeLog, 0, false, 1);
+        Assert.assertNotNull("canonicalization must succeed", canonicalized);
+        Assert.assertTrue("log must contain invalid certificates entry",
+                canonicalizeLog.containsType(OperationResult.LogType.MSG_KC_UID_FOREIGN_BAD));
+        Assert.assertFalse("invalid certificates must not count towards the limit",
+                canonicalizeLog.containsType(OperationResult.LogType.MSG_KC_UID_FOREIGN_TOO_MANY));
+        Assert.assertTrue("invalid certificate must be stripped",
+                KeyringTestingHelper.diffKeyrings(
+                        modified.getEncoded(), canonicalized.getEncoded(), onlyA, onlyB)
+        );
+        Assert.assertEquals("only the invalid certificate must be stripped", 1, onlyA.size());
+        Assert.assertEquals("no packets must be added", 0, onlyB.size());
+        Assert.assertArrayEquals("stripped packet must be the invalid certificate",
+                localCert.getEncoded(), onlyA.get(0).buf);
+
+    }
+
+    @Test
+    public void testThirdPartyCertLimitKeepsExemptSigners() throws Exception {
+
+        final UncachedKeyRing modified = certifyAllUserIds(ringA.extractPublicKeyRing());
+
+        OperationLog canonicalizeLog = new OperationLog();
+        CanonicalizedKeyRing canonicalized = modified.canonicalize(canonicalizeLog, 0, false, 0,
+                Collections.singleton(ringB.getMasterKeyId()));
+        Assert.assertNotNull("canonicalization must succeed", canonicalized);
+        Assert.assertFalse("certificates by exempt signers must not count towards the limit",
+                canonicalizeLog.containsType(OperationResult.LogType.MSG_KC_UID_FOREIGN_TOO_MANY));
+        Assert.assertFalse("certificates by exempt signers must be kept",
+                KeyringTestingHelper.diffKeyrings(
+                        modified.getEncoded(), canonicalized.getEncoded(), onlyA, onlyB)
+        );
+
+    }
+
     @Test
     public void testAddedUserAttributeSignature() throws Exception {
 
@@ -385,6 +497,24 @@ public class UncachedKeyringMergeTest {
 
     }
 
+    /** Certifies all user ids of the given public keyring with ringB, and merges the certificates in. */
+    private UncachedKeyRing certifyAllUserIds(UncachedKeyRing pubRing) throws Exception {
+        CanonicalizedPublicKeyRing publicRing = new CanonicalizedPublicKeyRing(
+                pubRing.getEncoded(), 0);
+
+        CanonicalizedSecretKey secretKey = new CanonicalizedSecretKeyRing(
+                ringB.getEncoded(), 0).getSecretKey();
+        secretKey.unlock(new Passphrase());
+        PgpCertifyOperation op = new PgpCertifyOperation();
+        CertifyAction action = new CertifyAction(pubRing.getMasterKeyId(), publicRing.getPublicKey().getUnorderedUserIds(), null);
+        // sign all user ids
+        PgpCertifyResult result = op.certify(secretKey, publicRing, new OperationLog(), 0, action, null, new Date());
+        Assert.assertTrue("certification must succeed", result.success());
+        UncachedKeyRing modified = pubRing.merge(result.getCertifiedRing(), log, 0);
+        Assert.assertNotNull("merge must succeed", modified);
+        return modified;
+    }
+
     private UncachedKeyRing mergeWithChecks(UncachedKeyRing a, UncachedKeyRing b)
             throws Exception {
         return mergeWithChecks(a, b, a);
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp.benchmark;
+
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.PgpCertifyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpCertifyOperation.PgpCertifyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
+import org.sufficientlysecure.keychain.service.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+
+/**
+ * Synthetic keys and messages for the benchmarks in this package.
+ * <p/>
+ * Keys are generated once per JVM and shared between benchmarks, since generating
+ * them (RSA in particular) takes much longer than most of the operations measured.
+ * All secret keys are protected with PASSPHRASE.
+ */
+public class BenchmarkCorpus {
+
+    public static final Passphrase PASSPHRASE = new Passphrase();
+
+    public enum KeyType {
+        ECC, RSA
+    }
+
+    private static final HashMap<String, UncachedKeyRing> sKeyRings = new HashMap<>();
+    private static final ArrayList<UncachedKeyRing> sCertifiers = new ArrayList<>();
+
+    /**
+     * Returns a secret keyring with a combined certify and sign master key, an encryption
+     * subkey, and the given number of user ids.
+     */
+    public static synchronized UncachedKeyRing getSecretKeyRing(KeyType keyType, int numUserIds) {
+        String name = keyType + "/" + numUserIds;
+        UncachedKeyRing keyRing = sKeyRings.get(name);
+        if (keyRing == null) {
+            keyRing = createSecretKeyRing(keyType, numUserIds, "user");
+            sKeyRings.put(name, keyRing);
+        }
+        return keyRing;
+    }
+
+    /**
+     * Returns an ECC secret keyring for certifying the keyrings of this corpus. It is neither
+     * one of their certifiers nor any of the keyrings returned by getSecretKeyRing.
+     */
+    public static synchronized UncachedKeyRing getCertifyingKeyRing() {
+        UncachedKeyRing keyRing = sKeyRings.get("certifying");
+        if (keyRing == null) {
+            keyRing = createSecretKeyRing(KeyType.ECC, 1, "certifying");
+            sKeyRings.put("certifying", keyRing);
+        }
+        return keyRing;
+    }
+
+    /**
+     * Returns the public part of an ECC keyring with the given number of user ids, each of
+     * which is certified by the given number of other keys.
+     */
+    public static synchronized UncachedKeyRing getCertifiedPublicKeyRing(int numUserIds, int numCertifiers)
+            throws Exception {
+        String name = "certified/" + numUserIds + "/" + numCertifiers;
+        UncachedKeyRing keyRing = sKeyRings.get(name);
+        if (keyRing == null) {
+            keyRing = getSecretKeyRing(KeyType.ECC, numUserIds).extractPublicKeyRing();
+            for (UncachedKeyRing certifier : getCertifiers(numCertifiers)) {
+                keyRing = certify(certifier, keyRing);
+            }
+            sKeyRings.put(name, keyRing);
+        }
+        return keyRing;
+    }
+
+    /**
+     * Certifies all user ids of the given public keyring with the master key of certifier.
+     */
+    public static UncachedKeyRing certify(UncachedKeyRing certifier, UncachedKeyRing publicRing) throws Exception {
+        CanonicalizedPublicKeyRing canPublicRing = new CanonicalizedPublicKeyRing(publicRing.getEncoded(), 0);
+        CanonicalizedSecretKey certifyKey =
+                new CanonicalizedSecretKeyRing(certifier.getEncoded(), 0).getSecretKey();
+        certifyKey.unlock(PASSPHRASE);
+
+        CertifyAction action = new CertifyAction(publicRing.getMasterKeyId(),
+                canPublicRing.getPublicKey().getUnorderedUserIds(), null);
+        PgpCertifyResult result = new PgpCertifyOperation().certify(certifyKey, canPublicRing,
+                new OperationLog(), 0, action, null, new Date());
+        if (!result.success()) {
+            throw new IllegalStateException("certification of benchmark key failed");
+        }
+        return result.getCertifiedRing();
+    }
+
+    /**
+     * Returns a message of the given size. The content is random, so it is not compressible.
+     */
+    public static byte[] getPlaintext(int size) {
+        byte[] plaintext = new byte[size];
+        // fixed seed, so all runs measure the same data
+        new Random(size).nextBytes(plaintext);
+        return plaintext;
+    }
+
+    private static ArrayList<UncachedKeyRing> getCertifiers(int numCertifiers) {
+        while (sCertifiers.size() < numCertifiers) {
+            sCertifiers.add(createSecretKeyRing(KeyType.ECC, 1, "certifier" + sCertifiers.size()));
+        }
+        return new ArrayList<>(sCertifiers.subList(0, numCertifiers));
+    }
+
+    private static UncachedKeyRing createSecretKeyRing(KeyType keyType, int numUserIds, String userName) {
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        switch (keyType) {
+            case ECC:
+                parcel.mAddSubKeys.add(new SubkeyAdd(Algorithm.ECDSA, 0, Curve.NIST_P256,
+                        KeyFlags.CERTIFY_OTHER | KeyFlags.SIGN_DATA, 0L));
+                parcel.mAddSubKeys.add(new SubkeyAdd(Algorithm.ECDH, 0, Curve.NIST_P256,
+                        KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE, 0L));
+                break;
+            case RSA:
+                parcel.mAddSubKeys.add(new SubkeyAdd(Algorithm.RSA, 2048, null,
+                        KeyFlags.CERTIFY_OTHER | KeyFlags.SIGN_DATA, 0L));
+                parcel.mAddSubKeys.add(new SubkeyAdd(Algorithm.RSA, 2048, null,
+                        KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE, 0L));
+                break;
+        }
+        for (int i = 0; i < numUserIds; i++) {
+            parcel.mAddUserIds.add(userName + i + " <" + userName + i + "@example.com>");
+        }
+        parcel.setNewUnlock(new ChangeUnlockParcel(PASSPHRASE));
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        if (!result.success()) {
+            throw new IllegalStateException("creation of benchmark key failed");
+        }
+        return result.getRing();
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp.benchmark;
+
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.PgpCertifyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpCertifyOperation.PgpCertifyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.benchmark.BenchmarkCorpus.KeyType;
+import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+
+
+/**
+ * Measures keyring processing on keyrings with a growing number of user ids and
+ * third-party certifications: UncachedKeyRing.canonicalize and merge,
+ * PgpKeyOperation.modifySecretKeyRing, and PgpCertifyOperation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class KeyRingBenchmark {
+
+    @Param({ "1", "10", "50" })
+    public int numUserIds;
+
+    @Param({ "0", "5" })
+    public int numCertifiers;
+
+    private UncachedKeyRing mPublicRing;
+    private UncachedKeyRing mCertifiedRing;
+    private CanonicalizedSecretKeyRing mSecretRing;
+    private CanonicalizedPublicKeyRing mCertifyTarget;
+    private CanonicalizedSecretKey mCertifyKey;
+
+    @Setup
+    public void setUp() throws Exception {
+        mPublicRing = BenchmarkCorpus.getCertifiedPublicKeyRing(numUserIds, 0);
+        mCertifiedRing = BenchmarkCorpus.getCertifiedPublicKeyRing(numUserIds, numCertifiers);
+
+        UncachedKeyRing secretRing = BenchmarkCorpus.getSecretKeyRing(KeyType.ECC, numUserIds);
+        mSecretRing = new CanonicalizedSecretKeyRing(secretRing.getEncoded(), 0);
+
+        mCertifyTarget = new CanonicalizedPublicKeyRing(mCertifiedRing.getEncoded(), 0);
+        // not getSecretKeyRing(ECC, 1), which is the certified keyring itself if numUserIds is 1
+        UncachedKeyRing certifier = BenchmarkCorpus.getCertifyingKeyRing();
+        mCertifyKey = new CanonicalizedSecretKeyRing(certifier.getEncoded(), 0).getSecretKey();
+        mCertifyKey.unlock(BenchmarkCorpus.PASSPHRASE);
+    }
+
+    @Benchmark
+    public CanonicalizedKeyRing canonicalize() {
+        return mCertifiedRing.canonicalize(new OperationLog(), 0);
+    }
+
+    @Benchmark
+    public UncachedKeyRing merge() {
+        return mPublicRing.merge(mCertifiedRing, new OperationLog(), 0);
+    }
+
+    @Benchmark
+    public PgpEditKeyResult modifySecretKeyRing() {
+        SaveKeyringParcel parcel = new SaveKeyringParcel(mSecretRing.getMasterKeyId(),
+                mSecretRing.getFingerprint());
+        parcel.mAddUserIds.add("added <added@example.com>");
+
+        return new PgpKeyOperation(null).modifySecretKeyRing(mSecretRing,
+                new CryptoInputParcel(new Date(), BenchmarkCorpus.PASSPHRASE), parcel);
+    }
+
+    @Benchmark
+    public PgpCertifyResult certify() {
+        CertifyAction action = new CertifyAction(mCertifyTarget.getMasterKeyId(),
+                mCertifyTarget.getPublicKey().getUnorderedUserIds(), null);
+
+        return new PgpCertifyOperation().certify(mCertifyKey, mCertifyTarget, new OperationLog(), 0,
+                action, null, new Date());
+    }
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp.benchmark;
+
+
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+
+/**
+ * Runs the JMH benchmarks of this package.
+ * <p/>
+ * The pgp package needs an Android environment for its database and resources, so the
+ * benchmarks run in-process inside this Robolectric test rather than in a forked JVM.
+ * They are skipped unless the build is started with -PrunBenchmarks, see README.
+ */
+@RunWith(KeychainTestRunner.class)
+public class PgpBenchmarkTest {
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+    }
+
+    @Test
+    public void runBenchmarks() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("keychain.runBenchmarks"));
+
+        Options options = new OptionsBuilder()
+                .include(PgpBenchmarkTest.class.getPackage().getName() + ".*Benchmark")
+                .forks(0)
+                .warmupIterations(3)
+                .measurementIterations(5)
+                .resultFormat(ResultFormatType.JSON)
+                .result("build/jmh-results.json")
+                .build();
+        new Runner(options).run();
+    }
+
+}
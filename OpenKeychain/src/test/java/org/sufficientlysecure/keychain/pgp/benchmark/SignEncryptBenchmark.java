@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.pgp.benchmark;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.operations.results.DecryptVerifyResult;
+import org.sufficientlysecure.keychain.operations.results.PgpSignEncryptResult;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyOperation;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptData;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInputParcel;
+import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
+import org.sufficientlysecure.keychain.pgp.SessionKeyCache;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.UnlockedKeyCache;
+import org.sufficientlysecure.keychain.pgp.benchmark.BenchmarkCorpus.KeyType;
+import org.sufficientlysecure.keychain.provider.KeyWritableRepository;
+import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.util.InputData;
+import org.sufficientlysecure.keychain.util.Passphrase;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+
+
+/**
+ * Measures PgpSignEncryptOperation and PgpDecryptVerifyOperation on messages of different
+ * sizes, for each supported type of key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SignEncryptBenchmark {
+
+    @Param({ "ECC", "RSA" })
+    public KeyType keyType;
+
+    @Param({ "1024", "65536", "1048576" })
+    public int payloadSize;
+
+    private long mMasterKeyId;
+    private byte[] mPlaintext;
+    private byte[] mCiphertext;
+    private byte[] mSignedCiphertext;
+
+    @Setup
+    public void setUp() {
+        UncachedKeyRing keyRing = BenchmarkCorpus.getSecretKeyRing(keyType, 1);
+        KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application)
+                .saveSecretKeyRing(keyRing, new ProgressScaler());
+
+        mMasterKeyId = keyRing.getMasterKeyId();
+        mPlaintext = BenchmarkCorpus.getPlaintext(payloadSize);
+        mCiphertext = encrypt();
+        mSignedCiphertext = signEncrypt();
+    }
+
+    @Benchmark
+    public byte[] encrypt() {
+        PgpSignEncryptData pgpData = new PgpSignEncryptData();
+        pgpData.setEncryptionMasterKeyIds(new long[] { mMasterKeyId });
+
+        return signEncrypt(pgpData, new CryptoInputParcel(new Date()));
+    }
+
+    @Benchmark
+    public byte[] signEncrypt() {
+        PgpSignEncryptData pgpData = new PgpSignEncryptData();
+        pgpData.setEncryptionMasterKeyIds(new long[] { mMasterKeyId });
+        pgpData.setSignatureMasterKeyId(mMasterKeyId);
+        pgpData.setSignatureSubKeyId(mMasterKeyId);
+
+        return signEncrypt(pgpData, new CryptoInputParcel(new Date(), BenchmarkCorpus.PASSPHRASE));
+    }
+
+    /**
+     * Clears the session key and unlocked key caches before each decryption, so every
+     * invocation measures the public key operations rather than a cache lookup.
+     */
+    @State(Scope.Thread)
+    public static class ColdCaches {
+        // decryption takes milliseconds, so the overhead of a per-invocation setup is negligible
+        @Setup(Level.Invocation)
+        public void clearCaches() {
+            SessionKeyCache.getInstance(RuntimeEnvironment.application).clear();
+            UnlockedKeyCache.getInstance(RuntimeEnvironment.application).clear();
+        }
+    }
+
+    @Benchmark
+    public byte[] decrypt(ColdCaches caches) {
+        return decryptVerify(mCiphertext);
+    }
+
+    @Benchmark
+    public byte[] decryptVerify(ColdCaches caches) {
+        return decryptVerify(mSignedCiphertext);
+    }
+
+    private byte[] signEncrypt(PgpSignEncryptData pgpData, CryptoInputParcel cryptoInput) {
+        PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application), null);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(mPlaintext.length + 4096);
+        InputData data = new InputData(new ByteArrayInputStream(mPlaintext), mPlaintext.length);
+        PgpSignEncryptResult result = op.execute(new PgpSignEncryptInputParcel(pgpData), cryptoInput, data, out);
+        if (!result.success()) {
+            throw new IllegalStateException("encryption failed");
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] decryptVerify(byte[] ciphertext) {
+        PgpDecryptVerifyOperation op = new PgpDecryptVerifyOperation(RuntimeEnvironment.application,
+                KeyWritableRepository.createDatabaseReadWriteInteractor(RuntimeEnvironment.application), null) {
+            @Override
+            public Passphrase getCachedPassphrase(long masterKeyId, long subKeyId) {
+                return BenchmarkCorpus.PASSPHRASE;
+            }
+        };
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(mPlaintext.length);
+        InputData data = new InputData(new ByteArrayInputStream(ciphertext), ciphertext.length);
+        DecryptVerifyResult result = op.execute(new PgpDecryptVerifyInputParcel(), new CryptoInputParcel(), data, out);
+        if (!result.success()) {
+            throw new IllegalStateException("decryption failed");
+        }
+        return out.toByteArray();
+    }
+
+}
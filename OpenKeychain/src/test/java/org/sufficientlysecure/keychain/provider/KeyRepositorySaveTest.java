@@ -18,27 +18,52 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+
 import org.bouncycastle.bcpg.sig.KeyFlags;
 import org.bouncycastle.util.encoders.Hex;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.openintents.openpgp.util.OpenPgpUtils;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.shadows.ShadowLog;
 import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.KeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.pgp.UncachedPublicKey;
+import org.sufficientlysecure.keychain.provider.KeyRepository.NotFoundException;
+import org.sufficientlysecure.keychain.provider.KeyWritableRepository.PreparedPublicKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
+import org.sufficientlysecure.keychain.provider.TrustedKeysCache.TrustedKeyLoader;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 
 @RunWith(KeychainTestRunner.class)
 public class KeyRepositorySaveTest {
@@ -246,6 +271,379 @@ public class KeyRepositorySaveTest {
 
     }
 
+    @Test public void testTrustedKeysCache() throws Exception {
+
+        UncachedKeyRing sec = readRingFromResource("/test-keys/stripped_flags.asc");
+        UncachedKeyRing pub = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        UncachedKeyRing otherPub = readRingFromResource("/test-keys/bad_user_id_encoding.asc");
+
+        SaveKeyringResult result;
+
+        result = mDatabaseInteractor.saveSecretKeyRing(sec, new ProgressScaler());
+        Assert.assertTrue("import of secret keyring should succeed", result.success());
+
+        // first save after the secret key was imported needs to load the trusted key
+        long misses = mDatabaseInteractor.getTrustedKeysCacheMissCount();
+        result = mDatabaseInteractor.savePublicKeyRing(pub);
+        Assert.assertTrue("import of public keyring should succeed", result.success());
+        Assert.assertEquals("trusted key should be loaded once",
+                misses + 1, mDatabaseInteractor.getTrustedKeysCacheMissCount());
+
+        // further saves should be served from the cache
+        long hits = mDatabaseInteractor.getTrustedKeysCacheHitCount();
+        misses = mDatabaseInteractor.getTrustedKeysCacheMissCount();
+        result = mDatabaseInteractor.savePublicKeyRing(otherPub);
+        Assert.assertTrue("import of second public keyring should succeed", result.success());
+        Assert.assertEquals("trusted key should be cached",
+                hits + 1, mDatabaseInteractor.getTrustedKeysCacheHitCount());
+        Assert.assertEquals("trusted key should not be loaded again",
+                misses, mDatabaseInteractor.getTrustedKeysCacheMissCount());
+
+    }
+
+    @Test public void testTrustedKeysCacheVerifiedState() throws Exception {
+
+        final int[] loads = { 0 };
+        TrustedKeyLoader loader = new TrustedKeyLoader() {
+            @Override
+            public CanonicalizedPublicKey loadTrustedKey(long masterKeyId, int verified) {
+                loads[0] += 1;
+                return null;
+            }
+        };
+
+        TrustedKeysCache cache = TrustedKeysCache.getInstance();
+        cache.invalidateAll();
+        try {
+            cache.getTrustedKeys(new long[] { 1L }, new int[] { 0 }, loader);
+            cache.getTrustedKeys(new long[] { 1L }, new int[] { 0 }, loader);
+            Assert.assertEquals("key with unchanged verification state should be cached", 1, loads[0]);
+
+            cache.getTrustedKeys(new long[] { 1L }, new int[] { Certs.VERIFIED_SECRET }, loader);
+            Assert.assertEquals("key with changed verification state should be reloaded", 2, loads[0]);
+        } finally {
+            cache.invalidateAll();
+        }
+
+    }
+
+    @Test public void testPublicKeyRingCache() throws Exception {
+
+        UncachedKeyRing pub = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        long masterKeyId = pub.getMasterKeyId();
+
+        SaveKeyringResult result = mDatabaseInteractor.savePublicKeyRing(pub);
+        Assert.assertTrue("import of public keyring should succeed", result.success());
+
+        // first load parses the keyring, second is served from the cache
+        CanonicalizedPublicKeyRing first = mDatabaseInteractor.getCanonicalizedPublicKeyRing(masterKeyId);
+        CanonicalizedPublicKeyRing second = mDatabaseInteractor.getCanonicalizedPublicKeyRing(masterKeyId);
+        Assert.assertSame("cached keyring should be returned", first, second);
+
+        // deleting the keyring must drop it from the cache
+        Assert.assertTrue("keyring should be deleted", mDatabaseInteractor.deleteKeyRing(masterKeyId));
+        result = mDatabaseInteractor.savePublicKeyRing(pub);
+        Assert.assertTrue("re-import of public keyring should succeed", result.success());
+        CanonicalizedPublicKeyRing third = mDatabaseInteractor.getCanonicalizedPublicKeyRing(masterKeyId);
+        Assert.assertNotSame("re-imported keyring should not be served from cache", first, third);
+
+    }
+
+    @Test public void testSubkeyIdCache() throws Exception {
+
+        UncachedKeyRing pub = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        long masterKeyId = pub.getMasterKeyId();
+        long subKeyId = masterKeyId;
+        for (UncachedPublicKey key : new IterableIterator<>(pub.getPublicKeys())) {
+            subKeyId = key.getKeyId();
+        }
+
+        SaveKeyringResult result = mDatabaseInteractor.savePublicKeyRing(pub);
+        Assert.assertTrue("import of public keyring should succeed", result.success());
+        Assert.assertEquals("subkey should be found",
+                masterKeyId, mDatabaseInteractor.getMasterKeyId(subKeyId));
+
+        // deleting the keyring must drop its subkeys
+        Assert.assertTrue("keyring should be deleted", mDatabaseInteractor.deleteKeyRing(masterKeyId));
+        try {
+            mDatabaseInteractor.getMasterKeyId(subKeyId);
+            Assert.fail("subkey of deleted keyring should not be found");
+        } catch (NotFoundException e) {
+            // expected
+        }
+
+        // and saving it again must bring them back
+        result = mDatabaseInteractor.savePublicKeyRing(pub);
+        Assert.assertTrue("re-import of public keyring should succeed", result.success());
+        Assert.assertEquals("subkey should be found again",
+                masterKeyId, mDatabaseInteractor.getMasterKeyId(subKeyId));
+
+    }
+
+    @Test public void testFindByUserIdAndEmail() throws Exception {
+
+        UncachedKeyRing pub = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        long masterKeyId = pub.getMasterKeyId();
+        OpenPgpUtils.UserId userId = KeyRing.splitUserId(pub.getPublicKey().getPrimaryUserIdWithFallback());
+        Assert.assertNotNull("test key should have a user id with email", userId.email);
+
+        SaveKeyringResult result = mDatabaseInteractor.savePublicKeyRing(pub);
+        Assert.assertTrue("import of public keyring should succeed", result.success());
+
+        String emailPrefix = userId.email.substring(0, 3).toUpperCase(Locale.ENGLISH);
+        Assert.assertEquals("key should be found by prefix of user id word",
+                Collections.singletonList(masterKeyId), findMasterKeyIds(
+                        KeyRings.buildUnifiedKeyRingsFindByUserIdUri(emailPrefix)));
+        Assert.assertEquals("key should be found by one of several searches",
+                Collections.singletonList(masterKeyId), findMasterKeyIds(
+                        KeyRings.buildUnifiedKeyRingsFindByUserIdUri("nonexistent, " + emailPrefix)));
+        Assert.assertTrue("key should not be found by unrelated word",
+                findMasterKeyIds(KeyRings.buildUnifiedKeyRingsFindByUserIdUri("nonexistent")).isEmpty());
+
+        Assert.assertEquals("key should be found by email regardless of case",
+                Collections.singletonList(masterKeyId), findMasterKeyIds(
+                        KeyRings.buildUnifiedKeyRingsFindByEmailUri(userId.email.toUpperCase(Locale.ENGLISH))));
+        Assert.assertTrue("key should not be found by part of email",
+                findMasterKeyIds(KeyRings.buildUnifiedKeyRingsFindByEmailUri(emailPrefix)).isEmpty());
+
+        mDatabaseInteractor.deleteKeyRing(masterKeyId);
+        Assert.assertTrue("deleted key should not be found",
+                findMasterKeyIds(KeyRings.buildUnifiedKeyRingsFindByUserIdUri(emailPrefix)).isEmpty());
+
+    }
+
+    @Test public void testGetMasterKeyIdBySubkey() throws Exception {
+
+        UncachedKeyRing pub = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        long masterKeyId = pub.getMasterKeyId();
+
+        try {
+            mDatabaseInteractor.getMasterKeyId(masterKeyId);
+            Assert.fail("unknown subkey should not be found");
+        } catch (KeyRepository.NotFoundException e) {
+            // expected
+        }
+
+        SaveKeyringResult result = mDatabaseInteractor.savePublicKeyRing(pub);
+        Assert.assertTrue("import of public keyring should succeed", result.success());
+
+        Iterator<UncachedPublicKey> it = pub.getPublicKeys();
+        while (it.hasNext()) {
+            Assert.assertEquals("all subkeys should resolve to master key",
+                    masterKeyId, mDatabaseInteractor.getMasterKeyId(it.next().getKeyId()));
+        }
+
+        mDatabaseInteractor.deleteKeyRing(masterKeyId);
+        try {
+            mDatabaseInteractor.getMasterKeyId(masterKeyId);
+            Assert.fail("subkey of deleted keyring should not be found");
+        } catch (KeyRepository.NotFoundException e) {
+            // expected
+        }
+
+    }
+
+    @Test public void testSaveKeyRingsBatched() throws Exception {
+
+        UncachedKeyRing first = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        UncachedKeyRing second = readRingFromResource("/test-keys/bad_user_id_encoding.asc");
+        UncachedKeyRing secret = readRingFromResource("/test-keys/stripped_flags.asc");
+
+        List<SaveKeyringResult> results = mDatabaseInteractor.saveKeyRingsBatched(
+                Arrays.asList(first, secret, second, first), new ProgressScaler(), null);
+
+        Assert.assertEquals("there should be one result per keyring", 4, results.size());
+        Assert.assertTrue("first keyring should be saved", results.get(0).success());
+        Assert.assertTrue("secret keyring should be saved", results.get(1).success());
+        Assert.assertTrue("second keyring should be saved", results.get(2).success());
+        Assert.assertTrue("duplicate keyring should be merged", results.get(3).success());
+        Assert.assertFalse("first keyring should be new", results.get(0).updated());
+        Assert.assertTrue("duplicate keyring should be reported as updated", results.get(3).updated());
+
+        // all keyrings must be readable from the database after the batch
+        mDatabaseInteractor.getCanonicalizedPublicKeyRing(first.getMasterKeyId());
+        mDatabaseInteractor.getCanonicalizedPublicKeyRing(second.getMasterKeyId());
+        mDatabaseInteractor.getCanonicalizedSecretKeyRing(secret.getMasterKeyId());
+
+    }
+
+    @Test public void testApplyBatchTransaction() throws Exception {
+
+        UncachedKeyRing pub = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        long masterKeyId = pub.getMasterKeyId();
+        Assert.assertTrue("keyring should be saved", mDatabaseInteractor.savePublicKeyRing(pub).success());
+
+        ContentResolver contentResolver = RuntimeEnvironment.application.getContentResolver();
+
+        // a plain batch keeps the operations applied before a failing one
+        try {
+            contentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY,
+                    buildFailingUpdatedKeysBatch(UpdatedKeys.CONTENT_URI, masterKeyId, 1000L));
+            Assert.fail("batch should fail");
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+        Assert.assertEquals("plain batch should not be rolled back",
+                Long.valueOf(1000L), queryLastUpdated(contentResolver, masterKeyId));
+
+        // a transactional batch is rolled back as a whole
+        try {
+            contentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, buildFailingUpdatedKeysBatch(
+                    KeychainContract.buildBatchTransactionUri(UpdatedKeys.CONTENT_URI), masterKeyId, 2000L));
+            Assert.fail("batch should fail");
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+        Assert.assertEquals("transactional batch should be rolled back",
+                Long.valueOf(1000L), queryLastUpdated(contentResolver, masterKeyId));
+
+    }
+
+    private static Long queryLastUpdated(ContentResolver contentResolver, long masterKeyId) {
+        Cursor cursor = contentResolver.query(UpdatedKeys.CONTENT_URI,
+                new String[] { UpdatedKeys.LAST_UPDATED },
+                UpdatedKeys.MASTER_KEY_ID + " = ?", new String[] { Long.toString(masterKeyId) }, null);
+        Assert.assertNotNull(cursor);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ArrayList<ContentProviderOperation> buildFailingUpdatedKeysBatch(
+            Uri uri, long masterKeyId, long lastUpdated) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(uri)
+                .withValue(UpdatedKeys.MASTER_KEY_ID, masterKeyId)
+                .withValue(UpdatedKeys.LAST_UPDATED, lastUpdated)
+                .build());
+        operations.add(ContentProviderOperation.newAssertQuery(UpdatedKeys.CONTENT_URI)
+                .withExpectedCount(100)
+                .build());
+        return operations;
+    }
+
+    @Test public void testSavePreparedPublicKeyRing() throws Exception {
+
+        UncachedKeyRing first = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        UncachedKeyRing second = readRingFromResource("/test-keys/bad_user_id_encoding.asc");
+
+        PreparedPublicKeyRing preparedFirst = mDatabaseInteractor.preparePublicKeyRing(first);
+        PreparedPublicKeyRing preparedSecond = mDatabaseInteractor.preparePublicKeyRing(second);
+
+        // save second after preparing it, so it must be merged again
+        SaveKeyringResult result = mDatabaseInteractor.savePublicKeyRing(second);
+        Assert.assertTrue("second keyring should be saved", result.success());
+
+        result = mDatabaseInteractor.savePreparedPublicKeyRing(preparedFirst, new ProgressScaler(), null, null, false);
+        Assert.assertTrue("prepared keyring should be saved", result.success());
+        Assert.assertFalse("prepared keyring should be new", result.updated());
+
+        result = mDatabaseInteractor.savePreparedPublicKeyRing(preparedSecond, new ProgressScaler(), null, null, false);
+        Assert.assertTrue("outdated prepared keyring should be saved", result.success());
+        Assert.assertTrue("outdated prepared keyring should be merged with the saved one", result.updated());
+
+        mDatabaseInteractor.getCanonicalizedPublicKeyRing(first.getMasterKeyId());
+        mDatabaseInteractor.getCanonicalizedPublicKeyRing(second.getMasterKeyId());
+
+    }
+
+    @Test public void testSaveKeyRingsBatchedPrepared() throws Exception {
+
+        UncachedKeyRing first = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        UncachedKeyRing second = readRingFromResource("/test-keys/bad_user_id_encoding.asc");
+        UncachedKeyRing secret = readRingFromResource("/test-keys/stripped_flags.asc");
+
+        // both copies of first are prepared against an empty database
+        List<PreparedPublicKeyRing> preparedRings = Arrays.asList(mDatabaseInteractor.preparePublicKeyRing(first),
+                null, mDatabaseInteractor.preparePublicKeyRing(second), mDatabaseInteractor.preparePublicKeyRing(first));
+
+        List<SaveKeyringResult> results = mDatabaseInteractor.saveKeyRingsBatched(
+                Arrays.asList(first, secret, second, first), preparedRings, new ProgressScaler(), null);
+
+        Assert.assertEquals("there should be one result per keyring", 4, results.size());
+        Assert.assertTrue("first keyring should be saved", results.get(0).success());
+        Assert.assertTrue("secret keyring should be saved", results.get(1).success());
+        Assert.assertTrue("second keyring should be saved", results.get(2).success());
+        Assert.assertTrue("duplicate keyring should be merged", results.get(3).success());
+        Assert.assertFalse("first keyring should be new", results.get(0).updated());
+        Assert.assertTrue("outdated prepared duplicate should be merged with the saved one", results.get(3).updated());
+
+        mDatabaseInteractor.getCanonicalizedPublicKeyRing(first.getMasterKeyId());
+        mDatabaseInteractor.getCanonicalizedPublicKeyRing(second.getMasterKeyId());
+        mDatabaseInteractor.getCanonicalizedSecretKeyRing(secret.getMasterKeyId());
+
+    }
+
+    @Test public void testSaveUnchangedSecretKeyRing() throws Exception {
+
+        UncachedKeyRing sec = readRingFromResource("/test-keys/stripped_flags.asc");
+
+        SaveKeyringResult result = mDatabaseInteractor.saveSecretKeyRing(sec, new ProgressScaler());
+        Assert.assertTrue("import of secret keyring should succeed", result.success());
+
+        // restoring the same backup again should be recognized by its digest alone
+        UncachedKeyRing saved = mDatabaseInteractor.getCanonicalizedSecretKeyRing(sec.getMasterKeyId())
+                .getUncachedKeyRing();
+        result = mDatabaseInteractor.saveSecretKeyRing(saved, new ProgressScaler());
+        Assert.assertTrue("second import of secret keyring should succeed", result.success());
+        Assert.assertTrue("second import should be an update", result.updated());
+        Assert.assertTrue("keyring should be identical",
+                result.getLog().containsType(LogType.MSG_IS_SUCCESS_IDENTICAL));
+        Assert.assertFalse("keyring should not be merged again",
+                result.getLog().containsType(LogType.MSG_IS_MERGE_SECRET));
+
+    }
+
+    @Test public void testStorageWriteFailureKeepsSecretKeyRing() throws Exception {
+
+        UncachedKeyRing sec = readRingFromResource("/test-keys/stripped_flags.asc");
+        long masterKeyId = sec.getMasterKeyId();
+
+        SaveKeyringResult result = mDatabaseInteractor.saveSecretKeyRing(sec, new ProgressScaler());
+        Assert.assertTrue("import of secret keyring should succeed", result.success());
+
+        // make sure the public keyring is saved again, rather than skipped as unchanged
+        ContentValues values = new ContentValues();
+        values.putNull(KeyRingData.KEY_RING_DIGEST);
+        RuntimeEnvironment.application.getContentResolver().update(
+                KeyRingData.buildPublicKeyRingUri(masterKeyId), values, null, null);
+
+        LocalPublicKeyStorage failingStorage = new LocalPublicKeyStorage(
+                new File(RuntimeEnvironment.application.getFilesDir(), "public_keys")) {
+            @Override
+            synchronized void writePublicKey(long masterKeyId, byte[] encoded) throws IOException {
+                throw new IOException("no space left on device");
+            }
+        };
+        KeyWritableRepository failingInteractor =
+                new KeyWritableRepository(RuntimeEnvironment.application, failingStorage);
+
+        result = failingInteractor.savePublicKeyRing(sec.extractPublicKeyRing());
+        Assert.assertFalse("save should fail if keyring data can't be written", result.success());
+
+        // nothing was deleted, so both keyrings are still there
+        mDatabaseInteractor.getCanonicalizedPublicKeyRing(masterKeyId);
+        mDatabaseInteractor.getCanonicalizedSecretKeyRing(masterKeyId);
+
+    }
+
+    List<Long> findMasterKeyIds(Uri uri) {
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                uri, new String[] { KeyRings.MASTER_KEY_ID }, null, null, null);
+        Assert.assertNotNull(cursor);
+        try {
+            ArrayList<Long> masterKeyIds = new ArrayList<>();
+            while (cursor.moveToNext()) {
+                masterKeyIds.add(cursor.getLong(0));
+            }
+            return masterKeyIds;
+        } finally {
+            cursor.close();
+        }
+    }
+
     UncachedKeyRing readRingFromResource(String name) throws Exception {
         return UncachedKeyRing.fromStream(KeyRepositorySaveTest.class.getResourceAsStream(name)).next();
     }
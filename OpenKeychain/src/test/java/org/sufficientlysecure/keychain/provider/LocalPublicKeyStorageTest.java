@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.provider;
+
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+@RunWith(KeychainTestRunner.class)
+public class LocalPublicKeyStorageTest {
+
+    File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = new File(RuntimeEnvironment.application.getCacheDir(), "public_keys_" + System.nanoTime());
+    }
+
+    @Test
+    public void testWriteReadDelete() throws Exception {
+        LocalPublicKeyStorage storage = new LocalPublicKeyStorage(mDirectory);
+
+        Assert.assertNull("unknown key should not be found", storage.readPublicKey(1L));
+
+        storage.writePublicKey(1L, new byte[] { 1, 2, 3 });
+        storage.writePublicKey(-2L, new byte[] { 4, 5 });
+        storage.writePublicKey(1L, new byte[] { 6 });
+
+        Assert.assertArrayEquals("updated key should be read back", new byte[] { 6 }, storage.readPublicKey(1L));
+        Assert.assertArrayEquals("key should be read back", new byte[] { 4, 5 }, storage.readPublicKey(-2L));
+
+        storage.deletePublicKey(1L);
+        Assert.assertNull("deleted key should not be found", storage.readPublicKey(1L));
+        Assert.assertArrayEquals("other key should be unaffected", new byte[] { 4, 5 }, storage.readPublicKey(-2L));
+    }
+
+    @Test
+    public void testReadWhileGrowing() throws Exception {
+        LocalPublicKeyStorage storage = new LocalPublicKeyStorage(mDirectory);
+
+        // each read after a write maps the new data as a region of its own, until they are merged
+        for (int i = 0; i < 50; i++) {
+            storage.writePublicKey(i, new byte[] { (byte) i, (byte) (i + 1) });
+            Assert.assertArrayEquals("key should be read back after each write",
+                    new byte[] { (byte) i, (byte) (i + 1) }, storage.readPublicKey(i));
+        }
+        for (int i = 0; i < 50; i++) {
+            Assert.assertArrayEquals("all keys should be read back from any region",
+                    new byte[] { (byte) i, (byte) (i + 1) }, storage.readPublicKey(i));
+        }
+    }
+
+    @Test
+    public void testSharedBetweenInstances() throws Exception {
+        // instances on the same directory stand in for the app's processes
+        LocalPublicKeyStorage first = new LocalPublicKeyStorage(mDirectory);
+        LocalPublicKeyStorage second = new LocalPublicKeyStorage(mDirectory);
+
+        first.writePublicKey(1L, new byte[] { 1 });
+        Assert.assertArrayEquals("write should be visible to other instance",
+                new byte[] { 1 }, second.readPublicKey(1L));
+
+        second.writePublicKey(1L, new byte[] { 2 });
+        second.writePublicKey(2L, new byte[] { 3 });
+        Assert.assertArrayEquals("update should be visible to other instance",
+                new byte[] { 2 }, first.readPublicKey(1L));
+
+        second.compact();
+        first.writePublicKey(3L, new byte[] { 4 });
+        Assert.assertArrayEquals("compacted pack should be picked up by other instance",
+                new byte[] { 3 }, first.readPublicKey(2L));
+        Assert.assertArrayEquals("write after compaction should go to the compacted pack",
+                new byte[] { 4 }, second.readPublicKey(3L));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        LocalPublicKeyStorage storage = new LocalPublicKeyStorage(mDirectory);
+
+        byte[] data = new byte[10000];
+        for (int i = 0; i < 10; i++) {
+            Arrays.fill(data, (byte) i);
+            storage.writePublicKey(i % 3, data);
+        }
+        storage.deletePublicKey(2L);
+        storage.compact();
+
+        Assert.assertEquals("only the compacted pack should be left", 2, mDirectory.list().length);
+        Arrays.fill(data, (byte) 9);
+        Assert.assertArrayEquals("latest version should survive compaction", data, storage.readPublicKey(0L));
+        Arrays.fill(data, (byte) 7);
+        Assert.assertArrayEquals("latest version should survive compaction", data, storage.readPublicKey(1L));
+        Assert.assertNull("deleted key should not survive compaction", storage.readPublicKey(2L));
+
+        LocalPublicKeyStorage reopened = new LocalPublicKeyStorage(mDirectory);
+        Assert.assertArrayEquals("compacted pack should be found when reopened", data, reopened.readPublicKey(1L));
+    }
+
+    @Test
+    public void testMigrateLegacyFiles() throws Exception {
+        Assert.assertTrue(mDirectory.mkdirs());
+        writeFile(new File(mDirectory, "0x0000000000000001.pub"), new byte[] { 1 });
+        writeFile(new File(mDirectory, "0xfedcba9876543210.pub"), new byte[] { 2 });
+
+        LocalPublicKeyStorage storage = new LocalPublicKeyStorage(mDirectory);
+
+        Assert.assertArrayEquals("legacy key should be migrated", new byte[] { 1 }, storage.readPublicKey(1L));
+        Assert.assertArrayEquals("legacy key with high bit set should be migrated",
+                new byte[] { 2 }, storage.readPublicKey(0xfedcba9876543210L));
+        Assert.assertFalse("legacy files should be deleted after migration",
+                new File(mDirectory, "0x0000000000000001.pub").exists());
+    }
+
+    private static void writeFile(File file, byte[] data) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(data);
+        out.close();
+    }
+
+}
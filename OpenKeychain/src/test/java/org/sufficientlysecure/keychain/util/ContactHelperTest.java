@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.provider.ContactsContract;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+import org.sufficientlysecure.keychain.util.ContactHelper.SyncedRawContact;
+
+
+@RunWith(KeychainTestRunner.class)
+public class ContactHelperTest {
+
+    ContactHelper mContactHelper;
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+        mContactHelper = new ContactHelper(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void testSkipUnchangedKey() throws Exception {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+
+        mContactHelper.writeKeyToNormalContact(ops, 1L, "Alice", true, "digest",
+                Collections.singletonList(new SyncedRawContact(7L, "digest")));
+
+        Assert.assertTrue("unchanged key should not be written", ops.isEmpty());
+    }
+
+    @Test
+    public void testRewriteKeyWithoutDigest() throws Exception {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+
+        mContactHelper.writeKeyToNormalContact(ops, 1L, "Alice", true, null,
+                Collections.singletonList(new SyncedRawContact(7L, null)));
+
+        Assert.assertFalse("key without digest should be written", ops.isEmpty());
+    }
+
+    @Test
+    public void testDeleteInactiveKey() throws Exception {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+
+        mContactHelper.writeKeyToNormalContact(ops, 1L, "Alice", false, "digest",
+                Arrays.asList(new SyncedRawContact(7L, "digest"), new SyncedRawContact(8L, "digest")));
+
+        Assert.assertEquals("all raw contacts of the key should be deleted", 2, ops.size());
+        assertDeletesRawContact(ops.get(0), 7L);
+        assertDeletesRawContact(ops.get(1), 8L);
+    }
+
+    @Test
+    public void testDeleteDuplicateRawContacts() throws Exception {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+
+        mContactHelper.writeKeyToNormalContact(ops, 1L, "Alice", true, "new",
+                Arrays.asList(new SyncedRawContact(7L, "old"), new SyncedRawContact(8L, "old")));
+
+        assertDeletesRawContact(ops.get(0), 8L);
+
+        ContentProviderOperation update = ops.get(1);
+        Assert.assertTrue("update should start the operations of the key", update.isYieldAllowed());
+        Assert.assertEquals("oldest raw contact should be kept",
+                Collections.singletonList("7"), Arrays.asList(update.resolveSelectionArgsBackReferences(null, 1)));
+        Assert.assertEquals("digest should be updated",
+                "new", update.resolveValueBackReferences(null, 1).getAsString(ContactsContract.RawContacts.SYNC1));
+    }
+
+    @Test
+    public void testBackReferenceToInsertedRawContact() throws Exception {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+
+        // operations of another key earlier in the same batch
+        mContactHelper.writeKeyToNormalContact(ops, 1L, "Alice", false, "digest",
+                Arrays.asList(new SyncedRawContact(7L, "digest"), new SyncedRawContact(8L, "digest")));
+        int insertIndex = ops.size();
+
+        mContactHelper.writeKeyToNormalContact(ops, 2L, "Bob", true, "digest",
+                new ArrayList<SyncedRawContact>());
+
+        ContentProviderOperation insert = ops.get(insertIndex);
+        Assert.assertTrue("insert should start the operations of the key", insert.isYieldAllowed());
+        Assert.assertEquals("raw contact should be inserted with the keyring digest",
+                "digest", insert.resolveValueBackReferences(null, insertIndex)
+                        .getAsString(ContactsContract.RawContacts.SYNC1));
+
+        ContentProviderResult[] results = new ContentProviderResult[ops.size()];
+        results[insertIndex] = new ContentProviderResult(
+                Uri.withAppendedPath(ContactsContract.RawContacts.CONTENT_URI, "42"));
+
+        // the key link and the display name are inserted for the new raw contact
+        for (int i : new int[] { insertIndex + 1, insertIndex + 2 }) {
+            ContentValues values = ops.get(i).resolveValueBackReferences(results, i);
+            Assert.assertEquals("data should reference the inserted raw contact",
+                    Long.valueOf(42L), values.getAsLong(ContactsContract.Data.RAW_CONTACT_ID));
+            Assert.assertFalse("data should not be a yield point", ops.get(i).isYieldAllowed());
+        }
+    }
+
+    private static void assertDeletesRawContact(ContentProviderOperation op, long rawContactId) {
+        Assert.assertEquals("delete should be of a raw contact",
+                ContactsContract.RawContacts.CONTENT_URI.getPath(), op.getUri().getPath());
+        Assert.assertNull("delete should have no values", op.resolveValueBackReferences(null, 0));
+        Assert.assertEquals("delete should select the raw contact", Collections.singletonList(Long.toString(rawContactId)),
+                Arrays.asList(op.resolveSelectionArgsBackReferences(null, 0)));
+        Assert.assertTrue("delete should be a yield point", op.isYieldAllowed());
+    }
+
+}
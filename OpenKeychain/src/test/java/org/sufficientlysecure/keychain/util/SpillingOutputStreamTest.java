@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 Schürmann & Breitmoser GbR
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.bouncycastle.util.io.Streams;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RuntimeEnvironment;
+import org.sufficientlysecure.keychain.KeychainTestRunner;
+
+@RunWith(KeychainTestRunner.class)
+public class SpillingOutputStreamTest {
+
+    @Test
+    public void testInMemory() throws Exception {
+        File cacheDir = RuntimeEnvironment.application.getCacheDir();
+        byte[] data = new byte[1000];
+        new Random().nextBytes(data);
+
+        SpillingOutputStream out = new SpillingOutputStream(cacheDir, 1024);
+        out.write(data);
+
+        Assert.assertFalse("data below the limit should stay in memory", out.isSpilled());
+        Assert.assertTrue("data should be read back unchanged",
+                Arrays.equals(data, Streams.readAll(out.getInputStream())));
+        out.discard();
+    }
+
+    @Test
+    public void testSpilled() throws Exception {
+        File cacheDir = RuntimeEnvironment.application.getCacheDir();
+        int numFilesBefore = cacheDir.list().length;
+        byte[] data = new byte[100000];
+        new Random().nextBytes(data);
+
+        SpillingOutputStream out = new SpillingOutputStream(cacheDir, 1024);
+        out.write(data, 0, 1000);
+        out.write(data, 1000, data.length - 1000);
+
+        Assert.assertTrue("data above the limit should be moved to a file", out.isSpilled());
+        Assert.assertEquals("size should count all data", data.length, out.getSize());
+        Assert.assertTrue("data should be read back unchanged",
+                Arrays.equals(data, Streams.readAll(out.getInputStream())));
+
+        out.discard();
+        Assert.assertEquals("spill file should be deleted", numFilesBefore, cacheDir.list().length);
+    }
+
+    @Test
+    public void testSpillFileEncrypted() throws Exception {
+        File cacheDir = RuntimeEnvironment.application.getCacheDir();
+        List<String> filesBefore = Arrays.asList(cacheDir.list());
+        byte[] data = new byte[100000];
+        Arrays.fill(data, (byte) 'a');
+
+        SpillingOutputStream out = new SpillingOutputStream(cacheDir, 1024);
+        out.write(data);
+        Assert.assertTrue("data should be read back unchanged",
+                Arrays.equals(data, Streams.readAll(out.getInputStream())));
+
+        File spillFile = null;
+        for (File file : cacheDir.listFiles()) {
+            if (!filesBefore.contains(file.getName())) {
+                spillFile = file;
+            }
+        }
+        Assert.assertNotNull("data above the limit should be moved to a file", spillFile);
+
+        FileInputStream fileIn = new FileInputStream(spillFile);
+        byte[] fileData = Streams.readAll(fileIn);
+        fileIn.close();
+        Assert.assertEquals("spill file should contain all data", data.length, fileData.length);
+        Assert.assertFalse("spill file should not contain the data in plain",
+                Arrays.equals(data, fileData));
+
+        out.discard();
+    }
+
+}